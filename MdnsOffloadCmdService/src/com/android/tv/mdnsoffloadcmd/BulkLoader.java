@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadcmd;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import device.google.atv.mdns_offload.IMdnsOffloadManager;
+
+/**
+ * Loads a corpus of protocol responses and passthrough QNAMEs through IMdnsOffloadManager, to
+ * load test the offload manager with thousands of records. The corpus is a binary file of
+ * length-prefixed entries, read through a memory-mapped buffer:
+ * <pre>
+ * corpus := magic:"MDOB" version:u8 entry*
+ * entry  := type:u8 length:u16 payload[length]
+ * </pre>
+ * Entries of type {@link #ENTRY_PROTOCOL_RESPONSE} hold a raw mDNS response packet, entries of
+ * type {@link #ENTRY_PASSTHROUGH_QNAME} hold a UTF-8 QNAME. Integers are big-endian.
+ * <p>
+ * Calls are paced at a target rate, and timed one by one. Throughput and latency percentiles of
+ * each method are logged once all calls were made. Everything a loader added is removed by
+ * {@link #unload}.
+ */
+class BulkLoader {
+    private static final String TAG = BulkLoader.class.getSimpleName();
+
+    static final byte ENTRY_PROTOCOL_RESPONSE = 1;
+    static final byte ENTRY_PASSTHROUGH_QNAME = 2;
+    private static final byte[] MAGIC = {'M', 'D', 'O', 'B'};
+    private static final byte VERSION = 1;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    /**
+     * Latencies of the calls to one method.
+     */
+    private static class CallStats {
+        final String mMethod;
+        long[] mLatenciesNanos = new long[64];
+        int mCount = 0;
+        int mFailures = 0;
+
+        CallStats(String method) {
+            mMethod = method;
+        }
+
+        void add(long latencyNanos, boolean success) {
+            if (mCount == mLatenciesNanos.length) {
+                mLatenciesNanos = Arrays.copyOf(mLatenciesNanos, mCount * 2);
+            }
+            mLatenciesNanos[mCount++] = latencyNanos;
+            if (!success) {
+                mFailures++;
+            }
+        }
+
+        void log(long elapsedNanos) {
+            if (mCount == 0) {
+                return;
+            }
+            long[] sorted = Arrays.copyOf(mLatenciesNanos, mCount);
+            Arrays.sort(sorted);
+            Log.i(TAG, "%s: calls=%d, failures=%d, throughput=%.1f calls/s, latency us"
+                    .formatted(mMethod, mCount, mFailures,
+                            (double) mCount * NANOS_PER_SECOND / Math.max(elapsedNanos, 1))
+                    + " p50=%d p90=%d p99=%d max=%d".formatted(
+                            percentile(sorted, 50) / 1000, percentile(sorted, 90) / 1000,
+                            percentile(sorted, 99) / 1000, sorted[mCount - 1] / 1000));
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            // Nearest rank.
+            int rank = (int) Math.ceil(percent / 100d * sorted.length);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+    }
+
+    private final IMdnsOffloadManager mOffloadManager;
+    private final IBinder mClientToken;
+    private final String mNetworkInterface;
+    private final List<Integer> mRecordKeys = new ArrayList<>();
+    private final List<String> mQNames = new ArrayList<>();
+
+    BulkLoader(
+            @NonNull IMdnsOffloadManager offloadManager,
+            @NonNull IBinder clientToken,
+            @NonNull String networkInterface) {
+        mOffloadManager = offloadManager;
+        mClientToken = clientToken;
+        mNetworkInterface = networkInterface;
+    }
+
+    /**
+     * Add all the entries of a corpus.
+     *
+     * @param callsPerSecond the target rate of calls, 0 for as fast as possible.
+     * @throws IllegalArgumentException if the corpus is malformed. Entries before the malformed
+     *                                  one are added.
+     */
+    void load(@NonNull ByteBuffer corpus, int callsPerSecond) {
+        byte[] magic = new byte[MAGIC.length];
+        if (corpus.remaining() < MAGIC.length + 1) {
+            throw new IllegalArgumentException("Corpus is too short");
+        }
+        corpus.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || corpus.get() != VERSION) {
+            throw new IllegalArgumentException("Not a corpus of version " + VERSION);
+        }
+        CallStats addProtocolResponses = new CallStats("addProtocolResponses");
+        CallStats addToPassthroughList = new CallStats("addToPassthroughList");
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        int calls = 0;
+        try {
+            while (corpus.hasRemaining()) {
+                byte type = corpus.get();
+                if (corpus.remaining() < 2) {
+                    throw new IllegalArgumentException("Truncated entry " + calls);
+                }
+                int length = Short.toUnsignedInt(corpus.getShort());
+                if (corpus.remaining() < length) {
+                    throw new IllegalArgumentException("Truncated entry " + calls);
+                }
+                byte[] payload = new byte[length];
+                corpus.get(payload);
+                pace(startNanos, calls++, callsPerSecond);
+                switch (type) {
+                    case ENTRY_PROTOCOL_RESPONSE:
+                        addProtocolResponse(payload, addProtocolResponses);
+                        break;
+                    case ENTRY_PASSTHROUGH_QNAME:
+                        addToPassthroughList(
+                                new String(payload, StandardCharsets.UTF_8), addToPassthroughList);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown entry type " + type);
+                }
+            }
+        } finally {
+            long elapsedNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+            Log.i(TAG, "Loaded %d entries on iface{%s} in %d ms".formatted(
+                    calls, mNetworkInterface, elapsedNanos / 1_000_000));
+            addProtocolResponses.log(elapsedNanos);
+            addToPassthroughList.log(elapsedNanos);
+        }
+    }
+
+    /**
+     * Remove all the entries added by {@link #load}.
+     *
+     * @param callsPerSecond the target rate of calls, 0 for as fast as possible.
+     */
+    void unload(int callsPerSecond) {
+        CallStats removeProtocolResponses = new CallStats("removeProtocolResponses");
+        CallStats removeFromPassthroughList = new CallStats("removeFromPassthroughList");
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        int calls = 0;
+        for (int recordKey : mRecordKeys) {
+            pace(startNanos, calls++, callsPerSecond);
+            long callStartNanos = SystemClock.elapsedRealtimeNanos();
+            boolean success = false;
+            try {
+                mOffloadManager.removeProtocolResponses(recordKey, mClientToken);
+                success = true;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Error while removing record " + recordKey, e);
+            }
+            removeProtocolResponses.add(
+                    SystemClock.elapsedRealtimeNanos() - callStartNanos, success);
+        }
+        for (String qname : mQNames) {
+            pace(startNanos, calls++, callsPerSecond);
+            long callStartNanos = SystemClock.elapsedRealtimeNanos();
+            boolean success = false;
+            try {
+                mOffloadManager.removeFromPassthroughList(mNetworkInterface, qname, mClientToken);
+                success = true;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Error while removing passthrough qname " + qname, e);
+            }
+            removeFromPassthroughList.add(
+                    SystemClock.elapsedRealtimeNanos() - callStartNanos, success);
+        }
+        mRecordKeys.clear();
+        mQNames.clear();
+        long elapsedNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        Log.i(TAG, "Unloaded %d entries on iface{%s} in %d ms".formatted(
+                calls, mNetworkInterface, elapsedNanos / 1_000_000));
+        removeProtocolResponses.log(elapsedNanos);
+        removeFromPassthroughList.log(elapsedNanos);
+    }
+
+    private void addProtocolResponse(byte[] packet, CallStats stats) {
+        IMdnsOffloadManager.OffloadServiceInfo info =
+                new IMdnsOffloadManager.OffloadServiceInfo();
+        info.rawOffloadPacket = packet;
+        long callStartNanos = SystemClock.elapsedRealtimeNanos();
+        boolean success = false;
+        try {
+            mRecordKeys.add(
+                    mOffloadManager.addProtocolResponses(mNetworkInterface, info, mClientToken));
+            success = true;
+        } catch (RemoteException | IllegalArgumentException e) {
+            // Malformed packets are rejected by the manager, the load goes on.
+            Log.e(TAG, "Error while registering bulk packet", e);
+        }
+        stats.add(SystemClock.elapsedRealtimeNanos() - callStartNanos, success);
+    }
+
+    private void addToPassthroughList(String qname, CallStats stats) {
+        long callStartNanos = SystemClock.elapsedRealtimeNanos();
+        boolean success = false;
+        try {
+            mOffloadManager.addToPassthroughList(mNetworkInterface, qname, mClientToken);
+            mQNames.add(qname);
+            success = true;
+        } catch (RemoteException | IllegalArgumentException e) {
+            Log.e(TAG, "Error while adding passthrough qname " + qname, e);
+        }
+        stats.add(SystemClock.elapsedRealtimeNanos() - callStartNanos, success);
+    }
+
+    /**
+     * Wait until the given call is due, so that calls are made at the target rate on average.
+     */
+    private static void pace(long startNanos, int call, int callsPerSecond) {
+        if (callsPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = startNanos + call * NANOS_PER_SECOND / callsPerSecond;
+        long delayNanos = dueNanos - SystemClock.elapsedRealtimeNanos();
+        if (delayNanos > 0) {
+            LockSupport.parkNanos(delayNanos);
+        }
+    }
+}
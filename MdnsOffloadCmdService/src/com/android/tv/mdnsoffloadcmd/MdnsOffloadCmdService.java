@@ -38,6 +38,11 @@ import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.HexFormat;
 
 import device.google.atv.mdns_offload.IMdnsOffloadManager;
@@ -52,6 +57,10 @@ public class MdnsOffloadCmdService extends Service {
 
     private IMdnsOffloadManager mMdnsOffloadManagerService;
     private IBinder mBinder;
+    // Bulk loads run off the main thread, one at a time.
+    private Handler mBulkLoadHandler;
+    // The last bulk load, until it is unloaded. Only accessed on the bulk load thread.
+    private BulkLoader mBulkLoader;
 
     @Nullable
     @Override
@@ -64,6 +73,9 @@ public class MdnsOffloadCmdService extends Service {
     public void onCreate() {
         super.onCreate();
         mBinder = new Binder();
+        HandlerThread bulkLoadThread = new HandlerThread("MdnsOffloadCmdBulkLoad");
+        bulkLoadThread.start();
+        mBulkLoadHandler = new Handler(bulkLoadThread.getLooper());
         setupCommandBroadcastReceiver();
     }
 
@@ -151,6 +163,45 @@ public class MdnsOffloadCmdService extends Service {
         }
     }
 
+    /**
+     * Load a corpus of packets and qnames from the files of this app, see {@link BulkLoader}.
+     */
+    private void bulkLoad(String fileName, String iface, int callsPerSecond) {
+        IMdnsOffloadManager offloadManager = mMdnsOffloadManagerService;
+        if (offloadManager == null) {
+            Log.e(TAG, "Offload Manager not connected");
+            return;
+        }
+        File file = new File(getFilesDir(), fileName);
+        mBulkLoadHandler.post(() -> {
+            if (mBulkLoader != null) {
+                Log.e(TAG, "A bulk load is already in place, unload it first");
+                return;
+            }
+            Log.d(TAG, "Bulk loading {" + file + "} on iface{" + iface + "} at "
+                    + callsPerSecond + " calls/s");
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer corpus =
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                mBulkLoader = new BulkLoader(offloadManager, mBinder, iface);
+                mBulkLoader.load(corpus, callsPerSecond);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(TAG, "Error while bulk loading {" + file + "}", e);
+            }
+        });
+    }
+
+    private void bulkUnload(int callsPerSecond) {
+        mBulkLoadHandler.post(() -> {
+            if (mBulkLoader == null) {
+                Log.e(TAG, "No bulk load to unload");
+                return;
+            }
+            mBulkLoader.unload(callsPerSecond);
+            mBulkLoader = null;
+        });
+    }
+
     private void setupCommandBroadcastReceiver() {
         BroadcastReceiver receiver = new CommandBroadcastReceiver();
         IntentFilter filter = new IntentFilter();
@@ -202,6 +253,26 @@ public class MdnsOffloadCmdService extends Service {
                     }
                     break;
                 }
+                case "BULK_LOAD": {
+                    String iface = intent.getStringExtra("iface");
+                    String fileName = intent.getStringExtra("file");
+                    int callsPerSecond = intent.getIntExtra("rate", 0);
+                    if (iface != null && fileName != null && callsPerSecond >= 0) {
+                        bulkLoad(fileName, iface, callsPerSecond);
+                    } else {
+                        Log.d(TAG, "Bad parameters for BULK_LOAD command");
+                    }
+                    break;
+                }
+                case "BULK_UNLOAD": {
+                    int callsPerSecond = intent.getIntExtra("rate", 0);
+                    if (callsPerSecond >= 0) {
+                        bulkUnload(callsPerSecond);
+                    } else {
+                        Log.d(TAG, "Bad parameters for BULK_UNLOAD command");
+                    }
+                    break;
+                }
             }
         }
     }
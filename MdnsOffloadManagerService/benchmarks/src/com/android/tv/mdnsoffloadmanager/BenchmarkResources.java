@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.content.res.Resources;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+/**
+ * Resources of the benchmark app, with the service types of {@link PacketCorpus} on the priority
+ * list, as a device offloading them would configure it.
+ */
+class BenchmarkResources extends Resources {
+
+    @SuppressWarnings("deprecation")
+    BenchmarkResources() {
+        this(InstrumentationRegistry.getInstrumentation().getTargetContext().getResources());
+    }
+
+    @SuppressWarnings("deprecation")
+    private BenchmarkResources(Resources base) {
+        super(base.getAssets(), base.getDisplayMetrics(), base.getConfiguration());
+    }
+
+    @Override
+    public String[] getStringArray(int id) {
+        if (id == PriorityListManager.PRIORITIZED_QNAMES_ID) {
+            return PacketCorpus.PRIORITY_LIST.clone();
+        }
+        return super.getStringArray(id);
+    }
+}
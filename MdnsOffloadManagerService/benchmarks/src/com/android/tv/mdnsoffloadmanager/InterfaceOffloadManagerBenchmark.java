@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.test.TestLooper;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import device.google.atv.mdns_offload.IMdnsOffloadManager;
+
+/**
+ * Measures refresh cycles of {@link InterfaceOffloadManager}: reading the intents of a network
+ * interface, ordering them and reconciling them with the records held by the vendor service.
+ * The vendor service is a {@link SimulatedMdnsOffloadService} called inline, so that the
+ * measurements cover the manager and not the binder transport.
+ */
+@RunWith(Parameterized.class)
+public class InterfaceOffloadManagerBenchmark {
+
+    private static final String[] ALL_INTERFACES = {"eth0", "wlan0", "wlan1", "usb0"};
+    private static final int APP_UID = 10_000;
+
+    @Parameterized.Parameters(name = "intents={0},interfaces={1}")
+    public static List<Object[]> parameters() {
+        List<Object[]> parameters = new ArrayList<>();
+        for (int intentCount : new int[] {10, 100, 1_000}) {
+            for (int interfaceCount : new int[] {1, ALL_INTERFACES.length}) {
+                parameters.add(new Object[] {intentCount, interfaceCount});
+            }
+        }
+        return parameters;
+    }
+
+    @Parameterized.Parameter(0)
+    public int mIntentCount;
+
+    @Parameterized.Parameter(1)
+    public int mInterfaceCount;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final IBinder mClientToken = new Binder();
+    private TestLooper mTestLooper;
+    private OffloadIntentStore mStore;
+    private List<InterfaceOffloadManager> mManagers;
+
+    @Before
+    public void setup() {
+        mTestLooper = new TestLooper();
+        Handler handler = new Handler(mTestLooper.getLooper());
+        PriorityListManager priorityListManager =
+                new PriorityListManager(new BenchmarkResources());
+        mStore = new OffloadIntentStore(priorityListManager, false);
+        mStore.setAppIdAllowlist(Set.of(UserHandle.getAppId(APP_UID)));
+        OffloadWriter offloadWriter = new OffloadWriter(handler, Runnable::run, () -> {});
+        OffloadMetrics offloadMetrics = new OffloadMetrics(SystemClock::elapsedRealtime);
+        offloadWriter.connectVendorService(
+                new SimulatedMdnsOffloadService(-1, -1, false), () -> {});
+        mManagers = new ArrayList<>();
+        for (int i = 0; i < mInterfaceCount; i++) {
+            InterfaceOffloadManager manager = new InterfaceOffloadManager(ALL_INTERFACES[i],
+                    mStore, priorityListManager, offloadWriter, offloadMetrics, handler, 0, 0,
+                    state -> {});
+            manager.onNetworkAvailable();
+            manager.onVendorServiceConnected(null);
+            mManagers.add(manager);
+        }
+        for (int i = 0; i < mIntentCount; i++) {
+            String iface = ALL_INTERFACES[i % mInterfaceCount];
+            mStore.registerOffloadIntent(iface, makeServiceInfo(i), mClientToken, APP_UID);
+            mStore.registerPassthroughIntent(iface, "_svc" + i + "._tcp.local", mClientToken,
+                    APP_UID);
+        }
+        refreshAll();
+    }
+
+    @Test
+    public void refreshUnchangedRecords() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            refreshAll();
+        }
+    }
+
+    @Test
+    public void refreshAfterReplacingOneRecord() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        InterfaceOffloadManager manager = mManagers.get(0);
+        int recordKey = mStore.registerOffloadIntent(
+                ALL_INTERFACES[0], makeServiceInfo(mIntentCount), mClientToken, APP_UID)
+                .mRecordKey;
+        int i = 0;
+        while (state.keepRunning()) {
+            mStore.getAndRemoveOffloadIntent(recordKey, mClientToken);
+            recordKey = mStore.registerOffloadIntent(ALL_INTERFACES[0],
+                    makeServiceInfo(mIntentCount + i++ % 2), mClientToken, APP_UID).mRecordKey;
+            manager.requestProtocolResponsesRefresh();
+            manager.flushPendingRefreshes();
+            mTestLooper.dispatchAll();
+        }
+    }
+
+    @Test
+    public void retrieveAndClearHitCounters() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (InterfaceOffloadManager manager : mManagers) {
+                manager.retrieveAndClearHitCounters();
+            }
+            mTestLooper.dispatchAll();
+        }
+    }
+
+    private void refreshAll() {
+        for (InterfaceOffloadManager manager : mManagers) {
+            manager.requestProtocolResponsesRefresh();
+            manager.requestPassthroughListRefresh();
+            manager.flushPendingRefreshes();
+        }
+        mTestLooper.dispatchAll();
+    }
+
+    private static IMdnsOffloadManager.OffloadServiceInfo makeServiceInfo(int instance) {
+        return PacketCorpus.makeServiceInfo(
+                PacketCorpus.SERVICES.get(instance % PacketCorpus.SERVICES.size()), instance);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.List;
+
+/**
+ * Measures the parsing and optimization of the response packets of {@link PacketCorpus}, once
+ * per service.
+ */
+@RunWith(Parameterized.class)
+public class MdnsPacketParserBenchmark {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<String> services() {
+        return PacketCorpus.SERVICES;
+    }
+
+    @Parameterized.Parameter
+    public String mService;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private byte[] mPacket;
+    private byte[] mUncompressedPacket;
+    private MdnsNameTable mNameTable;
+
+    @Before
+    public void setup() {
+        mPacket = PacketCorpus.makePacket(mService, 1, true);
+        mUncompressedPacket = PacketCorpus.makePacket(mService, 1, false);
+        // Names of the packet are interned once, as they are for a registered service.
+        mNameTable = new MdnsNameTable();
+        MdnsPacketParser.parseResponsePacket(mPacket, mNameTable);
+    }
+
+    @Test
+    public void extractMatchCriteria() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            MdnsPacketParser.extractMatchCriteria(mPacket);
+        }
+    }
+
+    @Test
+    public void parseResponsePacket() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            MdnsPacketParser.parseResponsePacket(mPacket, mNameTable);
+        }
+    }
+
+    @Test
+    public void extractFullName() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        // RRNAME of the last answer, usually a pointer to the host name.
+        int nameOffset = MdnsPacketParser.extractMatchCriteria(mPacket)
+                .stream()
+                .reduce((first, second) -> second)
+                .orElseThrow()
+                .nameOffset;
+        while (state.keepRunning()) {
+            MdnsPacketParser.extractFullName(mPacket, nameOffset);
+        }
+    }
+
+    @Test
+    public void optimizeUncompressedPacket() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            MdnsPacketOptimizer.optimize(mUncompressedPacket);
+        }
+    }
+}
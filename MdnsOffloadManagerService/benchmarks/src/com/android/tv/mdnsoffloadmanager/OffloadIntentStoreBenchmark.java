@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.UserHandle;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import device.google.atv.mdns_offload.IMdnsOffloadManager;
+
+/**
+ * Measures {@link OffloadIntentStore} lookups and removals with as many offload intents as
+ * passthrough intents, spread over network interfaces. Offload intents hold the packets of
+ * {@link PacketCorpus}.
+ */
+@RunWith(Parameterized.class)
+public class OffloadIntentStoreBenchmark {
+
+    private static final String[] ALL_INTERFACES = {"eth0", "wlan0", "wlan1", "usb0"};
+    private static final int APP_COUNT = 50;
+    private static final int FIRST_APP_UID = 10_000;
+
+    @Parameterized.Parameters(name = "intents={0},interfaces={1}")
+    public static List<Object[]> parameters() {
+        List<Object[]> parameters = new ArrayList<>();
+        for (int intentCount : new int[] {100, 1_000, 10_000}) {
+            for (int interfaceCount : new int[] {1, ALL_INTERFACES.length}) {
+                parameters.add(new Object[] {intentCount, interfaceCount});
+            }
+        }
+        return parameters;
+    }
+
+    @Parameterized.Parameter(0)
+    public int mIntentCount;
+
+    @Parameterized.Parameter(1)
+    public int mInterfaceCount;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private String[] mInterfaces;
+    private OffloadIntentStore mStore;
+    private IBinder[] mClientTokens;
+    private Set<Integer> mAllAppIds;
+
+    @Before
+    public void setup() {
+        PriorityListManager priorityListManager = new PriorityListManager(
+                InstrumentationRegistry.getInstrumentation().getTargetContext().getResources());
+        mStore = new OffloadIntentStore(priorityListManager, false);
+        mInterfaces = Arrays.copyOf(ALL_INTERFACES, mInterfaceCount);
+        mClientTokens = new IBinder[APP_COUNT];
+        mAllAppIds = new HashSet<>();
+        for (int app = 0; app < APP_COUNT; app++) {
+            mClientTokens[app] = new Binder();
+            mAllAppIds.add(UserHandle.getAppId(FIRST_APP_UID + app));
+        }
+        mStore.setAppIdAllowlist(mAllAppIds);
+        for (int i = 0; i < mIntentCount; i++) {
+            int app = i % APP_COUNT;
+            String iface = mInterfaces[i % mInterfaces.length];
+            mStore.registerOffloadIntent(iface, makeServiceInfo(i), mClientTokens[app],
+                    FIRST_APP_UID + app);
+            mStore.registerPassthroughIntent(
+                    iface, "_svc" + i + "._tcp.local", mClientTokens[app], FIRST_APP_UID + app);
+        }
+    }
+
+    @Test
+    public void getOffloadIntentsForInterface() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mStore.getOffloadIntentsForInterface(mInterfaces[i++ % mInterfaces.length]);
+        }
+    }
+
+    @Test
+    public void getPassthroughIntentsForInterface() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mStore.getPassthroughIntentsForInterface(mInterfaces[i++ % mInterfaces.length]);
+        }
+    }
+
+    @Test
+    public void removeAndRegisterPassthroughIntent() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            int index = i++ % mIntentCount;
+            int app = index % APP_COUNT;
+            String qname = "_svc" + index + "._tcp.local";
+            mStore.removePassthroughIntent(qname, mClientTokens[app]);
+            mStore.registerPassthroughIntent(mInterfaces[index % mInterfaces.length], qname,
+                    mClientTokens[app], FIRST_APP_UID + app);
+        }
+    }
+
+    @Test
+    public void removeAndRegisterOffloadIntent() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        IMdnsOffloadManager.OffloadServiceInfo serviceInfo = makeServiceInfo(mIntentCount);
+        int recordKey = mStore.registerOffloadIntent(
+                mInterfaces[0], serviceInfo, mClientTokens[0], FIRST_APP_UID).mRecordKey;
+        while (state.keepRunning()) {
+            mStore.getAndRemoveOffloadIntent(recordKey, mClientTokens[0]);
+            recordKey = mStore.registerOffloadIntent(
+                    mInterfaces[0], serviceInfo, mClientTokens[0], FIRST_APP_UID).mRecordKey;
+        }
+    }
+
+    @Test
+    public void toggleAppInAllowlist() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        Set<Integer> withoutFirstApp = new HashSet<>(mAllAppIds);
+        withoutFirstApp.remove(UserHandle.getAppId(FIRST_APP_UID));
+        int i = 0;
+        while (state.keepRunning()) {
+            mStore.setAppIdAllowlist(i++ % 2 == 0 ? withoutFirstApp : mAllAppIds);
+        }
+    }
+
+    private static IMdnsOffloadManager.OffloadServiceInfo makeServiceInfo(int instance) {
+        return PacketCorpus.makeServiceInfo(
+                PacketCorpus.SERVICES.get(instance % PacketCorpus.SERVICES.size()), instance);
+    }
+}
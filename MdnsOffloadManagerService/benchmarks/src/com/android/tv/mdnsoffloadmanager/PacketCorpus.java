@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import device.google.atv.mdns_offload.IMdnsOffloadManager;
+
+/**
+ * Response packets modeled on the announcements of common mDNS services, so that benchmarks run
+ * on the record types, name lengths and TXT sizes seen on real networks. Each instance number
+ * yields a distinct instance of the service.
+ */
+final class PacketCorpus {
+
+    static final String CAST = "cast";
+    static final String AIRPLAY = "airplay";
+    static final String SPOTIFY_CONNECT = "spotify-connect";
+    static final String MATTER = "matter";
+    static final List<String> SERVICES = List.of(CAST, AIRPLAY, SPOTIFY_CONNECT, MATTER);
+
+    /**
+     * Service types of the corpus, as found on the priority list of a device.
+     */
+    static final String[] PRIORITY_LIST = {
+            "_googlecast._tcp.local.",
+            "_airplay._tcp.local.",
+            "_spotify-connect._tcp.local.",
+            "_matter._tcp.local.",
+    };
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_PTR = 12;
+    private static final int TYPE_TXT = 16;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_SRV = 33;
+    private static final int CLASS_IN = 1;
+    private static final int CLASS_IN_CACHE_FLUSH = 0x8001;
+    private static final int TTL_HOST = 120;
+    private static final int TTL_SERVICE = 4500;
+
+    private PacketCorpus() {
+    }
+
+    /**
+     * Service info holding the response packet of the given service instance, with name
+     * compression.
+     */
+    static IMdnsOffloadManager.OffloadServiceInfo makeServiceInfo(String service, int instance) {
+        IMdnsOffloadManager.OffloadServiceInfo serviceInfo =
+                new IMdnsOffloadManager.OffloadServiceInfo();
+        serviceInfo.serviceName = instanceName(service, instance);
+        serviceInfo.serviceType = serviceType(service);
+        serviceInfo.deviceHostName = hostName(service, instance) + ".local";
+        serviceInfo.rawOffloadPacket = makePacket(service, instance, true);
+        return serviceInfo;
+    }
+
+    /**
+     * Response packet of the given service instance.
+     *
+     * @param compressed whether names are compressed, as sent by most responders.
+     */
+    static byte[] makePacket(String service, int instance, boolean compressed) {
+        String type = serviceType(service) + ".local";
+        String instanceName = instanceName(service, instance) + "." + type;
+        String host = hostName(service, instance) + ".local";
+        byte[] ipv4 = {(byte) 192, (byte) 168, (byte) (instance >> 8), (byte) instance};
+        byte[] ipv6 = {(byte) 0xfe, (byte) 0x80, 0, 0, 0, 0, 0, 0,
+                0x1c, 0x2b, 0x3a, 0x49, 0x58, 0x67, (byte) (instance >> 8), (byte) instance};
+        PacketBuilder packet = new PacketBuilder();
+        switch (service) {
+            case CAST:
+                packet.ptr(type, instanceName);
+                packet.srv(instanceName, 8009, host);
+                packet.txt(instanceName,
+                        "id=" + hex(instance, 32), "cd=" + hex(instance * 31, 32),
+                        "rm=", "ve=05", "md=Google TV Streamer", "ic=/setup/icon.png",
+                        "fn=Living Room TV " + instance, "ca=465413", "st=0",
+                        "bs=FA8F" + hex(instance, 8), "nf=1", "rs=");
+                packet.a(host, ipv4);
+                break;
+            case AIRPLAY:
+                packet.ptr(type, instanceName);
+                packet.srv(instanceName, 7000, host);
+                packet.txt(instanceName,
+                        "acl=0", "deviceid=" + mac(instance), "features=0x7F8AD0,0x38BCB46",
+                        "fex=0Ip/AEbPiwNACA", "rsf=0x3", "flags=0x244", "model=AppleTV14,1",
+                        "pk=" + hex(instance, 64), "pi=" + hex(instance * 7, 32),
+                        "srcvers=775.3.1", "osvers=18.0", "vv=2");
+                packet.a(host, ipv4);
+                packet.aaaa(host, ipv6);
+                break;
+            case SPOTIFY_CONNECT:
+                packet.ptr(type, instanceName);
+                packet.srv(instanceName, 38_000 + instance % 1000, host);
+                packet.txt(instanceName, "CPath=/zc/0", "VERSION=1.0", "Stack=SP");
+                packet.a(host, ipv4);
+                break;
+            case MATTER:
+                packet.ptr(type, instanceName);
+                packet.ptr("_I" + hex(0x2906C908D115D362L, 16) + "._sub." + type,
+                        instanceName);
+                packet.srv(instanceName, 5540, host);
+                packet.txt(instanceName, "SII=5000", "SAI=300", "SAT=4000", "T=0");
+                packet.aaaa(host, ipv6);
+                break;
+            default:
+                throw new IllegalArgumentException("No such service " + service);
+        }
+        byte[] raw = packet.build();
+        return compressed ? MdnsPacketOptimizer.optimize(raw) : raw;
+    }
+
+    private static String serviceType(String service) {
+        return service.equals(CAST) ? "_googlecast._tcp" : "_" + service + "._tcp";
+    }
+
+    private static String instanceName(String service, int instance) {
+        switch (service) {
+            case CAST:
+                return "Google-TV-Streamer-" + hex(instance, 32);
+            case AIRPLAY:
+                return "Living Room " + instance;
+            case SPOTIFY_CONNECT:
+                return "Living Room TV " + instance;
+            case MATTER:
+                return hex(0x2906C908D115D362L, 16) + "-" + hex(instance, 16);
+            default:
+                throw new IllegalArgumentException("No such service " + service);
+        }
+    }
+
+    private static String hostName(String service, int instance) {
+        return service.equals(MATTER) ? mac(instance).replace(":", "") + "0000"
+                : "tv-" + service + "-" + instance;
+    }
+
+    /**
+     * Hex digits derived from the given value, standing for identifiers and keys.
+     */
+    private static String hex(long value, int digits) {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < digits) {
+            builder.append("%016X".formatted(value));
+            value = value * 0x9E3779B97F4A7C15L + 1;
+        }
+        return builder.substring(0, digits);
+    }
+
+    private static String mac(int instance) {
+        return "A4:83:E7:%02X:%02X:%02X".formatted(
+                (instance >> 16) & 0xff, (instance >> 8) & 0xff, instance & 0xff);
+    }
+
+    /**
+     * Writes the answers of a response packet without name compression.
+     */
+    private static final class PacketBuilder {
+        private final ByteArrayOutputStream mAnswers = new ByteArrayOutputStream();
+        private int mAnswerCount = 0;
+
+        void ptr(String name, String target) {
+            ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+            writeName(rdata, target);
+            answer(name, TYPE_PTR, CLASS_IN, TTL_SERVICE, rdata.toByteArray());
+        }
+
+        void srv(String name, int port, String target) {
+            ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+            writeUint16(rdata, 0); // Priority
+            writeUint16(rdata, 0); // Weight
+            writeUint16(rdata, port);
+            writeName(rdata, target);
+            answer(name, TYPE_SRV, CLASS_IN_CACHE_FLUSH, TTL_HOST, rdata.toByteArray());
+        }
+
+        void txt(String name, String... entries) {
+            ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+            for (String entry : entries) {
+                byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+                rdata.write(bytes.length);
+                rdata.writeBytes(bytes);
+            }
+            answer(name, TYPE_TXT, CLASS_IN_CACHE_FLUSH, TTL_SERVICE, rdata.toByteArray());
+        }
+
+        void a(String name, byte[] address) {
+            answer(name, TYPE_A, CLASS_IN_CACHE_FLUSH, TTL_HOST, address);
+        }
+
+        void aaaa(String name, byte[] address) {
+            answer(name, TYPE_AAAA, CLASS_IN_CACHE_FLUSH, TTL_HOST, address);
+        }
+
+        byte[] build() {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            // Header: id, flags (authoritative response), qdcount, ancount, nscount, arcount.
+            packet.writeBytes(new byte[] {0, 0, (byte) 0x84, 0, 0, 0});
+            writeUint16(packet, mAnswerCount);
+            packet.writeBytes(new byte[] {0, 0, 0, 0});
+            packet.writeBytes(mAnswers.toByteArray());
+            return packet.toByteArray();
+        }
+
+        private void answer(String name, int type, int rrClass, int ttl, byte[] rdata) {
+            writeName(mAnswers, name);
+            writeUint16(mAnswers, type);
+            writeUint16(mAnswers, rrClass);
+            writeUint16(mAnswers, ttl >> 16);
+            writeUint16(mAnswers, ttl & 0xffff);
+            writeUint16(mAnswers, rdata.length);
+            mAnswers.writeBytes(rdata);
+            mAnswerCount++;
+        }
+
+        private static void writeName(ByteArrayOutputStream out, String name) {
+            for (String label : name.split("\\.")) {
+                byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+                out.write(bytes.length);
+                out.writeBytes(bytes);
+            }
+            out.write(0);
+        }
+
+        private static void writeUint16(ByteArrayOutputStream out, int value) {
+            out.write((value >> 8) & 0xff);
+            out.write(value & 0xff);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Measures {@link PriorityListManager#getPriority} with the service types of
+ * {@link PacketCorpus} on the priority list.
+ */
+public class PriorityListManagerBenchmark {
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private PriorityListManager mPriorityListManager;
+    private List<String> mCanonicalNames;
+
+    @Before
+    public void setup() {
+        mPriorityListManager = new PriorityListManager(new BenchmarkResources());
+        mCanonicalNames = MdnsPacketParser.parseResponsePacket(
+                PacketCorpus.makePacket(PacketCorpus.MATTER, 1, true),
+                mPriorityListManager.getNameTable()).mCanonicalNames;
+    }
+
+    @Test
+    public void getPriorityOfQName() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mPriorityListManager.getPriority("_matter._tcp.local", 1);
+        }
+    }
+
+    @Test
+    public void getPriorityOfQNameNotOnPriorityList() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mPriorityListManager.getPriority("_printer._tcp.local", 1);
+        }
+    }
+
+    @Test
+    public void getPriorityOfParsedPacket() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mPriorityListManager.getPriority(mCanonicalNames, 1);
+        }
+    }
+}
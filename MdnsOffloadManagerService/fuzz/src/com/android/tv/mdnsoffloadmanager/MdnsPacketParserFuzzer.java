@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import com.android.tv.mdnsoffloadmanager.MdnsPacketParser.MatchCriteria;
+
+import java.util.List;
+
+/**
+ * Fuzz target of {@link MdnsPacketParser}, run by Jazzer. Any packet must either be rejected with
+ * an {@link IllegalArgumentException} or parsed, as reported by
+ * {@link MdnsPacketParser#validateResponsePacket}, and names must decode in bounded time from any
+ * offset. Other exceptions and hangs are reported as findings.
+ */
+public class MdnsPacketParserFuzzer {
+
+    // Offsets names are decoded from, beyond the header of the packet.
+    private static final int MAX_NAME_OFFSETS = 64;
+
+    public static void fuzzerTestOneInput(byte[] data) {
+        MdnsPacketParser.Status status = MdnsPacketParser.validateResponsePacket(data);
+        List<MatchCriteria> criteriaList;
+        try {
+            criteriaList = MdnsPacketParser.extractMatchCriteria(data);
+        } catch (IllegalArgumentException e) {
+            if (status == MdnsPacketParser.Status.OK) {
+                throw new IllegalStateException("Valid packet rejected", e);
+            }
+            criteriaList = null;
+        }
+        if (criteriaList != null) {
+            if (status != MdnsPacketParser.Status.OK) {
+                throw new IllegalStateException("Invalid packet parsed: " + status);
+            }
+            MdnsNameTable nameTable = new MdnsNameTable();
+            List<String> canonicalNames =
+                    MdnsPacketParser.parseResponsePacket(data, nameTable).mCanonicalNames;
+            for (int i = 0; i < criteriaList.size(); i++) {
+                String name = MdnsPacketParser.extractFullName(
+                        data, criteriaList.get(i).nameOffset);
+                if (!nameTable.intern(name).equals(canonicalNames.get(i))) {
+                    throw new IllegalStateException("Name decoded differently: " + name);
+                }
+            }
+        }
+
+        for (int offset = 0; offset < Math.min(data.length, MAX_NAME_OFFSETS); offset++) {
+            MdnsPacketParser.Status nameStatus = MdnsPacketParser.validateName(data, offset);
+            try {
+                MdnsPacketParser.extractFullName(data, offset);
+            } catch (IllegalArgumentException e) {
+                if (nameStatus == MdnsPacketParser.Status.OK) {
+                    throw new IllegalStateException("Valid name rejected", e);
+                }
+                continue;
+            }
+            if (nameStatus != MdnsPacketParser.Status.OK) {
+                throw new IllegalStateException("Invalid name decoded: " + nameStatus);
+            }
+        }
+    }
+}
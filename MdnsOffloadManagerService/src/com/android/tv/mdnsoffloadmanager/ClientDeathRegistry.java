@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Holds a single death recipient per client token, however many intents the client registered.
+ * When a client dies, the service is notified once for the token so that all intents of the
+ * client are removed together. The recipient is unlinked once the client removed all of its
+ * intents.
+ */
+class ClientDeathRegistry {
+
+    private static final String TAG = ClientDeathRegistry.class.getSimpleName();
+
+    private final OffloadIntentStore mOffloadIntentStore;
+    private final Consumer<IBinder> mOnClientDied;
+    // Tokens are linked on binder threads and released on the worker thread.
+    private final Object mLock = new Object();
+    private final Map<IBinder, IBinder.DeathRecipient> mDeathRecipients = new HashMap<>();
+    private long mLinkCount = 0;
+    private long mDeathCount = 0;
+
+    /**
+     * @param onClientDied Called with the token of a dead client, on a binder thread.
+     */
+    ClientDeathRegistry(
+            @NonNull OffloadIntentStore offloadIntentStore,
+            @NonNull Consumer<IBinder> onClientDied) {
+        mOffloadIntentStore = offloadIntentStore;
+        mOnClientDied = onClientDied;
+    }
+
+    /**
+     * Link to the death of the client, unless already linked. Called after an intent of the
+     * client was registered.
+     *
+     * @return false if the client is already dead, in which case its intents are to be removed.
+     */
+    boolean link(@NonNull IBinder clientToken) {
+        synchronized (mLock) {
+            if (mDeathRecipients.containsKey(clientToken)) {
+                return true;
+            }
+            IBinder.DeathRecipient deathRecipient = () -> onBinderDied(clientToken);
+            try {
+                clientToken.linkToDeath(deathRecipient, 0);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Error while setting a callback for linkToDeath binder {"
+                        + clientToken + "}.", e);
+                return false;
+            }
+            mDeathRecipients.put(clientToken, deathRecipient);
+            mLinkCount++;
+            return true;
+        }
+    }
+
+    /**
+     * Unlink from the death of the client if it holds no more intents. Called after intents of
+     * the client were removed.
+     */
+    @WorkerThread
+    void release(@NonNull IBinder clientToken) {
+        synchronized (mLock) {
+            // Checked under the lock, so that an intent registered concurrently keeps the link.
+            if (mOffloadIntentStore.hasIntentsOfClient(clientToken)) {
+                return;
+            }
+            IBinder.DeathRecipient deathRecipient = mDeathRecipients.remove(clientToken);
+            if (deathRecipient != null) {
+                clientToken.unlinkToDeath(deathRecipient, 0);
+            }
+        }
+    }
+
+    private void onBinderDied(IBinder clientToken) {
+        synchronized (mLock) {
+            mDeathRecipients.remove(clientToken);
+            mDeathCount++;
+        }
+        mOnClientDied.accept(clientToken);
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("client tokens: linked=%d, links=%d, deaths=%d"
+                    .formatted(mDeathRecipients.size(), mLinkCount, mDeathCount));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.util.JsonWriter;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+import device.google.atv.mdns_offload.IMdnsOffload;
+
+/**
+ * Latest state of the interface offload managers, for dumps. Each manager publishes an immutable
+ * state of its network interface after every reconciliation, which replaces its previous one.
+ * Dumps read the latest states from binder threads, without waiting for handlers that may be busy
+ * with vendor calls. States hold raw counters, they are only formatted when dumped.
+ */
+final class DumpSnapshot {
+
+    // Incremented on each published interface state.
+    private final AtomicLong mVersion = new AtomicLong();
+    // Sorted by network interface.
+    private final Map<String, InterfaceState> mInterfaceStates = new ConcurrentSkipListMap<>();
+
+    /**
+     * Replace the previous state of the same network interface, from its handler thread.
+     */
+    void publish(@NonNull InterfaceState interfaceState) {
+        mInterfaceStates.put(interfaceState.mNetworkInterface, interfaceState);
+        mVersion.incrementAndGet();
+    }
+
+    @Nullable
+    InterfaceState getInterfaceState(@NonNull String networkInterface) {
+        return mInterfaceStates.get(networkInterface);
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("DumpSnapshot: version=%d".formatted(mVersion.get()));
+        writer.println();
+        mInterfaceStates.values().forEach(interfaceState -> interfaceState.dump(writer));
+    }
+
+    void writeJson(JsonWriter writer) throws IOException {
+        writer.name("version").value(mVersion.get());
+        writer.name("interfaces").beginArray();
+        for (InterfaceState interfaceState : mInterfaceStates.values()) {
+            interfaceState.writeJson(writer);
+        }
+        writer.endArray();
+    }
+
+    /**
+     * State of an {@link InterfaceOffloadManager}, as of its last reconciliation.
+     */
+    static final class InterfaceState {
+        final String mNetworkInterface;
+        final boolean mIsNetworkAvailable;
+        final boolean mIsVendorServiceConnected;
+        // Ordered as they were offloaded to the vendor service.
+        final List<Integer> mOffloadKeys;
+        final List<String> mPassthroughQNames;
+        final byte mPassthroughBehavior;
+        final long mBinderCallsIssued;
+        final long mBinderCallsSaved;
+        final boolean mIsPassthroughSuffixMatchingSupported;
+        final int mCollapsedPassthroughQNames;
+        final int mDroppedPassthroughQNames;
+        final RefreshScheduler.Stats mRefreshStats;
+        final OffloadCapacityPlanner.Stats mCapacityStats;
+        final OffloadPacketMerger.Stats mPacketMergerStats;
+
+        InterfaceState(
+                String networkInterface,
+                boolean isNetworkAvailable,
+                boolean isVendorServiceConnected,
+                List<Integer> offloadKeys,
+                List<String> passthroughQNames,
+                byte passthroughBehavior,
+                long binderCallsIssued,
+                long binderCallsSaved,
+                boolean isPassthroughSuffixMatchingSupported,
+                int collapsedPassthroughQNames,
+                int droppedPassthroughQNames,
+                RefreshScheduler.Stats refreshStats,
+                OffloadCapacityPlanner.Stats capacityStats,
+                OffloadPacketMerger.Stats packetMergerStats) {
+            mNetworkInterface = networkInterface;
+            mIsNetworkAvailable = isNetworkAvailable;
+            mIsVendorServiceConnected = isVendorServiceConnected;
+            mOffloadKeys = List.copyOf(offloadKeys);
+            mPassthroughQNames = List.copyOf(passthroughQNames);
+            mPassthroughBehavior = passthroughBehavior;
+            mBinderCallsIssued = binderCallsIssued;
+            mBinderCallsSaved = binderCallsSaved;
+            mIsPassthroughSuffixMatchingSupported = isPassthroughSuffixMatchingSupported;
+            mCollapsedPassthroughQNames = collapsedPassthroughQNames;
+            mDroppedPassthroughQNames = droppedPassthroughQNames;
+            mRefreshStats = refreshStats;
+            mCapacityStats = capacityStats;
+            mPacketMergerStats = packetMergerStats;
+        }
+
+        /**
+         * Whether the vendor service forwards the queries for the given QNAME, as far as the
+         * passthrough state written to it goes. For diagnostics.
+         */
+        boolean isQueryForwarded(
+                @NonNull String qname, @NonNull UnaryOperator<String> canonicalQName) {
+            switch (mPassthroughBehavior) {
+                case IMdnsOffload.PassthroughBehavior.FORWARD_ALL:
+                    return true;
+                case IMdnsOffload.PassthroughBehavior.PASSTHROUGH_LIST:
+                    PassthroughTrie trie = new PassthroughTrie();
+                    for (String passthroughQName : mPassthroughQNames) {
+                        trie.add(canonicalQName.apply(passthroughQName));
+                    }
+                    return trie.matches(canonicalQName.apply(qname),
+                            mIsPassthroughSuffixMatchingSupported);
+                default:
+                    return false;
+            }
+        }
+
+        void dump(PrintWriter writer) {
+            writer.println("InterfaceOffloadManager[%s]:".formatted(mNetworkInterface));
+            writer.println("mIsNetworkAvailable=%b".formatted(mIsNetworkAvailable));
+            writer.println("current offload keys:");
+            mOffloadKeys.forEach(offloadKey -> writer.println("* %d".formatted(offloadKey)));
+            writer.println("current passthrough qnames:");
+            mPassthroughQNames.forEach(qname -> writer.println("* %s".formatted(qname)));
+            writer.println("mBinderCallsIssued=%d".formatted(mBinderCallsIssued));
+            writer.println("mBinderCallsSaved=%d".formatted(mBinderCallsSaved));
+            writer.println("passthrough: suffixMatching=%b, collapsed=%d, dropped=%d".formatted(
+                    mIsPassthroughSuffixMatchingSupported, mCollapsedPassthroughQNames,
+                    mDroppedPassthroughQNames));
+            mRefreshStats.dump(writer);
+            mCapacityStats.dump(writer);
+            mPacketMergerStats.dump(writer);
+            writer.println();
+        }
+
+        void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("networkInterface").value(mNetworkInterface);
+            writer.name("networkAvailable").value(mIsNetworkAvailable);
+            writer.name("vendorServiceConnected").value(mIsVendorServiceConnected);
+            writer.name("offloadKeys").beginArray();
+            for (int offloadKey : mOffloadKeys) {
+                writer.value(offloadKey);
+            }
+            writer.endArray();
+            writer.name("passthroughQNames").beginArray();
+            for (String qname : mPassthroughQNames) {
+                writer.value(qname);
+            }
+            writer.endArray();
+            writer.name("binderCallsIssued").value(mBinderCallsIssued);
+            writer.name("binderCallsSaved").value(mBinderCallsSaved);
+            writer.name("passthroughSuffixMatching").value(mIsPassthroughSuffixMatchingSupported);
+            writer.name("collapsedPassthroughQNames").value(mCollapsedPassthroughQNames);
+            writer.name("droppedPassthroughQNames").value(mDroppedPassthroughQNames);
+            writer.endObject();
+        }
+    }
+}
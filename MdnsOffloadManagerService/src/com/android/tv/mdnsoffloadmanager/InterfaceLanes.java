@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import device.google.atv.mdns_offload.IMdnsOffload;
+
+/**
+ * Spreads the interface offload managers over lanes, so that updates on a busy network interface
+ * do not delay updates on the others. A lane is a handler thread with its own
+ * {@link OffloadWriter}. Network interfaces are assigned to lanes in turn, as they appear.
+ * <p>
+ * Without lanes, all interface offload managers run on the default lane, i.e. the handler thread
+ * of the service and its writer. Each interface offload manager is confined to its lane, state
+ * shared by lanes guards itself, see {@link OffloadIntentStore} and {@link OffloadMetrics}.
+ * <p>
+ * When the vendor service is thread safe, the calls of a lane are not ordered against the calls
+ * of other lanes. A call that must follow the writes of all lanes, e.g. enabling offload, is
+ * submitted once their completion was reported back to the default lane.
+ * <p>
+ * Methods are called on the handler thread of the service.
+ */
+@WorkerThread
+class InterfaceLanes {
+
+    static final class Lane {
+        final Handler mHandler;
+        final OffloadWriter mOffloadWriter;
+
+        Lane(@NonNull Handler handler, @NonNull OffloadWriter offloadWriter) {
+            mHandler = handler;
+            mOffloadWriter = offloadWriter;
+        }
+    }
+
+    private final Lane mDefaultLane;
+    private final List<Lane> mLanes;
+    private final boolean mIsVendorServiceThreadSafe;
+    // Written on the handler thread of the service only, dumps read it from binder threads.
+    private final Map<String, Lane> mLaneByInterface = new ConcurrentHashMap<>();
+
+    /**
+     * @param lanes                     the lanes network interfaces are assigned to, none to
+     *                                  run them all on the default lane.
+     * @param isVendorServiceThreadSafe whether the lanes call the vendor service concurrently,
+     *                                  rather than through the executor of the default lane.
+     */
+    InterfaceLanes(
+            @NonNull Lane defaultLane,
+            @NonNull List<Lane> lanes,
+            boolean isVendorServiceThreadSafe) {
+        mDefaultLane = defaultLane;
+        mLanes = List.copyOf(lanes);
+        mIsVendorServiceThreadSafe = isVendorServiceThreadSafe;
+    }
+
+    @NonNull
+    Lane getLane(@NonNull String networkInterface) {
+        if (mLanes.isEmpty()) {
+            return mDefaultLane;
+        }
+        return mLaneByInterface.computeIfAbsent(networkInterface,
+                iface -> mLanes.get(mLaneByInterface.size() % mLanes.size()));
+    }
+
+    /**
+     * Run an action on the given lane. Actions on the default lane run right away.
+     */
+    void run(@NonNull Lane lane, @NonNull Runnable action) {
+        if (lane == mDefaultLane) {
+            action.run();
+        } else {
+            lane.mHandler.post(action);
+        }
+    }
+
+    /**
+     * Run an action on the default lane, from the given lane.
+     */
+    void runOnDefaultLane(@NonNull Lane from, @NonNull Runnable action) {
+        if (from == mDefaultLane) {
+            action.run();
+        } else {
+            mDefaultLane.mHandler.post(action);
+        }
+    }
+
+    /**
+     * Start writing to a newly connected vendor service on all lanes, once the writer of the
+     * default lane knows its interface version.
+     */
+    void connectVendorService(@NonNull IMdnsOffload vendorService) {
+        int interfaceVersion = mDefaultLane.mOffloadWriter.getVendorInterfaceVersion();
+        for (Lane lane : mLanes) {
+            run(lane, () -> lane.mOffloadWriter.connectVendorService(
+                    vendorService, interfaceVersion));
+        }
+    }
+
+    void disconnectVendorService() {
+        for (Lane lane : mLanes) {
+            run(lane, lane.mOffloadWriter::disconnectVendorService);
+        }
+    }
+
+    /**
+     * Dump the lanes and their writers, from any thread, without waiting for busy lanes.
+     */
+    void dump(PrintWriter writer) {
+        if (mLanes.isEmpty()) {
+            return;
+        }
+        writer.println("InterfaceLanes:");
+        writer.println("lanes=%d, isVendorServiceThreadSafe=%b"
+                .formatted(mLanes.size(), mIsVendorServiceThreadSafe));
+        for (int index = 0; index < mLanes.size(); index++) {
+            Lane lane = mLanes.get(index);
+            writer.println("lane %d: interfaces=%s".formatted(index, mLaneByInterface.entrySet()
+                    .stream()
+                    .filter(entry -> entry.getValue() == lane)
+                    .map(Map.Entry::getKey)
+                    .sorted()
+                    .toList()));
+            lane.mOffloadWriter.dump(writer);
+        }
+    }
+}
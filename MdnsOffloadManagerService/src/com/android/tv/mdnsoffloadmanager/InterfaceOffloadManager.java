@@ -1,46 +1,165 @@
 package com.android.tv.mdnsoffloadmanager;
 
+import static device.google.atv.mdns_offload.IMdnsOffload.PassthroughBehavior.DROP_ALL;
+import static device.google.atv.mdns_offload.IMdnsOffload.PassthroughBehavior.PASSTHROUGH_LIST;
+
+import android.os.Handler;
+import android.os.Trace;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import device.google.atv.mdns_offload.IMdnsOffload;
 
 @WorkerThread
 public class InterfaceOffloadManager {
 
     private static final String TAG = InterfaceOffloadManager.class.getSimpleName();
+    private static final byte PASSTHROUGH_BEHAVIOR_UNKNOWN = -1;
 
     private final String mNetworkInterface;
     private final OffloadIntentStore mOffloadIntentStore;
+    private final PriorityListManager mPriorityListManager;
     private final OffloadWriter mOffloadWriter;
-    private final Set<Integer> mCurrentOffloadKeys = new HashSet<>();
-    private final Set<String> mCurrentPassthroughQNames = new HashSet<>();
+    private final RefreshScheduler mRefreshScheduler;
+    private final OffloadCapacityPlanner mCapacityPlanner = new OffloadCapacityPlanner();
+    private final OffloadPacketMerger mPacketMerger;
+    private final OffloadMetrics mOffloadMetrics;
+    private final Consumer<DumpSnapshot.InterfaceState> mStatePublisher;
+    // Hits reported by the vendor service, decayed over standby periods, by record key.
+    private final Map<Integer, Double> mObservedHits = new HashMap<>();
+    private boolean mIsCapacityQueried = false;
+    // Run once the capacity query completes.
+    private final List<Runnable> mCapacityWaiters = new ArrayList<>();
+    // Null if the vendor service did not report its capacity.
+    @Nullable
+    private IMdnsOffload.OffloadCapacity mOffloadCapacity = null;
+    // Ordered as they were offloaded to the vendor service.
+    private final List<OffloadedRecord> mCurrentOffloadedRecords = new ArrayList<>();
+    private final List<String> mCurrentPassthroughQNames = new ArrayList<>();
+    private byte mCurrentPassthroughBehavior = PASSTHROUGH_BEHAVIOR_UNKNOWN;
     private boolean mIsNetworkAvailable = false;
+    private boolean mIsVendorServiceConnected = false;
+    // Incremented when the current state is cleared, results of earlier vendor calls are then
+    // ignored.
+    private int mVendorStateGeneration = 0;
+    // Vendor calls are asynchronous, updates run one at a time. The last requested update runs
+    // once the running one completes, earlier requests are superseded.
+    private boolean mIsUpdatingProtocolResponses = false;
+    @Nullable
+    private Supplier<Collection<OffloadIntentStore.OffloadIntent>> mNextProtocolResponsesUpdate;
+    private boolean mIsUpdatingPassthroughList = false;
+    @Nullable
+    private Supplier<List<OffloadIntentStore.PassthroughIntent>> mNextPassthroughListUpdate;
+    // Run once no update is running, see flushPendingRefreshes.
+    private final List<Runnable> mReconciledWaiters = new ArrayList<>();
+    // Passthrough QNAMEs left out of the last update, as redundant or beyond the capacity.
+    private int mLastCollapsedPassthroughQNames = 0;
+    private int mLastDroppedPassthroughQNames = 0;
+    private long mBinderCallsIssued = 0;
+    private long mBinderCallsSaved = 0;
 
     InterfaceOffloadManager(
             @NonNull String networkInterface,
             @NonNull OffloadIntentStore offloadIntentStore,
-            @NonNull OffloadWriter offloadWriter) {
+            @NonNull PriorityListManager priorityListManager,
+            @NonNull OffloadWriter offloadWriter,
+            @NonNull OffloadMetrics offloadMetrics,
+            @NonNull Handler handler,
+            long refreshCoalescingWindowMs,
+            int maxMergedPacketBytes,
+            @NonNull Consumer<DumpSnapshot.InterfaceState> statePublisher) {
         mNetworkInterface = networkInterface;
         mOffloadIntentStore = offloadIntentStore;
+        mPriorityListManager = priorityListManager;
         mOffloadWriter = offloadWriter;
+        mOffloadMetrics = offloadMetrics;
+        mPacketMerger = new OffloadPacketMerger(
+                maxMergedPacketBytes, priorityListManager.getNameTable());
+        mRefreshScheduler = new RefreshScheduler(
+                handler,
+                refreshCoalescingWindowMs,
+                this::refreshProtocolResponses,
+                this::refreshPassthroughList);
+        mStatePublisher = statePublisher;
+        publishState();
     }
 
-    void onVendorServiceConnected() {
-        refreshProtocolResponses();
-        refreshPassthroughList();
+    /**
+     * @param vendorState the state the vendor service holds on this network interface, or null if
+     *                    the vendor service was reset when connecting.
+     */
+    void onVendorServiceConnected(@Nullable IMdnsOffload.InterfaceOffloadState vendorState) {
+        clearCurrentState();
+        mIsVendorServiceConnected = true;
+        if (vendorState != null) {
+            adoptVendorState(vendorState);
+        }
+        mCapacityPlanner.reset();
+        mOffloadCapacity = null;
+        mIsCapacityQueried = false;
+        mRefreshScheduler.cancel();
+        if (mIsNetworkAvailable) {
+            refreshProtocolResponses();
+            refreshPassthroughList();
+        } else if (vendorState != null) {
+            // Left over from before the network was lost.
+            clearProtocolResponses();
+            clearPassthroughList();
+        }
+        publishState();
     }
 
-    void onAppIdAllowlistUpdated() {
-        refreshProtocolResponses();
-        refreshPassthroughList();
+    /**
+     * Take the state held by the vendor service as the current state, so that refreshes only
+     * write the differences. Records are matched to offload intents by content digest.
+     */
+    private void adoptVendorState(IMdnsOffload.InterfaceOffloadState vendorState) {
+        if (vendorState.protocolResponses != null) {
+            for (IMdnsOffload.OffloadedProtocolResponse response : vendorState.protocolResponses) {
+                mCurrentOffloadedRecords.add(
+                        new OffloadedRecord(response.recordKey, response.contentDigest));
+            }
+        }
+        if (vendorState.passthroughList != null) {
+            mCurrentPassthroughQNames.addAll(Arrays.asList(vendorState.passthroughList));
+        }
+        mCurrentPassthroughBehavior = vendorState.passthroughBehavior;
+    }
+
+    /**
+     * Refresh the state holding intents whose allowlist status changed. The refresh runs right
+     * away, along with the refreshes already pending.
+     *
+     * @param offloadIntentsChanged     whether offload intents on this network interface changed.
+     * @param passthroughIntentsChanged whether passthrough intents on this network interface
+     *                                  changed.
+     */
+    void onAppIdAllowlistUpdated(
+            boolean offloadIntentsChanged, boolean passthroughIntentsChanged) {
+        if (offloadIntentsChanged) {
+            mRefreshScheduler.requestProtocolResponsesRefresh();
+        }
+        if (passthroughIntentsChanged) {
+            mRefreshScheduler.requestPassthroughListRefresh();
+        }
+        mRefreshScheduler.flush();
     }
 
     void onNetworkAvailable() {
@@ -48,8 +167,11 @@ public class InterfaceOffloadManager {
                 " Offloading all stored data.";
         Log.d(TAG, msg);
         mIsNetworkAvailable = true;
+        mIsCapacityQueried = false;
+        mRefreshScheduler.cancel();
         refreshProtocolResponses();
         refreshPassthroughList();
+        publishState();
     }
 
     void onNetworkLost() {
@@ -57,73 +179,564 @@ public class InterfaceOffloadManager {
                 + " Clearing all associated data.";
         Log.d(TAG, msg);
         mIsNetworkAvailable = false;
+        // Refreshes requested before the network was lost must not run after it was cleared.
+        mRefreshScheduler.cancel();
         clearProtocolResponses();
         clearPassthroughList();
+        publishState();
     }
 
     void onVendorServiceDisconnected() {
-        mCurrentOffloadKeys.clear();
+        mRefreshScheduler.cancel();
+        clearCurrentState();
+        mIsVendorServiceConnected = false;
+        publishState();
+    }
+
+    private void clearCurrentState() {
+        mVendorStateGeneration++;
+        mCurrentOffloadedRecords.clear();
         mCurrentPassthroughQNames.clear();
+        mCurrentPassthroughBehavior = PASSTHROUGH_BEHAVIOR_UNKNOWN;
+    }
+
+    /**
+     * Request a refresh of the offloaded records. Requests are coalesced, see
+     * {@link RefreshScheduler}.
+     */
+    void requestProtocolResponsesRefresh() {
+        mRefreshScheduler.requestProtocolResponsesRefresh();
+    }
+
+    /**
+     * Request a refresh of the passthrough list. Requests are coalesced, see
+     * {@link RefreshScheduler}.
+     */
+    void requestPassthroughListRefresh() {
+        mRefreshScheduler.requestPassthroughListRefresh();
     }
 
-    void refreshProtocolResponses() {
+    /**
+     * Apply all pending refresh requests immediately.
+     */
+    void flushPendingRefreshes() {
+        mRefreshScheduler.flush();
+    }
+
+    /**
+     * Apply all pending refresh requests immediately, and wait for the vendor state to be
+     * reconciled.
+     *
+     * @param onDone runs once all the vendor calls of the running and pending updates completed,
+     *               right away if no update is running.
+     */
+    void flushPendingRefreshes(@NonNull Runnable onDone) {
+        mRefreshScheduler.flush();
+        mReconciledWaiters.add(onDone);
+        maybeNotifyReconciled();
+    }
+
+    /**
+     * Once an update completes, the pending requests already waited for it and are applied right
+     * away, rather than once the coalescing window expires. This keeps the vendor state
+     * reconciled while the device is interactive, so that going to standby only enables offload.
+     */
+    private void flushPendingRefreshesAfterUpdate() {
+        mRefreshScheduler.flush();
+        maybeNotifyReconciled();
+    }
+
+    private void maybeNotifyReconciled() {
+        if (mIsUpdatingProtocolResponses || mIsUpdatingPassthroughList) {
+            return;
+        }
+        List<Runnable> waiters = List.copyOf(mReconciledWaiters);
+        mReconciledWaiters.clear();
+        waiters.forEach(Runnable::run);
+    }
+
+    /**
+     * Retrieve and clear the hit counters of the offloaded records from the vendor service, and
+     * accumulate them to order and select the records to offload. Hits of previous standby
+     * periods are decayed, see {@link PriorityListManager#decayHits}. The hits are also reported
+     * to {@link OffloadMetrics}.
+     */
+    void retrieveAndClearHitCounters() {
+        retrieveAndClearHitCounters(() -> {});
+    }
+
+    /**
+     * @param onDone runs once the hits were reported.
+     */
+    void retrieveAndClearHitCounters(@NonNull Runnable onDone) {
+        List<OffloadedRecord> records = List.copyOf(mCurrentOffloadedRecords);
+        mOffloadWriter.retrieveAndClearHitCounters(
+                records.stream().map(record -> record.mOffloadKey).toList(),
+                hitCounters -> {
+                    mObservedHits.replaceAll(
+                            (recordKey, hits) -> mPriorityListManager.decayHits(hits));
+                    for (OffloadedRecord record : records) {
+                        Integer hits = hitCounters.get(record.mOffloadKey);
+                        if (hits != null) {
+                            // A merged record answers for all the records it was merged from.
+                            for (int recordKey : record.mRecordKeys) {
+                                mObservedHits.merge(recordKey, (double) hits, Double::sum);
+                            }
+                            mOffloadMetrics.onRecordHits(
+                                    mNetworkInterface, record.mRecordKey, record.mQName, hits);
+                        }
+                    }
+                    onDone.run();
+                });
+    }
+
+    private void refreshProtocolResponses() {
         if (!mIsNetworkAvailable) {
+            publishState();
             return;
         }
-        applyOffloadIntents(mOffloadIntentStore.getOffloadIntentsForInterface(mNetworkInterface));
+        updateProtocolResponses(
+                () -> mOffloadIntentStore.getOffloadIntentsForInterface(mNetworkInterface));
     }
 
-    void refreshPassthroughList() {
+    private void refreshPassthroughList() {
         if (!mIsNetworkAvailable) {
+            publishState();
             return;
         }
-        applyPassthroughIntents(
-                mOffloadIntentStore.getPassthroughIntentsForInterface(mNetworkInterface));
+        updatePassthroughList(
+                () -> mOffloadIntentStore.getPassthroughIntentsForInterface(mNetworkInterface));
     }
 
     private void clearProtocolResponses() {
-        applyOffloadIntents(Collections.emptySet());
+        updateProtocolResponses(Collections::emptySet);
     }
 
     private void clearPassthroughList() {
-        applyPassthroughIntents(Collections.emptyList());
+        updatePassthroughList(Collections::emptyList);
+    }
+
+    /**
+     * Apply the offload intents returned by the given supplier, once the running update, if any,
+     * completes. The intents are retrieved when the update starts.
+     */
+    private void updateProtocolResponses(
+            Supplier<Collection<OffloadIntentStore.OffloadIntent>> offloadIntents) {
+        if (mIsUpdatingProtocolResponses) {
+            mNextProtocolResponsesUpdate = offloadIntents;
+            return;
+        }
+        mIsUpdatingProtocolResponses = true;
+        applyOffloadIntents(offloadIntents.get(), () -> {
+            mIsUpdatingProtocolResponses = false;
+            publishState();
+            Supplier<Collection<OffloadIntentStore.OffloadIntent>> next =
+                    mNextProtocolResponsesUpdate;
+            mNextProtocolResponsesUpdate = null;
+            if (next != null) {
+                updateProtocolResponses(next);
+            } else {
+                flushPendingRefreshesAfterUpdate();
+            }
+        });
+    }
+
+    /**
+     * Apply the passthrough intents returned by the given supplier, once the running update, if
+     * any, completes. The intents are retrieved when the update starts.
+     */
+    private void updatePassthroughList(
+            Supplier<List<OffloadIntentStore.PassthroughIntent>> passthroughIntents) {
+        if (mIsUpdatingPassthroughList) {
+            mNextPassthroughListUpdate = passthroughIntents;
+            return;
+        }
+        mIsUpdatingPassthroughList = true;
+        applyPassthroughIntents(passthroughIntents.get(), () -> {
+            mIsUpdatingPassthroughList = false;
+            publishState();
+            Supplier<List<OffloadIntentStore.PassthroughIntent>> next =
+                    mNextPassthroughListUpdate;
+            mNextPassthroughListUpdate = null;
+            if (next != null) {
+                updatePassthroughList(next);
+            } else {
+                flushPendingRefreshesAfterUpdate();
+            }
+        });
     }
 
-    private void applyOffloadIntents(Collection<OffloadIntentStore.OffloadIntent> offloadIntents) {
-        if (!mOffloadWriter.isVendorServiceConnected()) {
+    /**
+     * Push the difference between the currently offloaded records and the given intents to the
+     * vendor service. Records are prioritized by their priority value, and lower priority records
+     * may be dropped if not all fit in memory.
+     *
+     * @param onDone runs once all the vendor calls completed.
+     */
+    private void applyOffloadIntents(
+            Collection<OffloadIntentStore.OffloadIntent> offloadIntents, Runnable onDone) {
+        if (!mIsVendorServiceConnected) {
             Log.e(TAG, "Vendor service disconnected, cannot apply mDNS offload state");
+            onDone.run();
+            return;
+        }
+        int generation = mVendorStateGeneration;
+        withOffloadCapacity(() -> {
+            if (generation != mVendorStateGeneration) {
+                onDone.run();
+                return;
+            }
+            writeOffloadIntents(offloadIntents, generation, onDone);
+        });
+    }
+
+    /**
+     * Run the given action once the capacity of the vendor service is known, querying it first
+     * if needed.
+     */
+    private void withOffloadCapacity(Runnable action) {
+        if (mIsCapacityQueried && mCapacityWaiters.isEmpty()) {
+            action.run();
+            return;
+        }
+        mCapacityWaiters.add(action);
+        if (mIsCapacityQueried) {
+            // The query is running.
             return;
         }
-        Collection<Integer> deleted = mOffloadWriter.deleteOffloadData(mCurrentOffloadKeys);
-        mCurrentOffloadKeys.removeAll(deleted);
-        Collection<Integer> offloaded = mOffloadWriter.writeOffloadData(
-                mNetworkInterface, offloadIntents);
-        mCurrentOffloadKeys.addAll(offloaded);
+        mIsCapacityQueried = true;
+        int generation = mVendorStateGeneration;
+        mOffloadWriter.getOffloadCapacity(mNetworkInterface, capacity -> {
+            if (generation == mVendorStateGeneration) {
+                mOffloadCapacity = capacity;
+                mCapacityPlanner.setReportedCapacity(capacity);
+            }
+            List<Runnable> waiters = List.copyOf(mCapacityWaiters);
+            mCapacityWaiters.clear();
+            waiters.forEach(Runnable::run);
+        });
+    }
+
+    private void writeOffloadIntents(
+            Collection<OffloadIntentStore.OffloadIntent> offloadIntents,
+            int generation,
+            Runnable onDone) {
+        Set<Integer> recordKeys = new HashSet<>();
+        offloadIntents.forEach(offloadIntent -> recordKeys.add(offloadIntent.mRecordKey));
+        mObservedHits.keySet().retainAll(recordKeys);
+        // Identical intents share their packet, and one record on the vendor service. The intent
+        // that comes first holds it.
+        Set<IMdnsOffload.MdnsProtocolData> packets =
+                Collections.newSetFromMap(new IdentityHashMap<>());
+        List<OffloadIntentStore.OffloadIntent> desired = mCapacityPlanner.plan(
+                mPacketMerger.merge(offloadIntents
+                        .stream()
+                        .sorted(mPriorityListManager.getOffloadComparator(mObservedHits))
+                        .filter(offloadIntent -> packets.add(offloadIntent.mProtocolData))
+                        .toList()),
+                mPriorityListManager.getHitsComparator(mObservedHits));
+        OffloadReconciler.Plan plan = OffloadReconciler.plan(
+                mCurrentOffloadedRecords, desired, OffloadedRecord::holds);
+        int naiveCalls = mCurrentOffloadedRecords.size() + desired.size();
+
+        List<Integer> removedKeys = plan.mRemovedIndices
+                .stream()
+                .map(index -> mCurrentOffloadedRecords.get(index).mOffloadKey)
+                .toList();
+        List<OffloadIntentStore.OffloadIntent> added =
+                desired.subList(plan.mFirstAddedIndex, desired.size());
+        traceDiffSize("records", removedKeys.size() + added.size());
+        mOffloadWriter.deleteOffloadData(removedKeys, deleted -> {
+            if (generation != mVendorStateGeneration) {
+                onDone.run();
+                return;
+            }
+            List<OffloadedRecord> remaining = new ArrayList<>();
+            for (int index = 0; index < mCurrentOffloadedRecords.size(); index++) {
+                OffloadedRecord record = mCurrentOffloadedRecords.get(index);
+                // Records that failed to be removed are still held by the vendor service.
+                if (!deleted.contains(record.mOffloadKey)) {
+                    remaining.add(record);
+                }
+            }
+            // Kept records may have been re-registered by a client under a new record key.
+            for (int index = 0; index < plan.mKeptIndices.size(); index++) {
+                OffloadedRecord record =
+                        mCurrentOffloadedRecords.get(plan.mKeptIndices.get(index));
+                int recordKey = desired.get(index).mRecordKey;
+                if (record.mRawOffloadPacket == null || desired.get(index).isMerged()) {
+                    // Adopted from the vendor state, now matched to its offload intent. Merged
+                    // records take the record keys of the intents they were merged from.
+                    record.adopt(desired.get(index));
+                } else if (record.mRecordKey != recordKey) {
+                    Double hits = mObservedHits.remove(record.mRecordKey);
+                    if (hits != null) {
+                        mObservedHits.merge(recordKey, hits, Double::sum);
+                    }
+                    record.mRecordKey = recordKey;
+                    record.mRecordKeys = List.of(recordKey);
+                }
+            }
+            mCurrentOffloadedRecords.clear();
+            mCurrentOffloadedRecords.addAll(remaining);
+            mOffloadWriter.writeOffloadData(mNetworkInterface, added, offloadKeys -> {
+                if (generation == mVendorStateGeneration) {
+                    onOffloadDataWritten(added, offloadKeys);
+                    countBinderCalls(naiveCalls, removedKeys.size() + added.size());
+                }
+                onDone.run();
+            });
+        });
+    }
+
+    private void onOffloadDataWritten(
+            List<OffloadIntentStore.OffloadIntent> added, int[] offloadKeys) {
+        int heldBytes = 0;
+        for (OffloadedRecord record : mCurrentOffloadedRecords) {
+            // Adopted records that failed to be removed have no packet, their size is unknown.
+            if (record.mRawOffloadPacket != null) {
+                heldBytes += record.mRawOffloadPacket.length;
+            }
+        }
+        for (int index = 0; index < added.size(); index++) {
+            OffloadIntentStore.OffloadIntent offloadIntent = added.get(index);
+            int recordBytes = offloadIntent.mProtocolData.rawOffloadPacket.length;
+            if (offloadKeys[index] == OffloadWriter.UNWRITTEN_OFFLOAD_KEY) {
+                // Not a sign of the vendor memory being full, the state is written again later.
+                continue;
+            }
+            if (offloadKeys[index] == OffloadWriter.INVALID_OFFLOAD_KEY) {
+                mCapacityPlanner.onRecordRejected(
+                        mCurrentOffloadedRecords.size(), heldBytes, recordBytes);
+                continue;
+            }
+            mCurrentOffloadedRecords.add(new OffloadedRecord(offloadKeys[index], offloadIntent));
+            heldBytes += recordBytes;
+            mCapacityPlanner.onRecordAdded(mCurrentOffloadedRecords.size(), heldBytes);
+        }
     }
 
+    /**
+     * Push the difference between the current passthrough list and the given intents to the
+     * vendor service. Entries are prioritized based on their priority value, where the supplied
+     * order is maintained for equal values. Lower priority entries may be dropped if not all fit
+     * in memory.
+     *
+     * @param onDone runs once all the vendor calls completed.
+     */
     private void applyPassthroughIntents(
-            List<OffloadIntentStore.PassthroughIntent> passthroughIntents) {
-        if (!mOffloadWriter.isVendorServiceConnected()){
+            List<OffloadIntentStore.PassthroughIntent> passthroughIntents, Runnable onDone) {
+        if (!mIsVendorServiceConnected) {
             Log.e(TAG, "Vendor service disconnected, cannot apply mDNS passthrough state");
+            onDone.run();
             return;
         }
-        Collection<String> deleted = mOffloadWriter.deletePassthroughData(
-                mNetworkInterface, mCurrentPassthroughQNames);
-        mCurrentPassthroughQNames.removeAll(deleted);
-        Collection<String> added = mOffloadWriter.writePassthroughData(
-                mNetworkInterface, passthroughIntents);
-        mCurrentPassthroughQNames.addAll(added);
+        int generation = mVendorStateGeneration;
+        withOffloadCapacity(() -> {
+            if (generation != mVendorStateGeneration) {
+                onDone.run();
+                return;
+            }
+            writePassthroughIntents(passthroughIntents, generation, onDone);
+        });
+    }
+
+    private void writePassthroughIntents(
+            List<OffloadIntentStore.PassthroughIntent> passthroughIntents,
+            int generation,
+            Runnable onDone) {
+        // Note that this is a stable sort, therefore the provided order will be preserved for
+        // entries that are not on the priority list.
+        List<OffloadIntentStore.PassthroughIntent> desired = collapsePassthroughIntents(
+                passthroughIntents
+                        .stream()
+                        .sorted(Comparator.comparingInt(pt -> pt.mPriority))
+                        .toList());
+        // QNames adopted from the vendor state are in the vendor format.
+        OffloadReconciler.Plan plan = OffloadReconciler.plan(
+                mCurrentPassthroughQNames, desired,
+                (qname, ptIntent) -> OffloadWriter.convertQNameForVendorService(qname)
+                        .equals(OffloadWriter.convertQNameForVendorService(
+                                ptIntent.mOriginalQName)));
+        // Previously, the behavior was set and the list rewritten on every refresh.
+        int naiveCalls = 1 + mCurrentPassthroughQNames.size() + desired.size();
+
+        List<String> removedQNames = plan.mRemovedIndices
+                .stream()
+                .map(mCurrentPassthroughQNames::get)
+                .toList();
+        byte passthroughBehavior = desired.isEmpty() ? DROP_ALL : PASSTHROUGH_LIST;
+        List<OffloadIntentStore.PassthroughIntent> added =
+                desired.subList(plan.mFirstAddedIndex, desired.size());
+        int calls = removedQNames.size() + added.size()
+                + (passthroughBehavior != mCurrentPassthroughBehavior ? 1 : 0);
+        traceDiffSize("passthrough", calls);
+        Runnable writePassthroughData = () -> mOffloadWriter.writePassthroughData(
+                mNetworkInterface, added, success -> {
+                    if (generation == mVendorStateGeneration) {
+                        for (int index = 0; index < added.size(); index++) {
+                            if (success[index]) {
+                                mCurrentPassthroughQNames.add(added.get(index).mOriginalQName);
+                            }
+                        }
+                        countBinderCalls(naiveCalls, calls);
+                    }
+                    onDone.run();
+                });
+        mOffloadWriter.deletePassthroughData(mNetworkInterface, removedQNames, deleted -> {
+            if (generation != mVendorStateGeneration) {
+                onDone.run();
+                return;
+            }
+            List<String> remaining = new ArrayList<>();
+            for (int index = 0; index < mCurrentPassthroughQNames.size(); index++) {
+                String qname = mCurrentPassthroughQNames.get(index);
+                int keptIndex = plan.mKeptIndices.indexOf(index);
+                if (keptIndex >= 0) {
+                    remaining.add(desired.get(keptIndex).mOriginalQName);
+                } else if (!deleted.contains(qname)) {
+                    remaining.add(qname);
+                }
+            }
+            mCurrentPassthroughQNames.clear();
+            mCurrentPassthroughQNames.addAll(remaining);
+
+            if (passthroughBehavior == mCurrentPassthroughBehavior) {
+                writePassthroughData.run();
+                return;
+            }
+            mOffloadWriter.setPassthroughBehavior(
+                    mNetworkInterface, passthroughBehavior, accepted -> {
+                        if (generation != mVendorStateGeneration) {
+                            onDone.run();
+                            return;
+                        }
+                        mCurrentPassthroughBehavior = accepted
+                                ? passthroughBehavior : PASSTHROUGH_BEHAVIOR_UNKNOWN;
+                        writePassthroughData.run();
+                    });
+        });
+    }
+
+    /**
+     * Select the passthrough entries to write, in order. Entries with the same QNAME are written
+     * once. If the vendor service matches by suffix, entries under another entry are redundant
+     * and left out. Entries beyond the reported capacity are not attempted, except entries that
+     * make selected ones redundant, since they take their place.
+     */
+    private List<OffloadIntentStore.PassthroughIntent> collapsePassthroughIntents(
+            List<OffloadIntentStore.PassthroughIntent> passthroughIntents) {
+        boolean suffixMatching = isPassthroughSuffixMatchingSupported();
+        int maxQNames = mOffloadCapacity != null ? mOffloadCapacity.maxPassthroughQNames : -1;
+        PassthroughTrie trie = new PassthroughTrie();
+        List<OffloadIntentStore.PassthroughIntent> selected = new ArrayList<>();
+        int dropped = 0;
+        for (OffloadIntentStore.PassthroughIntent ptIntent : passthroughIntents) {
+            String qname = ptIntent.mCanonicalQName;
+            if (trie.matches(qname, suffixMatching)) {
+                continue;
+            }
+            if (suffixMatching) {
+                List<String> redundant = trie.removeEntriesUnder(qname);
+                selected.removeIf(selectedIntent ->
+                        redundant.contains(selectedIntent.mCanonicalQName));
+            }
+            if (maxQNames >= 0 && trie.size() >= maxQNames) {
+                dropped++;
+                continue;
+            }
+            trie.add(qname);
+            selected.add(ptIntent);
+        }
+        mLastDroppedPassthroughQNames = dropped;
+        mLastCollapsedPassthroughQNames = passthroughIntents.size() - selected.size() - dropped;
+        return selected;
+    }
+
+    private boolean isPassthroughSuffixMatchingSupported() {
+        return mOffloadCapacity != null && mOffloadCapacity.passthroughSuffixMatching;
+    }
+
+    /**
+     * Trace the number of changes a reconciliation writes to the vendor service, as a counter.
+     */
+    private void traceDiffSize(String kind, int size) {
+        if (Trace.isEnabled()) {
+            Trace.setCounter("MdnsOffload:%s %s diff".formatted(mNetworkInterface, kind), size);
+        }
+    }
+
+    private void countBinderCalls(int naiveCalls, int issuedCalls) {
+        mBinderCallsIssued += issuedCalls;
+        mBinderCallsSaved += naiveCalls - issuedCalls;
     }
 
+    /**
+     * Publish the current state for dumps, see {@link DumpSnapshot}.
+     */
     @WorkerThread
-    void dump(PrintWriter writer) {
-        writer.println("InterfaceOffloadManager[%s]:".formatted(mNetworkInterface));
-        writer.println("mIsNetworkAvailable=%b".formatted(mIsNetworkAvailable));
-        writer.println("current offload keys:");
-        mCurrentOffloadKeys.forEach(key -> writer.println("* %d".formatted(key)));
-        writer.println("current passthrough qnames:");
-        mCurrentPassthroughQNames.forEach(qname -> writer.println("* %s".formatted(qname)));
-        writer.println();
+    private void publishState() {
+        mStatePublisher.accept(new DumpSnapshot.InterfaceState(
+                mNetworkInterface,
+                mIsNetworkAvailable,
+                mIsVendorServiceConnected,
+                mCurrentOffloadedRecords.stream().map(record -> record.mOffloadKey).toList(),
+                mCurrentPassthroughQNames,
+                mCurrentPassthroughBehavior,
+                mBinderCallsIssued,
+                mBinderCallsSaved,
+                isPassthroughSuffixMatchingSupported(),
+                mLastCollapsedPassthroughQNames,
+                mLastDroppedPassthroughQNames,
+                mRefreshScheduler.getStats(),
+                mCapacityPlanner.getStats(),
+                mPacketMerger.getStats()));
     }
 
+    /**
+     * A protocol response held by the vendor service.
+     */
+    private static class OffloadedRecord {
+        final int mOffloadKey;
+        final long mContentHash;
+        // Null for records adopted from the vendor state, until matched to an offload intent.
+        byte[] mRawOffloadPacket = null;
+        String mQName = "";
+        int mRecordKey = 0;
+        // Record keys of the offload intents the record holds, several for merged records.
+        List<Integer> mRecordKeys = List.of();
+
+        OffloadedRecord(int offloadKey, OffloadIntentStore.OffloadIntent offloadIntent) {
+            mOffloadKey = offloadKey;
+            mContentHash = offloadIntent.mContentHash;
+            adopt(offloadIntent);
+        }
+
+        OffloadedRecord(int offloadKey, long contentHash) {
+            mOffloadKey = offloadKey;
+            mContentHash = contentHash;
+        }
+
+        void adopt(OffloadIntentStore.OffloadIntent offloadIntent) {
+            mRawOffloadPacket = offloadIntent.mProtocolData.rawOffloadPacket;
+            mQName = offloadIntent.mCanonicalQNames.isEmpty()
+                    ? "" : offloadIntent.mCanonicalQNames.get(0);
+            mRecordKey = offloadIntent.mRecordKey;
+            mRecordKeys = offloadIntent.isMerged()
+                    ? offloadIntent.mMergedIntents
+                            .stream()
+                            .map(intent -> intent.mRecordKey)
+                            .toList()
+                    : List.of(offloadIntent.mRecordKey);
+        }
+
+        boolean holds(OffloadIntentStore.OffloadIntent offloadIntent) {
+            // The packet of a merged record changes along with the intents it was merged from.
+            boolean isMerged = mRecordKeys.size() > 1 || offloadIntent.isMerged();
+            return (!isMerged && mRecordKey == offloadIntent.mRecordKey)
+                    || (mContentHash == offloadIntent.mContentHash
+                    && (mRawOffloadPacket == null || Arrays.equals(
+                            mRawOffloadPacket, offloadIntent.mProtocolData.rawOffloadPacket)));
+        }
+    }
 }
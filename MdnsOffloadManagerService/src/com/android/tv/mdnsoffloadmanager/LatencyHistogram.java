@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts latencies in fixed buckets, from 1ms to 5s. Percentiles are reported as the upper bound
+ * of the bucket they fall in. Not thread-safe.
+ */
+class LatencyHistogram {
+
+    private static final long[] BUCKET_UPPER_BOUNDS_MS =
+            {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private final String mName;
+    // One more bucket for latencies beyond the last bound.
+    private final long[] mCounts = new long[BUCKET_UPPER_BOUNDS_MS.length + 1];
+    private long mCount = 0;
+    private long mSumMs = 0;
+    private long mMaxMs = 0;
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    void record(long latencyMs) {
+        int bucket = 0;
+        while (bucket < BUCKET_UPPER_BOUNDS_MS.length
+                && latencyMs > BUCKET_UPPER_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+        mCount++;
+        mSumMs += latencyMs;
+        mMaxMs = Math.max(mMaxMs, latencyMs);
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The upper bound of the bucket holding the given percentile, or -1 if it is beyond
+     * the last bound.
+     */
+    long getPercentileUpperBoundMs(int percentile) {
+        long rank = Math.max(1, (mCount * percentile + 99) / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_UPPER_BOUNDS_MS.length; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank) {
+                return BUCKET_UPPER_BOUNDS_MS[bucket];
+            }
+        }
+        return -1;
+    }
+
+    void dump(PrintWriter writer) {
+        if (mCount == 0) {
+            writer.println("%s: count=0".formatted(mName));
+            return;
+        }
+        List<String> buckets = new ArrayList<>();
+        for (int bucket = 0; bucket < mCounts.length; bucket++) {
+            if (mCounts[bucket] == 0) {
+                continue;
+            }
+            String bound = bucket < BUCKET_UPPER_BOUNDS_MS.length
+                    ? "<=" + BUCKET_UPPER_BOUNDS_MS[bucket]
+                    : ">" + BUCKET_UPPER_BOUNDS_MS[BUCKET_UPPER_BOUNDS_MS.length - 1];
+            buckets.add(bound + "ms:" + mCounts[bucket]);
+        }
+        writer.println("%s: count=%d, mean=%.1fms, p50%s, p90%s, p99%s, max=%dms, buckets=%s"
+                .formatted(mName, mCount, (double) mSumMs / mCount, formatPercentile(50),
+                        formatPercentile(90), formatPercentile(99), mMaxMs, buckets));
+    }
+
+    private String formatPercentile(int percentile) {
+        long upperBoundMs = getPercentileUpperBoundMs(percentile);
+        return upperBoundMs < 0
+                ? ">" + BUCKET_UPPER_BOUNDS_MS[BUCKET_UPPER_BOUNDS_MS.length - 1] + "ms"
+                : "<=" + upperBoundMs + "ms";
+    }
+}
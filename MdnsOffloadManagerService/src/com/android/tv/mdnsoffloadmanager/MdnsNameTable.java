@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Table of interned canonical DNS names, as produced by
+ * {@link PriorityListManager#canonicalQName(String)}.
+ * <p>
+ * Names are decoded by {@link MdnsPacketParser} into a scratch buffer owned by this table and
+ * only materialized as a {@link String} the first time they are seen. Decoding a name that is
+ * already present does not allocate. The table is bounded: once it grows past its maximum size
+ * it is cleared, since interning is only an optimization and callers compare names with
+ * {@link String#equals(Object)}.
+ */
+public final class MdnsNameTable {
+
+    /** Maximum length of a textual domain name, including the trailing dot, RFC1035-2.3.4. */
+    static final int MAX_NAME_LENGTH = 255;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_ENTRIES = 4096;
+
+    private final char[] mScratch = new char[MAX_NAME_LENGTH + 1];
+    private int mScratchLength;
+    private boolean mScratchHasNonAscii;
+    private String[] mEntries = new String[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Intern an arbitrary name. The name is canonicalized first.
+     */
+    @NonNull
+    synchronized String intern(@NonNull String qname) {
+        String canonical = qname.toUpperCase(Locale.ROOT);
+        if (!canonical.endsWith(".")) {
+            canonical = canonical + ".";
+        }
+        return internCanonical(canonical);
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Start decoding a new name into the scratch buffer. Must be called while holding the table
+     * lock, see {@link MdnsPacketParser#parseResponsePacket(byte[], MdnsNameTable)}.
+     */
+    void beginName() {
+        mScratchLength = 0;
+        mScratchHasNonAscii = false;
+    }
+
+    /**
+     * Append a single label and its trailing dot to the name being decoded.
+     *
+     * @return false if the name exceeds {@link #MAX_NAME_LENGTH}.
+     */
+    boolean appendLabel(byte[] data, int offset, int length) {
+        if (mScratchLength + length + 1 > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int c = data[offset + i] & 0xff;
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            } else if (c >= 0x80) {
+                mScratchHasNonAscii = true;
+            }
+            mScratch[mScratchLength++] = (char) c;
+        }
+        mScratch[mScratchLength++] = '.';
+        return true;
+    }
+
+    /**
+     * Finish decoding the current name and return its interned canonical form.
+     *
+     * @param data   the packet the name was read from, used to decode non-ASCII labels.
+     * @param offset offset of the name in the packet.
+     */
+    @NonNull
+    String endName(byte[] data, int offset) {
+        if (mScratchLength == 0) {
+            return internCanonical(".");
+        }
+        if (mScratchHasNonAscii) {
+            // Rare slow path, labels are UTF-8 and need a proper case mapping.
+            return intern(MdnsPacketParser.extractFullName(data, offset));
+        }
+        int hash = 0;
+        for (int i = 0; i < mScratchLength; i++) {
+            hash = 31 * hash + mScratch[i];
+        }
+        int mask = mEntries.length - 1;
+        int index = spread(hash) & mask;
+        String entry;
+        while ((entry = mEntries[index]) != null) {
+            if (entry.hashCode() == hash && scratchEquals(entry)) {
+                return entry;
+            }
+            index = (index + 1) & mask;
+        }
+        return insert(new String(mScratch, 0, mScratchLength));
+    }
+
+    private String internCanonical(String canonical) {
+        int hash = canonical.hashCode();
+        int mask = mEntries.length - 1;
+        int index = spread(hash) & mask;
+        String entry;
+        while ((entry = mEntries[index]) != null) {
+            if (entry.equals(canonical)) {
+                return entry;
+            }
+            index = (index + 1) & mask;
+        }
+        return insert(canonical);
+    }
+
+    private String insert(String name) {
+        if (mSize >= MAX_ENTRIES) {
+            Arrays.fill(mEntries, null);
+            mSize = 0;
+        } else if ((mSize + 1) * 2 > mEntries.length) {
+            rehash(mEntries.length * 2);
+        }
+        int mask = mEntries.length - 1;
+        int index = spread(name.hashCode()) & mask;
+        while (mEntries[index] != null) {
+            index = (index + 1) & mask;
+        }
+        mEntries[index] = name;
+        mSize++;
+        return name;
+    }
+
+    private void rehash(int capacity) {
+        String[] previous = mEntries;
+        mEntries = new String[capacity];
+        int mask = capacity - 1;
+        for (String name : previous) {
+            if (name == null) {
+                continue;
+            }
+            int index = spread(name.hashCode()) & mask;
+            while (mEntries[index] != null) {
+                index = (index + 1) & mask;
+            }
+            mEntries[index] = name;
+        }
+    }
+
+    private boolean scratchEquals(String entry) {
+        if (entry.length() != mScratchLength) {
+            return false;
+        }
+        for (int i = 0; i < mScratchLength; i++) {
+            if (entry.charAt(i) != mScratch[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
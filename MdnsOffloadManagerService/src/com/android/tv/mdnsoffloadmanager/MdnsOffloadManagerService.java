@@ -36,8 +36,9 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
-import android.os.RemoteException;
-import android.os.UserHandle;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.JsonWriter;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -46,15 +47,23 @@ import androidx.annotation.WorkerThread;
 
 import com.android.tv.mdnsoffloadmanager.util.WakeLockWrapper;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import device.google.atv.mdns_offload.IMdnsOffload;
 import device.google.atv.mdns_offload.IMdnsOffloadManager;
@@ -65,7 +74,25 @@ public class MdnsOffloadManagerService extends Service {
     private static final String TAG = MdnsOffloadManagerService.class.getSimpleName();
     private static final int VENDOR_SERVICE_COMPONENT_ID =
             R.string.config_mdnsOffloadVendorServiceComponent;
-    private static final int AWAIT_DUMP_SECONDS = 5;
+    private static final int REFRESH_COALESCING_WINDOW_ID =
+            R.integer.config_mdnsOffloadRefreshCoalescingWindowMs;
+    private static final int PACKET_OPTIMIZATION_ENABLED_ID =
+            R.bool.config_mdnsOffloadPacketOptimizationEnabled;
+    private static final int MERGED_PACKET_MAX_BYTES_ID =
+            R.integer.config_mdnsOffloadMergedPacketMaxBytes;
+    private static final int INTERFACE_LANES_ID = R.integer.config_mdnsOffloadInterfaceLanes;
+    private static final int VENDOR_SERVICE_THREAD_SAFE_ID =
+            R.bool.config_mdnsOffloadVendorServiceThreadSafe;
+    private static final String DUMP_ARG_METRICS_EXPORT = "--metrics-export";
+    // Followed by a network interface and a QNAME.
+    private static final String DUMP_ARG_PASSTHROUGH_QUERY = "--passthrough-query";
+    private static final String DUMP_ARG_JSON = "--json";
+    private static final String SNAPSHOT_FILE_NAME = "offload_snapshot";
+    private static final long SNAPSHOT_WRITE_DELAY_MS = 1000;
+    // Time left to an app to register its intents again, once it registered one.
+    private static final long RESTORED_INTENTS_GRACE_PERIOD_MS = 10_000;
+    // Intents of apps that never register again are dropped after this delay.
+    private static final long RESTORED_INTENTS_TIMEOUT_MS = 5 * 60_000;
 
     private final ConnectivityManager.NetworkCallback mNetworkCallback =
             new ConnectivityManagerNetworkCallback();
@@ -74,10 +101,27 @@ public class MdnsOffloadManagerService extends Service {
     private Handler mHandler;
     private PriorityListManager mPriorityListManager;
     private OffloadIntentStore mOffloadIntentStore;
+    private ClientDeathRegistry mClientDeathRegistry;
     private OffloadWriter mOffloadWriter;
+    private InterfaceLanes mInterfaceLanes;
+    private OffloadMetrics mOffloadMetrics;
+    private StandbyTransitionTracer mStandbyTransitionTracer;
+    private final DumpSnapshot mDumpSnapshot = new DumpSnapshot();
+    private AtomicFile mSnapshotFile;
+    private final Runnable mWriteSnapshotRunnable = this::writeSnapshot;
+    // App ids whose restored intents are scheduled for removal.
+    private final Set<Integer> mExpiringRestoredAppIds = new HashSet<>();
     private ConnectivityManager mConnectivityManager;
-    private PackageManager mPackageManager;
+    private PackageAppIdCache mPackageAppIdCache;
+    // Packages exempt from the low power standby policy, their apps are allowlisted.
+    private Set<String> mExemptPackages = Collections.emptySet();
     private WakeLockWrapper mWakeLock;
+    private long mRefreshCoalescingWindowMs;
+    private int mMergedPacketMaxBytes;
+    // Whether the interface offload managers know the state held by the vendor service.
+    private boolean mIsVendorStateSynced = false;
+    // Incremented on each screen on and off broadcast, accessed on the handler thread only.
+    private int mScreenStateChanges = 0;
 
     public MdnsOffloadManagerService() {
         this(new Injector());
@@ -95,6 +139,7 @@ public class MdnsOffloadManagerService extends Service {
 
         private Context mContext = null;
         private Looper mLooper = null;
+        private Executor mVendorCallExecutor = null;
 
         void setContext(Context context) {
             mContext = context;
@@ -109,6 +154,25 @@ public class MdnsOffloadManagerService extends Service {
             return mLooper;
         }
 
+        synchronized Executor getVendorCallExecutor() {
+            if (mVendorCallExecutor == null) {
+                mVendorCallExecutor = Executors.newSingleThreadExecutor(
+                        runnable -> new Thread(runnable, "MdnsOffloadVendorCalls"));
+            }
+            return mVendorCallExecutor;
+        }
+
+        Looper getLaneLooper(int lane) {
+            HandlerThread ht = new HandlerThread("MdnsOffloadManagerLane" + lane);
+            ht.start();
+            return ht.getLooper();
+        }
+
+        Executor getLaneVendorCallExecutor(int lane) {
+            return Executors.newSingleThreadExecutor(
+                    runnable -> new Thread(runnable, "MdnsOffloadVendorCallsLane" + lane));
+        }
+
         Resources getResources() {
             return mContext.getResources();
         }
@@ -147,6 +211,16 @@ public class MdnsOffloadManagerService extends Service {
         int getCallingUid() {
             return Binder.getCallingUid();
         }
+
+        long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        File getSnapshotFile() {
+            // Device protected storage is available before the user unlocks the device.
+            return new File(mContext.createDeviceProtectedStorageContext().getFilesDir(),
+                    SNAPSHOT_FILE_NAME);
+        }
     }
 
     @Override
@@ -154,15 +228,53 @@ public class MdnsOffloadManagerService extends Service {
         super.onCreate();
         mHandler = new Handler(mInjector.getLooper());
         mPriorityListManager = new PriorityListManager(mInjector.getResources());
-        mOffloadIntentStore = new OffloadIntentStore(mPriorityListManager);
-        mOffloadWriter = new OffloadWriter();
+        mOffloadIntentStore = new OffloadIntentStore(mPriorityListManager,
+                mInjector.getResources().getBoolean(PACKET_OPTIMIZATION_ENABLED_ID));
+        mClientDeathRegistry = new ClientDeathRegistry(mOffloadIntentStore,
+                clientToken -> mHandler.post(() -> removeIntentsOfClient(clientToken)));
+        mOffloadWriter = new OffloadWriter(
+                mHandler, mInjector.getVendorCallExecutor(), this::onVendorCallsFailed);
+        mInterfaceLanes = createInterfaceLanes();
+        mOffloadMetrics = new OffloadMetrics(mInjector::elapsedRealtime);
+        mStandbyTransitionTracer = new StandbyTransitionTracer(mInjector::elapsedRealtime);
+        mSnapshotFile = new AtomicFile(mInjector.getSnapshotFile());
+        // Read off the main thread, ahead of the messages of the binder and the listeners set up
+        // below. Intents registered in the meantime take precedence over the restored ones.
+        mHandler.postAtFrontOfQueue(this::restoreSnapshot);
         mConnectivityManager = mInjector.getConnectivityManager();
-        mPackageManager = mInjector.getPackageManager();
+        mPackageAppIdCache = new PackageAppIdCache(mInjector.getPackageManager());
         mWakeLock = mInjector.newWakeLock();
+        mRefreshCoalescingWindowMs =
+                mInjector.getResources().getInteger(REFRESH_COALESCING_WINDOW_ID);
+        mMergedPacketMaxBytes = mInjector.getResources().getInteger(MERGED_PACKET_MAX_BYTES_ID);
         bindVendorService();
         setupScreenBroadcastReceiver();
         setupConnectivityListener();
         setupStandbyPolicyListener();
+        setupPackageChangeListener();
+    }
+
+    /**
+     * Create the lanes network interfaces are spread over, see {@link InterfaceLanes}. Unless the
+     * vendor service accepts concurrent calls, the lanes share the vendor call executor of the
+     * service, which keeps calls serialized.
+     */
+    private InterfaceLanes createInterfaceLanes() {
+        int laneCount = mInjector.getResources().getInteger(INTERFACE_LANES_ID);
+        boolean isVendorServiceThreadSafe =
+                mInjector.getResources().getBoolean(VENDOR_SERVICE_THREAD_SAFE_ID);
+        List<InterfaceLanes.Lane> lanes = new ArrayList<>();
+        for (int index = 0; index < laneCount; index++) {
+            Handler handler = new Handler(mInjector.getLaneLooper(index));
+            Executor executor = isVendorServiceThreadSafe
+                    ? mInjector.getLaneVendorCallExecutor(index)
+                    : mInjector.getVendorCallExecutor();
+            OffloadWriter offloadWriter = new OffloadWriter(
+                    handler, executor, () -> mHandler.post(this::onVendorCallsFailed));
+            lanes.add(new InterfaceLanes.Lane(handler, offloadWriter));
+        }
+        return new InterfaceLanes(new InterfaceLanes.Lane(mHandler, mOffloadWriter), lanes,
+                isVendorServiceThreadSafe);
     }
 
     private void bindVendorService() {
@@ -199,8 +311,15 @@ public class MdnsOffloadManagerService extends Service {
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_SCREEN_ON);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_DREAMING_STARTED);
         mInjector.registerReceiver(receiver, filter, 0);
-        mHandler.post(() -> mOffloadWriter.setOffloadState(!mInjector.isInteractive()));
+        mHandler.post(() -> {
+            boolean isInteractive = mInjector.isInteractive();
+            mOffloadWriter.setOffloadState(!isInteractive);
+            if (!isInteractive) {
+                mOffloadMetrics.onStandbyStarted();
+            }
+        });
     }
 
     private void setupConnectivityListener() {
@@ -220,56 +339,194 @@ public class MdnsOffloadManagerService extends Service {
         refreshAppIdAllowlist();
     }
 
+    private void setupPackageChangeListener() {
+        BroadcastReceiver receiver = new PackageChangeReceiver();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        mInjector.registerReceiver(receiver, filter, 0);
+    }
+
     private void refreshAppIdAllowlist() {
-        PowerManager.LowPowerStandbyPolicy standbyPolicy = mInjector.getLowPowerStandbyPolicy();
-        Set<Integer> allowedAppIds = standbyPolicy.getExemptPackages()
-                .stream()
-                .map(pkg -> {
-                    try {
-                        return mPackageManager.getPackageUid(pkg, 0);
-                    } catch (PackageManager.NameNotFoundException e) {
-                        Log.w(TAG, "Unable to get UID of package {" + pkg + "}.");
-                        return null;
-                    }
-                })
-                .filter(Objects::nonNull)
-                .map(UserHandle::getAppId)
-                .collect(Collectors.toSet());
+        Set<String> exemptPackages =
+                Set.copyOf(mInjector.getLowPowerStandbyPolicy().getExemptPackages());
         mHandler.post(() -> {
-            mOffloadIntentStore.setAppIdAllowlist(allowedAppIds);
-            mInterfaceOffloadManagers.values()
-                    .forEach(InterfaceOffloadManager::onAppIdAllowlistUpdated);
+            mExemptPackages = exemptPackages;
+            updateAppIdAllowlist();
         });
     }
 
+    /**
+     * Resolve the app ids of the exempt packages, and refresh the state that depends on the apps
+     * that were added to or removed from the allowlist.
+     */
+    @WorkerThread
+    private void updateAppIdAllowlist() {
+        Set<Integer> allowedAppIds = new HashSet<>();
+        for (String packageName : mExemptPackages) {
+            Integer appId = mPackageAppIdCache.getAppId(packageName);
+            if (appId != null) {
+                allowedAppIds.add(appId);
+            }
+        }
+        OffloadIntentStore.AllowlistChange change =
+                mOffloadIntentStore.setAppIdAllowlist(allowedAppIds);
+        Set<String> affectedInterfaces = new HashSet<>(change.mOffloadInterfaces);
+        affectedInterfaces.addAll(change.mPassthroughInterfaces);
+        affectedInterfaces.forEach(iface -> withInterfaceOffloadManager(iface,
+                manager -> manager.onAppIdAllowlistUpdated(
+                        change.mOffloadInterfaces.contains(iface),
+                        change.mPassthroughInterfaces.contains(iface))));
+    }
+
+    /**
+     * Restore the intents registered before the service restarted, so that the vendor service is
+     * configured without waiting for clients to register again. See {@link OffloadSnapshot}.
+     */
+    @WorkerThread
+    private void restoreSnapshot() {
+        OffloadSnapshot snapshot = OffloadSnapshot.readFrom(mSnapshotFile);
+        if (snapshot.isEmpty()) {
+            return;
+        }
+        Log.i(TAG, "Restoring " + snapshot.mOffloadEntries.size() + " offload intents and "
+                + snapshot.mPassthroughEntries.size() + " passthrough intents.");
+        mOffloadIntentStore.restoreSnapshot(snapshot);
+        Set<String> restoredInterfaces = new HashSet<>();
+        snapshot.mOffloadEntries.forEach(entry -> restoredInterfaces.add(entry.mNetworkInterface));
+        snapshot.mPassthroughEntries.forEach(
+                entry -> restoredInterfaces.add(entry.mNetworkInterface));
+        restoredInterfaces.forEach(iface -> withInterfaceOffloadManager(iface, manager -> {
+            manager.requestProtocolResponsesRefresh();
+            manager.requestPassthroughListRefresh();
+        }));
+        mHandler.postDelayed(() -> {
+            Set<String> affectedInterfaces = mOffloadIntentStore.removeAllRestoredIntents();
+            onIntentsRemoved(affectedInterfaces);
+        }, RESTORED_INTENTS_TIMEOUT_MS);
+    }
+
+    /**
+     * Drop the restored intents of an app that did not register them again, shortly after it
+     * started registering intents.
+     */
+    @WorkerThread
+    private void expireRestoredIntents(int appId) {
+        if (!mOffloadIntentStore.hasRestoredIntents(appId) || !mExpiringRestoredAppIds.add(appId)) {
+            return;
+        }
+        mHandler.postDelayed(() -> {
+            mExpiringRestoredAppIds.remove(appId);
+            Set<String> affectedInterfaces = mOffloadIntentStore.removeRestoredIntents(appId);
+            onIntentsRemoved(affectedInterfaces);
+        }, RESTORED_INTENTS_GRACE_PERIOD_MS);
+    }
+
+    /**
+     * Remove all intents of a client that died, in a single pass.
+     */
+    @WorkerThread
+    private void removeIntentsOfClient(IBinder clientToken) {
+        Set<String> affectedInterfaces = mOffloadIntentStore.removeIntentsOfClient(clientToken);
+        onIntentsRemoved(affectedInterfaces);
+    }
+
+    @WorkerThread
+    private void onIntentsRemoved(Set<String> affectedInterfaces) {
+        affectedInterfaces.forEach(iface -> withInterfaceOffloadManager(iface, manager -> {
+            manager.requestProtocolResponsesRefresh();
+            manager.requestPassthroughListRefresh();
+        }));
+        scheduleSnapshotWrite();
+    }
+
+    @WorkerThread
+    private void scheduleSnapshotWrite() {
+        mHandler.removeCallbacks(mWriteSnapshotRunnable);
+        mHandler.postDelayed(mWriteSnapshotRunnable, SNAPSHOT_WRITE_DELAY_MS);
+    }
+
+    @WorkerThread
+    private void writeSnapshot() {
+        mOffloadIntentStore.takeSnapshot().writeTo(mSnapshotFile);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mOffloadManagerBinder;
     }
 
     @Override
-    protected void dump(FileDescriptor fileDescriptor, PrintWriter printWriter, String[] strings) {
-        CountDownLatch doneSignal = new CountDownLatch(1);
-        mHandler.post(() -> {
-            dump(printWriter);
-            doneSignal.countDown();
-        });
-        boolean success = false;
-        try {
-            success = doneSignal.await(AWAIT_DUMP_SECONDS, TimeUnit.SECONDS);
-        } catch (InterruptedException ignored) {
+    protected void dump(FileDescriptor fileDescriptor, PrintWriter printWriter, String[] args) {
+        String command = args != null && args.length > 0 ? args[0] : "";
+        if (DUMP_ARG_METRICS_EXPORT.equals(command)) {
+            printWriter.println(Base64.getEncoder().encodeToString(mOffloadMetrics.export()));
+            return;
+        }
+        if (DUMP_ARG_JSON.equals(command)) {
+            dumpJson(printWriter);
+            return;
         }
-        if (!success) {
-            Log.e(TAG, "Failed to dump state on handler thread");
+        boolean queryPassthrough = args != null && args.length > 2
+                && DUMP_ARG_PASSTHROUGH_QUERY.equals(command);
+        // Dumped without the handler threads, so that a busy handler does not hold them up.
+        if (queryPassthrough) {
+            dumpPassthroughQuery(printWriter, args[1], args[2]);
+        } else {
+            dumpPublishedState(printWriter);
         }
     }
 
-    @WorkerThread
-    private void dump(PrintWriter writer) {
+    /**
+     * Dump whether the queries for a QNAME are forwarded, as of the passthrough state the
+     * interface offload manager last published.
+     */
+    private void dumpPassthroughQuery(PrintWriter writer, String networkInterface, String qname) {
+        DumpSnapshot.InterfaceState state = mDumpSnapshot.getInterfaceState(networkInterface);
+        if (state == null) {
+            writer.println("Unknown network interface {%s}".formatted(networkInterface));
+            return;
+        }
+        writer.println("Queries for {%s} on {%s} are %s".formatted(qname, networkInterface,
+                state.isQueryForwarded(qname, mPriorityListManager::canonicalQName)
+                        ? "forwarded" : "dropped"));
+    }
+
+    /**
+     * Dump the state that is safe to read from any thread: the intents, guarded by the store, the
+     * state the interface offload managers published, see {@link DumpSnapshot}, and the counters
+     * the handler thread publishes as it goes.
+     */
+    private void dumpPublishedState(PrintWriter writer) {
         mOffloadIntentStore.dump(writer);
-        mInterfaceOffloadManagers.values().forEach(manager -> manager.dump(writer));
-        mOffloadWriter.dump(writer);
+        mClientDeathRegistry.dump(writer);
+        mDumpSnapshot.dump(writer);
+        mOffloadMetrics.dump(writer);
+        mStandbyTransitionTracer.dump(writer);
         mOffloadIntentStore.dumpProtocolData(writer);
+        mPackageAppIdCache.dump(writer);
+        mOffloadWriter.dump(writer);
+        mInterfaceLanes.dump(writer);
+    }
+
+    /**
+     * Dump the intents and the published state of the interface offload managers as JSON, for
+     * tools. The handler threads are not involved.
+     */
+    private void dumpJson(PrintWriter printWriter) {
+        JsonWriter writer = new JsonWriter(printWriter);
+        writer.setIndent("  ");
+        try {
+            writer.beginObject();
+            mDumpSnapshot.writeJson(writer);
+            mOffloadIntentStore.writeJson(writer);
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to dump state as JSON", e);
+        }
+        printWriter.println();
     }
 
     private final IMdnsOffloadManager.Stub mOffloadManagerBinder = new IMdnsOffloadManager.Stub() {
@@ -284,17 +541,15 @@ public class MdnsOffloadManagerService extends Service {
             OffloadIntentStore.OffloadIntent offloadIntent =
                     mOffloadIntentStore.registerOffloadIntent(
                             networkInterface, serviceOffloadData, clientToken, callerUid);
-            try {
-                offloadIntent.mClientToken.linkToDeath(
-                        () -> removeProtocolResponses(offloadIntent.mRecordKey, clientToken), 0);
-            } catch (RemoteException e) {
-                String msg = "Error while setting a callback for linkToDeath binder" +
-                        " {" + offloadIntent.mClientToken + "} in addProtocolResponses.";
-                Log.e(TAG, msg, e);
+            if (!mClientDeathRegistry.link(clientToken)) {
+                mHandler.post(() -> removeIntentsOfClient(clientToken));
                 return offloadIntent.mRecordKey;
             }
             mHandler.post(() -> {
-                getInterfaceOffloadManager(networkInterface).refreshProtocolResponses();
+                withInterfaceOffloadManager(networkInterface,
+                        InterfaceOffloadManager::requestProtocolResponsesRefresh);
+                expireRestoredIntents(offloadIntent.mOwnerAppId);
+                scheduleSnapshotWrite();
             });
             return offloadIntent.mRecordKey;
         }
@@ -311,8 +566,10 @@ public class MdnsOffloadManagerService extends Service {
                 if (offloadIntent == null) {
                     return;
                 }
-                getInterfaceOffloadManager(offloadIntent.mNetworkInterface)
-                        .refreshProtocolResponses();
+                mClientDeathRegistry.release(clientToken);
+                withInterfaceOffloadManager(offloadIntent.mNetworkInterface,
+                        InterfaceOffloadManager::requestProtocolResponsesRefresh);
+                scheduleSnapshotWrite();
             });
         }
 
@@ -329,18 +586,14 @@ public class MdnsOffloadManagerService extends Service {
                 OffloadIntentStore.PassthroughIntent ptIntent =
                         mOffloadIntentStore.registerPassthroughIntent(
                                 networkInterface, qname, clientToken, callerUid);
-                IBinder token = ptIntent.mClientToken;
-                try {
-                    token.linkToDeath(
-                            () -> removeFromPassthroughList(
-                                    networkInterface, ptIntent.mCanonicalQName, token), 0);
-                } catch (RemoteException e) {
-                    String msg = "Error while setting a callback for linkToDeath binder {"
-                            + token + "} in addToPassthroughList.";
-                    Log.e(TAG, msg, e);
+                if (!mClientDeathRegistry.link(clientToken)) {
+                    removeIntentsOfClient(clientToken);
                     return;
                 }
-                getInterfaceOffloadManager(networkInterface).refreshPassthroughList();
+                withInterfaceOffloadManager(networkInterface,
+                        InterfaceOffloadManager::requestPassthroughListRefresh);
+                expireRestoredIntents(ptIntent.mOwnerAppId);
+                scheduleSnapshotWrite();
             });
         }
 
@@ -355,7 +608,10 @@ public class MdnsOffloadManagerService extends Service {
             mHandler.post(() -> {
                 boolean removed = mOffloadIntentStore.removePassthroughIntent(qname, clientToken);
                 if (removed) {
-                    getInterfaceOffloadManager(networkInterface).refreshPassthroughList();
+                    mClientDeathRegistry.release(clientToken);
+                    withInterfaceOffloadManager(networkInterface,
+                            InterfaceOffloadManager::requestPassthroughListRefresh);
+                    scheduleSnapshotWrite();
                 }
             });
         }
@@ -371,10 +627,112 @@ public class MdnsOffloadManagerService extends Service {
         }
     };
 
+    @WorkerThread
     private InterfaceOffloadManager getInterfaceOffloadManager(String networkInterface) {
-        return mInterfaceOffloadManagers.computeIfAbsent(
-                networkInterface,
-                iface -> new InterfaceOffloadManager(iface, mOffloadIntentStore, mOffloadWriter));
+        InterfaceOffloadManager manager = mInterfaceOffloadManagers.get(networkInterface);
+        if (manager == null) {
+            InterfaceLanes.Lane lane = mInterfaceLanes.getLane(networkInterface);
+            InterfaceOffloadManager newManager = new InterfaceOffloadManager(
+                    networkInterface,
+                    mOffloadIntentStore,
+                    mPriorityListManager,
+                    lane.mOffloadWriter,
+                    mOffloadMetrics,
+                    lane.mHandler,
+                    mRefreshCoalescingWindowMs,
+                    mMergedPacketMaxBytes,
+                    mDumpSnapshot::publish);
+            mInterfaceOffloadManagers.put(networkInterface, newManager);
+            if (mIsVendorStateSynced) {
+                // The vendor service holds no state on this network interface.
+                mInterfaceLanes.run(lane, () -> newManager.onVendorServiceConnected(null));
+            }
+            manager = newManager;
+        }
+        return manager;
+    }
+
+    /**
+     * Run an action on the interface offload manager of a network interface, on its lane. See
+     * {@link InterfaceLanes}.
+     */
+    @WorkerThread
+    private void withInterfaceOffloadManager(
+            String networkInterface, Consumer<InterfaceOffloadManager> action) {
+        InterfaceOffloadManager manager = getInterfaceOffloadManager(networkInterface);
+        mInterfaceLanes.run(mInterfaceLanes.getLane(networkInterface),
+                () -> action.accept(manager));
+    }
+
+    @WorkerThread
+    private void forEachInterfaceOffloadManager(Consumer<InterfaceOffloadManager> action) {
+        mInterfaceOffloadManagers.forEach((iface, manager) -> mInterfaceLanes.run(
+                mInterfaceLanes.getLane(iface), () -> action.accept(manager)));
+    }
+
+    /**
+     * Run an action on each interface offload manager, on its lane, then run onDone on the
+     * handler thread once all of them ran the callback they were given.
+     */
+    @WorkerThread
+    private void forEachInterfaceOffloadManager(
+            BiConsumer<InterfaceOffloadManager, Runnable> action, Runnable onDone) {
+        int[] pendingManagers = {mInterfaceOffloadManagers.size()};
+        if (pendingManagers[0] == 0) {
+            onDone.run();
+            return;
+        }
+        Runnable onManagerDone = () -> {
+            pendingManagers[0]--;
+            if (pendingManagers[0] == 0) {
+                onDone.run();
+            }
+        };
+        mInterfaceOffloadManagers.forEach((iface, manager) -> {
+            InterfaceLanes.Lane lane = mInterfaceLanes.getLane(iface);
+            mInterfaceLanes.run(lane, () -> action.accept(manager,
+                    () -> mInterfaceLanes.runOnDefaultLane(lane, onManagerDone)));
+        });
+    }
+
+    /**
+     * Read back the state held by the vendor service, so that only differences are written, e.g.
+     * when only the vendor service restarted. When the vendor service cannot report its state,
+     * start over from a reset vendor service instead.
+     */
+    @WorkerThread
+    private void syncVendorState() {
+        // Updates made until the state is read back could not be matched to it.
+        mIsVendorStateSynced = false;
+        forEachInterfaceOffloadManager(InterfaceOffloadManager::onVendorServiceDisconnected);
+        mOffloadWriter.getOffloadState(offloadState -> {
+            Map<String, IMdnsOffload.InterfaceOffloadState> vendorState = offloadState;
+            if (vendorState == null) {
+                mOffloadWriter.resetAll();
+                vendorState = Collections.emptyMap();
+            }
+            vendorState.keySet().forEach(iface -> getInterfaceOffloadManager(iface));
+            for (String iface : mInterfaceOffloadManagers.keySet()) {
+                IMdnsOffload.InterfaceOffloadState interfaceState = vendorState.get(iface);
+                withInterfaceOffloadManager(iface,
+                        manager -> manager.onVendorServiceConnected(interfaceState));
+            }
+            mIsVendorStateSynced = true;
+            mOffloadWriter.applyOffloadState();
+        });
+    }
+
+    /**
+     * Vendor calls were dropped or missed their deadline, the vendor state may differ from the
+     * state the interface offload managers expect.
+     */
+    @WorkerThread
+    private void onVendorCallsFailed() {
+        if (!mOffloadWriter.isVendorServiceConnected()) {
+            return;
+        }
+        Log.w(TAG, "Vendor calls failed, reading back the vendor state.");
+        syncVendorState();
     }
 
     private final ServiceConnection mVendorServiceConnection = new ServiceConnection() {
@@ -382,21 +740,20 @@ public class MdnsOffloadManagerService extends Service {
         public void onServiceConnected(ComponentName className, IBinder service) {
             Log.i(TAG, "IMdnsOffload service bound successfully.");
             IMdnsOffload vendorService = IMdnsOffload.Stub.asInterface(service);
-            mHandler.post(() -> {
-                mOffloadWriter.setVendorService(vendorService);
-                mOffloadWriter.resetAll();
-                mInterfaceOffloadManagers.values()
-                        .forEach(InterfaceOffloadManager::onVendorServiceConnected);
-                mOffloadWriter.applyOffloadState();
-            });
+            mHandler.post(() -> mOffloadWriter.connectVendorService(vendorService, () -> {
+                mInterfaceLanes.connectVendorService(vendorService);
+                syncVendorState();
+            }));
         }
 
         public void onServiceDisconnected(ComponentName className) {
             Log.e(TAG, "IMdnsOffload service has unexpectedly disconnected.");
             mHandler.post(() -> {
-                mOffloadWriter.setVendorService(null);
-                mInterfaceOffloadManagers.values()
-                        .forEach(InterfaceOffloadManager::onVendorServiceDisconnected);
+                mOffloadWriter.disconnectVendorService();
+                mInterfaceLanes.disconnectVendorService();
+                mIsVendorStateSynced = false;
+                forEachInterfaceOffloadManager(
+                        InterfaceOffloadManager::onVendorServiceDisconnected);
             });
         }
     };
@@ -408,17 +765,47 @@ public class MdnsOffloadManagerService extends Service {
             // state of the device:
             // https://developer.android.com/reference/android/os/PowerManager#isInteractive()
             String action = intent.getAction();
+            StandbyTransitionTracer.Transition transition =
+                    Intent.ACTION_SCREEN_OFF.equals(action)
+                            ? mStandbyTransitionTracer.begin() : null;
             mHandler.post(() -> {
                 if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                    mScreenStateChanges++;
                     mOffloadWriter.setOffloadState(false);
-                    mOffloadWriter.retrieveAndClearMetrics(mOffloadIntentStore.getRecordKeys());
+                    // Hits are committed along with misses, once all of them were reported.
+                    forEachInterfaceOffloadManager(
+                            InterfaceOffloadManager::retrieveAndClearHitCounters,
+                            () -> mOffloadWriter.retrieveAndClearMissCounter(
+                                    mOffloadMetrics::onStandbyEnded));
                 } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
-                    try {
-                        mWakeLock.acquire(5000);
-                        mOffloadWriter.setOffloadState(true);
-                    } finally {
-                        mWakeLock.release();
-                    }
+                    int screenStateChange = ++mScreenStateChanges;
+                    // The wakelock covers the writes of the flush and enabling offload. It may
+                    // time out first if the vendor service is slow, releasing it is then a no-op.
+                    mWakeLock.acquire(5000);
+                    transition.onStarted();
+                    // Offload must reflect the latest requests before the device sleeps, it is
+                    // enabled once all writes completed, on all lanes.
+                    forEachInterfaceOffloadManager(
+                            InterfaceOffloadManager::flushPendingRefreshes, () -> {
+                        if (screenStateChange != mScreenStateChanges) {
+                            // The screen turned on meanwhile.
+                            mWakeLock.release();
+                            transition.onCancelled();
+                            return;
+                        }
+                        transition.onFlushed();
+                        mOffloadWriter.setOffloadState(true, () -> {
+                            mWakeLock.release();
+                            transition.onOffloadEnabled();
+                        });
+                        mOffloadMetrics.onStandbyStarted();
+                    });
+                } else if (Intent.ACTION_DREAMING_STARTED.equals(action)) {
+                    // The device usually goes to sleep after dreaming. Pending refreshes are
+                    // applied now, while the device is awake, so that going to standby is left
+                    // with enabling offload.
+                    forEachInterfaceOffloadManager(
+                            InterfaceOffloadManager::flushPendingRefreshes);
                 }
             });
         }
@@ -434,6 +821,23 @@ public class MdnsOffloadManagerService extends Service {
         }
     }
 
+    private class PackageChangeReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) {
+                return;
+            }
+            String packageName = intent.getData().getSchemeSpecificPart();
+            mHandler.post(() -> {
+                // The app id of a package changes when it is reinstalled, or once installed.
+                mPackageAppIdCache.invalidate(packageName);
+                if (mExemptPackages.contains(packageName)) {
+                    updateAppIdAllowlist();
+                }
+            });
+        }
+    }
+
     private class ConnectivityManagerNetworkCallback extends ConnectivityManager.NetworkCallback {
         private final Map<Network, LinkProperties> mLinkProperties = new HashMap<>();
 
@@ -449,16 +853,14 @@ public class MdnsOffloadManagerService extends Service {
                                 linkProperties.getInterfaceName())) {
                     // This means that the interface changed names, which may happen
                     // but very rarely.
-                    InterfaceOffloadManager offloadManager =
-                            getInterfaceOffloadManager(previousProperties.getInterfaceName());
-                    offloadManager.onNetworkLost();
+                    withInterfaceOffloadManager(previousProperties.getInterfaceName(),
+                            InterfaceOffloadManager::onNetworkLost);
                 }
 
                 // We trigger an onNetworkAvailable even if the existing is the same in case
                 // anything needs to be refreshed due to the LinkProperties change.
-                InterfaceOffloadManager offloadManager =
-                        getInterfaceOffloadManager(linkProperties.getInterfaceName());
-                offloadManager.onNetworkAvailable();
+                withInterfaceOffloadManager(linkProperties.getInterfaceName(),
+                        InterfaceOffloadManager::onNetworkAvailable);
             });
         }
 
@@ -473,9 +875,8 @@ public class MdnsOffloadManagerService extends Service {
                     Log.w(TAG,"Network "+ network + " lost before being available.");
                     return;
                 }
-                InterfaceOffloadManager offloadManager =
-                        getInterfaceOffloadManager(previousProperties.getInterfaceName());
-                offloadManager.onNetworkLost();
+                withInterfaceOffloadManager(previousProperties.getInterfaceName(),
+                        InterfaceOffloadManager::onNetworkLost);
             });
         }
     }
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tool class to shrink a fully formed mDNS response packet before it is offloaded, so that more
+ * records fit in the memory of network interfaces chipsets.
+ * <p>
+ * Every answer is re-encoded with RFC1035-4.1.4 name compression applied to its RRNAME and, for
+ * the record types that carry a name, to the name in its RDATA. Each name points to the longest
+ * suffix already written in the packet. Answers identical to a previous answer are dropped.
+ * Names are compared byte for byte, so the case of every name is preserved. The next domain name
+ * of NSEC records is written uncompressed, as some mDNS implementations do not expect pointers
+ * there.
+ * <p>
+ * Packets of several offload intents can be merged the same way, see {@link OffloadPacketMerger}.
+ * <p>
+ * The match criteria of the optimized packet differ from those of the original packet and must
+ * be extracted again with {@link MdnsPacketParser#extractMatchCriteria}.
+ */
+public final class MdnsPacketOptimizer {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_CNAME = 5;
+    private static final int TYPE_PTR = 12;
+    private static final int TYPE_HINFO = 13;
+    private static final int TYPE_TXT = 16;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_SRV = 33;
+    private static final int TYPE_NSEC = 47;
+
+    private static final int OFFSET_ANSWERS_COUNT = 6;
+    private static final int OFFSET_DATA_SECTION_START = 12;
+    // Priority, weight and port of SRV records.
+    private static final int SRV_FIXED_SIZE = 6;
+    private static final int MAX_POINTER_OFFSET = 0x3fff;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private MdnsPacketOptimizer() {
+    }
+
+    /**
+     * An answer decoded from a packet. The RDATA is kept as the bytes before the name it
+     * carries, the name, and the bytes after it. RDATA without a name is kept in mRdataSuffix.
+     */
+    private static final class Answer {
+        final List<byte[]> mName;
+        // RRTYPE, cache flush, RRCLASS and TTL.
+        final byte[] mTypeClassAndTtl;
+        final byte[] mRdataPrefix;
+        @Nullable
+        final List<byte[]> mRdataName;
+        final boolean mCompressRdataName;
+        final byte[] mRdataSuffix;
+
+        Answer(List<byte[]> name, byte[] typeClassAndTtl, byte[] rdataPrefix,
+                @Nullable List<byte[]> rdataName, boolean compressRdataName,
+                byte[] rdataSuffix) {
+            mName = name;
+            mTypeClassAndTtl = typeClassAndTtl;
+            mRdataPrefix = rdataPrefix;
+            mRdataName = rdataName;
+            mCompressRdataName = compressRdataName;
+            mRdataSuffix = rdataSuffix;
+        }
+
+        /**
+         * The answer encoded without compression, identical answers have identical keys.
+         */
+        String key() {
+            PacketWriter writer = new PacketWriter(MAX_NAME_LENGTH);
+            writer.writeName(mName, null);
+            writer.write(mTypeClassAndTtl);
+            writer.write(mRdataPrefix);
+            if (mRdataName != null) {
+                writer.writeName(mRdataName, null);
+            }
+            writer.write(mRdataSuffix);
+            return new String(writer.mBuffer, 0, writer.mSize, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Optimizes the given mDNS response packet.
+     *
+     * @return The optimized packet, or the given packet if it cannot be made smaller, holds
+     * records whose RDATA format is unknown and may contain compressed names, or cannot be
+     * decoded. Whether such a packet is acceptable is left to the parser.
+     */
+    @NonNull
+    public static byte[] optimize(@NonNull byte[] mdnsResponsePacket) {
+        byte[] optimized;
+        try {
+            optimized = merge(List.of(mdnsResponsePacket));
+        } catch (IllegalArgumentException e) {
+            return mdnsResponsePacket;
+        }
+        if (optimized == null || optimized.length >= mdnsResponsePacket.length) {
+            return mdnsResponsePacket;
+        }
+        return optimized;
+    }
+
+    /**
+     * Merges the answers of the given mDNS response packets into one optimized packet, in order.
+     * The header of the first packet is kept, with its answers count updated.
+     *
+     * @return The merged packet, or null if a packet holds records whose RDATA format is unknown.
+     * @throws IllegalArgumentException if a packet is badly formed.
+     */
+    @Nullable
+    static byte[] merge(@NonNull List<byte[]> mdnsResponsePackets) {
+        List<Answer> answers = new ArrayList<>();
+        Set<String> answerKeys = new HashSet<>();
+        for (byte[] packet : mdnsResponsePackets) {
+            // Validates the packet layout.
+            for (MdnsPacketParser.MatchCriteria criteria :
+                    MdnsPacketParser.extractMatchCriteria(packet)) {
+                Answer answer = readAnswer(packet, criteria.nameOffset);
+                if (answer == null) {
+                    return null;
+                }
+                if (answerKeys.add(answer.key())) {
+                    answers.add(answer);
+                }
+            }
+        }
+
+        byte[] firstPacket = mdnsResponsePackets.get(0);
+        PacketWriter writer = new PacketWriter(firstPacket.length);
+        writer.write(Arrays.copyOf(firstPacket, OFFSET_DATA_SECTION_START));
+        writer.patchUint16(OFFSET_ANSWERS_COUNT, answers.size());
+        Map<String, Integer> suffixOffsets = new HashMap<>();
+        for (Answer answer : answers) {
+            writer.writeName(answer.mName, suffixOffsets);
+            writer.write(answer.mTypeClassAndTtl);
+            int rdataLengthOffset = writer.mSize;
+            writer.writeUint16(0);
+            writer.write(answer.mRdataPrefix);
+            if (answer.mRdataName != null) {
+                writer.writeName(answer.mRdataName, suffixOffsets, answer.mCompressRdataName);
+            }
+            writer.write(answer.mRdataSuffix);
+            writer.patchUint16(rdataLengthOffset, writer.mSize - rdataLengthOffset - 2);
+        }
+        return Arrays.copyOf(writer.mBuffer, writer.mSize);
+    }
+
+    /**
+     * Decodes the answer at the given offset, or returns null if its RDATA format is unknown.
+     */
+    @Nullable
+    private static Answer readAnswer(byte[] packet, int offset) {
+        List<byte[]> name = readName(packet, offset);
+        int cursor = skipName(packet, offset);
+        int type = readUint16(packet, cursor);
+        byte[] typeClassAndTtl = copy(packet, cursor, cursor + 8);
+        int rdataStart = cursor + 10;
+        int rdataEnd = rdataStart + readUint16(packet, cursor + 8);
+        byte[] empty = new byte[0];
+        switch (type) {
+            case TYPE_A:
+            case TYPE_AAAA:
+            case TYPE_TXT:
+            case TYPE_HINFO:
+                return new Answer(name, typeClassAndTtl, empty, null, false,
+                        copy(packet, rdataStart, rdataEnd));
+            case TYPE_PTR:
+            case TYPE_CNAME:
+            case TYPE_NS:
+                checkNameEnd(packet, rdataStart, rdataEnd);
+                return new Answer(name, typeClassAndTtl, empty, readName(packet, rdataStart),
+                        true, empty);
+            case TYPE_SRV:
+                int targetStart = rdataStart + SRV_FIXED_SIZE;
+                checkNameEnd(packet, targetStart, rdataEnd);
+                return new Answer(name, typeClassAndTtl, copy(packet, rdataStart, targetStart),
+                        readName(packet, targetStart), true, empty);
+            case TYPE_NSEC:
+                int bitmapStart = skipName(packet, rdataStart);
+                return new Answer(name, typeClassAndTtl, empty, readName(packet, rdataStart),
+                        false, copy(packet, bitmapStart, rdataEnd));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decodes the labels of the name at the given offset, following pointers.
+     */
+    private static List<byte[]> readName(byte[] packet, int offset) {
+        List<byte[]> labels = new ArrayList<>();
+        int cursor = offset;
+        int nameLength = 1;
+        int pointerHops = 0;
+        int label;
+        while ((label = readUint8(packet, cursor)) != 0) {
+            if ((label & 0b11000000) == 0b11000000) {
+                // Bounded as in the parser, any pointer cycle exceeds the bound.
+                if (++pointerHops > MdnsPacketParser.MAX_POINTER_HOPS) {
+                    throw new IllegalArgumentException(
+                            "mDNS response packet is badly formed. Too many pointers.");
+                }
+                cursor = readUint16(packet, cursor) & MAX_POINTER_OFFSET;
+            } else if ((label & 0b11000000) == 0) {
+                nameLength += 1 + label;
+                if (nameLength > MAX_NAME_LENGTH) {
+                    throw new IllegalArgumentException(
+                            "mDNS response packet is badly formed. Name too long.");
+                }
+                labels.add(copy(packet, cursor + 1, cursor + 1 + label));
+                cursor += 1 + label;
+            } else {
+                throw new IllegalArgumentException("mDNS response packet is badly formed.");
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Returns the offset following the name at the given offset, without following pointers.
+     */
+    private static int skipName(byte[] packet, int offset) {
+        int cursor = offset;
+        int label;
+        while ((label = readUint8(packet, cursor)) != 0) {
+            if ((label & 0b11000000) == 0b11000000) {
+                return cursor + 2;
+            }
+            cursor += 1 + label;
+        }
+        return cursor + 1;
+    }
+
+    private static void checkNameEnd(byte[] packet, int nameStart, int rdataEnd) {
+        if (skipName(packet, nameStart) != rdataEnd) {
+            throw new IllegalArgumentException(
+                    "mDNS response packet is badly formed. Invalid RDATA.");
+        }
+    }
+
+    private static byte[] copy(byte[] packet, int start, int end) {
+        if (end > packet.length || start > end) {
+            throw new IllegalArgumentException(
+                    "mDNS response packet is badly formed. Not enough data.");
+        }
+        return Arrays.copyOfRange(packet, start, end);
+    }
+
+    private static int readUint8(byte[] packet, int offset) {
+        if (offset >= packet.length) {
+            throw new IllegalArgumentException(
+                    "mDNS response packet is badly formed. Not enough data.");
+        }
+        return ((int) packet[offset]) & 0xff;
+    }
+
+    private static int readUint16(byte[] packet, int offset) {
+        return (readUint8(packet, offset) << 8) + readUint8(packet, offset + 1);
+    }
+
+    /**
+     * Growable buffer the optimized packet is written to.
+     */
+    private static final class PacketWriter {
+        byte[] mBuffer;
+        int mSize = 0;
+
+        PacketWriter(int initialCapacity) {
+            mBuffer = new byte[initialCapacity];
+        }
+
+        void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mSize, bytes.length);
+            mSize += bytes.length;
+        }
+
+        void writeUint16(int value) {
+            ensureCapacity(2);
+            mBuffer[mSize++] = (byte) (value >> 8);
+            mBuffer[mSize++] = (byte) value;
+        }
+
+        void patchUint16(int offset, int value) {
+            mBuffer[offset] = (byte) (value >> 8);
+            mBuffer[offset + 1] = (byte) value;
+        }
+
+        void writeName(List<byte[]> labels, @Nullable Map<String, Integer> suffixOffsets) {
+            writeName(labels, suffixOffsets, true);
+        }
+
+        /**
+         * Writes a name, ending it with a pointer to the longest suffix already written if
+         * compress is true. Suffixes written are recorded in suffixOffsets, when not null.
+         */
+        void writeName(List<byte[]> labels, @Nullable Map<String, Integer> suffixOffsets,
+                boolean compress) {
+            for (int i = 0; i < labels.size(); i++) {
+                if (suffixOffsets != null) {
+                    String suffix = suffixKey(labels, i);
+                    Integer suffixOffset = suffixOffsets.get(suffix);
+                    if (compress && suffixOffset != null) {
+                        writeUint16(0b1100000000000000 | suffixOffset);
+                        return;
+                    }
+                    if (suffixOffset == null && mSize <= MAX_POINTER_OFFSET) {
+                        suffixOffsets.put(suffix, mSize);
+                    }
+                }
+                byte[] label = labels.get(i);
+                ensureCapacity(1);
+                mBuffer[mSize++] = (byte) label.length;
+                write(label);
+            }
+            ensureCapacity(1);
+            mBuffer[mSize++] = 0;
+        }
+
+        private static String suffixKey(List<byte[]> labels, int start) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = start; i < labels.size(); i++) {
+                byte[] label = labels.get(i);
+                builder.append((char) label.length)
+                        .append(new String(label, StandardCharsets.ISO_8859_1));
+            }
+            return builder.toString();
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mSize + extra > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+            }
+        }
+    }
+}
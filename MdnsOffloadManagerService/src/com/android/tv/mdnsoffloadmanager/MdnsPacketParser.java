@@ -17,30 +17,139 @@
 package com.android.tv.mdnsoffloadmanager;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
-import device.google.atv.mdns_offload.IMdnsOffload.MdnsProtocolData.MatchCriteria;
-
 /**
  * Tool class to help read mdns data from a fully formed mDNS response packet.
+ * <p>
+ * All methods are stateless and operate directly on the packet array, they do not allocate any
+ * intermediate parser state.
+ * <p>
+ * Packets come from apps and are untrusted. Before decoding anything, packets and names are
+ * validated by {@link #validateResponsePacket} and {@link #validateName}, which report failures
+ * as a {@link Status} instead of throwing. Validation bounds the compression pointers followed
+ * and the length of names, so that a hostile packet, e.g. with a pointer cycle, costs no more
+ * than a valid packet of the same size.
+ * <p>
+ * The parser only depends on the JDK, so that it also builds on the host, e.g. for fuzzing.
  */
 public final class MdnsPacketParser {
 
+    /**
+     * Result of the validation of a packet or name.
+     */
+    enum Status {
+        OK("mDNS response packet is well formed."),
+        TRUNCATED("mDNS response packet is badly formed. Not enough data."),
+        NOT_ONLY_ANSWERS("mDNS response packet contains data that is not answers"),
+        INVALID_LABEL_TYPE("mDNS response packet is badly formed. Invalid label type."),
+        NAME_TOO_LONG("mDNS response packet is badly formed. Name too long."),
+        TOO_MANY_POINTERS("mDNS response packet is badly formed. Too many pointers."),
+        TRAILING_DATA("mDNS response packet is badly formed. Too much data.");
+
+        final String mMessage;
+
+        Status(String message) {
+            mMessage = message;
+        }
+    }
+
+    /**
+     * Maximum number of compression pointers followed while reading a name. Responders write
+     * names with one or two pointers, any pointer cycle exceeds the bound.
+     */
+    static final int MAX_POINTER_HOPS = 16;
+
     private static final int OFFSET_QUERIES_COUNT = 4;
     private static final int OFFSET_ANSWERS_COUNT = 6;
     private static final int OFFSET_AUTHORITY_COUNT = 8;
     private static final int OFFSET_ADDITIONAL_COUNT = 10;
     private static final int OFFSET_DATA_SECTION_START = 12;
+    // Root RRNAME, RRTYPE, RRCLASS, TTL and RDLENGTH.
+    private static final int MIN_ANSWER_SIZE = 11;
+    // RRTYPE, RRCLASS, TTL and RDLENGTH.
+    private static final int ANSWER_FIELDS_SIZE = 10;
+    private static final Status[] STATUSES = Status.values();
+
+    private MdnsPacketParser() {
+    }
 
-    private final byte[] mMdnsData;
-    private int mCursorIndex;
+    /**
+     * Validates the mdns response packet without throwing: only answers, well formed names and
+     * records, and no data after the last answer.
+     */
+    @NonNull
+    static Status validateResponsePacket(@NonNull byte[] packet) {
+        if (packet.length < OFFSET_DATA_SECTION_START) {
+            return Status.TRUNCATED;
+        }
+        if (readUint16(packet, OFFSET_QUERIES_COUNT) != 0
+                || readUint16(packet, OFFSET_AUTHORITY_COUNT) != 0
+                || readUint16(packet, OFFSET_ADDITIONAL_COUNT) != 0) {
+            return Status.NOT_ONLY_ANSWERS;
+        }
+        int answersToRead = readUint16(packet, OFFSET_ANSWERS_COUNT);
+        int cursor = OFFSET_DATA_SECTION_START;
+        for (int answer = 0; answer < answersToRead; answer++) {
+            int nameEnd = scanName(packet, cursor);
+            if (nameEnd < 0) {
+                return STATUSES[~nameEnd];
+            }
+            cursor = nameEnd + ANSWER_FIELDS_SIZE;
+            if (cursor > packet.length) {
+                return Status.TRUNCATED;
+            }
+            cursor += readUint16(packet, cursor - 2);
+            if (cursor > packet.length) {
+                return Status.TRUNCATED;
+            }
+        }
+        return cursor == packet.length ? Status.OK : Status.TRAILING_DATA;
+    }
 
-    private MdnsPacketParser(@NonNull byte[] mDNSData) {
-        this.mMdnsData = mDNSData;
+    /**
+     * Validates the name starting at offset without throwing, see {@link #extractFullName}.
+     */
+    @NonNull
+    static Status validateName(@NonNull byte[] packet, int offset) {
+        int nameEnd = scanName(packet, offset);
+        return nameEnd < 0 ? STATUSES[~nameEnd] : Status.OK;
+    }
+
+    /**
+     * RRTYPE and offset of the RRNAME of an answer. Mirrors the MatchCriteria parcelable of the
+     * vendor service, which needs android.os and is converted to outside of the parser.
+     */
+    public static final class MatchCriteria {
+        public final int type;
+        public final int nameOffset;
+
+        MatchCriteria(int type, int nameOffset) {
+            this.type = type;
+            this.nameOffset = nameOffset;
+        }
+    }
+
+    /**
+     * Result of a single pass over an mDNS response packet. Holds the match criteria of every
+     * answer, together with the canonical name of its RRNAME as interned in a
+     * {@link MdnsNameTable}.
+     */
+    static final class ParsedPacket {
+        final List<MatchCriteria> mMatchCriteria;
+        // Aligned with mMatchCriteria.
+        final List<String> mCanonicalNames;
+
+        private ParsedPacket(List<MatchCriteria> matchCriteria, List<String> canonicalNames) {
+            mMatchCriteria = matchCriteria;
+            mCanonicalNames = canonicalNames;
+        }
     }
 
     /**
@@ -48,15 +157,20 @@ public final class MdnsPacketParser {
      * either at a data length value or at a pointer value.
      */
     public static String extractFullName(@NonNull byte[] array, int offset) {
-        MdnsPacketParser parser = new MdnsPacketParser(array);
-        parser.setCursor(offset);
+        if (offset < 0) {
+            throw new IllegalArgumentException("Setting cursor on negative offset is not allowed.");
+        }
+        Status status = validateName(array, offset);
+        if (status != Status.OK) {
+            throw new IllegalArgumentException(status.mMessage);
+        }
         StringBuilder builder = new StringBuilder();
-
-        while (!parser.isCursorOnRootLabel()) {
-            if (parser.isCursorOnPointer()) {
-                parser.setCursor(parser.pollPointerOffset());
-            } else if (parser.isCursorOnLabel()) {
-                builder.append(parser.pollLabel());
+        int cursor = offset;
+        while (!isRootLabel(array, cursor)) {
+            if (isPointer(array, cursor)) {
+                cursor = readPointerOffset(array, cursor);
+            } else if (isLabel(array, cursor)) {
+                cursor = appendLabel(array, cursor, builder);
                 builder.append('.');
             } else {
                 throw new IllegalArgumentException("mDNS response packet is badly formed.");
@@ -70,151 +184,218 @@ public final class MdnsPacketParser {
      * with responses.
      */
     public static List<MatchCriteria> extractMatchCriteria(@NonNull byte[] mdnsResponsePacket) {
-        Objects.requireNonNull(mdnsResponsePacket);
-
-        // Parse MdnsPacket and read labels and find
-        List<MatchCriteria> criteriaList = new ArrayList<>();
-        MdnsPacketParser parser = new MdnsPacketParser(mdnsResponsePacket);
+        return parse(mdnsResponsePacket, null).mMatchCriteria;
+    }
 
-        if (parser.getQueriesCount() != 0
-                || parser.getAuthorityCount() != 0
-                || parser.getAdditionalCount() != 0) {
-            throw new IllegalArgumentException(
-                    "mDNS response packet contains data that is not answers");
+    /**
+     * Validates the mdns response packet, extracts its match criteria and decodes the RRNAME of
+     * every answer into the given name table, in a single pass over the packet.
+     */
+    static ParsedPacket parseResponsePacket(
+            @NonNull byte[] mdnsResponsePacket, @NonNull MdnsNameTable nameTable) {
+        Objects.requireNonNull(nameTable);
+        synchronized (nameTable) {
+            return parse(mdnsResponsePacket, nameTable);
         }
-        int answersToRead = parser.getAnswersCount();
+    }
 
-        parser.moveToDataSection();
+    private static ParsedPacket parse(
+            @NonNull byte[] packet, @Nullable MdnsNameTable nameTable) {
+        Objects.requireNonNull(packet);
+        Status status = validateResponsePacket(packet);
+        if (status != Status.OK) {
+            throw new IllegalArgumentException(status.mMessage);
+        }
+        int answersToRead = readUint16(packet, OFFSET_ANSWERS_COUNT);
+
+        // Every answer takes at least 11 bytes, do not trust the header for the allocation size.
+        int expectedAnswers = Math.min(answersToRead, packet.length / MIN_ANSWER_SIZE);
+        List<MatchCriteria> criteriaList = new ArrayList<>(expectedAnswers);
+        List<String> names = nameTable == null
+                ? Collections.emptyList() : new ArrayList<>(expectedAnswers);
+        int cursor = OFFSET_DATA_SECTION_START;
         while (answersToRead > 0) {
             // Each record starts with the RRNAME, so the offset is correct for the criteria.
-            MatchCriteria criteria = new MatchCriteria();
-            criteria.nameOffset = parser.getCursorOffset();
+            int nameOffset = cursor;
 
-            /// Skip labels first
-            while (parser.isCursorOnLabel()) {
-                parser.pollLabel();
+            if (nameTable != null) {
+                nameTable.beginName();
+            }
+            // Skip labels first, recording them on the way.
+            while (isLabel(packet, cursor)) {
+                int labelSize = readLabelSize(packet, cursor);
+                if (nameTable != null
+                        && !nameTable.appendLabel(packet, cursor + 1, labelSize)) {
+                    throw new IllegalArgumentException(
+                            "mDNS response packet is badly formed. Name too long.");
+                }
+                cursor += 1 + labelSize;
+            }
+            // We can be on a root label or on a pointer. Skip both, the remainder of the name
+            // is decoded by following the pointer.
+            if (isRootLabel(packet, cursor)) {
+                cursor += 1;
+            } else if (isPointer(packet, cursor)) {
+                if (nameTable != null) {
+                    appendPointedName(packet, readPointerOffset(packet, cursor), nameTable);
+                }
+                cursor += 2;
             }
-            // We can be on a root label or on a pointer. Skip both.
-            if (parser.isCursorOnRootLabel()) {
-                parser.skipBytes(1);
-            } else if (parser.isCursorOnPointer()) {
-                parser.pollPointerOffset();
+            if (nameTable != null) {
+                names.add(nameTable.endName(packet, nameOffset));
             }
 
             // The cursor must be on the RRTYPE.
-            criteria.type = parser.pollUint16();
+            int type = readUint16(packet, cursor);
+            cursor += 2;
 
             // The next 6 bytes point to cache flush, rrclass, and ttl
-            parser.skipBytes(6);
+            cursor += 6;
 
             // Now the index points to the data length on 2 bytes
-            int dataLength = parser.pollUint16();
+            int dataLength = readUint16(packet, cursor);
+            cursor += 2;
 
             // Then we can skip those data bytes.
-            parser.skipBytes(dataLength);
+            cursor += dataLength;
 
             // Criteria is complete, it can be added.
-            criteriaList.add(criteria);
+            criteriaList.add(new MatchCriteria(type, nameOffset));
             answersToRead--;
         }
-        if (parser.hasContent()) {
-            // The packet is badly formed. All answers where read successfully, but data remains
-            // available.
-            throw new IllegalArgumentException(
-                    "mDNS response packet is badly formed. Too much data.");
-        }
-
-        return criteriaList;
+        return new ParsedPacket(criteriaList, names);
     }
 
-    private boolean hasContent() {
-        return mCursorIndex < mMdnsData.length;
-    }
-
-    private void setCursor(int position) {
-        if (position < 0) {
-            throw new IllegalArgumentException("Setting cursor on negative offset is not allowed.");
+    /**
+     * Walks the name starting at offset, following at most {@link #MAX_POINTER_HOPS} pointers.
+     *
+     * @return The offset following the name where it starts, e.g. following its first pointer,
+     * or the bitwise complement of the ordinal of the failure {@link Status}.
+     */
+    private static int scanName(byte[] packet, int offset) {
+        int cursor = offset;
+        int nameEnd = -1;
+        int nameLength = 0;
+        int pointerHops = 0;
+        while (true) {
+            if (cursor < 0 || cursor >= packet.length) {
+                return ~Status.TRUNCATED.ordinal();
+            }
+            int labelSize = packet[cursor] & 0xff;
+            if (labelSize == 0) {
+                return nameEnd < 0 ? cursor + 1 : nameEnd;
+            }
+            switch (labelSize & 0b11000000) {
+                case 0b11000000:
+                    if (cursor + 1 >= packet.length) {
+                        return ~Status.TRUNCATED.ordinal();
+                    }
+                    if (++pointerHops > MAX_POINTER_HOPS) {
+                        return ~Status.TOO_MANY_POINTERS.ordinal();
+                    }
+                    if (nameEnd < 0) {
+                        nameEnd = cursor + 2;
+                    }
+                    cursor = readPointerOffset(packet, cursor);
+                    break;
+                case 0b00000000:
+                    // Each label is followed by a dot in the textual name.
+                    nameLength += labelSize + 1;
+                    if (nameLength > MdnsNameTable.MAX_NAME_LENGTH) {
+                        return ~Status.NAME_TOO_LONG.ordinal();
+                    }
+                    cursor += 1 + labelSize;
+                    break;
+                default:
+                    return ~Status.INVALID_LABEL_TYPE.ordinal();
+            }
         }
-        mCursorIndex = position;
-    }
-
-    private int getCursorOffset() {
-        return mCursorIndex;
-    }
-
-    private void skipBytes(int bytesToSkip) {
-        mCursorIndex += bytesToSkip;
-    }
-
-    private int getQueriesCount() {
-        return readUint16(OFFSET_QUERIES_COUNT);
-    }
-
-    private int getAnswersCount() {
-        return readUint16(OFFSET_ANSWERS_COUNT);
-    }
-
-    private int getAuthorityCount() {
-        return readUint16(OFFSET_AUTHORITY_COUNT);
     }
 
-    private int getAdditionalCount() {
-        return readUint16(OFFSET_ADDITIONAL_COUNT);
-    }
-
-    private void moveToDataSection() {
-        mCursorIndex = OFFSET_DATA_SECTION_START;
+    private static void appendPointedName(byte[] packet, int offset, MdnsNameTable nameTable) {
+        int cursor = offset;
+        while (!isRootLabel(packet, cursor)) {
+            if (isPointer(packet, cursor)) {
+                cursor = readPointerOffset(packet, cursor);
+            } else if (isLabel(packet, cursor)) {
+                int labelSize = readLabelSize(packet, cursor);
+                if (!nameTable.appendLabel(packet, cursor + 1, labelSize)) {
+                    throw new IllegalArgumentException(
+                            "mDNS response packet is badly formed. Name too long.");
+                }
+                cursor += 1 + labelSize;
+            } else {
+                throw new IllegalArgumentException("mDNS response packet is badly formed.");
+            }
+        }
     }
 
-    private String pollLabel() {
-        int labelSize = readUint8(mCursorIndex);
-        mCursorIndex++;
-        if (mCursorIndex + labelSize > mMdnsData.length) {
+    /**
+     * Validates the label at the cursor and returns its size.
+     */
+    private static int readLabelSize(byte[] packet, int cursor) {
+        int labelSize = readUint8(packet, cursor);
+        if (cursor + 1 + labelSize > packet.length) {
             throw new IllegalArgumentException(
                     "mDNS response packet is badly formed. Not enough data.");
         }
-        String value = new String(mMdnsData, mCursorIndex, labelSize, StandardCharsets.UTF_8);
-        mCursorIndex += labelSize;
-        return value;
+        return labelSize;
     }
 
-    private boolean isCursorOnLabel() {
-        return !isCursorOnRootLabel() && (readUint8(mCursorIndex) & 0b11000000) == 0b00000000;
+    /**
+     * Appends the label at the cursor to the builder and returns the offset following it.
+     */
+    private static int appendLabel(byte[] packet, int cursor, StringBuilder builder) {
+        int labelSize = readLabelSize(packet, cursor);
+        int start = cursor + 1;
+        int end = start + labelSize;
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            if (packet[i] < 0) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) {
+            for (int i = start; i < end; i++) {
+                builder.append((char) packet[i]);
+            }
+        } else {
+            builder.append(new String(packet, start, labelSize, StandardCharsets.UTF_8));
+        }
+        return end;
+    }
+
+    private static boolean isLabel(byte[] packet, int cursor) {
+        return !isRootLabel(packet, cursor)
+                && (readUint8(packet, cursor) & 0b11000000) == 0b00000000;
     }
 
-    private boolean isCursorOnPointer() {
-        return (readUint8(mCursorIndex) & 0b11000000) == 0b11000000;
+    private static boolean isPointer(byte[] packet, int cursor) {
+        return (readUint8(packet, cursor) & 0b11000000) == 0b11000000;
     }
 
-    private boolean isCursorOnRootLabel() {
-        return readUint8(mCursorIndex) == 0;
+    private static boolean isRootLabel(byte[] packet, int cursor) {
+        return readUint8(packet, cursor) == 0;
     }
 
-    private int pollPointerOffset() {
-        int value = readUint16(mCursorIndex) & 0b0011111111111111;
-        mCursorIndex += 2;
-        return value;
+    private static int readPointerOffset(byte[] packet, int cursor) {
+        return readUint16(packet, cursor) & 0b0011111111111111;
     }
 
-    private int readUint8(int offset) {
-        if (offset >= mMdnsData.length) {
+    private static int readUint8(byte[] packet, int offset) {
+        if (offset >= packet.length) {
             throw new IllegalArgumentException(
                     "mDNS response packet is badly formed. Not enough data.");
         }
-        return ((int) mMdnsData[offset]) & 0xff;
+        return ((int) packet[offset]) & 0xff;
     }
 
-    private int readUint16(int offset) {
-        if (offset + 1 >= mMdnsData.length) {
+    private static int readUint16(byte[] packet, int offset) {
+        if (offset + 1 >= packet.length) {
             throw new IllegalArgumentException(
                     "mDNS response packet is badly formed. Not enough data.");
         }
-        return (readUint8(offset) << 8) + readUint8(offset + 1);
-    }
-
-    private int pollUint16() {
-        int value = readUint16(mCursorIndex);
-        mCursorIndex += 2;
-        return value;
+        return (readUint8(packet, offset) << 8) + readUint8(packet, offset + 1);
     }
 }
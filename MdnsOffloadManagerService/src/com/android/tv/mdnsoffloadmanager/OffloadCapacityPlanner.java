@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import device.google.atv.mdns_offload.IMdnsOffload;
+
+/**
+ * Selects the records to offload on a network interface, within what the vendor service can hold.
+ * <p>
+ * The capacity is either reported by the vendor service, or learned from failed insertions. The
+ * vendor may limit the number of records or their total size, so a failed insertion only tells
+ * that a record set at least as large in both dimensions will fail too. Record sets that are
+ * certain to fail are never attempted. Learned limits may be stale, e.g. once the vendor service
+ * freed memory, so they are forgotten after a number of successful insertions, and when the
+ * vendor service reconnects.
+ * <p>
+ * When the records do not all fit, records on the priority list are selected first, then the
+ * records with the most recent hits. The selection is greedy, which is optimal when the vendor
+ * limits the number of records.
+ */
+@WorkerThread
+class OffloadCapacityPlanner {
+
+    static final int UNKNOWN = -1;
+    private static final int MAX_FAILURE_POINTS = 8;
+    // Successful insertions after which the learned limits are retried.
+    private static final int FAILURE_POINT_EXPIRY_INSERTIONS = 32;
+
+    /**
+     * A record set that was rejected by the vendor service.
+     */
+    private static class FailurePoint {
+        final int mRecords;
+        final int mBytes;
+
+        FailurePoint(int records, int bytes) {
+            mRecords = records;
+            mBytes = bytes;
+        }
+
+        boolean isCoveredBy(int records, int bytes) {
+            return records >= mRecords && bytes >= mBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "{records=%d, bytes=%d}".formatted(mRecords, mBytes);
+        }
+    }
+
+    /**
+     * The capacity known at the last plan, published for dumps.
+     */
+    static final class Stats {
+        final int mMaxRecords;
+        final int mMaxBytes;
+        final List<FailurePoint> mFailurePoints;
+        final int mDroppedRecords;
+
+        Stats(int maxRecords, int maxBytes, List<FailurePoint> failurePoints,
+                int droppedRecords) {
+            mMaxRecords = maxRecords;
+            mMaxBytes = maxBytes;
+            mFailurePoints = List.copyOf(failurePoints);
+            mDroppedRecords = droppedRecords;
+        }
+
+        void dump(PrintWriter writer) {
+            writer.println("offload capacity: maxRecords=%d, maxBytes=%d, failures=%s, dropped=%d"
+                    .formatted(mMaxRecords, mMaxBytes, mFailurePoints, mDroppedRecords));
+        }
+    }
+
+    private final List<FailurePoint> mFailurePoints = new ArrayList<>();
+    private int mMaxRecords = UNKNOWN;
+    private int mMaxBytes = UNKNOWN;
+    private int mLastDroppedRecords = 0;
+    private int mInsertionsSinceFailure = 0;
+
+    /**
+     * Use the capacity reported by the vendor service. Learned limits are kept, they are
+     * consistent with the reported ones unless the vendor service misbehaves.
+     */
+    void setReportedCapacity(@Nullable IMdnsOffload.OffloadCapacity capacity) {
+        mMaxRecords = capacity != null ? capacity.maxProtocolResponses : UNKNOWN;
+        mMaxBytes = capacity != null ? capacity.maxProtocolResponsesBytes : UNKNOWN;
+    }
+
+    /**
+     * Forget everything learned about the capacity, e.g. because the vendor service was reset.
+     */
+    void reset() {
+        forgetFailures();
+        mMaxRecords = UNKNOWN;
+        mMaxBytes = UNKNOWN;
+        mLastDroppedRecords = 0;
+    }
+
+    /**
+     * Forget the limits learned from failed insertions, so that record sets they ruled out are
+     * attempted again. Reported limits are kept.
+     */
+    private void forgetFailures() {
+        mFailurePoints.clear();
+        mInsertionsSinceFailure = 0;
+    }
+
+    boolean hasKnownLimits() {
+        return mMaxRecords >= 0 || mMaxBytes >= 0 || !mFailurePoints.isEmpty();
+    }
+
+    /**
+     * Whether holding the given number of records and bytes is certain to fail.
+     */
+    boolean isCertainToFail(int records, int bytes) {
+        if (mMaxRecords >= 0 && records > mMaxRecords) {
+            return true;
+        }
+        if (mMaxBytes >= 0 && bytes > mMaxBytes) {
+            return true;
+        }
+        for (FailurePoint failurePoint : mFailurePoints) {
+            if (failurePoint.isCoveredBy(records, bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record that the vendor service accepted a record, while holding the given number of
+     * records and bytes, including the new record.
+     */
+    void onRecordAdded(int records, int bytes) {
+        // A failure that was contradicted was not caused by memory, e.g. it was transient.
+        mFailurePoints.removeIf(failurePoint -> failurePoint.isCoveredBy(records, bytes));
+        mInsertionsSinceFailure++;
+        if (mInsertionsSinceFailure >= FAILURE_POINT_EXPIRY_INSERTIONS) {
+            forgetFailures();
+        }
+    }
+
+    /**
+     * Record that the vendor service rejected a record, while holding the given number of records
+     * and bytes, excluding the rejected record. Only rejections returned by the vendor service
+     * count, not failed or dropped calls.
+     */
+    void onRecordRejected(int heldRecords, int heldBytes, int recordBytes) {
+        mInsertionsSinceFailure = 0;
+        FailurePoint newPoint = new FailurePoint(heldRecords + 1, heldBytes + recordBytes);
+        for (FailurePoint failurePoint : mFailurePoints) {
+            if (failurePoint.isCoveredBy(newPoint.mRecords, newPoint.mBytes)) {
+                return;
+            }
+        }
+        mFailurePoints.removeIf(
+                failurePoint -> newPoint.isCoveredBy(failurePoint.mRecords, failurePoint.mBytes));
+        if (mFailurePoints.size() >= MAX_FAILURE_POINTS) {
+            mFailurePoints.remove(0);
+        }
+        mFailurePoints.add(newPoint);
+    }
+
+    /**
+     * Select the records to offload.
+     *
+     * @param offloadIntents the candidate records, in offload order.
+     * @param byWeight       orders records from the most to the least valuable, see
+     *                       {@link PriorityListManager#getHitsComparator}.
+     * @return The selected records, in offload order.
+     */
+    @NonNull
+    List<OffloadIntentStore.OffloadIntent> plan(
+            @NonNull List<OffloadIntentStore.OffloadIntent> offloadIntents,
+            @NonNull Comparator<OffloadIntentStore.OffloadIntent> byWeight) {
+        if (!hasKnownLimits()) {
+            mLastDroppedRecords = 0;
+            return offloadIntents;
+        }
+        List<OffloadIntentStore.OffloadIntent> candidates =
+                offloadIntents.stream().sorted(byWeight).toList();
+        Set<OffloadIntentStore.OffloadIntent> selected = new HashSet<>();
+        int records = 0;
+        int bytes = 0;
+        for (OffloadIntentStore.OffloadIntent offloadIntent : candidates) {
+            int recordBytes = offloadIntent.mProtocolData.rawOffloadPacket.length;
+            if (isCertainToFail(records + 1, bytes + recordBytes)) {
+                continue;
+            }
+            selected.add(offloadIntent);
+            records++;
+            bytes += recordBytes;
+        }
+        mLastDroppedRecords = offloadIntents.size() - selected.size();
+        return offloadIntents.stream().filter(selected::contains).toList();
+    }
+
+    @NonNull
+    Stats getStats() {
+        return new Stats(mMaxRecords, mMaxBytes, mFailurePoints, mLastDroppedRecords);
+    }
+}
@@ -1,40 +1,75 @@
 package com.android.tv.mdnsoffloadmanager;
 
+import android.os.Binder;
 import android.os.IBinder;
 import android.os.UserHandle;
+import android.util.JsonWriter;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import device.google.atv.mdns_offload.IMdnsOffload;
 import device.google.atv.mdns_offload.IMdnsOffloadManager;
 
 /**
  * Class to store OffloadIntents made by clients and assign record keys.
+ * <p>
+ * Intents are indexed by network interface, owner app id, canonical QNAME and client token, so
+ * that lookups and removals only visit the matching intents rather than the whole store.
  */
 public class OffloadIntentStore {
 
     private static final String TAG = OffloadIntentStore.class.getSimpleName();
 
     private final AtomicInteger mNextKey = new AtomicInteger(1);
-    private final ConcurrentMap<Integer, OffloadIntent> mOffloadIntentsByRecordKey =
-            new ConcurrentHashMap<>();
+
+    // Offload intents are registered on binder threads, all indexes are guarded by mLock.
+    private final Object mLock = new Object();
+    private final Map<Integer, OffloadIntent> mOffloadIntentsByRecordKey = new LinkedHashMap<>();
+    private final Index<String, OffloadIntent> mOffloadIntentsByInterface = new Index<>();
+    private final Index<Integer, OffloadIntent> mOffloadIntentsByAppId = new Index<>();
+    private final Index<IBinder, OffloadIntent> mOffloadIntentsByClientToken = new Index<>();
     // Note that we need to preserve the order of passthrough intents.
-    private final List<PassthroughIntent> mPassthroughIntents = new ArrayList<>();
+    private final Set<PassthroughIntent> mPassthroughIntents = new LinkedHashSet<>();
+    private final Index<String, PassthroughIntent> mPassthroughIntentsByInterface = new Index<>();
+    private final Index<Integer, PassthroughIntent> mPassthroughIntentsByAppId = new Index<>();
+    private final Index<String, PassthroughIntent> mPassthroughIntentsByCanonicalQName =
+            new Index<>();
+    private final Index<IBinder, PassthroughIntent> mPassthroughIntentsByClientToken =
+            new Index<>();
+    // Raw offload packets and their parse, shared by identical offload intents.
+    private final PacketStore mPacketStore = new PacketStore();
 
     private final PriorityListManager mPriorityListManager;
+    // Whether raw offload packets are shrunk by MdnsPacketOptimizer before being stored.
+    private final boolean mIsPacketOptimizationEnabled;
+
+    /**
+     * Intents restored from a snapshot are owned by a placeholder token per app id, until the app
+     * registers its intents again.
+     */
+    private final Map<Integer, IBinder> mRestoredClientTokens = new HashMap<>();
 
     /**
      * Only listed packages may offload data or manage the passthrough list, requests from any other
@@ -42,14 +77,37 @@ public class OffloadIntentStore {
      */
     private final Set<Integer> mAppIdAllowlist = new HashSet<>();
 
-    OffloadIntentStore(@NonNull PriorityListManager priorityListManager) {
+    OffloadIntentStore(
+            @NonNull PriorityListManager priorityListManager, boolean isPacketOptimizationEnabled) {
         mPriorityListManager = priorityListManager;
+        mIsPacketOptimizationEnabled = isPacketOptimizationEnabled;
     }
 
+    /**
+     * Replace the app id allowlist.
+     *
+     * @return The network interfaces holding intents of apps that were added to or removed from
+     * the allowlist, so that only the affected state is refreshed.
+     */
     @WorkerThread
-    void setAppIdAllowlist(Set<Integer> appIds) {
-        mAppIdAllowlist.clear();
-        mAppIdAllowlist.addAll(appIds);
+    AllowlistChange setAppIdAllowlist(Set<Integer> appIds) {
+        synchronized (mLock) {
+            Set<Integer> changedAppIds = new HashSet<>(appIds);
+            changedAppIds.addAll(mAppIdAllowlist);
+            changedAppIds.removeIf(
+                    appId -> appIds.contains(appId) && mAppIdAllowlist.contains(appId));
+            mAppIdAllowlist.clear();
+            mAppIdAllowlist.addAll(appIds);
+
+            AllowlistChange change = new AllowlistChange();
+            for (int appId : changedAppIds) {
+                mOffloadIntentsByAppId.get(appId)
+                        .forEach(intent -> change.mOffloadInterfaces.add(intent.mNetworkInterface));
+                mPassthroughIntentsByAppId.get(appId).forEach(
+                        intent -> change.mPassthroughInterfaces.add(intent.mNetworkInterface));
+            }
+            return change;
+        }
     }
 
     /**
@@ -65,13 +123,56 @@ public class OffloadIntentStore {
             IBinder clientToken,
             int callerUid) {
         int recordKey = mNextKey.getAndIncrement();
-        IMdnsOffload.MdnsProtocolData mdnsProtocolData = convertToMdnsProtocolData(serviceInfo);
-        int priority = mPriorityListManager.getPriority(mdnsProtocolData, recordKey);
+        PacketStore.StoredPacket packet = acquirePacket(serviceInfo);
+        int priority = mPriorityListManager.getPriority(packet.mCanonicalQNames, recordKey);
         int appId = UserHandle.getAppId(callerUid);
-        OffloadIntent offloadIntent = new OffloadIntent(
-                networkInterface, recordKey, mdnsProtocolData, clientToken, priority, appId);
-        mOffloadIntentsByRecordKey.put(recordKey, offloadIntent);
-        return offloadIntent;
+        synchronized (mLock) {
+            // A registered intent replaces the same intent restored from a snapshot, and takes
+            // its priority so that the vendor service keeps the record in place.
+            IBinder restoredClientToken = mRestoredClientTokens.get(appId);
+            if (restoredClientToken != null) {
+                for (OffloadIntent restored :
+                        List.copyOf(mOffloadIntentsByClientToken.get(restoredClientToken))) {
+                    if (restored.mNetworkInterface.equals(networkInterface)
+                            && restored.mProtocolData == packet.mProtocolData) {
+                        removeOffloadIntentLocked(restored);
+                        priority = restored.mPriority;
+                        break;
+                    }
+                }
+            }
+            OffloadIntent offloadIntent = new OffloadIntent(networkInterface, recordKey, packet,
+                    clientToken, priority, appId, Objects.toString(serviceInfo.serviceType, ""));
+            addOffloadIntentLocked(offloadIntent);
+            return offloadIntent;
+        }
+    }
+
+    /**
+     * Take a reference to the stored packet identical to the given one, or parse and store it if
+     * there is none.
+     */
+    private PacketStore.StoredPacket acquirePacket(
+            IMdnsOffloadManager.OffloadServiceInfo serviceInfo) {
+        // The optimizer is deterministic, so identical packets are still shared once optimized.
+        byte[] rawOffloadPacket = mIsPacketOptimizationEnabled
+                ? MdnsPacketOptimizer.optimize(serviceInfo.rawOffloadPacket)
+                : serviceInfo.rawOffloadPacket;
+        long contentHash = PacketStore.contentHash(rawOffloadPacket);
+        synchronized (mLock) {
+            PacketStore.StoredPacket packet = mPacketStore.acquire(contentHash, rawOffloadPacket);
+            if (packet != null) {
+                return packet;
+            }
+        }
+        // Parsed outside of the lock, the packet store resolves concurrent registrations.
+        MdnsPacketParser.ParsedPacket parsedPacket = MdnsPacketParser.parseResponsePacket(
+                rawOffloadPacket, mPriorityListManager.getNameTable());
+        IMdnsOffload.MdnsProtocolData mdnsProtocolData =
+                convertToMdnsProtocolData(rawOffloadPacket, parsedPacket);
+        synchronized (mLock) {
+            return mPacketStore.add(contentHash, mdnsProtocolData, parsedPacket.mCanonicalNames);
+        }
     }
 
     /**
@@ -79,12 +180,15 @@ public class OffloadIntentStore {
      */
     @WorkerThread
     Collection<OffloadIntent> getOffloadIntentsForInterface(String networkInterface) {
-        return mOffloadIntentsByRecordKey
-                .values()
-                .stream()
-                .filter(intent -> intent.mNetworkInterface.equals(networkInterface)
-                        && mAppIdAllowlist.contains(intent.mOwnerAppId))
-                .toList();
+        synchronized (mLock) {
+            List<OffloadIntent> offloadIntents = new ArrayList<>();
+            for (OffloadIntent intent : mOffloadIntentsByInterface.get(networkInterface)) {
+                if (mAppIdAllowlist.contains(intent.mOwnerAppId)) {
+                    offloadIntents.add(intent);
+                }
+            }
+            return offloadIntents;
+        }
     }
 
     /**
@@ -94,24 +198,21 @@ public class OffloadIntentStore {
      */
     @WorkerThread
     OffloadIntent getAndRemoveOffloadIntent(int recordKey, IBinder clientToken) {
-        OffloadIntent offloadIntent = mOffloadIntentsByRecordKey.get(recordKey);
-        if (offloadIntent == null) {
-            Log.e(TAG, "Failed to remove protocol responses, bad record key {"
-                    + recordKey + "}.");
-            return null;
-        }
-        if (!offloadIntent.mClientToken.equals(clientToken)) {
-            Log.e(TAG, "Failed to remove protocol messages, bad client token {"
-                    + clientToken + "}.");
-            return null;
+        synchronized (mLock) {
+            OffloadIntent offloadIntent = mOffloadIntentsByRecordKey.get(recordKey);
+            if (offloadIntent == null) {
+                Log.e(TAG, "Failed to remove protocol responses, bad record key {"
+                        + recordKey + "}.");
+                return null;
+            }
+            if (!offloadIntent.mClientToken.equals(clientToken)) {
+                Log.e(TAG, "Failed to remove protocol messages, bad client token {"
+                        + clientToken + "}.");
+                return null;
+            }
+            removeOffloadIntentLocked(offloadIntent);
+            return offloadIntent;
         }
-        mOffloadIntentsByRecordKey.remove(recordKey);
-        return offloadIntent;
-    }
-
-    @WorkerThread
-    Collection<Integer> getRecordKeys() {
-        return mOffloadIntentsByRecordKey.keySet();
     }
 
     /**
@@ -132,7 +233,20 @@ public class OffloadIntentStore {
         int appId = UserHandle.getAppId(callerUid);
         PassthroughIntent passthroughIntent = new PassthroughIntent(
                 networkInterface, qname, canonicalQName, clientToken, priority, appId);
-        mPassthroughIntents.add(passthroughIntent);
+        synchronized (mLock) {
+            // A registered intent replaces the same intent restored from a snapshot.
+            IBinder restoredClientToken = mRestoredClientTokens.get(appId);
+            if (restoredClientToken != null) {
+                for (PassthroughIntent restored :
+                        List.copyOf(mPassthroughIntentsByCanonicalQName.get(canonicalQName))) {
+                    if (restored.mClientToken == restoredClientToken
+                            && restored.mNetworkInterface.equals(networkInterface)) {
+                        removePassthroughIntentLocked(restored);
+                    }
+                }
+            }
+            addPassthroughIntentLocked(passthroughIntent);
+        }
         return passthroughIntent;
     }
 
@@ -141,11 +255,15 @@ public class OffloadIntentStore {
      */
     @WorkerThread
     List<PassthroughIntent> getPassthroughIntentsForInterface(String networkInterface) {
-        return mPassthroughIntents
-                .stream()
-                .filter(intent -> intent.mNetworkInterface.equals(networkInterface)
-                        && mAppIdAllowlist.contains(intent.mOwnerAppId))
-                .toList();
+        synchronized (mLock) {
+            List<PassthroughIntent> ptIntents = new ArrayList<>();
+            for (PassthroughIntent intent : mPassthroughIntentsByInterface.get(networkInterface)) {
+                if (mAppIdAllowlist.contains(intent.mOwnerAppId)) {
+                    ptIntents.add(intent);
+                }
+            }
+            return ptIntents;
+        }
     }
 
     /**
@@ -156,45 +274,335 @@ public class OffloadIntentStore {
     @WorkerThread
     boolean removePassthroughIntent(String qname, IBinder clientToken) {
         String canonicalQName = mPriorityListManager.canonicalQName(qname);
-        boolean removed = mPassthroughIntents.removeIf(
-                pt -> pt.mCanonicalQName.equals(canonicalQName)
-                        && pt.mClientToken.equals(clientToken));
-        if (!removed) {
-            Log.e(TAG, "Failed to remove passthrough intent, bad QNAME or client token.");
-            return false;
+        synchronized (mLock) {
+            List<PassthroughIntent> removed = new ArrayList<>();
+            for (PassthroughIntent pt : mPassthroughIntentsByCanonicalQName.get(canonicalQName)) {
+                if (pt.mClientToken.equals(clientToken)) {
+                    removed.add(pt);
+                }
+            }
+            if (removed.isEmpty()) {
+                Log.e(TAG, "Failed to remove passthrough intent, bad QNAME or client token.");
+                return false;
+            }
+            removed.forEach(this::removePassthroughIntentLocked);
+            return true;
+        }
+    }
+
+    /**
+     * Remove all offload and passthrough intents registered with the given client token.
+     *
+     * @return The network interfaces the removed intents were registered on.
+     */
+    @WorkerThread
+    Set<String> removeIntentsOfClient(IBinder clientToken) {
+        synchronized (mLock) {
+            Set<String> affectedInterfaces = new HashSet<>();
+            for (OffloadIntent intent :
+                    List.copyOf(mOffloadIntentsByClientToken.get(clientToken))) {
+                affectedInterfaces.add(intent.mNetworkInterface);
+                removeOffloadIntentLocked(intent);
+            }
+            for (PassthroughIntent intent :
+                    List.copyOf(mPassthroughIntentsByClientToken.get(clientToken))) {
+                affectedInterfaces.add(intent.mNetworkInterface);
+                removePassthroughIntentLocked(intent);
+            }
+            return affectedInterfaces;
+        }
+    }
+
+    /**
+     * Whether any offload or passthrough intent is registered with the given client token.
+     */
+    boolean hasIntentsOfClient(IBinder clientToken) {
+        synchronized (mLock) {
+            return !mOffloadIntentsByClientToken.get(clientToken).isEmpty()
+                    || !mPassthroughIntentsByClientToken.get(clientToken).isEmpty();
+        }
+    }
+
+    /**
+     * Register the intents of a snapshot, taken before the service restarted. Restored intents are
+     * owned by a placeholder token per app id, and are replaced by the intents the app registers
+     * again.
+     * <p>
+     * Apps may register intents before the snapshot is restored, the entries matching one of them
+     * are skipped.
+     */
+    @WorkerThread
+    void restoreSnapshot(OffloadSnapshot snapshot) {
+        synchronized (mLock) {
+            // Each registered intent stands for a single entry.
+            Set<OffloadIntent> registeredOffloadIntents =
+                    Collections.newSetFromMap(new IdentityHashMap<>());
+            for (OffloadSnapshot.OffloadEntry entry : snapshot.mOffloadEntries) {
+                byte[] rawOffloadPacket = entry.mProtocolData.rawOffloadPacket;
+                long contentHash = PacketStore.contentHash(rawOffloadPacket);
+                PacketStore.StoredPacket packet =
+                        mPacketStore.acquire(contentHash, rawOffloadPacket);
+                if (packet == null) {
+                    List<String> canonicalQNames = entry.mCanonicalQNames
+                            .stream()
+                            .map(mPriorityListManager::canonicalQName)
+                            .toList();
+                    packet = mPacketStore.add(contentHash, entry.mProtocolData, canonicalQNames);
+                }
+                OffloadIntent registered = findRegisteredOffloadIntentLocked(
+                        entry, packet.mProtocolData, registeredOffloadIntents);
+                if (registered != null) {
+                    registeredOffloadIntents.add(registered);
+                    mPacketStore.release(contentHash, packet.mProtocolData);
+                    continue;
+                }
+                int recordKey = mNextKey.getAndIncrement();
+                addOffloadIntentLocked(new OffloadIntent(
+                        entry.mNetworkInterface,
+                        recordKey,
+                        packet,
+                        getRestoredClientTokenLocked(entry.mOwnerAppId),
+                        mPriorityListManager.getPriority(packet.mCanonicalQNames, recordKey),
+                        entry.mOwnerAppId,
+                        ""));
+            }
+            for (OffloadSnapshot.PassthroughEntry entry : snapshot.mPassthroughEntries) {
+                String canonicalQName = mPriorityListManager.canonicalQName(entry.mQName);
+                if (hasRegisteredPassthroughIntentLocked(entry, canonicalQName)) {
+                    continue;
+                }
+                addPassthroughIntentLocked(new PassthroughIntent(
+                        entry.mNetworkInterface,
+                        entry.mQName,
+                        canonicalQName,
+                        getRestoredClientTokenLocked(entry.mOwnerAppId),
+                        mPriorityListManager.getPriority(canonicalQName, 0),
+                        entry.mOwnerAppId));
+            }
+        }
+    }
+
+    /**
+     * Take a snapshot of all intents, including restored ones, in priority order.
+     */
+    @WorkerThread
+    OffloadSnapshot takeSnapshot() {
+        synchronized (mLock) {
+            List<OffloadSnapshot.OffloadEntry> offloadEntries = new ArrayList<>();
+            // Record keys are assigned again in snapshot order on restore.
+            List<OffloadIntent> offloadIntents = mOffloadIntentsByRecordKey.values()
+                    .stream()
+                    .sorted(Comparator.comparingInt(intent -> intent.mPriority))
+                    .toList();
+            for (OffloadIntent intent : offloadIntents) {
+                offloadEntries.add(new OffloadSnapshot.OffloadEntry(
+                        intent.mNetworkInterface,
+                        intent.mOwnerAppId,
+                        intent.mProtocolData,
+                        intent.mCanonicalQNames));
+            }
+            List<OffloadSnapshot.PassthroughEntry> passthroughEntries = new ArrayList<>();
+            for (PassthroughIntent intent : mPassthroughIntents) {
+                passthroughEntries.add(new OffloadSnapshot.PassthroughEntry(
+                        intent.mNetworkInterface, intent.mOwnerAppId, intent.mOriginalQName));
+            }
+            return new OffloadSnapshot(offloadEntries, passthroughEntries);
+        }
+    }
+
+    /**
+     * Whether intents restored from a snapshot are still held for the given app.
+     */
+    boolean hasRestoredIntents(int appId) {
+        synchronized (mLock) {
+            return mRestoredClientTokens.containsKey(appId);
+        }
+    }
+
+    /**
+     * Remove the intents restored from a snapshot for the given app, i.e. the intents the app did
+     * not register again.
+     *
+     * @return The network interfaces the removed intents were registered on.
+     */
+    @WorkerThread
+    Set<String> removeRestoredIntents(int appId) {
+        synchronized (mLock) {
+            IBinder restoredClientToken = mRestoredClientTokens.remove(appId);
+            if (restoredClientToken == null) {
+                return Collections.emptySet();
+            }
+            return removeIntentsOfClient(restoredClientToken);
+        }
+    }
+
+    /**
+     * Remove all intents restored from a snapshot.
+     *
+     * @return The network interfaces the removed intents were registered on.
+     */
+    @WorkerThread
+    Set<String> removeAllRestoredIntents() {
+        synchronized (mLock) {
+            Set<String> affectedInterfaces = new HashSet<>();
+            for (int appId : List.copyOf(mRestoredClientTokens.keySet())) {
+                affectedInterfaces.addAll(removeRestoredIntents(appId));
+            }
+            return affectedInterfaces;
+        }
+    }
+
+    @Nullable
+    private OffloadIntent findRegisteredOffloadIntentLocked(OffloadSnapshot.OffloadEntry entry,
+            IMdnsOffload.MdnsProtocolData protocolData, Set<OffloadIntent> excluded) {
+        IBinder restoredClientToken = mRestoredClientTokens.get(entry.mOwnerAppId);
+        for (OffloadIntent intent : mOffloadIntentsByAppId.get(entry.mOwnerAppId)) {
+            if (intent.mClientToken != restoredClientToken
+                    && intent.mNetworkInterface.equals(entry.mNetworkInterface)
+                    && intent.mProtocolData == protocolData
+                    && !excluded.contains(intent)) {
+                return intent;
+            }
         }
-        return true;
+        return null;
+    }
+
+    private boolean hasRegisteredPassthroughIntentLocked(
+            OffloadSnapshot.PassthroughEntry entry, String canonicalQName) {
+        IBinder restoredClientToken = mRestoredClientTokens.get(entry.mOwnerAppId);
+        for (PassthroughIntent intent : mPassthroughIntentsByCanonicalQName.get(canonicalQName)) {
+            if (intent.mClientToken != restoredClientToken
+                    && intent.mOwnerAppId == entry.mOwnerAppId
+                    && intent.mNetworkInterface.equals(entry.mNetworkInterface)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private IBinder getRestoredClientTokenLocked(int appId) {
+        return mRestoredClientTokens.computeIfAbsent(appId, key -> new Binder());
     }
 
-    private static IMdnsOffload.MdnsProtocolData convertToMdnsProtocolData(
-            IMdnsOffloadManager.OffloadServiceInfo serviceData) {
+    private void addOffloadIntentLocked(OffloadIntent intent) {
+        mOffloadIntentsByRecordKey.put(intent.mRecordKey, intent);
+        mOffloadIntentsByInterface.add(intent.mNetworkInterface, intent);
+        mOffloadIntentsByAppId.add(intent.mOwnerAppId, intent);
+        mOffloadIntentsByClientToken.add(intent.mClientToken, intent);
+    }
+
+    private void addPassthroughIntentLocked(PassthroughIntent intent) {
+        mPassthroughIntents.add(intent);
+        mPassthroughIntentsByInterface.add(intent.mNetworkInterface, intent);
+        mPassthroughIntentsByAppId.add(intent.mOwnerAppId, intent);
+        mPassthroughIntentsByCanonicalQName.add(intent.mCanonicalQName, intent);
+        mPassthroughIntentsByClientToken.add(intent.mClientToken, intent);
+    }
+
+    private void removeOffloadIntentLocked(OffloadIntent intent) {
+        mOffloadIntentsByRecordKey.remove(intent.mRecordKey);
+        mOffloadIntentsByInterface.remove(intent.mNetworkInterface, intent);
+        mOffloadIntentsByAppId.remove(intent.mOwnerAppId, intent);
+        mOffloadIntentsByClientToken.remove(intent.mClientToken, intent);
+        mPacketStore.release(intent.mContentHash, intent.mProtocolData);
+    }
+
+    private void removePassthroughIntentLocked(PassthroughIntent intent) {
+        mPassthroughIntents.remove(intent);
+        mPassthroughIntentsByInterface.remove(intent.mNetworkInterface, intent);
+        mPassthroughIntentsByAppId.remove(intent.mOwnerAppId, intent);
+        mPassthroughIntentsByCanonicalQName.remove(intent.mCanonicalQName, intent);
+        mPassthroughIntentsByClientToken.remove(intent.mClientToken, intent);
+    }
+
+    /**
+     * Convert a parsed packet to the protocol data handed to the vendor service.
+     */
+    static IMdnsOffload.MdnsProtocolData convertToMdnsProtocolData(
+            byte[] rawOffloadPacket, MdnsPacketParser.ParsedPacket parsedPacket) {
         IMdnsOffload.MdnsProtocolData data = new IMdnsOffload.MdnsProtocolData();
-        data.rawOffloadPacket = serviceData.rawOffloadPacket;
-        data.matchCriteriaList = MdnsPacketParser.extractMatchCriteria(
-                serviceData.rawOffloadPacket);
+        data.rawOffloadPacket = rawOffloadPacket;
+        data.matchCriteriaList = new ArrayList<>(parsedPacket.mMatchCriteria.size());
+        for (MdnsPacketParser.MatchCriteria parsedCriteria : parsedPacket.mMatchCriteria) {
+            IMdnsOffload.MdnsProtocolData.MatchCriteria criteria =
+                    new IMdnsOffload.MdnsProtocolData.MatchCriteria();
+            criteria.type = parsedCriteria.type;
+            criteria.nameOffset = parsedCriteria.nameOffset;
+            data.matchCriteriaList.add(criteria);
+        }
         return data;
     }
 
     @WorkerThread
     void dump(PrintWriter writer) {
-        writer.println("OffloadIntentStore:");
-        writer.println("offload intents:");
-        mOffloadIntentsByRecordKey.values()
-                .forEach(intent -> writer.println("* %s".formatted(intent)));
-        writer.println("passthrough intents:");
-        mPassthroughIntents.forEach(intent -> writer.println("* %s".formatted(intent)));
-        writer.println();
+        synchronized (mLock) {
+            writer.println("OffloadIntentStore:");
+            writer.println("offload intents:");
+            mOffloadIntentsByRecordKey.values()
+                    .forEach(intent -> writer.println("* %s".formatted(intent)));
+            writer.println("passthrough intents:");
+            mPassthroughIntents.forEach(intent -> writer.println("* %s".formatted(intent)));
+            writer.println();
+        }
+    }
+
+    /**
+     * Write the offload and passthrough intents as JSON, into the object being written.
+     */
+    void writeJson(JsonWriter writer) throws IOException {
+        synchronized (mLock) {
+            writer.name("offloadIntents").beginArray();
+            for (OffloadIntent intent : mOffloadIntentsByRecordKey.values()) {
+                writer.beginObject();
+                writer.name("networkInterface").value(intent.mNetworkInterface);
+                writer.name("recordKey").value(intent.mRecordKey);
+                writer.name("priority").value(intent.mPriority);
+                writer.name("ownerAppId").value(intent.mOwnerAppId);
+                writer.name("serviceType").value(intent.mServiceType);
+                writer.name("packetBytes").value(intent.mProtocolData.rawOffloadPacket.length);
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.name("passthroughIntents").beginArray();
+            for (PassthroughIntent intent : mPassthroughIntents) {
+                writer.beginObject();
+                writer.name("networkInterface").value(intent.mNetworkInterface);
+                writer.name("qname").value(intent.mOriginalQName);
+                writer.name("canonicalQName").value(intent.mCanonicalQName);
+                writer.name("priority").value(intent.mPriority);
+                writer.name("ownerAppId").value(intent.mOwnerAppId);
+                writer.endObject();
+            }
+            writer.endArray();
+        }
     }
 
     /**
      * Create a detailed dump of the OffloadIntents, including a hexdump of the raw packets.
+     * Intents sharing a packet are dumped together.
      */
     @WorkerThread
     void dumpProtocolData(PrintWriter writer) {
         writer.println("Protocol data dump:");
-        mOffloadIntentsByRecordKey.values().forEach(intent -> {
-            writer.println("mRecordKey=%d".formatted(intent.mRecordKey));
-            IMdnsOffload.MdnsProtocolData data = intent.mProtocolData;
+        List<List<OffloadIntent>> intentsByPacket = new ArrayList<>();
+        synchronized (mLock) {
+            mPacketStore.dump(writer);
+            Map<IMdnsOffload.MdnsProtocolData, List<OffloadIntent>> groups =
+                    new IdentityHashMap<>();
+            for (OffloadIntent intent : mOffloadIntentsByRecordKey.values()) {
+                groups.computeIfAbsent(intent.mProtocolData, data -> {
+                    List<OffloadIntent> group = new ArrayList<>();
+                    intentsByPacket.add(group);
+                    return group;
+                }).add(intent);
+            }
+        }
+        intentsByPacket.forEach(intents -> {
+            writer.println("mRecordKey=%s".formatted(intents
+                    .stream()
+                    .map(intent -> String.valueOf(intent.mRecordKey))
+                    .collect(Collectors.joining(", "))));
+            IMdnsOffload.MdnsProtocolData data = intents.get(0).mProtocolData;
             writer.println("match criteria:");
             data.matchCriteriaList.forEach(criteria ->
                     writer.println("* %s".formatted(formatMatchCriteria(criteria))));
@@ -211,24 +619,63 @@ public class OffloadIntentStore {
         final String mNetworkInterface;
         final int mRecordKey;
         final IMdnsOffload.MdnsProtocolData mProtocolData;
+        // Interned canonical RRNAMEs, aligned with mProtocolData.matchCriteriaList.
+        final List<String> mCanonicalQNames;
+        // Hash of the raw offload packet, used to match records already held by the vendor.
+        final long mContentHash;
         final IBinder mClientToken;
         final int mPriority; // Lower values take precedence.
         final int mOwnerAppId;
+        // Service type the packet was registered for, empty for intents restored from a snapshot.
+        final String mServiceType;
+        // The intents whose packets were merged into this one, empty for registered intents.
+        final List<OffloadIntent> mMergedIntents;
 
         private OffloadIntent(
                 String networkInterface,
                 int recordKey,
-                IMdnsOffload.MdnsProtocolData protocolData,
+                PacketStore.StoredPacket packet,
                 IBinder clientToken,
                 int priority,
-                int ownerAppId
+                int ownerAppId,
+                String serviceType
         ) {
             mNetworkInterface = networkInterface;
             mRecordKey = recordKey;
-            mProtocolData = protocolData;
+            // Shared with the identical offload intents.
+            mProtocolData = packet.mProtocolData;
+            mCanonicalQNames = packet.mCanonicalQNames;
+            mContentHash = packet.mContentHash;
             mClientToken = clientToken;
             mPriority = priority;
             mOwnerAppId = ownerAppId;
+            mServiceType = serviceType;
+            mMergedIntents = List.of();
+        }
+
+        /**
+         * An intent offloading the answers of the given intents in a single packet, see
+         * {@link OffloadPacketMerger}. It takes the record key and the priority of the first one.
+         */
+        OffloadIntent(
+                List<OffloadIntent> mergedIntents,
+                IMdnsOffload.MdnsProtocolData protocolData,
+                List<String> canonicalQNames) {
+            OffloadIntent first = mergedIntents.get(0);
+            mNetworkInterface = first.mNetworkInterface;
+            mRecordKey = first.mRecordKey;
+            mProtocolData = protocolData;
+            mCanonicalQNames = canonicalQNames;
+            mContentHash = PacketStore.contentHash(protocolData.rawOffloadPacket);
+            mClientToken = first.mClientToken;
+            mPriority = first.mPriority;
+            mOwnerAppId = first.mOwnerAppId;
+            mServiceType = first.mServiceType;
+            mMergedIntents = mergedIntents;
+        }
+
+        boolean isMerged() {
+            return !mMergedIntents.isEmpty();
         }
 
         @Override
@@ -283,6 +730,38 @@ public class OffloadIntentStore {
         }
     }
 
+    /**
+     * The network interfaces holding intents whose allowlist status changed, by kind of intent.
+     */
+    static class AllowlistChange {
+        final Set<String> mOffloadInterfaces = new HashSet<>();
+        final Set<String> mPassthroughInterfaces = new HashSet<>();
+    }
+
+    /**
+     * Multimap of intents, keeping the insertion order within each key. Intents are compared by
+     * identity.
+     */
+    private static class Index<K, V> {
+        private final Map<K, Set<V>> mBuckets = new HashMap<>();
+
+        void add(K key, V value) {
+            mBuckets.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(value);
+        }
+
+        void remove(K key, V value) {
+            Set<V> bucket = mBuckets.get(key);
+            if (bucket != null && bucket.remove(value) && bucket.isEmpty()) {
+                mBuckets.remove(key);
+            }
+        }
+
+        @NonNull
+        Set<V> get(K key) {
+            return mBuckets.getOrDefault(key, Collections.emptySet());
+        }
+    }
+
     private String formatMatchCriteria(IMdnsOffload.MdnsProtocolData.MatchCriteria matchCriteria) {
         return "MatchCriteria{type=%d, nameOffset=%d}"
                 .formatted(matchCriteria.type, matchCriteria.nameOffset);
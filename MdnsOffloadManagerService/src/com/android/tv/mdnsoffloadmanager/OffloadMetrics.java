@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects the hit and miss counters of the vendor service over standby periods.
+ * <p>
+ * Counters are retrieved when the device becomes interactive, which ends a standby period. The
+ * last {@link #HISTORY_SIZE} periods are kept for each offloaded record, identified by its
+ * network interface and qname, for each network interface and for the whole device. Rates are
+ * derived from these histories. The vendor service only reports misses for the whole device, so
+ * the miss ratio is not broken down by network interface.
+ * <p>
+ * Interface offload managers report hits from their own thread, see {@link InterfaceLanes}, so
+ * methods are synchronized.
+ */
+class OffloadMetrics {
+
+    static final int HISTORY_SIZE = 24;
+    static final int MAX_TRACKED_RECORDS = 128;
+    static final byte EXPORT_VERSION = 1;
+    private static final double MS_PER_HOUR = 3_600_000d;
+    private static final long UNKNOWN = -1;
+
+    /**
+     * Counts observed over the last standby periods.
+     */
+    private static class History {
+        private final long[] mDurationsMs = new long[HISTORY_SIZE];
+        private final long[] mCounts = new long[HISTORY_SIZE];
+        private int mNext = 0;
+        private int mSize = 0;
+
+        void add(long durationMs, long count) {
+            mDurationsMs[mNext] = durationMs;
+            mCounts[mNext] = count;
+            mNext = (mNext + 1) % HISTORY_SIZE;
+            mSize = Math.min(mSize + 1, HISTORY_SIZE);
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        long sumDurationsMs() {
+            long sum = 0;
+            for (int index = 0; index < mSize; index++) {
+                sum += mDurationsMs[index];
+            }
+            return sum;
+        }
+
+        long sumCounts() {
+            long sum = 0;
+            for (int index = 0; index < mSize; index++) {
+                sum += mCounts[index];
+            }
+            return sum;
+        }
+
+        double countPerHour() {
+            long durationMs = sumDurationsMs();
+            return durationMs == 0 ? 0 : sumCounts() * MS_PER_HOUR / durationMs;
+        }
+    }
+
+    /**
+     * Metrics of a record offloaded on a network interface. Records sharing a name, e.g. the SRV
+     * and TXT records of a service, have their own metrics.
+     */
+    private static class RecordMetrics {
+        final String mNetworkInterface;
+        final int mRecordKey;
+        final History mHits = new History();
+        // A label for dumps, the name of the record when it was last reported.
+        String mQName;
+        long mPendingHits = UNKNOWN;
+
+        RecordMetrics(String networkInterface, int recordKey) {
+            mNetworkInterface = networkInterface;
+            mRecordKey = recordKey;
+        }
+    }
+
+    private final LongSupplier mElapsedRealtime;
+    private final History mHits = new History();
+    private final History mMisses = new History();
+    private final Map<String, History> mHitsByInterface = new TreeMap<>();
+    private final Map<String, Long> mPendingHitsByInterface = new HashMap<>();
+    // By network interface and record key, least recently updated first, the oldest records are
+    // evicted first.
+    private final LinkedHashMap<String, RecordMetrics> mRecordMetrics =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, RecordMetrics> eldest) {
+                    return size() > MAX_TRACKED_RECORDS;
+                }
+            };
+    private long mStandbyStartMs = UNKNOWN;
+
+    OffloadMetrics(@NonNull LongSupplier elapsedRealtime) {
+        mElapsedRealtime = elapsedRealtime;
+    }
+
+    /**
+     * Start a standby period, i.e. the device is not interactive and offload is enabled.
+     */
+    synchronized void onStandbyStarted() {
+        mStandbyStartMs = mElapsedRealtime.getAsLong();
+    }
+
+    /**
+     * Record the hits of an offloaded record during the current standby period.
+     */
+    synchronized void onRecordHits(
+            @NonNull String networkInterface, int recordKey, @NonNull String qName, int hits) {
+        RecordMetrics recordMetrics = mRecordMetrics.computeIfAbsent(
+                networkInterface + " " + recordKey,
+                key -> new RecordMetrics(networkInterface, recordKey));
+        recordMetrics.mQName = qName;
+        recordMetrics.mPendingHits = Math.max(recordMetrics.mPendingHits, 0) + hits;
+        mPendingHitsByInterface.merge(networkInterface, (long) hits, Long::sum);
+    }
+
+    /**
+     * End the current standby period, committing the hits recorded since it started.
+     *
+     * @param misses the queries the vendor service could not answer, or a negative value if
+     *               they are unknown.
+     */
+    synchronized void onStandbyEnded(int misses) {
+        long durationMs = mStandbyStartMs == UNKNOWN
+                ? 0 : mElapsedRealtime.getAsLong() - mStandbyStartMs;
+        mStandbyStartMs = UNKNOWN;
+        long hits = 0;
+        for (Map.Entry<String, Long> entry : mPendingHitsByInterface.entrySet()) {
+            mHitsByInterface.computeIfAbsent(entry.getKey(), key -> new History())
+                    .add(durationMs, entry.getValue());
+            hits += entry.getValue();
+        }
+        mPendingHitsByInterface.clear();
+        for (RecordMetrics recordMetrics : mRecordMetrics.values()) {
+            if (recordMetrics.mPendingHits != UNKNOWN) {
+                recordMetrics.mHits.add(durationMs, recordMetrics.mPendingHits);
+                recordMetrics.mPendingHits = UNKNOWN;
+            }
+        }
+        mHits.add(durationMs, hits);
+        if (misses >= 0) {
+            mMisses.add(durationMs, misses);
+        }
+    }
+
+    /**
+     * Ratio of the queries the vendor service could not answer, over the last standby periods.
+     */
+    synchronized double getMissRatio() {
+        long misses = mMisses.sumCounts();
+        long queries = misses + mHits.sumCounts();
+        return queries == 0 ? 0 : (double) misses / queries;
+    }
+
+    /**
+     * Serialize the metrics in a compact binary form, to be collected from a fleet of devices.
+     */
+    @NonNull
+    synchronized byte[] export() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(EXPORT_VERSION);
+            out.writeShort(mHits.size());
+            out.writeLong(mHits.sumDurationsMs());
+            out.writeLong(mHits.sumCounts());
+            out.writeLong(mMisses.sumCounts());
+            out.writeShort(mHitsByInterface.size());
+            for (Map.Entry<String, History> entry : mHitsByInterface.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().sumDurationsMs());
+                out.writeLong(entry.getValue().sumCounts());
+            }
+            out.writeShort(mRecordMetrics.size());
+            for (RecordMetrics recordMetrics : mRecordMetrics.values()) {
+                out.writeUTF(recordMetrics.mNetworkInterface);
+                out.writeUTF(recordMetrics.mQName);
+                out.writeInt(recordMetrics.mRecordKey);
+                out.writeLong(recordMetrics.mHits.sumDurationsMs());
+                out.writeLong(recordMetrics.mHits.sumCounts());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("OffloadMetrics:");
+        writer.println("standby periods=%d, standby hours=%.2f, hits=%d, misses=%d, miss ratio=%.2f"
+                .formatted(mHits.size(), mHits.sumDurationsMs() / MS_PER_HOUR,
+                        mHits.sumCounts(), mMisses.sumCounts(), getMissRatio()));
+        mHitsByInterface.forEach((networkInterface, history) ->
+                writer.println("* %s: hits=%d, hits per standby hour=%.2f"
+                        .formatted(networkInterface, history.sumCounts(),
+                                history.countPerHour())));
+        mRecordMetrics.values().forEach(recordMetrics ->
+                writer.println("* %s %s (mRecordKey=%d): hits=%d, hits per standby hour=%.2f"
+                        .formatted(recordMetrics.mNetworkInterface, recordMetrics.mQName,
+                                recordMetrics.mRecordKey, recordMetrics.mHits.sumCounts(),
+                                recordMetrics.mHits.countPerHour())));
+        writer.println();
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import device.google.atv.mdns_offload.IMdnsOffload;
+
+/**
+ * Merges the packets of offload intents of the same service type into larger packets, so that
+ * they take a single protocol response slot on the vendor service. A query matching any answer
+ * of a merged packet is answered with all of its answers, which is why only answers of the same
+ * service type are merged.
+ * <p>
+ * Intents are merged in offload order, into packets of at most the configured size. A merged
+ * intent takes the place of its first intent in the offload order, and keeps the intents it was
+ * merged from so that hit counters can be attributed to their record keys. Removing an intent
+ * changes the merged packet, which is then written again.
+ * <p>
+ * Merged packets are kept until the next merge, so that unchanged groups are not encoded and
+ * parsed again on every refresh.
+ */
+@WorkerThread
+class OffloadPacketMerger {
+
+    private static final String TAG = OffloadPacketMerger.class.getSimpleName();
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * Counters of the last merge, published for dumps.
+     */
+    static final class Stats {
+        final int mMaxPacketBytes;
+        final int mMergedIntents;
+        final int mMergedPackets;
+
+        Stats(int maxPacketBytes, int mergedIntents, int mergedPackets) {
+            mMaxPacketBytes = maxPacketBytes;
+            mMergedIntents = mergedIntents;
+            mMergedPackets = mergedPackets;
+        }
+
+        void dump(PrintWriter writer) {
+            if (mMaxPacketBytes <= 0) {
+                return;
+            }
+            writer.println("packet merging: maxBytes=%d, merged records=%d, merged packets=%d"
+                    .formatted(mMaxPacketBytes, mMergedIntents, mMergedPackets));
+        }
+    }
+
+    /**
+     * The packets of a group of intents, compared by identity. Identical intents share their
+     * packet, see {@link PacketStore}.
+     */
+    private static final class PacketGroup {
+        final List<IMdnsOffload.MdnsProtocolData> mPackets;
+
+        PacketGroup(List<OffloadIntentStore.OffloadIntent> offloadIntents) {
+            mPackets = offloadIntents.stream().map(intent -> intent.mProtocolData).toList();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PacketGroup)) {
+                return false;
+            }
+            List<IMdnsOffload.MdnsProtocolData> otherPackets = ((PacketGroup) other).mPackets;
+            if (mPackets.size() != otherPackets.size()) {
+                return false;
+            }
+            for (int index = 0; index < mPackets.size(); index++) {
+                if (mPackets.get(index) != otherPackets.get(index)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 1;
+            for (IMdnsOffload.MdnsProtocolData packet : mPackets) {
+                hash = 31 * hash + System.identityHashCode(packet);
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * The merged packet of a group.
+     */
+    private static final class MergedPacket {
+        final IMdnsOffload.MdnsProtocolData mProtocolData;
+        final List<String> mCanonicalQNames;
+
+        MergedPacket(IMdnsOffload.MdnsProtocolData protocolData, List<String> canonicalQNames) {
+            mProtocolData = protocolData;
+            mCanonicalQNames = canonicalQNames;
+        }
+    }
+
+    private final int mMaxPacketBytes;
+    private final MdnsNameTable mNameTable;
+    // Merged packets of the last merge, null for groups that could not be merged.
+    private Map<PacketGroup, MergedPacket> mMergedPackets = new HashMap<>();
+    private int mLastMergedIntents = 0;
+    private int mLastMergedPackets = 0;
+
+    /**
+     * @param maxPacketBytes the maximum size of merged packets, 0 disables merging.
+     */
+    OffloadPacketMerger(int maxPacketBytes, @NonNull MdnsNameTable nameTable) {
+        mMaxPacketBytes = maxPacketBytes;
+        mNameTable = nameTable;
+    }
+
+    /**
+     * Merge the given intents.
+     *
+     * @param offloadIntents the intents to offload, in offload order, without identical packets.
+     * @return The intents to offload, in offload order, where merged intents replace the intents
+     * they were merged from.
+     */
+    @NonNull
+    List<OffloadIntentStore.OffloadIntent> merge(
+            @NonNull List<OffloadIntentStore.OffloadIntent> offloadIntents) {
+        if (mMaxPacketBytes <= 0) {
+            return offloadIntents;
+        }
+        // Groups in the order of their first intent. Each service type has one open group, that
+        // intents are added to until the next one does not fit.
+        List<List<OffloadIntentStore.OffloadIntent>> groups = new ArrayList<>();
+        Map<String, List<OffloadIntentStore.OffloadIntent>> openGroups = new HashMap<>();
+        Map<String, Integer> openGroupBytes = new HashMap<>();
+        for (OffloadIntentStore.OffloadIntent offloadIntent : offloadIntents) {
+            int packetBytes = offloadIntent.mProtocolData.rawOffloadPacket.length;
+            String serviceType = offloadIntent.mServiceType;
+            if (serviceType.isEmpty() || packetBytes >= mMaxPacketBytes) {
+                groups.add(List.of(offloadIntent));
+                continue;
+            }
+            // Merging drops the headers and compresses names, so the sum of the packets bounds
+            // the merged size. NSEC names are the exception, the merged size is checked again.
+            List<OffloadIntentStore.OffloadIntent> group = openGroups.get(serviceType);
+            int groupBytes = openGroupBytes.getOrDefault(serviceType, 0);
+            if (group != null && groupBytes + packetBytes - HEADER_SIZE <= mMaxPacketBytes) {
+                group.add(offloadIntent);
+                openGroupBytes.put(serviceType, groupBytes + packetBytes - HEADER_SIZE);
+                continue;
+            }
+            group = new ArrayList<>();
+            group.add(offloadIntent);
+            groups.add(group);
+            openGroups.put(serviceType, group);
+            openGroupBytes.put(serviceType, packetBytes);
+        }
+
+        Map<PacketGroup, MergedPacket> mergedPackets = new HashMap<>();
+        List<OffloadIntentStore.OffloadIntent> merged = new ArrayList<>(groups.size());
+        int mergedIntents = 0;
+        for (List<OffloadIntentStore.OffloadIntent> group : groups) {
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+                continue;
+            }
+            PacketGroup packetGroup = new PacketGroup(group);
+            MergedPacket mergedPacket = mMergedPackets.containsKey(packetGroup)
+                    ? mMergedPackets.get(packetGroup) : mergePackets(packetGroup);
+            mergedPackets.put(packetGroup, mergedPacket);
+            if (mergedPacket == null) {
+                merged.addAll(group);
+                continue;
+            }
+            merged.add(new OffloadIntentStore.OffloadIntent(
+                    List.copyOf(group), mergedPacket.mProtocolData, mergedPacket.mCanonicalQNames));
+            mergedIntents += group.size();
+        }
+        mMergedPackets = mergedPackets;
+        mLastMergedIntents = mergedIntents;
+        mLastMergedPackets = (int) mergedPackets.values().stream()
+                .filter(packet -> packet != null)
+                .count();
+        return merged;
+    }
+
+    private MergedPacket mergePackets(PacketGroup packetGroup) {
+        byte[] rawOffloadPacket;
+        MdnsPacketParser.ParsedPacket parsedPacket;
+        try {
+            rawOffloadPacket = MdnsPacketOptimizer.merge(packetGroup.mPackets
+                    .stream()
+                    .map(packet -> packet.rawOffloadPacket)
+                    .toList());
+            if (rawOffloadPacket == null || rawOffloadPacket.length > mMaxPacketBytes) {
+                return null;
+            }
+            parsedPacket = MdnsPacketParser.parseResponsePacket(rawOffloadPacket, mNameTable);
+        } catch (IllegalArgumentException e) {
+            // Packets were validated when registered, this is not expected.
+            Log.e(TAG, "Failed to merge offload packets.", e);
+            return null;
+        }
+        IMdnsOffload.MdnsProtocolData protocolData =
+                OffloadIntentStore.convertToMdnsProtocolData(rawOffloadPacket, parsedPacket);
+        return new MergedPacket(protocolData, parsedPacket.mCanonicalNames);
+    }
+
+    @NonNull
+    Stats getStats() {
+        return new Stats(mMaxPacketBytes, mLastMergedIntents, mLastMergedPackets);
+    }
+}
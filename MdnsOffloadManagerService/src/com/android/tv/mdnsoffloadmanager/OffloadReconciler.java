@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiPredicate;
+
+/**
+ * Computes the minimal set of vendor operations needed to go from the entries currently held by
+ * the vendor service to the desired entries.
+ * <p>
+ * The vendor service keeps entries in insertion order and drops new entries once its memory is
+ * full, so the desired entries must end up in the vendor in exactly the desired order. Entries
+ * can only be removed from anywhere or appended at the end. The longest prefix of the desired
+ * list that appears, in order, in the current list is therefore kept. Every other current entry
+ * is removed and the rest of the desired list is appended.
+ */
+final class OffloadReconciler {
+
+    private OffloadReconciler() {
+    }
+
+    /**
+     * The outcome of a reconciliation.
+     */
+    static final class Plan {
+        /** Indices in the current list of the entries to remove, in ascending order. */
+        final List<Integer> mRemovedIndices;
+        /** Indices in the current list of the entries to keep, in ascending order. */
+        final List<Integer> mKeptIndices;
+        /** Index in the desired list of the first entry to append. */
+        final int mFirstAddedIndex;
+
+        private Plan(List<Integer> removedIndices, List<Integer> keptIndices, int firstAddedIndex) {
+            mRemovedIndices = removedIndices;
+            mKeptIndices = keptIndices;
+            mFirstAddedIndex = firstAddedIndex;
+        }
+    }
+
+    /**
+     * Plan the reconciliation of the current entries with the desired ones.
+     *
+     * @param matches whether a current entry holds the same content as a desired entry.
+     */
+    @NonNull
+    static <C, D> Plan plan(
+            @NonNull List<C> current,
+            @NonNull List<D> desired,
+            @NonNull BiPredicate<C, D> matches) {
+        boolean[] kept = new boolean[current.size()];
+        int cursor = 0;
+        int matched = 0;
+        for (D entry : desired) {
+            int found = -1;
+            for (int index = cursor; index < current.size(); index++) {
+                if (matches.test(current.get(index), entry)) {
+                    found = index;
+                    break;
+                }
+            }
+            if (found < 0) {
+                break;
+            }
+            kept[found] = true;
+            cursor = found + 1;
+            matched++;
+        }
+        List<Integer> removedIndices = new ArrayList<>();
+        List<Integer> keptIndices = new ArrayList<>(matched);
+        for (int index = 0; index < kept.length; index++) {
+            if (kept[index]) {
+                keptIndices.add(index);
+            } else {
+                removedIndices.add(index);
+            }
+        }
+        return new Plan(removedIndices, keptIndices, matched);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import device.google.atv.mdns_offload.IMdnsOffload;
+import device.google.atv.mdns_offload.IMdnsOffload.MdnsProtocolData.MatchCriteria;
+
+/**
+ * On-disk snapshot of the offload and passthrough intents, used to restore the offloaded state
+ * right away when the service restarts, before clients register their intents again.
+ * <p>
+ * Offload intents are stored with their parsed match criteria, so that restoring them does not
+ * parse packets again. Client tokens do not survive a restart, intents are stored with the app id
+ * of their owner instead. Priorities are not stored, they are derived again from the priority
+ * list, which may have changed, and from the order of the intents, which is preserved.
+ * <p>
+ * The snapshot is a flat big-endian buffer that is memory-mapped when read. Corrupted or
+ * truncated snapshots are discarded.
+ */
+final class OffloadSnapshot {
+
+    private static final String TAG = OffloadSnapshot.class.getSimpleName();
+    private static final int MAGIC = 0x4d444f53; // "MDOS"
+    private static final short VERSION = 1;
+    private static final int MAX_COUNT = 65536;
+
+    /**
+     * An offload intent, as stored in the snapshot.
+     */
+    static class OffloadEntry {
+        final String mNetworkInterface;
+        final int mOwnerAppId;
+        final IMdnsOffload.MdnsProtocolData mProtocolData;
+        // Aligned with mProtocolData.matchCriteriaList.
+        final List<String> mCanonicalQNames;
+
+        OffloadEntry(
+                String networkInterface,
+                int ownerAppId,
+                IMdnsOffload.MdnsProtocolData protocolData,
+                List<String> canonicalQNames) {
+            mNetworkInterface = networkInterface;
+            mOwnerAppId = ownerAppId;
+            mProtocolData = protocolData;
+            mCanonicalQNames = canonicalQNames;
+        }
+    }
+
+    /**
+     * A passthrough intent, as stored in the snapshot.
+     */
+    static class PassthroughEntry {
+        final String mNetworkInterface;
+        final int mOwnerAppId;
+        final String mQName;
+
+        PassthroughEntry(String networkInterface, int ownerAppId, String qName) {
+            mNetworkInterface = networkInterface;
+            mOwnerAppId = ownerAppId;
+            mQName = qName;
+        }
+    }
+
+    final List<OffloadEntry> mOffloadEntries;
+    final List<PassthroughEntry> mPassthroughEntries;
+
+    OffloadSnapshot(
+            @NonNull List<OffloadEntry> offloadEntries,
+            @NonNull List<PassthroughEntry> passthroughEntries) {
+        mOffloadEntries = offloadEntries;
+        mPassthroughEntries = passthroughEntries;
+    }
+
+    boolean isEmpty() {
+        return mOffloadEntries.isEmpty() && mPassthroughEntries.isEmpty();
+    }
+
+    /**
+     * Atomically replace the snapshot stored in the given file.
+     */
+    void writeTo(@NonNull AtomicFile file) {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(mOffloadEntries.size());
+            for (OffloadEntry entry : mOffloadEntries) {
+                writeString(out, entry.mNetworkInterface);
+                out.writeInt(entry.mOwnerAppId);
+                out.writeInt(entry.mProtocolData.rawOffloadPacket.length);
+                out.write(entry.mProtocolData.rawOffloadPacket);
+                int criteriaCount = entry.mProtocolData.matchCriteriaList.size();
+                out.writeInt(criteriaCount);
+                for (int index = 0; index < criteriaCount; index++) {
+                    MatchCriteria criteria = entry.mProtocolData.matchCriteriaList.get(index);
+                    out.writeInt(criteria.type);
+                    out.writeInt(criteria.nameOffset);
+                    writeString(out, entry.mCanonicalQNames.get(index));
+                }
+            }
+            out.writeInt(mPassthroughEntries.size());
+            for (PassthroughEntry entry : mPassthroughEntries) {
+                writeString(out, entry.mNetworkInterface);
+                out.writeInt(entry.mOwnerAppId);
+                writeString(out, entry.mQName);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write offload snapshot.", e);
+            file.failWrite(stream);
+        }
+    }
+
+    /**
+     * Read the snapshot stored in the given file.
+     *
+     * @return The snapshot, or an empty snapshot if none is stored or if it is not readable.
+     */
+    @NonNull
+    static OffloadSnapshot readFrom(@NonNull AtomicFile file) {
+        List<OffloadEntry> offloadEntries = new ArrayList<>();
+        List<PassthroughEntry> passthroughEntries = new ArrayList<>();
+        try (FileInputStream stream = file.openRead();
+                FileChannel channel = stream.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+                throw new IllegalArgumentException("Unknown snapshot format");
+            }
+            int offloadCount = readCount(buffer);
+            for (int entry = 0; entry < offloadCount; entry++) {
+                String networkInterface = readString(buffer);
+                int ownerAppId = buffer.getInt();
+                byte[] rawOffloadPacket = new byte[readCount(buffer)];
+                buffer.get(rawOffloadPacket);
+                int criteriaCount = readCount(buffer);
+                List<MatchCriteria> criteriaList = new ArrayList<>(criteriaCount);
+                List<String> canonicalQNames = new ArrayList<>(criteriaCount);
+                for (int index = 0; index < criteriaCount; index++) {
+                    MatchCriteria criteria = new MatchCriteria();
+                    criteria.type = buffer.getInt();
+                    criteria.nameOffset = buffer.getInt();
+                    criteriaList.add(criteria);
+                    canonicalQNames.add(readString(buffer));
+                }
+                IMdnsOffload.MdnsProtocolData protocolData = new IMdnsOffload.MdnsProtocolData();
+                protocolData.rawOffloadPacket = rawOffloadPacket;
+                protocolData.matchCriteriaList = criteriaList;
+                offloadEntries.add(new OffloadEntry(
+                        networkInterface, ownerAppId, protocolData, canonicalQNames));
+            }
+            int passthroughCount = readCount(buffer);
+            for (int entry = 0; entry < passthroughCount; entry++) {
+                passthroughEntries.add(new PassthroughEntry(
+                        readString(buffer), buffer.getInt(), readString(buffer)));
+            }
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No offload snapshot to restore.");
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.e(TAG, "Discarding unreadable offload snapshot.", e);
+            offloadEntries.clear();
+            passthroughEntries.clear();
+        }
+        return new OffloadSnapshot(offloadEntries, passthroughEntries);
+    }
+
+    private static int readCount(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IllegalArgumentException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[readCount(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,8 +1,6 @@
 package com.android.tv.mdnsoffloadmanager;
 
-import static device.google.atv.mdns_offload.IMdnsOffload.PassthroughBehavior.DROP_ALL;
-import static device.google.atv.mdns_offload.IMdnsOffload.PassthroughBehavior.PASSTHROUGH_LIST;
-
+import android.os.Handler;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
 import android.util.Log;
@@ -12,25 +10,65 @@ import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 
 import device.google.atv.mdns_offload.IMdnsOffload;
 
+/**
+ * Writes the offload state to the vendor service. Binder calls run asynchronously, see
+ * {@link VendorCallQueue}, and results are delivered to callbacks on the handler thread.
+ */
 @WorkerThread
 public class OffloadWriter {
 
     private static final String TAG = OffloadWriter.class.getSimpleName();
-    private static final int INVALID_OFFLOAD_KEY = -1;
+    static final int INVALID_OFFLOAD_KEY = -1;
+    // The record was not written, because the call failed, was dropped or missed its deadline.
+    // Unlike a rejection, this says nothing about the vendor capacity.
+    static final int UNWRITTEN_OFFLOAD_KEY = -2;
+    private static final int BATCH_MIN_INTERFACE_VERSION = 2;
+    private static final int CAPACITY_QUERY_MIN_INTERFACE_VERSION = 2;
+    private static final int STATE_QUERY_MIN_INTERFACE_VERSION = 2;
+    // Keeps batched transactions well below the binder transaction buffer size.
+    private static final int MAX_BATCH_PAYLOAD_BYTES = 64 * 1024;
+    private static final long CALL_TIMEOUT_MS = 1000;
+    private static final long BATCH_CALL_TIMEOUT_MS = 3000;
+    // Calls beyond this wait on the handler thread, bounding the executor backlog.
+    private static final int MAX_IN_FLIGHT_CALLS = 256;
+    // Limit on the time a call waits behind earlier calls, once handed to the executor.
+    private static final long QUEUE_TIMEOUT_MS = 30_000;
+
+    private final VendorCallQueue mCallQueue;
+    // Written on the handler thread only, volatile so that dumps read them from binder threads.
+    private volatile boolean mOffloadState = false;
+    private volatile IMdnsOffload mVendorService;
+    private volatile int mVendorInterfaceVersion = 0;
 
-    private boolean mOffloadState = false;
-    private IMdnsOffload mVendorService;
+    /**
+     * @param executor runs the binder calls, on a thread other than the handler thread.
+     * @param resync   runs when calls failed, see {@link VendorCallQueue}.
+     */
+    OffloadWriter(
+            @NonNull Handler handler, @NonNull Executor executor, @NonNull Runnable resync) {
+        mCallQueue = new VendorCallQueue(
+                handler, executor, MAX_IN_FLIGHT_CALLS, QUEUE_TIMEOUT_MS, resync);
+    }
 
     @NonNull
-    private static String convertQNameForVendorService(String qname) {
+    static String convertQNameForVendorService(String qname) {
         // We strip the trailing '.' when we provide QNames to the vendor service.
         if (qname.endsWith(".")) {
             return qname.substring(0, qname.length() - 1);
@@ -51,24 +89,77 @@ public class OffloadWriter {
         throw new IllegalArgumentException("No such passthrough behavior " + passthroughBehavior);
     }
 
-    void setVendorService(@Nullable IMdnsOffload vendorService) {
+    /**
+     * Start writing to a newly connected vendor service.
+     *
+     * @param onConnected runs once the interface version of the vendor service is known.
+     */
+    void connectVendorService(
+            @NonNull IMdnsOffload vendorService, @NonNull Runnable onConnected) {
+        mVendorService = vendorService;
+        mVendorInterfaceVersion = 0;
+        mCallQueue.reset();
+        submit("getInterfaceVersion", CALL_TIMEOUT_MS, service -> {
+            try {
+                return service.getInterfaceVersion();
+            } catch (RemoteException | ServiceSpecificException e) {
+                Log.e(TAG, "Failed to retrieve vendor service interface version.", e);
+            }
+            return 0;
+        }, 0, version -> {
+            if (mVendorService != vendorService) {
+                return;
+            }
+            mVendorInterfaceVersion = version;
+            onConnected.run();
+        });
+    }
+
+    /**
+     * Start writing to a vendor service whose interface version is already known, e.g. by the
+     * writer of another lane, see {@link InterfaceLanes}.
+     */
+    void connectVendorService(@NonNull IMdnsOffload vendorService, int interfaceVersion) {
         mVendorService = vendorService;
+        mVendorInterfaceVersion = interfaceVersion;
+        mCallQueue.reset();
+    }
+
+    int getVendorInterfaceVersion() {
+        return mVendorInterfaceVersion;
+    }
+
+    void disconnectVendorService() {
+        mVendorService = null;
+        mVendorInterfaceVersion = 0;
+        mCallQueue.reset();
     }
 
     boolean isVendorServiceConnected() {
         return mVendorService != null;
     }
 
+    /**
+     * Whether the vendor service implements the batched methods of {@link IMdnsOffload}. When it
+     * does not, one binder call is made per record or qname instead.
+     */
+    private boolean isBatchSupported() {
+        return mVendorInterfaceVersion >= BATCH_MIN_INTERFACE_VERSION;
+    }
+
     void resetAll() {
         if (!isVendorServiceConnected()) {
             Log.e(TAG, "Cannot reset vendor service, service is not connected.");
             return;
         }
-        try {
-            mVendorService.resetAll();
-        } catch (RemoteException | ServiceSpecificException e) {
-            Log.e(TAG, "Failed to reset vendor service.", e);
-        }
+        submit("resetAll", CALL_TIMEOUT_MS, service -> {
+            try {
+                service.resetAll();
+            } catch (RemoteException | ServiceSpecificException e) {
+                Log.e(TAG, "Failed to reset vendor service.", e);
+            }
+            return null;
+        }, null, result -> {});
     }
 
     /**
@@ -83,143 +174,479 @@ public class OffloadWriter {
      * Set the desired offload state and propagate to the vendor service.
      */
     void setOffloadState(boolean enabled) {
+        setOffloadState(enabled, () -> {});
+    }
+
+    /**
+     * Set the desired offload state and propagate to the vendor service.
+     *
+     * @param onComplete runs once the vendor call completed, whether it succeeded or not.
+     */
+    void setOffloadState(boolean enabled, @NonNull Runnable onComplete) {
         if (!isVendorServiceConnected()) {
             Log.e(TAG, "Cannot set offload state, vendor service is not connected.");
+            onComplete.run();
             return;
         }
-        try {
-            mVendorService.setOffloadState(enabled);
-        } catch (RemoteException | ServiceSpecificException e) {
-            Log.e(TAG, "Failed to set offload state to {" + enabled + "}.", e);
-        }
+        submit("setOffloadState", CALL_TIMEOUT_MS, service -> {
+            try {
+                service.setOffloadState(enabled);
+            } catch (RemoteException | ServiceSpecificException e) {
+                Log.e(TAG, "Failed to set offload state to {" + enabled + "}.", e);
+            }
+            return null;
+        }, null, result -> onComplete.run());
         mOffloadState = enabled;
     }
 
     /**
-     * Retrieve and clear all metric counters.
-     * <p>
-     * TODO(b/270115511) do something with these metrics.
+     * Retrieve and clear the counter of queries the vendor service could not answer.
+     *
+     * @param onComplete receives the number of missed queries, or -1 if it could not be
+     *                   retrieved.
      */
-    void retrieveAndClearMetrics(Collection<Integer> recordKeys) {
-        try {
-            int missCounter = mVendorService.getAndResetMissCounter();
-            Log.d(TAG, "Missed queries:" + missCounter);
-        } catch (RemoteException | ServiceSpecificException e) {
-            Log.e(TAG, "getAndResetMissCounter failure", e);
+    void retrieveAndClearMissCounter(@NonNull IntConsumer onComplete) {
+        if (!isVendorServiceConnected()) {
+            Log.e(TAG, "Cannot retrieve miss counter, vendor service is not connected.");
+            onComplete.accept(-1);
+            return;
         }
-        for (int recordKey : recordKeys) {
+        submit("getAndResetMissCounter", CALL_TIMEOUT_MS, service -> {
             try {
-                int hitCounter = mVendorService.getAndResetHitCounter(recordKey);
-                Log.d(TAG, "Hits for record " + recordKey + " : " + hitCounter);
+                int missCounter = service.getAndResetMissCounter();
+                Log.d(TAG, "Missed queries:" + missCounter);
+                return missCounter;
             } catch (RemoteException | ServiceSpecificException e) {
-                Log.e(TAG, "getAndResetHitCounter failure for recordKey {" + recordKey + "}", e);
+                Log.e(TAG, "getAndResetMissCounter failure", e);
+            }
+            return -1;
+        }, -1, onComplete::accept);
+    }
+
+    /**
+     * Retrieve and clear the hit counters of offloaded protocol responses.
+     *
+     * @param onComplete receives the number of hits by offload key, for the responses the vendor
+     *                   service counts hits of.
+     */
+    void retrieveAndClearHitCounters(
+            List<Integer> offloadKeys, @NonNull Consumer<Map<Integer, Integer>> onComplete) {
+        if (!isVendorServiceConnected()) {
+            Log.e(TAG, "Cannot retrieve hit counters, vendor service is not connected.");
+            onComplete.accept(new HashMap<>());
+            return;
+        }
+        Consumer<List<Integer>> onResults = results -> {
+            Map<Integer, Integer> hitCounters = new HashMap<>();
+            for (int i = 0; i < offloadKeys.size(); i++) {
+                if (results.get(i) >= 0) {
+                    hitCounters.put(offloadKeys.get(i), results.get(i));
+                }
+            }
+            onComplete.accept(hitCounters);
+        };
+        if (isBatchSupported()) {
+            if (offloadKeys.isEmpty()) {
+                onComplete.accept(new HashMap<>());
+                return;
             }
+            submit("getAndResetHitCounterBatch", BATCH_CALL_TIMEOUT_MS,
+                    service -> tryGetAndResetHitCounterBatch(service, offloadKeys),
+                    Collections.nCopies(offloadKeys.size(), -1), onResults);
+            return;
         }
+        submitEach("getAndResetHitCounter", CALL_TIMEOUT_MS, offloadKeys,
+                OffloadWriter::tryGetAndResetHitCounter, -1, onResults);
     }
 
     /**
-     * Offload a list of records. Records are prioritized by their priority value, and lower
-     * priority records may be dropped if not all fit in memory.
+     * Query the capacity of the offload on a network interface.
      *
-     * @return The offload keys of successfully offloaded protocol responses.
+     * @param onComplete receives the capacity, or null if the vendor service cannot report it.
      */
-    Collection<Integer> writeOffloadData(
-            String networkInterface, Collection<OffloadIntentStore.OffloadIntent> offloadIntents) {
-        List<OffloadIntentStore.OffloadIntent> orderedOffloadIntents = offloadIntents
-                .stream()
-                .sorted(Comparator.comparingInt(offloadIntent -> offloadIntent.mPriority))
-                .toList();
-        Set<Integer> offloaded = new HashSet<>();
-        for (OffloadIntentStore.OffloadIntent offloadIntent : orderedOffloadIntents) {
-            Integer offloadKey = tryAddProtocolResponses(networkInterface, offloadIntent);
-            if (offloadKey != null) {
-                offloaded.add(offloadKey);
+    void getOffloadCapacity(
+            String networkInterface,
+            @NonNull Consumer<IMdnsOffload.OffloadCapacity> onComplete) {
+        if (mVendorInterfaceVersion < CAPACITY_QUERY_MIN_INTERFACE_VERSION) {
+            onComplete.accept(null);
+            return;
+        }
+        submit("getOffloadCapacity", CALL_TIMEOUT_MS, service -> {
+            try {
+                return service.getOffloadCapacity(networkInterface);
+            } catch (RemoteException | ServiceSpecificException e) {
+                Log.e(TAG, "Failed to query offload capacity on iface {"
+                        + networkInterface + "}", e);
             }
+            return null;
+        }, null, onComplete);
+    }
+
+    /**
+     * Query the state held by the vendor service on all network interfaces.
+     *
+     * @param onComplete receives the state by network interface, or null if the vendor service
+     *                   cannot report it. It is not called if the vendor service disconnects
+     *                   first.
+     */
+    void getOffloadState(
+            @NonNull Consumer<Map<String, IMdnsOffload.InterfaceOffloadState>> onComplete) {
+        if (!isVendorServiceConnected()
+                || mVendorInterfaceVersion < STATE_QUERY_MIN_INTERFACE_VERSION) {
+            onComplete.accept(null);
+            return;
         }
-        return offloaded;
+        IMdnsOffload vendorService = mVendorService;
+        submit("getOffloadState", BATCH_CALL_TIMEOUT_MS, service -> {
+            try {
+                return service.getOffloadState();
+            } catch (RemoteException | ServiceSpecificException e) {
+                Log.e(TAG, "Failed to query offload state.", e);
+            }
+            return null;
+        }, null, states -> {
+            if (mVendorService != vendorService) {
+                return;
+            }
+            if (states == null) {
+                onComplete.accept(null);
+                return;
+            }
+            Map<String, IMdnsOffload.InterfaceOffloadState> statesByInterface = new HashMap<>();
+            for (IMdnsOffload.InterfaceOffloadState state : states) {
+                statesByInterface.put(state.networkInterface, state);
+            }
+            onComplete.accept(statesByInterface);
+        });
+    }
+
+    /**
+     * Offload a list of records, in the given order. Records that come later in the list may be
+     * dropped if not all fit in memory.
+     *
+     * @param onComplete receives the offload keys of the records, aligned with the given list.
+     *                   Records the vendor service returned an error for map to
+     *                   {@link #INVALID_OFFLOAD_KEY}, records that were not written, e.g.
+     *                   because the call failed, map to {@link #UNWRITTEN_OFFLOAD_KEY}.
+     */
+    void writeOffloadData(
+            String networkInterface,
+            List<OffloadIntentStore.OffloadIntent> offloadIntents,
+            @NonNull Consumer<int[]> onComplete) {
+        if (isBatchSupported()) {
+            List<List<OffloadIntentStore.OffloadIntent>> batches = new ArrayList<>();
+            int start = 0;
+            while (start < offloadIntents.size()) {
+                int end = start;
+                int payloadBytes = 0;
+                do {
+                    payloadBytes += offloadIntents.get(end).mProtocolData.rawOffloadPacket.length;
+                    end++;
+                } while (end < offloadIntents.size() && payloadBytes
+                        + offloadIntents.get(end).mProtocolData.rawOffloadPacket.length
+                        <= MAX_BATCH_PAYLOAD_BYTES);
+                batches.add(offloadIntents.subList(start, end));
+                start = end;
+            }
+            submitEach("addProtocolResponsesBatch", BATCH_CALL_TIMEOUT_MS, batches,
+                    (service, batch) -> tryAddProtocolResponsesBatch(
+                            service, networkInterface, batch),
+                    null, results -> {
+                        int[] offloadKeys = new int[offloadIntents.size()];
+                        int offset = 0;
+                        for (int i = 0; i < batches.size(); i++) {
+                            int[] batchKeys = results.get(i);
+                            int batchSize = batches.get(i).size();
+                            if (batchKeys != null) {
+                                System.arraycopy(batchKeys, 0, offloadKeys, offset, batchSize);
+                            } else {
+                                Arrays.fill(offloadKeys, offset, offset + batchSize,
+                                        UNWRITTEN_OFFLOAD_KEY);
+                            }
+                            offset += batchSize;
+                        }
+                        onComplete.accept(offloadKeys);
+                    });
+            return;
+        }
+        submitEach("addProtocolResponses", CALL_TIMEOUT_MS, offloadIntents,
+                (service, offloadIntent) -> tryAddProtocolResponses(
+                        service, networkInterface, offloadIntent),
+                UNWRITTEN_OFFLOAD_KEY,
+                results -> onComplete.accept(
+                        results.stream().mapToInt(Integer::intValue).toArray()));
     }
 
     /**
      * Remove a set of protocol responses.
      *
-     * @return The offload keys of deleted protocol responses.
+     * @param onComplete receives the offload keys of deleted protocol responses.
      */
-    Collection<Integer> deleteOffloadData(Set<Integer> offloadKeys) {
-        Set<Integer> deleted = new HashSet<>();
-        for (Integer offloadKey : offloadKeys) {
-            if (tryRemoveProtocolResponses(offloadKey)) {
-                deleted.add(offloadKey);
+    void deleteOffloadData(
+            List<Integer> offloadKeys, @NonNull Consumer<Collection<Integer>> onComplete) {
+        if (isBatchSupported()) {
+            if (offloadKeys.isEmpty()) {
+                onComplete.accept(Collections.emptySet());
+                return;
             }
+            submit("removeProtocolResponsesBatch", BATCH_CALL_TIMEOUT_MS,
+                    service -> tryRemoveProtocolResponsesBatch(service, offloadKeys), false,
+                    removed -> onComplete.accept(
+                            removed ? new HashSet<>(offloadKeys) : Collections.emptySet()));
+            return;
         }
-        return deleted;
+        submitEach("removeProtocolResponses", CALL_TIMEOUT_MS, offloadKeys,
+                OffloadWriter::tryRemoveProtocolResponses, false, results -> {
+                    Set<Integer> deleted = new HashSet<>();
+                    for (int i = 0; i < offloadKeys.size(); i++) {
+                        if (results.get(i)) {
+                            deleted.add(offloadKeys.get(i));
+                        }
+                    }
+                    onComplete.accept(deleted);
+                });
     }
 
     /**
-     * Add a list of entries to the passthrough list. Entries will be prioritized based on the
-     * supplied priority value, where the supplied order will be maintained for equal values. Lower
-     * priority records may be dropped if not all fit in memory.
+     * Set the passthrough behavior of an interface.
      *
-     * @return The set of successfully added passthrough entries.
+     * @param onComplete receives whether the vendor service accepted the behavior.
      */
-    Collection<String> writePassthroughData(
+    void setPassthroughBehavior(
             String networkInterface,
-            List<OffloadIntentStore.PassthroughIntent> ptIntents) {
-        byte passthroughMode = ptIntents.isEmpty() ? DROP_ALL : PASSTHROUGH_LIST;
-        trySetPassthroughBehavior(networkInterface, passthroughMode);
+            @IMdnsOffload.PassthroughBehavior byte passthroughMode,
+            @NonNull Consumer<Boolean> onComplete) {
+        submit("setPassthroughBehavior", CALL_TIMEOUT_MS,
+                service -> trySetPassthroughBehavior(service, networkInterface, passthroughMode),
+                false, onComplete);
+    }
 
-        // Note that this is a stable sort, therefore the provided order will be preserved for
-        // entries that are not on the priority list.
-        List<OffloadIntentStore.PassthroughIntent> orderedPtIntents = ptIntents
-                .stream()
-                .sorted(Comparator.comparingInt(pt -> pt.mPriority))
-                .toList();
-        Set<String> added = new HashSet<>();
-        for (OffloadIntentStore.PassthroughIntent ptIntent : orderedPtIntents) {
-            if (tryAddToPassthroughList(networkInterface, ptIntent)) {
-                added.add(ptIntent.mOriginalQName);
+    /**
+     * Add a list of entries to the passthrough list, in the given order. Entries that come later
+     * in the list may be dropped if not all fit in memory.
+     *
+     * @param onComplete receives whether each entry was added, aligned with the given list.
+     */
+    void writePassthroughData(
+            String networkInterface,
+            List<OffloadIntentStore.PassthroughIntent> ptIntents,
+            @NonNull Consumer<boolean[]> onComplete) {
+        if (isBatchSupported()) {
+            if (ptIntents.isEmpty()) {
+                onComplete.accept(new boolean[0]);
+                return;
             }
+            submit("addToPassthroughListBatch", BATCH_CALL_TIMEOUT_MS,
+                    service -> tryAddToPassthroughListBatch(service, networkInterface, ptIntents),
+                    new boolean[ptIntents.size()], onComplete);
+            return;
         }
-        return added;
+        submitEach("addToPassthroughList", CALL_TIMEOUT_MS, ptIntents,
+                (service, ptIntent) -> tryAddToPassthroughList(
+                        service, networkInterface, ptIntent),
+                false, results -> {
+                    boolean[] added = new boolean[ptIntents.size()];
+                    for (int i = 0; i < ptIntents.size(); i++) {
+                        added[i] = results.get(i);
+                    }
+                    onComplete.accept(added);
+                });
     }
 
     /**
      * Delete a set of entries on the passthrough list.
      *
-     * @return The set of entries that were deleted.
+     * @param onComplete receives the set of entries that were deleted.
      */
-    Collection<String> deletePassthroughData(String networkInterface, Collection<String> qnames) {
-        Set<String> deleted = new HashSet<>();
-        for (String qname : qnames) {
-            if (tryRemoveFromPassthroughList(networkInterface, qname)) {
-                deleted.add(qname);
+    void deletePassthroughData(
+            String networkInterface,
+            List<String> qnames,
+            @NonNull Consumer<Collection<String>> onComplete) {
+        if (isBatchSupported()) {
+            if (qnames.isEmpty()) {
+                onComplete.accept(Collections.emptySet());
+                return;
             }
+            submit("removeFromPassthroughListBatch", BATCH_CALL_TIMEOUT_MS,
+                    service -> tryRemoveFromPassthroughListBatch(
+                            service, networkInterface, qnames),
+                    false,
+                    removed -> onComplete.accept(
+                            removed ? new HashSet<>(qnames) : Collections.emptySet()));
+            return;
         }
-        return deleted;
+        submitEach("removeFromPassthroughList", CALL_TIMEOUT_MS, qnames,
+                (service, qname) -> tryRemoveFromPassthroughList(
+                        service, networkInterface, qname),
+                false, results -> {
+                    Set<String> deleted = new HashSet<>();
+                    for (int i = 0; i < qnames.size(); i++) {
+                        if (results.get(i)) {
+                            deleted.add(qnames.get(i));
+                        }
+                    }
+                    onComplete.accept(deleted);
+                });
     }
 
-    @Nullable
-    private Integer tryAddProtocolResponses(
-            String networkInterface, OffloadIntentStore.OffloadIntent offloadIntent) {
+    /**
+     * Submit a call to the currently connected vendor service. Calls that were submitted before a
+     * disconnection still run against the service they were submitted to. Calls submitted while no
+     * vendor service is connected fail right away.
+     */
+    private <T> void submit(
+            String name,
+            long timeoutMs,
+            Function<IMdnsOffload, T> call,
+            T failureResult,
+            Consumer<T> onComplete) {
+        IMdnsOffload vendorService = mVendorService;
+        if (vendorService == null) {
+            mCallQueue.reject(name, failureResult, onComplete);
+            return;
+        }
+        mCallQueue.submit(
+                name, timeoutMs, () -> call.apply(vendorService), failureResult, onComplete);
+    }
+
+    /**
+     * Submit one call per element, and complete once all of them completed.
+     *
+     * @param onComplete receives the results, aligned with the given elements.
+     */
+    private <E, T> void submitEach(
+            String name,
+            long timeoutMs,
+            List<E> elements,
+            BiFunction<IMdnsOffload, E, T> call,
+            T failureResult,
+            Consumer<List<T>> onComplete) {
+        if (elements.isEmpty()) {
+            onComplete.accept(Collections.emptyList());
+            return;
+        }
+        List<T> results = new ArrayList<>(Collections.nCopies(elements.size(), failureResult));
+        for (int i = 0; i < elements.size(); i++) {
+            int index = i;
+            E element = elements.get(i);
+            // Results are delivered in order, the last one completes the whole set.
+            submit(name, timeoutMs, service -> call.apply(service, element), failureResult,
+                    result -> {
+                        results.set(index, result);
+                        if (index == elements.size() - 1) {
+                            onComplete.accept(results);
+                        }
+                    });
+        }
+    }
+
+    private static int tryGetAndResetHitCounter(IMdnsOffload vendorService, int offloadKey) {
+        try {
+            int hitCounter = vendorService.getAndResetHitCounter(offloadKey);
+            Log.d(TAG, "Hits for offload key " + offloadKey + " : " + hitCounter);
+            return hitCounter;
+        } catch (RemoteException | ServiceSpecificException e) {
+            Log.e(TAG, "getAndResetHitCounter failure for offloadKey {" + offloadKey + "}", e);
+        }
+        return -1;
+    }
+
+    private static List<Integer> tryGetAndResetHitCounterBatch(
+            IMdnsOffload vendorService, List<Integer> offloadKeys) {
+        List<Integer> failure = Collections.nCopies(offloadKeys.size(), -1);
+        int[] keys = offloadKeys.stream().mapToInt(Integer::intValue).toArray();
+        int[] hitCounters;
+        try {
+            hitCounters = vendorService.getAndResetHitCounterBatch(keys);
+        } catch (RemoteException | ServiceSpecificException e) {
+            Log.e(TAG, "getAndResetHitCounterBatch failure for offloadKeys " + offloadKeys, e);
+            return failure;
+        }
+        if (hitCounters == null || hitCounters.length != keys.length) {
+            Log.e(TAG, "Failed to retrieve hit counters, vendor service returned malformed "
+                    + "batch result.");
+            return failure;
+        }
+        Log.d(TAG, "Hits for offload keys " + offloadKeys + " : " + Arrays.toString(hitCounters));
+        return Arrays.stream(hitCounters).boxed().toList();
+    }
+
+    private static int tryAddProtocolResponses(
+            IMdnsOffload vendorService,
+            String networkInterface,
+            OffloadIntentStore.OffloadIntent offloadIntent) {
         int offloadKey;
         try {
-            offloadKey = mVendorService.addProtocolResponses(
+            offloadKey = vendorService.addProtocolResponses(
                     networkInterface, offloadIntent.mProtocolData);
         } catch (RemoteException | ServiceSpecificException e) {
             String msg = "Failed to offload mDNS protocol response for record key {" +
                     offloadIntent.mRecordKey + "} on iface {" + networkInterface + "}";
             Log.e(TAG, msg, e);
-            return null;
+            return UNWRITTEN_OFFLOAD_KEY;
         }
-        if (offloadKey == INVALID_OFFLOAD_KEY) {
+        if (offloadKey < 0) {
             Log.e(TAG, "Failed to offload mDNS protocol data, vendor service returned error.");
-            return null;
+            return INVALID_OFFLOAD_KEY;
         }
         return offloadKey;
     }
 
-    private boolean tryRemoveProtocolResponses(Integer offloadKey) {
+    private static int[] tryAddProtocolResponsesBatch(
+            IMdnsOffload vendorService,
+            String networkInterface,
+            List<OffloadIntentStore.OffloadIntent> offloadIntents) {
+        int[] offloadKeys = new int[offloadIntents.size()];
+        Arrays.fill(offloadKeys, UNWRITTEN_OFFLOAD_KEY);
+        IMdnsOffload.MdnsProtocolData[] protocolData = offloadIntents
+                .stream()
+                .map(offloadIntent -> offloadIntent.mProtocolData)
+                .toArray(IMdnsOffload.MdnsProtocolData[]::new);
+        int[] batchKeys;
+        try {
+            batchKeys = vendorService.addProtocolResponsesBatch(networkInterface, protocolData);
+        } catch (RemoteException | ServiceSpecificException e) {
+            String msg = "Failed to offload a batch of " + protocolData.length
+                    + " mDNS protocol responses on iface {" + networkInterface + "}";
+            Log.e(TAG, msg, e);
+            return offloadKeys;
+        }
+        if (batchKeys == null || batchKeys.length != protocolData.length) {
+            Log.e(TAG, "Failed to offload mDNS protocol data, vendor service returned "
+                    + "malformed batch result.");
+            return offloadKeys;
+        }
+        for (int i = 0; i < batchKeys.length; i++) {
+            if (batchKeys[i] < 0) {
+                String msg = "Failed to offload mDNS protocol response for record key {"
+                        + offloadIntents.get(i).mRecordKey + "}, vendor service returned error.";
+                Log.e(TAG, msg);
+                offloadKeys[i] = INVALID_OFFLOAD_KEY;
+                continue;
+            }
+            offloadKeys[i] = batchKeys[i];
+        }
+        return offloadKeys;
+    }
+
+    private static boolean tryRemoveProtocolResponsesBatch(
+            IMdnsOffload vendorService, Collection<Integer> offloadKeys) {
+        int[] keys = offloadKeys.stream().mapToInt(Integer::intValue).toArray();
+        try {
+            vendorService.removeProtocolResponsesBatch(keys);
+            return true;
+        } catch (RemoteException | ServiceSpecificException e) {
+            String msg = "Failed to remove offloaded mDNS protocol responses for offload keys "
+                    + offloadKeys;
+            Log.e(TAG, msg, e);
+        }
+        return false;
+    }
+
+    private static boolean tryRemoveProtocolResponses(
+            IMdnsOffload vendorService, Integer offloadKey) {
         try {
-            mVendorService.removeProtocolResponses(offloadKey);
+            vendorService.removeProtocolResponses(offloadKey);
             return true;
         } catch (RemoteException | ServiceSpecificException e) {
             String msg = "Failed to remove offloaded mDNS protocol response for offload key {"
@@ -229,24 +656,28 @@ public class OffloadWriter {
         return false;
     }
 
-    private void trySetPassthroughBehavior(String networkInterface, byte passthroughMode) {
+    private static boolean trySetPassthroughBehavior(
+            IMdnsOffload vendorService, String networkInterface, byte passthroughMode) {
         try {
-            mVendorService.setPassthroughBehavior(networkInterface, passthroughMode);
+            vendorService.setPassthroughBehavior(networkInterface, passthroughMode);
+            return true;
         } catch (RemoteException | ServiceSpecificException e) {
             String msg = "Failed to set passthrough mode {"
                     + passthroughBehaviorToString(passthroughMode) + "}"
                     + " on iface {" + networkInterface + "}";
             Log.e(TAG, msg, e);
         }
+        return false;
     }
 
-    private boolean tryAddToPassthroughList(
+    private static boolean tryAddToPassthroughList(
+            IMdnsOffload vendorService,
             String networkInterface,
             OffloadIntentStore.PassthroughIntent ptIntent) {
         String simpleQName = convertQNameForVendorService(ptIntent.mOriginalQName);
         boolean addedEntry;
         try {
-            addedEntry = mVendorService.addToPassthroughList(networkInterface, simpleQName);
+            addedEntry = vendorService.addToPassthroughList(networkInterface, simpleQName);
         } catch (RemoteException | ServiceSpecificException e) {
             String msg = "Failed to add passthrough list entry for qname {"
                     + ptIntent.mOriginalQName + "} on iface {" + networkInterface + "}";
@@ -262,10 +693,61 @@ public class OffloadWriter {
         return true;
     }
 
-    private boolean tryRemoveFromPassthroughList(String networkInterface, String qname) {
+    private static boolean[] tryAddToPassthroughListBatch(
+            IMdnsOffload vendorService,
+            String networkInterface,
+            List<OffloadIntentStore.PassthroughIntent> ptIntents) {
+        String[] simpleQNames = ptIntents
+                .stream()
+                .map(ptIntent -> convertQNameForVendorService(ptIntent.mOriginalQName))
+                .toArray(String[]::new);
+        boolean[] addedEntries;
+        try {
+            addedEntries = vendorService.addToPassthroughListBatch(
+                    networkInterface, simpleQNames);
+        } catch (RemoteException | ServiceSpecificException e) {
+            String msg = "Failed to add a batch of " + simpleQNames.length
+                    + " passthrough list entries on iface {" + networkInterface + "}";
+            Log.e(TAG, msg, e);
+            return new boolean[ptIntents.size()];
+        }
+        if (addedEntries == null || addedEntries.length != simpleQNames.length) {
+            Log.e(TAG, "Failed to add passthrough list entries, vendor service returned "
+                    + "malformed batch result.");
+            return new boolean[ptIntents.size()];
+        }
+        for (int i = 0; i < addedEntries.length; i++) {
+            if (!addedEntries[i]) {
+                String msg = "Failed to add passthrough list entry for qname {"
+                        + ptIntents.get(i).mOriginalQName + "} on iface {"
+                        + networkInterface + "}.";
+                Log.e(TAG, msg);
+            }
+        }
+        return addedEntries;
+    }
+
+    private static boolean tryRemoveFromPassthroughListBatch(
+            IMdnsOffload vendorService, String networkInterface, Collection<String> qnames) {
+        String[] simpleQNames = qnames
+                .stream()
+                .map(OffloadWriter::convertQNameForVendorService)
+                .toArray(String[]::new);
+        try {
+            vendorService.removeFromPassthroughListBatch(networkInterface, simpleQNames);
+            return true;
+        } catch (RemoteException | ServiceSpecificException e) {
+            String msg = "Failed to remove passthrough for qnames " + qnames + ".";
+            Log.e(TAG, msg, e);
+        }
+        return false;
+    }
+
+    private static boolean tryRemoveFromPassthroughList(
+            IMdnsOffload vendorService, String networkInterface, String qname) {
         String simpleQName = convertQNameForVendorService(qname);
         try {
-            mVendorService.removeFromPassthroughList(networkInterface, simpleQName);
+            vendorService.removeFromPassthroughList(networkInterface, simpleQName);
             return true;
         } catch (RemoteException | ServiceSpecificException e) {
             String msg = "Failed to remove passthrough for qname {" + qname + "}.";
@@ -274,10 +756,15 @@ public class OffloadWriter {
         return false;
     }
 
+    /**
+     * Dump the state of the writer, from any thread.
+     */
     void dump(PrintWriter writer) {
         writer.println("OffloadWriter:");
         writer.println("mOffloadState=%b".formatted(mOffloadState));
         writer.println("isVendorServiceConnected=%b".formatted(isVendorServiceConnected()));
+        writer.println("mVendorInterfaceVersion=%d".formatted(mVendorInterfaceVersion));
+        mCallQueue.dump(writer);
         writer.println();
     }
 }
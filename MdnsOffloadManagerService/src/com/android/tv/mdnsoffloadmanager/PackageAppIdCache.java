@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.content.pm.PackageManager;
+import android.os.UserHandle;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the app ids of packages, so that the allowlist is resolved without querying the package
+ * manager for every exempt package on each standby policy change. Entries are invalidated when
+ * packages are added or removed. Packages that are not installed are cached as well, they stay
+ * so until they are added.
+ */
+@WorkerThread
+class PackageAppIdCache {
+
+    private static final String TAG = PackageAppIdCache.class.getSimpleName();
+    private static final int NOT_INSTALLED = -1;
+
+    private final PackageManager mPackageManager;
+    // Written on the handler thread only, dumps read them from binder threads.
+    private final Map<String, Integer> mAppIds = new ConcurrentHashMap<>();
+    private volatile long mLookupCount = 0;
+    private volatile long mMissCount = 0;
+
+    PackageAppIdCache(@NonNull PackageManager packageManager) {
+        mPackageManager = packageManager;
+    }
+
+    /**
+     * @return The app id of the package, or null if it is not installed.
+     */
+    @Nullable
+    Integer getAppId(@NonNull String packageName) {
+        mLookupCount++;
+        Integer appId = mAppIds.get(packageName);
+        if (appId == null) {
+            mMissCount++;
+            appId = resolveAppId(packageName);
+            mAppIds.put(packageName, appId);
+        }
+        return appId == NOT_INSTALLED ? null : appId;
+    }
+
+    /**
+     * Drop the cached app id of a package that was added or removed.
+     *
+     * @return whether the package was cached.
+     */
+    boolean invalidate(@NonNull String packageName) {
+        return mAppIds.remove(packageName) != null;
+    }
+
+    private int resolveAppId(String packageName) {
+        try {
+            return UserHandle.getAppId(mPackageManager.getPackageUid(packageName, 0));
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Unable to get UID of package {" + packageName + "}.");
+            return NOT_INSTALLED;
+        }
+    }
+
+    /**
+     * Dump the counters of the cache, from any thread.
+     */
+    void dump(PrintWriter writer) {
+        writer.println("package app ids: cached=%d, lookups=%d, misses=%d"
+                .formatted(mAppIds.size(), mLookupCount, mMissCount));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import device.google.atv.mdns_offload.IMdnsOffload;
+
+/**
+ * Content-addressed store of the raw offload packets of offload intents, along with their parsed
+ * protocol data. Identical packets, registered by several clients or registered again after a
+ * client restarted, share one copy and one parse. Packets are reference counted and dropped once
+ * no offload intent refers to them.
+ * <p>
+ * Packets are keyed by their 64-bit FNV-1a hash, collisions are resolved by comparing the
+ * packets. This class is not thread-safe, {@link OffloadIntentStore} guards it with its lock.
+ */
+class PacketStore {
+
+    /**
+     * A packet shared by the offload intents that registered it.
+     */
+    static class StoredPacket {
+        final long mContentHash;
+        final IMdnsOffload.MdnsProtocolData mProtocolData;
+        // Interned canonical RRNAMEs, aligned with mProtocolData.matchCriteriaList.
+        final List<String> mCanonicalQNames;
+        private int mReferenceCount = 0;
+
+        private StoredPacket(
+                long contentHash,
+                IMdnsOffload.MdnsProtocolData protocolData,
+                List<String> canonicalQNames) {
+            mContentHash = contentHash;
+            mProtocolData = protocolData;
+            mCanonicalQNames = canonicalQNames;
+        }
+    }
+
+    private final Map<Long, List<StoredPacket>> mPackets = new HashMap<>();
+    private int mPacketCount = 0;
+    private int mReferenceCount = 0;
+    private long mStoredBytes = 0;
+    private long mReferencedBytes = 0;
+
+    /**
+     * 64-bit FNV-1a hash of the given packet.
+     */
+    static long contentHash(byte[] packet) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : packet) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Take a reference to a stored packet identical to the given one.
+     *
+     * @return The stored packet, or null if no identical packet is stored.
+     */
+    @Nullable
+    StoredPacket acquire(long contentHash, byte[] rawOffloadPacket) {
+        for (StoredPacket packet : mPackets.getOrDefault(contentHash, List.of())) {
+            if (Arrays.equals(packet.mProtocolData.rawOffloadPacket, rawOffloadPacket)) {
+                reference(packet);
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store a parsed packet and take a reference to it. If an identical packet was stored in the
+     * meantime, a reference to that packet is taken instead.
+     */
+    @NonNull
+    StoredPacket add(
+            long contentHash,
+            @NonNull IMdnsOffload.MdnsProtocolData protocolData,
+            @NonNull List<String> canonicalQNames) {
+        StoredPacket packet = acquire(contentHash, protocolData.rawOffloadPacket);
+        if (packet != null) {
+            return packet;
+        }
+        packet = new StoredPacket(contentHash, protocolData, canonicalQNames);
+        mPackets.computeIfAbsent(contentHash, key -> new ArrayList<>(1)).add(packet);
+        mPacketCount++;
+        mStoredBytes += protocolData.rawOffloadPacket.length;
+        reference(packet);
+        return packet;
+    }
+
+    /**
+     * Release a reference to a stored packet, dropping the packet if it was the last one.
+     */
+    void release(long contentHash, @NonNull IMdnsOffload.MdnsProtocolData protocolData) {
+        List<StoredPacket> bucket = mPackets.get(contentHash);
+        if (bucket == null) {
+            return;
+        }
+        for (StoredPacket packet : bucket) {
+            if (packet.mProtocolData != protocolData) {
+                continue;
+            }
+            int length = protocolData.rawOffloadPacket.length;
+            packet.mReferenceCount--;
+            mReferenceCount--;
+            mReferencedBytes -= length;
+            if (packet.mReferenceCount == 0) {
+                bucket.remove(packet);
+                if (bucket.isEmpty()) {
+                    mPackets.remove(contentHash);
+                }
+                mPacketCount--;
+                mStoredBytes -= length;
+            }
+            return;
+        }
+    }
+
+    private void reference(StoredPacket packet) {
+        packet.mReferenceCount++;
+        mReferenceCount++;
+        mReferencedBytes += packet.mProtocolData.rawOffloadPacket.length;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("stored packets=%d, references=%d, stored bytes=%d, saved bytes=%d"
+                .formatted(mPacketCount, mReferenceCount, mStoredBytes,
+                        mReferencedBytes - mStoredBytes));
+    }
+}
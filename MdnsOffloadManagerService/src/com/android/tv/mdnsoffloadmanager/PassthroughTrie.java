@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set of canonical QNAMEs, as produced by {@link PriorityListManager#canonicalQName}, stored as a
+ * trie of labels from the root down. Names under an entry share its path, so the entries that
+ * are parents of a name, or that are under a name, are found by walking its labels once.
+ * <p>
+ * Vendor services that match passthrough QNAMEs by suffix forward the queries for every name
+ * under an entry, such entries make the entries under them redundant.
+ */
+class PassthroughTrie {
+
+    private static final class Node {
+        final Map<String, Node> mChildren = new HashMap<>(2);
+        // The canonical QNAME of the node, if it is an entry.
+        String mEntry = null;
+    }
+
+    private final Node mRoot = new Node();
+    private int mSize = 0;
+
+    /**
+     * @return false if the name was already in the trie.
+     */
+    boolean add(@NonNull String canonicalQName) {
+        Node node = mRoot;
+        String[] labels = labels(canonicalQName);
+        for (int index = labels.length - 1; index >= 0; index--) {
+            node = node.mChildren.computeIfAbsent(labels[index], label -> new Node());
+        }
+        if (node.mEntry != null) {
+            return false;
+        }
+        node.mEntry = canonicalQName;
+        mSize++;
+        return true;
+    }
+
+    boolean contains(@NonNull String canonicalQName) {
+        Node node = find(canonicalQName);
+        return node != null && node.mEntry != null;
+    }
+
+    /**
+     * Whether a query for the given name matches an entry.
+     *
+     * @param suffixMatching whether entries also match the names under them.
+     */
+    boolean matches(@NonNull String canonicalQName, boolean suffixMatching) {
+        return contains(canonicalQName)
+                || (suffixMatching && hasParentEntry(canonicalQName));
+    }
+
+    /**
+     * Whether an entry is a parent of the given name, the name itself excluded.
+     */
+    boolean hasParentEntry(@NonNull String canonicalQName) {
+        Node node = mRoot;
+        String[] labels = labels(canonicalQName);
+        for (int index = labels.length - 1; index > 0; index--) {
+            if (node.mEntry != null) {
+                return true;
+            }
+            node = node.mChildren.get(labels[index]);
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.mEntry != null;
+    }
+
+    /**
+     * Remove the entries under the given name, the name itself excluded.
+     *
+     * @return The removed entries.
+     */
+    @NonNull
+    List<String> removeEntriesUnder(@NonNull String canonicalQName) {
+        List<String> removed = new ArrayList<>();
+        Node node = find(canonicalQName);
+        if (node == null) {
+            return removed;
+        }
+        List<Node> pending = new ArrayList<>(node.mChildren.values());
+        while (!pending.isEmpty()) {
+            Node child = pending.remove(pending.size() - 1);
+            if (child.mEntry != null) {
+                removed.add(child.mEntry);
+            }
+            pending.addAll(child.mChildren.values());
+        }
+        node.mChildren.clear();
+        mSize -= removed.size();
+        return removed;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private Node find(String canonicalQName) {
+        Node node = mRoot;
+        String[] labels = labels(canonicalQName);
+        for (int index = labels.length - 1; index >= 0 && node != null; index--) {
+            node = node.mChildren.get(labels[index]);
+        }
+        return node;
+    }
+
+    private static String[] labels(String canonicalQName) {
+        // Canonical names end with the root label, e.g. "_TCP.LOCAL.".
+        String name = canonicalQName.endsWith(".")
+                ? canonicalQName.substring(0, canonicalQName.length() - 1) : canonicalQName;
+        return name.isEmpty() ? new String[0] : name.split("\\.", -1);
+    }
+}
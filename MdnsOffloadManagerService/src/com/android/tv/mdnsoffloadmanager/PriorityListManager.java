@@ -4,17 +4,24 @@ import android.content.res.Resources;
 
 import androidx.annotation.NonNull;
 
-import java.util.Locale;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
-import device.google.atv.mdns_offload.IMdnsOffload;
-
 public class PriorityListManager {
 
     public static final int PRIORITIZED_QNAMES_ID = R.array.config_mdnsOffloadPriorityQnames;
+    public static final int ADAPTIVE_PRIORITY_ENABLED_ID =
+            R.bool.config_mdnsOffloadAdaptivePriorityEnabled;
+    public static final int HIT_DECAY_HALF_LIFE_PERIODS_ID =
+            R.integer.config_mdnsOffloadHitDecayHalfLifePeriods;
     private final Map<String, Integer> mPriorityMap;
+    private final MdnsNameTable mNameTable = new MdnsNameTable();
+    private final boolean mIsAdaptivePriorityEnabled;
+    // Factor applied to accumulated hits at the end of each standby period.
+    private final double mHitDecayFactor;
 
     PriorityListManager(@NonNull Resources resources) {
         String[] priorityList = resources.getStringArray(PRIORITIZED_QNAMES_ID);
@@ -27,29 +34,75 @@ public class PriorityListManager {
                 .collect(Collectors.toUnmodifiableMap(
                         index -> canonicalQName(priorityList[index]),
                         index -> -priorityListSize + index));
+        mIsAdaptivePriorityEnabled = resources.getBoolean(ADAPTIVE_PRIORITY_ENABLED_ID);
+        int halfLifePeriods = resources.getInteger(HIT_DECAY_HALF_LIFE_PERIODS_ID);
+        mHitDecayFactor = halfLifePeriods > 0 ? Math.pow(0.5, 1d / halfLifePeriods) : 1;
     }
 
     String canonicalQName(String qName) {
-        String upper = qName.toUpperCase(Locale.ROOT);
-        if (upper.endsWith(".")) {
-            return upper;
-        }
-        return upper + ".";
+        return mNameTable.intern(qName);
     }
 
     int getPriority(String qname, int defaultPriority) {
         return mPriorityMap.getOrDefault(canonicalQName(qname), defaultPriority);
     }
 
-    int getPriority(IMdnsOffload.MdnsProtocolData protocolData, int recordKey) {
-        return protocolData.matchCriteriaList.stream()
-                .mapToInt(mc -> {
-                    String qname = MdnsPacketParser.extractFullName(
-                            protocolData.rawOffloadPacket, mc.nameOffset);
-                    return getPriority(qname, recordKey);
-                })
-                .min()
-                .orElse(recordKey);
+    /**
+     * Get the priority of a record set from the canonical names of its RRNAMEs, as decoded by
+     * {@link MdnsPacketParser#parseResponsePacket}.
+     */
+    int getPriority(List<String> canonicalNames, int recordKey) {
+        int priority = recordKey;
+        for (int i = 0; i < canonicalNames.size(); i++) {
+            priority = Math.min(
+                    priority, mPriorityMap.getOrDefault(canonicalNames.get(i), recordKey));
+        }
+        return priority;
+    }
+
+    /**
+     * Decay hits accumulated over previous standby periods, so that services that stopped being
+     * queried eventually lose their precedence.
+     */
+    double decayHits(double hits) {
+        return hits * mHitDecayFactor;
+    }
+
+    /**
+     * Order offload intents by precedence. Records on the priority list come first, other records
+     * are ordered by their decayed hits, then first come first served.
+     *
+     * @param hits the decayed hits of the records, by record key.
+     */
+    Comparator<OffloadIntentStore.OffloadIntent> getHitsComparator(Map<Integer, Double> hits) {
+        return Comparator
+                .comparingInt((OffloadIntentStore.OffloadIntent offloadIntent) ->
+                        Math.min(offloadIntent.mPriority, 0))
+                .thenComparingDouble(offloadIntent ->
+                        -hits.getOrDefault(offloadIntent.mRecordKey, 0d))
+                .thenComparingInt(offloadIntent -> offloadIntent.mPriority);
+    }
+
+    /**
+     * Order offload intents in the order they are offloaded to the vendor service. The vendor
+     * service drops records once its memory is full, so records offloaded first are kept.
+     * <p>
+     * Without adaptive priority, only the priority list and the order of registration matter.
+     * With adaptive priority, records are ordered as by {@link #getHitsComparator}.
+     */
+    Comparator<OffloadIntentStore.OffloadIntent> getOffloadComparator(Map<Integer, Double> hits) {
+        if (mIsAdaptivePriorityEnabled) {
+            return getHitsComparator(hits);
+        }
+        return Comparator.comparingInt(offloadIntent -> offloadIntent.mPriority);
+    }
+
+    /**
+     * The name table shared by all parsed packets. Names on the priority list are interned on
+     * construction.
+     */
+    MdnsNameTable getNameTable() {
+        return mNameTable;
     }
 
 }
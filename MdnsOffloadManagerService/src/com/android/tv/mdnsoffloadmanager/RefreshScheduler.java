@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.PrintWriter;
+
+/**
+ * Coalesces refresh requests of a single network interface.
+ * <p>
+ * Clients tend to register many services in a burst, and each registration requests a refresh of
+ * the vendor state. Requests are recorded and the refresh runs once, after the coalescing window
+ * expires. A window of 0 still merges the requests that are already queued on the handler, since
+ * the refresh is posted behind them.
+ */
+@WorkerThread
+class RefreshScheduler {
+
+    /**
+     * Counters of a refresh scheduler, published for dumps.
+     */
+    static final class Stats {
+        final long mRequestCount;
+        final long mRefreshCount;
+
+        Stats(long requestCount, long refreshCount) {
+            mRequestCount = requestCount;
+            mRefreshCount = refreshCount;
+        }
+
+        void dump(PrintWriter writer) {
+            double mergeRatio = mRefreshCount == 0 ? 0 : (double) mRequestCount / mRefreshCount;
+            writer.println("refresh requests=%d, refreshes=%d, merge ratio=%.2f"
+                    .formatted(mRequestCount, mRefreshCount, mergeRatio));
+        }
+    }
+
+    private final Handler mHandler;
+    private final long mCoalescingWindowMs;
+    private final Runnable mRefreshProtocolResponses;
+    private final Runnable mRefreshPassthroughList;
+    private final Runnable mFlushRunnable = this::flush;
+    private boolean mProtocolResponsesRefreshPending = false;
+    private boolean mPassthroughListRefreshPending = false;
+    private boolean mFlushScheduled = false;
+    private long mRequestCount = 0;
+    private long mRefreshCount = 0;
+
+    RefreshScheduler(
+            @NonNull Handler handler,
+            long coalescingWindowMs,
+            @NonNull Runnable refreshProtocolResponses,
+            @NonNull Runnable refreshPassthroughList) {
+        mHandler = handler;
+        mCoalescingWindowMs = coalescingWindowMs;
+        mRefreshProtocolResponses = refreshProtocolResponses;
+        mRefreshPassthroughList = refreshPassthroughList;
+    }
+
+    void requestProtocolResponsesRefresh() {
+        mRequestCount++;
+        mProtocolResponsesRefreshPending = true;
+        scheduleFlush();
+    }
+
+    void requestPassthroughListRefresh() {
+        mRequestCount++;
+        mPassthroughListRefreshPending = true;
+        scheduleFlush();
+    }
+
+    /**
+     * Run the pending refreshes now, instead of waiting for the coalescing window to expire.
+     */
+    void flush() {
+        cancelFlush();
+        boolean refreshProtocolResponses = mProtocolResponsesRefreshPending;
+        boolean refreshPassthroughList = mPassthroughListRefreshPending;
+        mProtocolResponsesRefreshPending = false;
+        mPassthroughListRefreshPending = false;
+        if (refreshProtocolResponses) {
+            mRefreshCount++;
+            mRefreshProtocolResponses.run();
+        }
+        if (refreshPassthroughList) {
+            mRefreshCount++;
+            mRefreshPassthroughList.run();
+        }
+    }
+
+    /**
+     * Drop the pending refreshes, the caller is about to refresh or clear all state.
+     */
+    void cancel() {
+        cancelFlush();
+        mProtocolResponsesRefreshPending = false;
+        mPassthroughListRefreshPending = false;
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+        if (mCoalescingWindowMs > 0) {
+            mHandler.postDelayed(mFlushRunnable, mCoalescingWindowMs);
+        } else {
+            mHandler.post(mFlushRunnable);
+        }
+    }
+
+    private void cancelFlush() {
+        if (mFlushScheduled) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+        }
+    }
+
+    @NonNull
+    Stats getStats() {
+        return new Stats(mRequestCount, mRefreshCount);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.os.Trace;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures the transitions to standby, from the screen off broadcast until the vendor service
+ * enabled offload. Each phase is traced as an async section for systrace and perfetto, and its
+ * latency is aggregated in a histogram for dumps. The phases are:
+ * <ul>
+ * <li>queued: the broadcast waits for the handler thread.
+ * <li>flush: the pending refreshes of all network interfaces are flushed, and written to the
+ * vendor service.
+ * <li>offload state: the setOffloadState call waits for the calls submitted before it, and
+ * runs.
+ * </ul>
+ * The total time and the time the wakelock is held are aggregated as well. The vendor calls are
+ * traced on their own, see {@link VendorCallQueue}.
+ */
+class StandbyTransitionTracer {
+
+    private static final String TRACE_PREFIX = "MdnsOffload:";
+    private static final String TRACE_TRANSITION = TRACE_PREFIX + "standby";
+    private static final String TRACE_QUEUED = TRACE_PREFIX + "standby queued";
+    private static final String TRACE_FLUSH = TRACE_PREFIX + "standby flush";
+    private static final String TRACE_OFFLOAD_STATE = TRACE_PREFIX + "standby offload state";
+
+    private final LongSupplier mElapsedRealtime;
+    // Guarded by this, transitions run on the handler thread and dumps on binder threads.
+    private final LatencyHistogram mQueued = new LatencyHistogram("queued");
+    private final LatencyHistogram mFlush = new LatencyHistogram("flush");
+    private final LatencyHistogram mOffloadState = new LatencyHistogram("offload state");
+    private final LatencyHistogram mTotal = new LatencyHistogram("total");
+    private final LatencyHistogram mWakeLockHeld = new LatencyHistogram("wakelock held");
+    private int mNextCookie = 0;
+
+    /**
+     * @param elapsedRealtime the clock, in milliseconds.
+     */
+    StandbyTransitionTracer(@NonNull LongSupplier elapsedRealtime) {
+        mElapsedRealtime = elapsedRealtime;
+    }
+
+    /**
+     * Start measuring a transition, when the screen off broadcast is received.
+     */
+    @NonNull
+    Transition begin() {
+        int cookie;
+        synchronized (this) {
+            cookie = mNextCookie++;
+        }
+        return new Transition(cookie, mElapsedRealtime.getAsLong());
+    }
+
+    private synchronized void record(LatencyHistogram histogram, long latencyMs) {
+        histogram.record(latencyMs);
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("StandbyTransitionTracer:");
+        mQueued.dump(writer);
+        mFlush.dump(writer);
+        mOffloadState.dump(writer);
+        mTotal.dump(writer);
+        mWakeLockHeld.dump(writer);
+        writer.println();
+    }
+
+    /**
+     * A transition to standby. Its phases are reported in order, from the handler thread except
+     * for the broadcast.
+     */
+    final class Transition {
+        private final int mCookie;
+        private final long mReceivedMs;
+        private long mPhaseStartMs;
+        private long mWakeLockAcquiredMs;
+
+        private Transition(int cookie, long receivedMs) {
+            mCookie = cookie;
+            mReceivedMs = receivedMs;
+            mPhaseStartMs = receivedMs;
+            Trace.beginAsyncSection(TRACE_TRANSITION, cookie);
+            Trace.beginAsyncSection(TRACE_QUEUED, cookie);
+        }
+
+        /**
+         * The handler started the transition, and acquired the wakelock.
+         */
+        void onStarted() {
+            mWakeLockAcquiredMs = endPhase(TRACE_QUEUED, mQueued);
+            Trace.beginAsyncSection(TRACE_FLUSH, mCookie);
+        }
+
+        /**
+         * All network interfaces flushed their pending refreshes.
+         */
+        void onFlushed() {
+            endPhase(TRACE_FLUSH, mFlush);
+            Trace.beginAsyncSection(TRACE_OFFLOAD_STATE, mCookie);
+        }
+
+        /**
+         * The vendor service enabled offload, or failed to, and the wakelock was released.
+         */
+        void onOffloadEnabled() {
+            long nowMs = endPhase(TRACE_OFFLOAD_STATE, mOffloadState);
+            record(mTotal, nowMs - mReceivedMs);
+            record(mWakeLockHeld, nowMs - mWakeLockAcquiredMs);
+            Trace.endAsyncSection(TRACE_TRANSITION, mCookie);
+        }
+
+        /**
+         * The screen turned on before all network interfaces flushed their pending refreshes,
+         * offload is not enabled. The transition is not aggregated.
+         */
+        void onCancelled() {
+            Trace.endAsyncSection(TRACE_FLUSH, mCookie);
+            Trace.endAsyncSection(TRACE_TRANSITION, mCookie);
+        }
+
+        private long endPhase(String traceName, LatencyHistogram histogram) {
+            long nowMs = mElapsedRealtime.getAsLong();
+            Trace.endAsyncSection(traceName, mCookie);
+            record(histogram, nowMs - mPhaseStartMs);
+            mPhaseStartMs = nowMs;
+            return nowMs;
+        }
+    }
+}
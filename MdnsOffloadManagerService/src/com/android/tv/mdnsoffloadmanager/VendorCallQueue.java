@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.os.Handler;
+import android.os.Trace;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs the binder calls to the vendor service on a dedicated thread, so that a slow or hung
+ * vendor service does not block the handler thread.
+ * <p>
+ * Calls run in the order they are submitted, and their results are delivered on the handler
+ * thread in the same order. At most a bounded number of calls are handed to the executor at
+ * once, further calls are held and handed over as earlier calls complete, so that bursts of
+ * calls, e.g. one per record on vendor services without batch methods, are throttled rather than
+ * failed.
+ * <p>
+ * Each call has a deadline, counted from the moment it starts running: a call that misses it
+ * completes with its failure result. Such a call may still change the vendor state later, so the
+ * vendor service is considered stalled and further calls fail right away until that call
+ * returns. Calls handed to the executor also have a longer limit on the time they wait before
+ * running, a call that exceeds it is skipped and completes with its failure result.
+ * <p>
+ * When calls failed this way, the vendor state may differ from what the callers expect. Once no
+ * call is pending and the vendor service is not stalled, the resync callback is posted so that
+ * the vendor state can be read back and the desired state applied again.
+ * <p>
+ * A call that throws completes with its failure result as well, and the vendor state is resynced
+ * afterwards.
+ * <p>
+ * Each binder call is traced as a section of the executor thread, named after the call.
+ */
+@WorkerThread
+class VendorCallQueue {
+
+    private static final String TAG = VendorCallQueue.class.getSimpleName();
+    private static final String TRACE_PREFIX = "MdnsOffload:";
+
+    private enum State { QUEUED, RUNNING, FINISHED, SKIPPED, TIMED_OUT }
+
+    /**
+     * A call to the vendor service, run on the executor and completed on the handler thread.
+     */
+    private final class Call<T> implements Runnable {
+        final String mName;
+        final long mTimeoutMs;
+        final Supplier<T> mCall;
+        final T mFailureResult;
+        final Consumer<T> mOnComplete;
+        final Runnable mOnDeadline = this::onDeadline;
+        final Runnable mOnQueueDeadline = this::onQueueDeadline;
+        // Guarded by this, the only state shared with the executor thread.
+        private State mState = State.QUEUED;
+        // Accessed on the handler thread only.
+        private boolean mIsInFlight = false;
+        private boolean mIsResolved = false;
+        private T mResult;
+
+        Call(String name, long timeoutMs, Supplier<T> call, T failureResult,
+                Consumer<T> onComplete) {
+            mName = name;
+            mTimeoutMs = timeoutMs;
+            mCall = call;
+            mFailureResult = failureResult;
+            mOnComplete = onComplete;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mState != State.QUEUED) {
+                    return;
+                }
+                mState = State.RUNNING;
+            }
+            mHandler.removeCallbacks(mOnQueueDeadline);
+            mHandler.postDelayed(mOnDeadline, mTimeoutMs);
+            T result;
+            boolean threw = false;
+            Trace.beginSection(TRACE_PREFIX + mName);
+            try {
+                result = mCall.get();
+            } catch (Throwable e) {
+                Log.e(TAG, "Vendor call " + mName + " threw.", e);
+                result = mFailureResult;
+                threw = true;
+            } finally {
+                Trace.endSection();
+            }
+            boolean missedDeadline;
+            synchronized (this) {
+                missedDeadline = mState == State.TIMED_OUT;
+                mState = State.FINISHED;
+            }
+            if (missedDeadline) {
+                runOnHandler(() -> onStalledCallReturned(this));
+            } else if (threw) {
+                T failureResult = result;
+                runOnHandler(() -> {
+                    mIsResyncNeeded = true;
+                    resolve(this, failureResult);
+                });
+            } else {
+                T finalResult = result;
+                runOnHandler(() -> resolve(this, finalResult));
+            }
+        }
+
+        private void onDeadline() {
+            synchronized (this) {
+                if (mState != State.RUNNING) {
+                    // The result is already on its way to the handler thread.
+                    return;
+                }
+                mState = State.TIMED_OUT;
+            }
+            Log.e(TAG, "Vendor call " + mName + " missed its deadline while running.");
+            mIsStalled = true;
+            mTimeoutCount++;
+            mIsResyncNeeded = true;
+            resolve(this, mFailureResult);
+        }
+
+        private void onQueueDeadline() {
+            synchronized (this) {
+                if (mState != State.QUEUED) {
+                    return;
+                }
+                mState = State.SKIPPED;
+            }
+            Log.e(TAG, "Vendor call " + mName + " waited too long to start, skipping it.");
+            mTimeoutCount++;
+            mIsResyncNeeded = true;
+            resolve(this, mFailureResult);
+        }
+
+        void complete() {
+            mOnComplete.accept(mResult);
+        }
+    }
+
+    private final Handler mHandler;
+    private final Executor mExecutor;
+    private final int mMaxInFlightCalls;
+    private final long mQueueTimeoutMs;
+    private final Runnable mResync;
+    // In submission order, results are delivered from the head once resolved.
+    private final ArrayDeque<Call<?>> mPendingCalls = new ArrayDeque<>();
+    // Calls not handed to the executor yet, in submission order.
+    private final ArrayDeque<Call<?>> mHeldCalls = new ArrayDeque<>();
+    private int mInFlightCallCount = 0;
+    private boolean mIsDelivering = false;
+    private boolean mIsDispatching = false;
+    private boolean mIsResyncNeeded = false;
+    // Written on the handler thread only, volatile so that dumps read them from binder threads.
+    private volatile int mPendingCallCount = 0;
+    private volatile boolean mIsStalled = false;
+    private volatile long mTimeoutCount = 0;
+    private volatile long mDroppedCount = 0;
+
+    /**
+     * @param maxInFlightCalls calls handed to the executor at once, further calls are held.
+     * @param queueTimeoutMs   limit on the time a call handed to the executor waits to run.
+     */
+    VendorCallQueue(
+            @NonNull Handler handler,
+            @NonNull Executor executor,
+            int maxInFlightCalls,
+            long queueTimeoutMs,
+            @NonNull Runnable resync) {
+        mHandler = handler;
+        mExecutor = executor;
+        mMaxInFlightCalls = maxInFlightCalls;
+        mQueueTimeoutMs = queueTimeoutMs;
+        mResync = resync;
+    }
+
+    /**
+     * Submit a call to the vendor service.
+     *
+     * @param name          name of the call, for logs.
+     * @param timeoutMs     deadline of the call, from the moment it starts running.
+     * @param call          the binder call, run on the executor.
+     * @param failureResult result delivered if the call is dropped, throws or misses its deadline.
+     * @param onComplete    receives the result on the handler thread.
+     */
+    <T> void submit(
+            @NonNull String name,
+            long timeoutMs,
+            @NonNull Supplier<T> call,
+            T failureResult,
+            @NonNull Consumer<T> onComplete) {
+        Call<T> pendingCall = new Call<>(name, timeoutMs, call, failureResult, onComplete);
+        mPendingCalls.add(pendingCall);
+        mPendingCallCount = mPendingCalls.size();
+        mHeldCalls.add(pendingCall);
+        dispatchHeldCalls();
+    }
+
+    /**
+     * Fail a call without running it, e.g. because no vendor service is connected. Its failure
+     * result is delivered in submission order, like the results of other calls.
+     */
+    <T> void reject(@NonNull String name, T failureResult, @NonNull Consumer<T> onComplete) {
+        Log.e(TAG, "Rejecting vendor call " + name + ", no vendor service.");
+        Call<T> rejectedCall =
+                new Call<>(name, 0, () -> failureResult, failureResult, onComplete);
+        mPendingCalls.add(rejectedCall);
+        mPendingCallCount = mPendingCalls.size();
+        mDroppedCount++;
+        resolve(rejectedCall, failureResult);
+    }
+
+    /**
+     * Forget the stall and resync state of the previous vendor service, when a vendor service
+     * connects or disconnects. The new vendor service is reset and written from scratch, and a
+     * call still running on the previous one can no longer change its state.
+     */
+    void reset() {
+        mIsStalled = false;
+        mIsResyncNeeded = false;
+    }
+
+    private void runOnHandler(Runnable runnable) {
+        if (mHandler.getLooper().isCurrentThread()) {
+            runnable.run();
+        } else {
+            mHandler.post(runnable);
+        }
+    }
+
+    /**
+     * Hand held calls to the executor, as long as fewer than the maximum are in flight. While the
+     * vendor service is stalled, held calls fail right away.
+     */
+    private void dispatchHeldCalls() {
+        // Dropped calls complete right away, and their completions may submit calls.
+        if (mIsDispatching) {
+            return;
+        }
+        mIsDispatching = true;
+        try {
+            while (!mHeldCalls.isEmpty()
+                    && (mIsStalled || mInFlightCallCount < mMaxInFlightCalls)) {
+                Call<?> call = mHeldCalls.poll();
+                if (mIsStalled) {
+                    drop(call);
+                    continue;
+                }
+                call.mIsInFlight = true;
+                mInFlightCallCount++;
+                mHandler.postDelayed(call.mOnQueueDeadline, mQueueTimeoutMs);
+                mExecutor.execute(call);
+            }
+        } finally {
+            mIsDispatching = false;
+        }
+    }
+
+    private <T> void drop(Call<T> call) {
+        Log.e(TAG, "Dropping vendor call " + call.mName + ", vendor service stalled.");
+        mDroppedCount++;
+        mIsResyncNeeded = true;
+        resolve(call, call.mFailureResult);
+    }
+
+    private <T> void resolve(Call<T> call, T result) {
+        if (call.mIsResolved) {
+            return;
+        }
+        mHandler.removeCallbacks(call.mOnDeadline);
+        mHandler.removeCallbacks(call.mOnQueueDeadline);
+        call.mResult = result;
+        call.mIsResolved = true;
+        if (call.mIsInFlight) {
+            call.mIsInFlight = false;
+            mInFlightCallCount--;
+        }
+        deliverResults();
+        dispatchHeldCalls();
+    }
+
+    private void deliverResults() {
+        // Completions may submit calls that resolve right away, they are delivered by this loop.
+        if (mIsDelivering) {
+            return;
+        }
+        mIsDelivering = true;
+        try {
+            while (!mPendingCalls.isEmpty() && mPendingCalls.peek().mIsResolved) {
+                Call<?> call = mPendingCalls.poll();
+                mPendingCallCount = mPendingCalls.size();
+                call.complete();
+            }
+        } finally {
+            mIsDelivering = false;
+        }
+        maybeResync();
+    }
+
+    private void onStalledCallReturned(Call<?> call) {
+        Log.i(TAG, "Stalled vendor call " + call.mName + " returned.");
+        mIsStalled = false;
+        maybeResync();
+    }
+
+    private void maybeResync() {
+        if (mIsResyncNeeded && !mIsStalled && mPendingCalls.isEmpty()) {
+            mIsResyncNeeded = false;
+            mHandler.post(mResync);
+        }
+    }
+
+    /**
+     * Dump the counters of the queue, from any thread.
+     */
+    void dump(PrintWriter writer) {
+        writer.println("vendor calls: pending=%d, stalled=%b, timeouts=%d, dropped=%d"
+                .formatted(mPendingCallCount, mIsStalled, mTimeoutCount, mDroppedCount));
+    }
+}
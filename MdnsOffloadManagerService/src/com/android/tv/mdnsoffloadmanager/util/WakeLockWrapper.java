@@ -20,9 +20,13 @@ public class WakeLockWrapper {
     }
 
     /**
+     * Release the wakelock, unless its timeout already released it.
+     *
      * @see PowerManager.WakeLock#release()
      */
     public void release() {
-        mLock.release();
+        if (mLock.isHeld()) {
+            mLock.release();
+        }
     }
 }
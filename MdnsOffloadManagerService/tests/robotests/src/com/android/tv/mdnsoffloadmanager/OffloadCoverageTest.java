@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.res.Resources;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.UserHandle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import device.google.atv.mdns_offload.IMdnsOffloadManager;
+
+/**
+ * Runs the offload pipeline end to end on the host JVM, with Robolectric standing in for the
+ * framework. Intents registered in an {@link OffloadIntentStore} are written by an
+ * {@link InterfaceOffloadManager} to a {@link SimulatedMdnsOffloadService}, which then answers a
+ * synthetic query trace the way the offload hardware would during standby.
+ * <p>
+ * The trace asks for every answer of the offloaded packets, the first instances of each service
+ * more often than the others. Runs sweep the memory budget of the vendor service, and report the
+ * questions answered per kilobyte of offload memory.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class OffloadCoverageTest {
+
+    private static final String IFC_0 = "eth0";
+    private static final int APP_UID = 10_000;
+    private static final int INSTANCES_PER_SERVICE = 8;
+    private static final int[] BUDGETS_BYTES = {256, 512, 1_024, 2_048, 4_096, 8_192};
+
+    /**
+     * Outcome of the query trace with a given memory budget.
+     */
+    private static final class Run {
+        final int mAnsweredQuestions;
+        final int mUnansweredQuestions;
+        final int mBytesInUse;
+
+        Run(int answeredQuestions, int unansweredQuestions, int bytesInUse) {
+            mAnsweredQuestions = answeredQuestions;
+            mUnansweredQuestions = unansweredQuestions;
+            mBytesInUse = bytesInUse;
+        }
+    }
+
+    private final IBinder mClientToken = new Binder();
+    private final List<IMdnsOffloadManager.OffloadServiceInfo> mServices = new ArrayList<>();
+    private final List<byte[]> mQueries = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        for (int instance = 0; instance < INSTANCES_PER_SERVICE; instance++) {
+            for (String service : PacketCorpus.SERVICES) {
+                IMdnsOffloadManager.OffloadServiceInfo serviceInfo =
+                        PacketCorpus.makeServiceInfo(service, instance);
+                mServices.add(serviceInfo);
+                for (int repeat = instance; repeat < INSTANCES_PER_SERVICE; repeat++) {
+                    mQueries.addAll(makeQueries(serviceInfo.rawOffloadPacket));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void withoutMemoryBudget_answersEveryQuestion() {
+        Run run = runQueryTrace(-1);
+
+        assertEquals(mQueries.size(), run.mAnsweredQuestions);
+        assertEquals(0, run.mUnansweredQuestions);
+    }
+
+    @Test
+    public void withMemoryBudget_answersMoreQuestionsAsBudgetGrows() {
+        int previousAnsweredQuestions = 0;
+        StringBuilder results = new StringBuilder("Offload coverage:");
+        for (int budgetBytes : BUDGETS_BYTES) {
+            Run run = runQueryTrace(budgetBytes);
+            String result = ("budget of %d bytes: answered %d/%d questions with %d bytes, "
+                    + "%.1f answered questions per KB").formatted(
+                    budgetBytes, run.mAnsweredQuestions, mQueries.size(), run.mBytesInUse,
+                    run.mAnsweredQuestions * 1_024d / Math.max(run.mBytesInUse, 1));
+            results.append("\n  ").append(result);
+
+            assertTrue(result, run.mBytesInUse <= budgetBytes);
+            assertTrue(result, run.mAnsweredQuestions >= previousAnsweredQuestions);
+            assertEquals(result,
+                    mQueries.size(), run.mAnsweredQuestions + run.mUnansweredQuestions);
+            previousAnsweredQuestions = run.mAnsweredQuestions;
+        }
+        assertTrue(results.toString(), previousAnsweredQuestions > 0);
+        // The only output of the test, the service logs stay out of the way.
+        System.out.println(results);
+    }
+
+    /**
+     * Offload all services on a vendor service with the given memory budget, enable offload and
+     * feed the query trace to the vendor service.
+     */
+    private Run runQueryTrace(int budgetBytes) {
+        Handler handler = new Handler(Looper.getMainLooper());
+        Resources resources = mock(Resources.class);
+        when(resources.getStringArray(PriorityListManager.PRIORITIZED_QNAMES_ID))
+                .thenReturn(PacketCorpus.PRIORITY_LIST.clone());
+        PriorityListManager priorityListManager = new PriorityListManager(resources);
+        OffloadIntentStore store = new OffloadIntentStore(priorityListManager, true);
+        store.setAppIdAllowlist(Set.of(UserHandle.getAppId(APP_UID)));
+        OffloadWriter offloadWriter = new OffloadWriter(handler, Runnable::run, () -> {});
+        InterfaceOffloadManager manager = new InterfaceOffloadManager(IFC_0, store,
+                priorityListManager, offloadWriter,
+                new OffloadMetrics(SystemClock::elapsedRealtime), handler, 0, 0, state -> {});
+        SimulatedMdnsOffloadService vendorService =
+                new SimulatedMdnsOffloadService(budgetBytes, -1, false);
+        offloadWriter.connectVendorService(vendorService, () -> {});
+        manager.onVendorServiceConnected(null);
+        manager.onNetworkAvailable();
+        for (IMdnsOffloadManager.OffloadServiceInfo serviceInfo : mServices) {
+            store.registerOffloadIntent(IFC_0, serviceInfo, mClientToken, APP_UID);
+        }
+        manager.requestProtocolResponsesRefresh();
+        manager.flushPendingRefreshes();
+        offloadWriter.setOffloadState(true);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        for (byte[] query : mQueries) {
+            vendorService.receiveQuery(IFC_0, query);
+        }
+        return new Run(
+                vendorService.getAnsweredQuestions(),
+                vendorService.getForwardedQuestions() + vendorService.getDroppedQuestions(),
+                vendorService.getBytesInUse(IFC_0));
+    }
+
+    /**
+     * Build a query per answer of the given packet, asking for its RRNAME and RRTYPE.
+     */
+    private static List<byte[]> makeQueries(byte[] packet) {
+        List<byte[]> queries = new ArrayList<>();
+        for (MdnsPacketParser.MatchCriteria criteria :
+                MdnsPacketParser.extractMatchCriteria(packet)) {
+            queries.add(SimulatedMdnsOffloadService.makeQuery(criteria.type,
+                    MdnsPacketParser.extractFullName(packet, criteria.nameOffset)));
+        }
+        return queries;
+    }
+}
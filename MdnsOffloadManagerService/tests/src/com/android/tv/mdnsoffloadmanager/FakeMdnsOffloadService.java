@@ -42,6 +42,8 @@ public class FakeMdnsOffloadService extends IMdnsOffload.Stub {
         final List<String> passthroughQNames = new ArrayList<>();
     }
 
+    int mInterfaceVersion = 1;
+    boolean mPassthroughSuffixMatching = false;
     boolean mOffloadState = false;
     int mNextId = 0;
     int mMissCounter = 0;
@@ -154,9 +156,98 @@ public class FakeMdnsOffloadService extends IMdnsOffload.Stub {
         log("Set PT behavior to %d for iface %s", behavior, iface);
     }
 
+    @Override
+    public int[] addProtocolResponsesBatch(String iface, MdnsProtocolData[] protocolData)
+        throws RemoteException {
+        int[] recordKeys = new int[protocolData.length];
+        for (int i = 0; i < protocolData.length; i++) {
+            recordKeys[i] = addProtocolResponses(iface, protocolData[i]);
+        }
+        return recordKeys;
+    }
+
+    @Override
+    public void removeProtocolResponsesBatch(int[] recordKeys) throws RemoteException {
+        for (int recordKey : recordKeys) {
+            removeProtocolResponses(recordKey);
+        }
+    }
+
+    @Override
+    public boolean[] addToPassthroughListBatch(String iface, String[] qnames)
+        throws RemoteException {
+        boolean[] added = new boolean[qnames.length];
+        for (int i = 0; i < qnames.length; i++) {
+            added[i] = addToPassthroughList(iface, qnames[i]);
+        }
+        return added;
+    }
+
+    @Override
+    public void removeFromPassthroughListBatch(String iface, String[] qnames)
+        throws RemoteException {
+        for (String qname : qnames) {
+            removeFromPassthroughList(iface, qname);
+        }
+    }
+
+    @Override
+    public OffloadCapacity getOffloadCapacity(String iface) throws RemoteException {
+        OffloadCapacity capacity = new OffloadCapacity();
+        capacity.maxProtocolResponses = OFFLOAD_CAPACITY;
+        capacity.maxPassthroughQNames = PASSTHROUGH_CAPACITY;
+        capacity.passthroughSuffixMatching = mPassthroughSuffixMatching;
+        return capacity;
+    }
+
+    @Override
+    public InterfaceOffloadState[] getOffloadState() throws RemoteException {
+        List<InterfaceOffloadState> states = new ArrayList<>();
+        mOffloadDataByInterface.forEach((iface, offloadData) -> {
+            InterfaceOffloadState state = new InterfaceOffloadState();
+            state.networkInterface = iface;
+            state.protocolResponses = offloadData.offloadedRecords
+                    .stream()
+                    .map(protocolData -> {
+                        OffloadedProtocolResponse response = new OffloadedProtocolResponse();
+                        response.recordKey = mProtocolDataById.entrySet()
+                                .stream()
+                                .filter(entry -> entry.getValue() == protocolData)
+                                .findFirst()
+                                .orElseThrow()
+                                .getKey();
+                        response.contentDigest = fnv1a64(protocolData.rawOffloadPacket);
+                        return response;
+                    })
+                    .toArray(OffloadedProtocolResponse[]::new);
+            state.passthroughList = offloadData.passthroughQNames.toArray(new String[0]);
+            state.passthroughBehavior = offloadData.passthroughBehavior;
+            states.add(state);
+        });
+        return states.toArray(new InterfaceOffloadState[0]);
+    }
+
+    @Override
+    public int[] getAndResetHitCounterBatch(int[] recordKeys) throws RemoteException {
+        int[] hitCounters = new int[recordKeys.length];
+        for (int i = 0; i < recordKeys.length; i++) {
+            hitCounters[i] = getAndResetHitCounter(recordKeys[i]);
+        }
+        return hitCounters;
+    }
+
+    private static long fnv1a64(byte[] data) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
     @Override
     public int getInterfaceVersion() throws RemoteException {
-        return 0;
+        return mInterfaceVersion;
     }
 
     @Override
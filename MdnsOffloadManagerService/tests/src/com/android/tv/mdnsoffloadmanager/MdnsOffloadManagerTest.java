@@ -20,15 +20,18 @@ import static android.net.NetworkCapabilities.TRANSPORT_ETHERNET;
 import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
 
 import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_AIRPLAY;
+import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_AIRPLAY_UNCOMPRESSED;
 import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_ATV;
 import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_GOOGLECAST;
 import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_GTV;
+import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_TV;
 import static com.android.tv.mdnsoffloadmanager.TestHelpers.makeIntent;
 import static com.android.tv.mdnsoffloadmanager.TestHelpers.makeLinkProperties;
 import static com.android.tv.mdnsoffloadmanager.TestHelpers.makeLowPowerStandbyPolicy;
 import static com.android.tv.mdnsoffloadmanager.TestHelpers.verifyOffloadedServices;
 import static com.android.tv.mdnsoffloadmanager.TestHelpers.verifyPassthroughQNames;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -42,9 +45,14 @@ import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.notNull;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -59,6 +67,7 @@ import android.content.res.Resources;
 import android.net.ConnectivityManager;
 import android.net.ConnectivityManager.NetworkCallback;
 import android.net.Network;
+import android.net.Uri;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
@@ -71,19 +80,38 @@ import androidx.test.filters.SmallTest;
 import com.android.tv.mdnsoffloadmanager.MdnsOffloadManagerService.Injector;
 import com.android.tv.mdnsoffloadmanager.util.WakeLockWrapper;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import device.google.atv.mdns_offload.IMdnsOffload;
 import device.google.atv.mdns_offload.IMdnsOffload.MdnsProtocolData;
 import device.google.atv.mdns_offload.IMdnsOffload.MdnsProtocolData.MatchCriteria;
 import device.google.atv.mdns_offload.IMdnsOffload.PassthroughBehavior;
@@ -123,6 +151,8 @@ public class MdnsOffloadManagerTest {
     PackageManager mPackageManager;
     @Mock
     WakeLockWrapper mWakeLock;
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
     @Spy
     FakeMdnsOffloadService mVendorService = new FakeMdnsOffloadService();
     @Captor
@@ -134,10 +164,17 @@ public class MdnsOffloadManagerTest {
     ServiceConnection mCapturedVendorServiceConnection;
     BroadcastReceiver mCapturedScreenBroadcastReceiver;
     BroadcastReceiver mCapturedLowPowerStandbyPolicyReceiver;
+    BroadcastReceiver mCapturedPackageChangeReceiver;
     MdnsOffloadManagerService mOffloadManagerService;
     IMdnsOffloadManager mOffloadManagerBinder;
     boolean mIsInteractive;
     int mCallingUid;
+    long mElapsedRealtimeMs;
+    // Runs vendor calls inline by default, so that they complete before the handler returns.
+    Executor mVendorCallExecutor = Runnable::run;
+    List<TestLooper> mLaneLoopers = new ArrayList<>();
+    // Lane of each vendor call made on the executor of a lane.
+    List<Integer> mLaneVendorCalls = new ArrayList<>();
     PowerManager.LowPowerStandbyPolicy mLowPowerStandbyPolicy;
 
     @Before
@@ -167,6 +204,26 @@ public class MdnsOffloadManagerTest {
                 return mTestLooper.getLooper();
             }
 
+            @Override
+            synchronized Executor getVendorCallExecutor() {
+                return runnable -> mVendorCallExecutor.execute(runnable);
+            }
+
+            @Override
+            Looper getLaneLooper(int lane) {
+                TestLooper laneLooper = new TestLooper();
+                mLaneLoopers.add(laneLooper);
+                return laneLooper.getLooper();
+            }
+
+            @Override
+            Executor getLaneVendorCallExecutor(int lane) {
+                return runnable -> {
+                    mLaneVendorCalls.add(lane);
+                    mVendorCallExecutor.execute(runnable);
+                };
+            }
+
             @Override
             boolean isInteractive() {
                 return mIsInteractive;
@@ -177,6 +234,16 @@ public class MdnsOffloadManagerTest {
                 return mCallingUid;
             }
 
+            @Override
+            long elapsedRealtime() {
+                return mElapsedRealtimeMs;
+            }
+
+            @Override
+            File getSnapshotFile() {
+                return new File(mTemporaryFolder.getRoot(), "offload_snapshot");
+            }
+
             @Override
             ConnectivityManager getConnectivityManager() {
                 return mConnectivityManager;
@@ -213,15 +280,21 @@ public class MdnsOffloadManagerTest {
 
             @Override
             void registerReceiver(BroadcastReceiver receiver, IntentFilter filter, int flags) {
-                if (filter.countActions() == 2 &&
+                if (filter.countActions() == 3 &&
                         filter.hasAction(Intent.ACTION_SCREEN_ON) &&
-                        filter.hasAction(Intent.ACTION_SCREEN_OFF)) {
+                        filter.hasAction(Intent.ACTION_SCREEN_OFF) &&
+                        filter.hasAction(Intent.ACTION_DREAMING_STARTED)) {
                     mCapturedScreenBroadcastReceiver = receiver;
                     return;
                 } else if (filter.countActions() == 1 &&
                         filter.hasAction(PowerManager.ACTION_LOW_POWER_STANDBY_POLICY_CHANGED)) {
                     mCapturedLowPowerStandbyPolicyReceiver = receiver;
                     return;
+                } else if (filter.countActions() == 2 &&
+                        filter.hasAction(Intent.ACTION_PACKAGE_ADDED) &&
+                        filter.hasAction(Intent.ACTION_PACKAGE_REMOVED)) {
+                    mCapturedPackageChangeReceiver = receiver;
+                    return;
                 }
                 fail("Unexpected broadcast receiver registered.");
             }
@@ -239,8 +312,12 @@ public class MdnsOffloadManagerTest {
     }
 
     private void bindVendorService() {
+        bindVendorService(mVendorService);
+    }
+
+    private void bindVendorService(IMdnsOffload vendorService) {
         mCapturedVendorServiceConnection.onServiceConnected(
-                VENDOR_SERVICE_COMPONENT, mVendorService);
+                VENDOR_SERVICE_COMPONENT, vendorService.asBinder());
         mTestLooper.dispatchAll();
     }
 
@@ -260,6 +337,25 @@ public class MdnsOffloadManagerTest {
         mTestLooper.dispatchAll();
     }
 
+    private void enterAndExitStandby() {
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_ON));
+        mTestLooper.dispatchAll();
+    }
+
+    private void restartOffloadManager() {
+        // Let the service write its snapshot before it is killed.
+        mTestLooper.moveTimeForward(1000);
+        mTestLooper.dispatchAll();
+        reset(mConnectivityManager);
+        createOffloadManager();
+        bindVendorService();
+        registerNetwork(mNetwork0, IFC_0);
+    }
+
     private void setupDefaultOffloadManager() {
         createOffloadManager();
         bindVendorService();
@@ -394,6 +490,165 @@ public class MdnsOffloadManagerTest {
                 mVendorService, IFC_0, SERVICE_GOOGLECAST, SERVICE_ATV, SERVICE_GTV);
     }
 
+    @Test
+    public void whenOutOfMemoryCapacity_doesNotRetryRejectedRecords() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_TV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_GTV, SERVICE_AIRPLAY);
+        reset(mVendorService); // Forget the rejected insertion.
+
+        registerNetwork(mNetwork0, IFC_0); // Refreshes offloaded records.
+
+        verify(mVendorService, never()).addProtocolResponses(anyString(), any());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_GTV, SERVICE_AIRPLAY);
+    }
+
+    @Test
+    public void whenVendorCallFails_retriesRecordSetOfSameSize() throws RemoteException {
+        setupDefaultOffloadManager();
+        doThrow(new RemoteException()).doCallRealMethod()
+                .when(mVendorService).addProtocolResponses(anyString(), any());
+        int recordKey = mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        verifyOffloadedServices(mVendorService, IFC_0);
+
+        // A failed call does not tell the vendor service is out of memory.
+        mOffloadManagerBinder.removeProtocolResponses(recordKey, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verify(mVendorService, times(2)).addProtocolResponses(anyString(), any());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+    }
+
+    @Test
+    public void whenOutOfMemoryCapacity_recordsWithMostHitsAreKept() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_TV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        // Offload keys of SERVICE_GTV and SERVICE_AIRPLAY.
+        mVendorService.mHitCounters.put(1, 3);
+        mVendorService.mHitCounters.put(2, 7);
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_ON));
+        mTestLooper.dispatchAll();
+
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GOOGLECAST, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        // SERVICE_ATV had no hits, it makes room for the record on the priority list.
+        verifyOffloadedServices(
+                mVendorService, IFC_0, SERVICE_GOOGLECAST, SERVICE_GTV, SERVICE_AIRPLAY);
+    }
+
+    @Test
+    public void whenBatchSupported_retrievesHitCountersInOneCall() throws RemoteException {
+        mVendorService.mInterfaceVersion = 2;
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mVendorService.mHitCounters.put(1, 3);
+        mVendorService.mHitCounters.put(2, 7);
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_ON));
+        mTestLooper.dispatchAll();
+
+        verify(mVendorService).getAndResetHitCounterBatch(argThat(keys -> keys.length == 3));
+        assertTrue(mVendorService.mHitCounters.isEmpty());
+    }
+
+    @Test
+    public void whenCapacityReported_doesNotOffloadBeyondCapacity() throws RemoteException {
+        mVendorService.mInterfaceVersion = 2;
+        createOffloadManager();
+        bindVendorService();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_TV, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        registerNetwork(mNetwork0, IFC_0);
+
+        verify(mVendorService).addProtocolResponsesBatch(
+                eq(IFC_0), argThat(protocolData -> protocolData.length == 3));
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_GTV, SERVICE_AIRPLAY);
+    }
+
+    @Test
+    public void whenAdaptivePriorityEnabled_mostQueriedRecordsAreOffloadedFirst()
+            throws RemoteException {
+        when(mResources.getBoolean(eq(R.bool.config_mdnsOffloadAdaptivePriorityEnabled)))
+                .thenReturn(true);
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mVendorService.mHitCounters.put(1, 5); // Offload key of SERVICE_GTV.
+        enterAndExitStandby();
+
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_GTV, SERVICE_ATV, SERVICE_AIRPLAY);
+    }
+
+    @Test
+    public void whenAdaptivePriorityEnabled_priorityListRecordsAreOffloadedFirst()
+            throws RemoteException {
+        when(mResources.getBoolean(eq(R.bool.config_mdnsOffloadAdaptivePriorityEnabled)))
+                .thenReturn(true);
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mVendorService.mHitCounters.put(0, 5); // Offload key of SERVICE_ATV.
+        enterAndExitStandby();
+
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GOOGLECAST, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_GOOGLECAST, SERVICE_ATV);
+    }
+
+    @Test
+    public void whenOutOfMemoryCapacity_recentHitsOutweighDecayedHits() throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadHitDecayHalfLifePeriods)))
+                .thenReturn(1);
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_TV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        // Offload keys of SERVICE_ATV, SERVICE_GTV and SERVICE_AIRPLAY are 0, 1 and 2.
+        mVendorService.mHitCounters.put(0, 8);
+        mVendorService.mHitCounters.put(2, 8);
+        enterAndExitStandby();
+        for (int period = 0; period < 2; period++) {
+            mVendorService.mHitCounters.put(1, 3);
+            mVendorService.mHitCounters.put(2, 8);
+            enterAndExitStandby();
+        }
+
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GOOGLECAST, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        // SERVICE_ATV was queried the most in total, but not recently.
+        verifyOffloadedServices(
+                mVendorService, IFC_0, SERVICE_GOOGLECAST, SERVICE_GTV, SERVICE_AIRPLAY);
+    }
+
     @Test
     public void priorityListNamesAreCanonicalized() throws RemoteException {
         when(mResources.getStringArray(eq(R.array.config_mdnsOffloadPriorityQnames)))
@@ -477,179 +732,1076 @@ public class MdnsOffloadManagerTest {
     }
 
     @Test
-    public void removingPassthroughQNameHoldingInvalidClientBinder_doesNothing()
-            throws RemoteException {
+    public void addingRecord_onlyOffloadsNewRecord() throws RemoteException {
         setupDefaultOffloadManager();
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "airplay", mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
         mTestLooper.dispatchAll();
+        reset(mVendorService); // Forget previous calls related to offloaded records.
 
-        mOffloadManagerBinder.removeFromPassthroughList(IFC_0, "gtv", mClientBinder1);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
         mTestLooper.dispatchAll();
 
-        verifyPassthroughQNames(mVendorService, IFC_0, "atv", "gtv", "airplay");
+        verify(mVendorService, never()).removeProtocolResponses(anyInt());
+        verify(mVendorService).addProtocolResponses(eq(IFC_0), any());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_AIRPLAY, SERVICE_GTV);
     }
 
     @Test
-    public void removingAllEntriesFromPassthroughList_disablesPassthroughBehavior()
-            throws RemoteException {
+    public void removingRecord_onlyRemovesThatRecord() throws RemoteException {
         setupDefaultOffloadManager();
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        int recordKey = mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
         mTestLooper.dispatchAll();
-        assertEquals(
-                PassthroughBehavior.PASSTHROUGH_LIST,
-                mVendorService.getOffloadData(IFC_0).passthroughBehavior);
+        reset(mVendorService); // Forget previous calls related to offloaded records.
 
-        mOffloadManagerBinder.removeFromPassthroughList(IFC_0, "atv", mClientBinder0);
-        mOffloadManagerBinder.removeFromPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mOffloadManagerBinder.removeProtocolResponses(recordKey, mClientBinder0);
         mTestLooper.dispatchAll();
 
-        assertEquals(
-                PassthroughBehavior.DROP_ALL,
-                mVendorService.getOffloadData(IFC_0).passthroughBehavior);
+        verify(mVendorService).removeProtocolResponses(anyInt());
+        verify(mVendorService, never()).addProtocolResponses(anyString(), any());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_GTV);
     }
 
     @Test
-    public void passthroughQNamesFromPriorityListTakePrecedence() throws RemoteException {
+    public void identicalRecords_shareOneVendorRecord() throws RemoteException {
         setupDefaultOffloadManager();
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        int recordKey0 = mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_ATV, mClientBinder0);
+        int recordKey1 = mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_ATV, mClientBinder1);
         mTestLooper.dispatchAll();
-        verifyPassthroughQNames(mVendorService, IFC_0, "atv", "gtv");
 
-        mOffloadManagerBinder.addToPassthroughList(
-                IFC_0, "_googlecast._tcp.local", mClientBinder0);
+        verify(mVendorService).addProtocolResponses(eq(IFC_0), any());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(null, new PrintWriter(resultWriter), null);
         mTestLooper.dispatchAll();
+        String result = resultWriter.getBuffer().toString();
+        assertTrue(result.contains("stored packets=1, references=2"));
+        assertTrue(result.contains("mRecordKey=%d, %d".formatted(recordKey0, recordKey1)));
 
-        verifyPassthroughQNames(mVendorService, IFC_0, "_googlecast._tcp.local", "atv", "gtv");
-    }
+        mOffloadManagerBinder.removeProtocolResponses(recordKey0, mClientBinder0);
+        mTestLooper.dispatchAll();
 
-    /**
-     * TODO(b/271353749#comment43) Remove this requirement once vendor implementations support
-     * case-insensitive string comparisons.
-     */
-    @Test
-    public void passthroughPreservesCase() throws RemoteException {
-        setupDefaultOffloadManager();
+        verify(mVendorService, never()).removeProtocolResponses(anyInt());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
 
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "_SERVICE012._gtv.local", mClientBinder0);
+        mOffloadManagerBinder.removeProtocolResponses(recordKey1, mClientBinder1);
         mTestLooper.dispatchAll();
 
-        verifyPassthroughQNames(mVendorService, IFC_0, "_SERVICE012._gtv.local");
+        verifyOffloadedServices(mVendorService, IFC_0);
     }
 
     @Test
-    public void whenOutOfMemoryCapacity_priorityListQNamesAreNotEvicted() throws RemoteException {
+    public void whenPacketOptimizationEnabled_offloadsOptimizedPackets() throws RemoteException {
+        when(mResources.getBoolean(eq(R.bool.config_mdnsOffloadPacketOptimizationEnabled)))
+                .thenReturn(true);
         setupDefaultOffloadManager();
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "another", mClientBinder0);
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "service", mClientBinder0);
-        mOffloadManagerBinder.addToPassthroughList(
-                IFC_0, "_googlecast._tcp.local", mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_AIRPLAY_UNCOMPRESSED, mClientBinder0);
         mTestLooper.dispatchAll();
 
-        verifyPassthroughQNames(
-                mVendorService, IFC_0, "_googlecast._tcp.local", "atv", "gtv", "another");
+        List<MdnsProtocolData> offloadedRecords =
+                mVendorService.getOffloadData(IFC_0).offloadedRecords;
+        assertEquals(1, offloadedRecords.size());
+        byte[] optimizedPacket = MdnsPacketOptimizer.optimize(
+                SERVICE_AIRPLAY_UNCOMPRESSED.rawOffloadPacket);
+        assertArrayEquals(optimizedPacket, offloadedRecords.get(0).rawOffloadPacket);
+        assertEquals(
+                MdnsPacketParser.extractMatchCriteria(optimizedPacket).stream()
+                        .map(criteria -> criteria.nameOffset).toList(),
+                offloadedRecords.get(0).matchCriteriaList.stream()
+                        .map(criteria -> criteria.nameOffset).toList());
     }
 
     @Test
-    public void whenVendorServiceBindsLate_offloadsData() throws RemoteException {
-        createOffloadManager();
-        registerNetwork(mNetwork0, IFC_0);
+    public void whenPacketMergingEnabled_mergesRecordsOfSameServiceType()
+            throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadMergedPacketMaxBytes)))
+                .thenReturn(1500);
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_AIRPLAY_UNCOMPRESSED, mClientBinder0);
         int recordKey = mOffloadManagerBinder.addProtocolResponses(
-                IFC_0, SERVICE_ATV, mClientBinder0);
-        assertTrue("Expected a valid record key", recordKey > 0);
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+                IFC_0, SERVICE_GOOGLECAST, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
         mTestLooper.dispatchAll();
 
-        bindVendorService();
+        List<MdnsProtocolData> offloadedRecords =
+                mVendorService.getOffloadData(IFC_0).offloadedRecords;
+        assertEquals(2, offloadedRecords.size());
+        byte[] mergedPacket = offloadedRecords.get(0).rawOffloadPacket;
+        // SERVICE_GOOGLECAST is on the priority list and comes first. Its address record is also
+        // in SERVICE_AIRPLAY_UNCOMPRESSED.
+        assertEquals(
+                List.of("_googlecast._tcp.local.", "tv-abc.local.", "_airplay._tcp.local.",
+                        "tv-abc._airplay._tcp.local."),
+                offloadedRecords.get(0).matchCriteriaList.stream()
+                        .map(criteria -> MdnsPacketParser.extractFullName(
+                                mergedPacket, criteria.nameOffset))
+                        .toList());
+        assertArrayEquals(SERVICE_ATV.rawOffloadPacket, offloadedRecords.get(1).rawOffloadPacket);
+
+        mOffloadManagerBinder.removeProtocolResponses(recordKey, mClientBinder0);
+        mTestLooper.dispatchAll();
 
-        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
-        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_AIRPLAY_UNCOMPRESSED, SERVICE_ATV);
     }
 
     @Test
-    public void whenVendorServiceReconnects_restoresOffloadData() throws RemoteException {
+    public void whenMergedPacketWouldExceedMaxBytes_keepsRecordsSeparate()
+            throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadMergedPacketMaxBytes)))
+                .thenReturn(200);
         setupDefaultOffloadManager();
-        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_AIRPLAY_UNCOMPRESSED, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GOOGLECAST, mClientBinder0);
         mTestLooper.dispatchAll();
-        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
-        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
-
-        unbindVendorService();
-        mVendorService = new FakeMdnsOffloadService();
-        bindVendorService();
 
-        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
-        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+        verifyOffloadedServices(
+                mVendorService, IFC_0, SERVICE_GOOGLECAST, SERVICE_AIRPLAY_UNCOMPRESSED);
     }
 
     @Test
-    public void whenClientDies_cleansUpOffloadData() throws RemoteException {
+    public void addingPassthroughQName_onlyAddsNewQName() throws RemoteException {
         setupDefaultOffloadManager();
-        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
         mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
-        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GOOGLECAST, mClientBinder1);
-        mOffloadManagerBinder.addToPassthroughList(IFC_0, "airplay", mClientBinder1);
         mTestLooper.dispatchAll();
-        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_GOOGLECAST, SERVICE_ATV);
-        verifyPassthroughQNames(mVendorService, IFC_0, "gtv", "airplay");
+        reset(mVendorService); // Forget previous calls related to passthrough.
 
-        verify(mClientBinder1, atLeastOnce())
-                .linkToDeath(mDeathRecipientCaptor.capture(), eq(0));
-        mDeathRecipientCaptor.getAllValues().forEach(IBinder.DeathRecipient::binderDied);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "airplay", mClientBinder0);
         mTestLooper.dispatchAll();
 
-        // Offload data owned by other clients is left untouched.
-        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
-        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+        verify(mVendorService, never()).setPassthroughBehavior(eq(IFC_0), anyByte());
+        verify(mVendorService, never()).removeFromPassthroughList(eq(IFC_0), anyString());
+        verify(mVendorService).addToPassthroughList(IFC_0, "airplay");
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv", "gtv", "airplay");
     }
 
     @Test
-    public void whenNonInteractiveMode_enablesOffload() throws RemoteException {
-        setupDefaultOffloadManager();
+    public void batchSupported_offloadsRecordsInSingleCall() throws RemoteException {
+        mVendorService.mInterfaceVersion = 2;
+        createOffloadManager();
+        bindVendorService();
         mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
         mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
         mTestLooper.dispatchAll();
 
-        mCapturedScreenBroadcastReceiver.onReceive(
-                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
-        mTestLooper.dispatchAll();
+        registerNetwork(mNetwork0, IFC_0);
 
-        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
-        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+        verify(mVendorService).addProtocolResponsesBatch(
+                eq(IFC_0), argThat(protocolData -> protocolData.length == 3));
+        verify(mVendorService).addToPassthroughListBatch(
+                eq(IFC_0), argThat(qnames -> qnames.length == 2));
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_AIRPLAY, SERVICE_GTV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv", "gtv");
+    }
+
+    @Test
+    public void batchSupported_removesEntriesInSingleCall() throws RemoteException {
+        mVendorService.mInterfaceVersion = 2;
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        unregisterNetwork(mNetwork0);
+
+        verify(mVendorService).removeProtocolResponsesBatch(argThat(keys -> keys.length == 2));
+        verify(mVendorService).removeFromPassthroughListBatch(
+                eq(IFC_0), argThat(qnames -> qnames.length == 2));
+        verifyOffloadedServices(mVendorService, IFC_0);
+        verifyPassthroughQNames(mVendorService, IFC_0);
+    }
+
+    @Test
+    public void batchNotSupported_fallsBackToSingleCalls() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verify(mVendorService, never()).addProtocolResponsesBatch(anyString(), any());
+        verify(mVendorService, never()).addToPassthroughListBatch(anyString(), any());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv");
+    }
+
+    @Test
+    public void whenVendorServiceRestarts_writesOnlyDifferences() throws RemoteException {
+        mVendorService.mInterfaceVersion = 2;
+        setupDefaultOffloadManager();
+        int recordKey = mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        unbindVendorService();
+        mOffloadManagerBinder.removeProtocolResponses(recordKey, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mTestLooper.dispatchAll();
+        reset(mVendorService);
+
+        bindVendorService(); // The vendor service kept its state.
+
+        verify(mVendorService, never()).resetAll();
+        verify(mVendorService).removeProtocolResponsesBatch(argThat(keys -> keys.length == 1));
+        verify(mVendorService).addProtocolResponsesBatch(
+                eq(IFC_0), argThat(protocolData -> protocolData.length == 1));
+        verify(mVendorService, never()).addToPassthroughListBatch(anyString(), any());
+        verify(mVendorService, never()).setPassthroughBehavior(anyString(), anyByte());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_GTV, SERVICE_AIRPLAY);
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv");
+    }
+
+    @Test
+    public void whenVendorServiceHoldsStateOfUnavailableNetwork_clearsIt() throws RemoteException {
+        mVendorService.mInterfaceVersion = 2;
+        MdnsProtocolData protocolData = new MdnsProtocolData();
+        protocolData.rawOffloadPacket = SERVICE_ATV.rawOffloadPacket;
+        protocolData.matchCriteriaList = List.of();
+        mVendorService.addProtocolResponses(IFC_1, protocolData);
+        mVendorService.addToPassthroughList(IFC_1, "atv");
+        mVendorService.setPassthroughBehavior(IFC_1, PassthroughBehavior.PASSTHROUGH_LIST);
+
+        setupDefaultOffloadManager();
+
+        verify(mVendorService, never()).resetAll();
+        verifyOffloadedServices(mVendorService, IFC_1);
+        verifyPassthroughQNames(mVendorService, IFC_1);
+        assertEquals(
+                PassthroughBehavior.DROP_ALL,
+                mVendorService.getOffloadData(IFC_1).passthroughBehavior);
+    }
+
+    @Test
+    public void whenRemovingAdoptedStaleRecordFails_keepsWritingAndRemovesItLater()
+            throws RemoteException {
+        mVendorService.mInterfaceVersion = 2;
+        MdnsProtocolData protocolData = new MdnsProtocolData();
+        protocolData.rawOffloadPacket = SERVICE_GTV.rawOffloadPacket;
+        protocolData.matchCriteriaList = List.of();
+        mVendorService.addProtocolResponses(IFC_0, protocolData);
+        doThrow(new IllegalStateException()).doCallRealMethod()
+                .when(mVendorService).removeProtocolResponsesBatch(any());
+
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verify(mVendorService, times(2)).removeProtocolResponsesBatch(any());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+    }
+
+    @Test
+    public void whenVendorCallWaitsTooLongToStart_skipsItAndRewritesState()
+            throws RemoteException {
+        setupDefaultOffloadManager();
+        List<Runnable> heldCalls = new ArrayList<>();
+        mVendorCallExecutor = heldCalls::add;
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        assertEquals(1, heldCalls.size());
+
+        mVendorCallExecutor = Runnable::run;
+        mTestLooper.moveTimeForward(30_000);
+        mTestLooper.dispatchAll();
+        heldCalls.forEach(Runnable::run); // Picked up after its deadline.
+
+        verify(mVendorService).addProtocolResponses(eq(IFC_0), any());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+    }
+
+    @Test
+    public void whenVendorCallWaitsBehindSlowCalls_runsItWithoutResync() throws RemoteException {
+        setupDefaultOffloadManager();
+        reset(mVendorService);
+        List<Runnable> heldCalls = new ArrayList<>();
+        mVendorCallExecutor = heldCalls::add;
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        // Longer than the call deadline, which only starts once the call runs.
+        mTestLooper.moveTimeForward(1000);
+        mTestLooper.dispatchAll();
+        mVendorCallExecutor = Runnable::run;
+        heldCalls.forEach(Runnable::run);
+        mTestLooper.dispatchAll();
+
+        verify(mVendorService, never()).resetAll();
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+    }
+
+    @Test
+    public void whenVendorServiceHangs_dropsCallsUntilItReturns() throws Exception {
+        mVendorService.mInterfaceVersion = 2;
+        setupDefaultOffloadManager();
+        ExecutorService vendorCallThread = Executors.newSingleThreadExecutor();
+        mVendorCallExecutor = vendorCallThread;
+        CountDownLatch vendorServiceHangs = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            vendorServiceHangs.await();
+            return invocation.callRealMethod();
+        }).when(mVendorService).addProtocolResponsesBatch(anyString(), any());
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        verify(mVendorService, timeout(1000)).addProtocolResponsesBatch(anyString(), any());
+        mTestLooper.moveTimeForward(3000);
+        mTestLooper.dispatchAll();
+
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verify(mVendorService, times(1)).addProtocolResponsesBatch(anyString(), any());
+        vendorServiceHangs.countDown();
+        vendorCallThread.submit(() -> {}).get();
+        vendorCallThread.shutdown();
+        mVendorCallExecutor = Runnable::run;
+        mTestLooper.dispatchAll();
+        verify(mVendorService, never()).resetAll();
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_GTV);
+    }
+
+    @Test
+    public void whenVendorCallThrows_rewritesStateAndKeepsCalling() throws RemoteException {
+        setupDefaultOffloadManager();
+        doThrow(new IllegalStateException()).doCallRealMethod()
+                .when(mVendorService).addProtocolResponses(anyString(), any());
+
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_GTV);
+    }
+
+    @Test
+    public void whenHungVendorServiceReconnects_stopsDroppingCalls() throws Exception {
+        setupDefaultOffloadManager();
+        List<Runnable> heldCalls = new ArrayList<>();
+        mVendorCallExecutor = heldCalls::add;
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        // The call starts, then hangs past its deadline.
+        Runnable hungCall = heldCalls.remove(0);
+        mVendorCallExecutor = Runnable::run;
+        ExecutorService vendorCallThread = Executors.newSingleThreadExecutor();
+        CountDownLatch vendorServiceHangs = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            vendorServiceHangs.await();
+            return invocation.callRealMethod();
+        }).doCallRealMethod().when(mVendorService).addProtocolResponses(anyString(), any());
+        vendorCallThread.execute(hungCall);
+        verify(mVendorService, timeout(1000)).addProtocolResponses(anyString(), any());
+        mTestLooper.moveTimeForward(1000);
+        mTestLooper.dispatchAll();
+
+        unbindVendorService();
+        bindVendorService();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_GTV);
+        vendorServiceHangs.countDown();
+        vendorCallThread.shutdown();
+        vendorCallThread.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void whenVendorServiceWithoutBatchCallsFallsBehind_holdsCallsWithoutResync()
+            throws Exception {
+        setupDefaultOffloadManager();
+        reset(mVendorService);
+        ExecutorService vendorCallThread = Executors.newSingleThreadExecutor();
+        mVendorCallExecutor = vendorCallThread;
+        for (int i = 0; i < 300; i++) {
+            mOffloadManagerBinder.addToPassthroughList(IFC_0, "service" + i, mClientBinder0);
+        }
+        // One call per QNAME, more than are handed to the vendor call thread at once.
+        for (int round = 0; round == 0 || (round < 100 && !mTestLooper.isIdle()); round++) {
+            mTestLooper.dispatchAll();
+            vendorCallThread.submit(() -> {}).get();
+        }
+        vendorCallThread.shutdown();
+
+        verify(mVendorService, times(300)).addToPassthroughList(eq(IFC_0), anyString());
+        verify(mVendorService, never()).resetAll();
+        verifyPassthroughQNames(mVendorService, IFC_0, "service0", "service1", "service2",
+                "service3");
+    }
+
+    @Test
+    public void removingPassthroughQNameHoldingInvalidClientBinder_doesNothing()
+            throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "airplay", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        mOffloadManagerBinder.removeFromPassthroughList(IFC_0, "gtv", mClientBinder1);
+        mTestLooper.dispatchAll();
+
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv", "gtv", "airplay");
+    }
+
+    @Test
+    public void removingAllEntriesFromPassthroughList_disablesPassthroughBehavior()
+            throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        assertEquals(
+                PassthroughBehavior.PASSTHROUGH_LIST,
+                mVendorService.getOffloadData(IFC_0).passthroughBehavior);
+
+        mOffloadManagerBinder.removeFromPassthroughList(IFC_0, "atv", mClientBinder0);
+        mOffloadManagerBinder.removeFromPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        assertEquals(
+                PassthroughBehavior.DROP_ALL,
+                mVendorService.getOffloadData(IFC_0).passthroughBehavior);
+    }
+
+    @Test
+    public void passthroughQNamesFromPriorityListTakePrecedence() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv", "gtv");
+
+        mOffloadManagerBinder.addToPassthroughList(
+                IFC_0, "_googlecast._tcp.local", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verifyPassthroughQNames(mVendorService, IFC_0, "_googlecast._tcp.local", "atv", "gtv");
+    }
+
+    /**
+     * TODO(b/271353749#comment43) Remove this requirement once vendor implementations support
+     * case-insensitive string comparisons.
+     */
+    @Test
+    public void passthroughPreservesCase() throws RemoteException {
+        setupDefaultOffloadManager();
+
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "_SERVICE012._gtv.local", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verifyPassthroughQNames(mVendorService, IFC_0, "_SERVICE012._gtv.local");
+    }
+
+    @Test
+    public void samePassthroughQNameOfSeveralClients_isWrittenOnce() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "ATV.", mClientBinder1);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder1);
+        mTestLooper.dispatchAll();
+
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv", "gtv");
+
+        mOffloadManagerBinder.removeFromPassthroughList(IFC_0, "atv", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verifyPassthroughQNames(mVendorService, IFC_0, "ATV", "gtv");
+    }
+
+    @Test
+    public void whenVendorMatchesPassthroughBySuffix_leavesOutCoveredQNames()
+            throws RemoteException {
+        mVendorService.mInterfaceVersion = 2;
+        mVendorService.mPassthroughSuffixMatching = true;
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addToPassthroughList(
+                IFC_0, "tv-abc._airplay._tcp.local", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "_airplay._tcp.local", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(
+                IFC_0, "tv-def._airplay._tcp.local", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv", "_airplay._tcp.local");
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(null, new PrintWriter(resultWriter),
+                new String[]{"--passthrough-query", IFC_0, "TV-XYZ._airplay._tcp.local."});
+        mTestLooper.dispatchAll();
+        assertEquals(
+                "Queries for {TV-XYZ._airplay._tcp.local.} on {%s} are forwarded".formatted(IFC_0),
+                resultWriter.getBuffer().toString().trim());
+
+        mOffloadManagerBinder.removeFromPassthroughList(
+                IFC_0, "_airplay._tcp.local", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verifyPassthroughQNames(mVendorService, IFC_0, "tv-abc._airplay._tcp.local", "atv",
+                "tv-def._airplay._tcp.local");
+    }
+
+    @Test
+    public void whenPassthroughCapacityIsReported_doesNotAttemptQNamesBeyondIt()
+            throws RemoteException {
+        mVendorService.mInterfaceVersion = 2;
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "another", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "service", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "airplay", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verify(mVendorService).addToPassthroughListBatch(
+                eq(IFC_0), argThat(qnames -> qnames.length == 4));
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv", "gtv", "another", "service");
+    }
+
+    @Test
+    public void whenOutOfMemoryCapacity_priorityListQNamesAreNotEvicted() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "another", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "service", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(
+                IFC_0, "_googlecast._tcp.local", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verifyPassthroughQNames(
+                mVendorService, IFC_0, "_googlecast._tcp.local", "atv", "gtv", "another");
+    }
+
+    @Test
+    public void whenVendorServiceBindsLate_offloadsData() throws RemoteException {
+        createOffloadManager();
+        registerNetwork(mNetwork0, IFC_0);
+        int recordKey = mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_ATV, mClientBinder0);
+        assertTrue("Expected a valid record key", recordKey > 0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        bindVendorService();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+    }
+
+    @Test
+    public void whenVendorServiceReconnects_restoresOffloadData() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+
+        unbindVendorService();
+        mVendorService = new FakeMdnsOffloadService();
+        bindVendorService();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+    }
+
+    @Test
+    public void whenClientDies_cleansUpOffloadData() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GOOGLECAST, mClientBinder1);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "airplay", mClientBinder1);
+        mTestLooper.dispatchAll();
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_GOOGLECAST, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "gtv", "airplay");
+
+        verify(mClientBinder1, atLeastOnce())
+                .linkToDeath(mDeathRecipientCaptor.capture(), eq(0));
+        mDeathRecipientCaptor.getAllValues().forEach(IBinder.DeathRecipient::binderDied);
+        mTestLooper.dispatchAll();
+
+        // Offload data owned by other clients is left untouched.
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+    }
+
+    @Test
+    public void whenClientRegistersManyIntents_linksToDeathOnce() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "airplay", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verify(mClientBinder0, times(1)).linkToDeath(mDeathRecipientCaptor.capture(), eq(0));
+        mDeathRecipientCaptor.getValue().binderDied();
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0);
+        verifyPassthroughQNames(mVendorService, IFC_0);
+    }
+
+    @Test
+    public void whenClientRemovesAllIntents_unlinksFromDeath() throws RemoteException {
+        setupDefaultOffloadManager();
+        int recordKey = mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        verify(mClientBinder0).linkToDeath(mDeathRecipientCaptor.capture(), eq(0));
+
+        mOffloadManagerBinder.removeProtocolResponses(recordKey, mClientBinder0);
+        mTestLooper.dispatchAll();
+        verify(mClientBinder0, never()).unlinkToDeath(any(), anyInt());
+
+        mOffloadManagerBinder.removeFromPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        verify(mClientBinder0).unlinkToDeath(mDeathRecipientCaptor.getValue(), 0);
+    }
+
+    @Test
+    public void whenClientAlreadyDead_dropsItsIntents() throws RemoteException {
+        setupDefaultOffloadManager();
+        doThrow(new RemoteException()).when(mClientBinder1).linkToDeath(any(), anyInt());
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GOOGLECAST, mClientBinder1);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "airplay", mClientBinder1);
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0);
+    }
+
+    @Test
+    public void whenNonInteractiveMode_enablesOffload() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+        assertTrue(mVendorService.mOffloadState);
+    }
+
+    @Test
+    public void whenNonInteractiveMode_holdsWakeLockUntilOffloadEnabled() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        List<Runnable> heldCalls = new ArrayList<>();
+        mVendorCallExecutor = heldCalls::add;
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mElapsedRealtimeMs += 3;
+        mTestLooper.dispatchAll();
+
+        verify(mWakeLock).acquire(5000);
+        verify(mWakeLock, never()).release();
+        assertEquals(1, heldCalls.size());
+
+        mElapsedRealtimeMs += 40;
+        heldCalls.forEach(Runnable::run);
+        mTestLooper.dispatchAll();
+
+        verify(mWakeLock).release();
+        assertTrue(mVendorService.mOffloadState);
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(null, new PrintWriter(resultWriter), null);
+        mTestLooper.dispatchAll();
+        String result = resultWriter.getBuffer().toString();
+        assertTrue(result.contains("""
+                StandbyTransitionTracer:
+                queued: count=1, mean=3.0ms, p50<=5ms, p90<=5ms, p99<=5ms, max=3ms, \
+                buckets=[<=5ms:1]
+                flush: count=1, mean=0.0ms, p50<=1ms, p90<=1ms, p99<=1ms, max=0ms, \
+                buckets=[<=1ms:1]
+                """));
+        assertTrue(result.contains(
+                "total: count=1, mean=43.0ms, p50<=50ms, p90<=50ms, p99<=50ms, max=43ms"));
+        assertTrue(result.contains(
+                "wakelock held: count=1, mean=40.0ms, p50<=50ms, p90<=50ms, p99<=50ms, max=40ms"));
+    }
+
+    @Test
+    public void refreshRequestsWithinWindow_areCoalesced() throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadRefreshCoalescingWindowMs)))
+                .thenReturn(100);
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        verify(mVendorService, never()).addProtocolResponses(anyString(), any());
+
+        mTestLooper.moveTimeForward(100);
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_AIRPLAY);
+    }
+
+    @Test
+    public void whenNonInteractiveMode_flushesPendingRefreshes() throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadRefreshCoalescingWindowMs)))
+                .thenReturn(100);
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+        assertTrue(mVendorService.mOffloadState);
+    }
+
+    @Test
+    public void whenNonInteractiveMode_enablesOffloadOnceRefreshesAreWritten()
+            throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadRefreshCoalescingWindowMs)))
+                .thenReturn(100);
+        setupDefaultOffloadManager();
+        int recordKey = mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mTestLooper.moveTimeForward(100);
+        mTestLooper.dispatchAll();
+        mOffloadManagerBinder.removeProtocolResponses(recordKey, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        List<Runnable> heldCalls = new ArrayList<>();
+        mVendorCallExecutor = heldCalls::add;
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+        while (!heldCalls.isEmpty()) {
+            heldCalls.remove(0).run();
+            mTestLooper.dispatchAll();
+        }
+
+        InOrder inOrder = inOrder(mVendorService);
+        inOrder.verify(mVendorService).removeProtocolResponses(anyInt());
+        inOrder.verify(mVendorService).addProtocolResponses(eq(IFC_0), any());
+        inOrder.verify(mVendorService).setOffloadState(true);
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_GTV);
+        assertTrue(mVendorService.mOffloadState);
+    }
+
+    @Test
+    public void whenInteractiveModeBeforeRefreshesAreWritten_keepsOffloadDisabled()
+            throws RemoteException {
+        setupDefaultOffloadManager();
+        List<Runnable> heldCalls = new ArrayList<>();
+        mVendorCallExecutor = heldCalls::add;
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_ON));
+        mTestLooper.dispatchAll();
+        while (!heldCalls.isEmpty()) {
+            heldCalls.remove(0).run();
+            mTestLooper.dispatchAll();
+        }
+
+        verify(mVendorService, never()).setOffloadState(true);
+        verify(mWakeLock).release();
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+    }
+
+    @Test
+    public void whenDreamingStarts_stagesPendingRefreshesBeforeStandby() throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadRefreshCoalescingWindowMs)))
+                .thenReturn(100);
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        verify(mVendorService, never()).addProtocolResponses(anyString(), any());
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_DREAMING_STARTED));
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+        assertFalse(mVendorService.mOffloadState);
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+
+        // Going to standby only enables offload.
+        verify(mVendorService, times(1)).addProtocolResponses(anyString(), any());
+        assertTrue(mVendorService.mOffloadState);
+    }
+
+    @Test
+    public void whenNonInteractiveModeWithoutDreaming_onlyEnablesOffload()
+            throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadRefreshCoalescingWindowMs)))
+                .thenReturn(100);
+        setupDefaultOffloadManager();
+        List<Runnable> heldCalls = new ArrayList<>();
+        mVendorCallExecutor = heldCalls::add;
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mTestLooper.moveTimeForward(100);
+        mTestLooper.dispatchAll();
+        // Requested while the previous update is written, applied once it completes.
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "airplay", mClientBinder0);
+        mTestLooper.dispatchAll();
+        mVendorCallExecutor = Runnable::run;
+        heldCalls.forEach(Runnable::run);
+        mTestLooper.dispatchAll();
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_GTV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "airplay");
+        reset(mVendorService);
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+
+        verify(mVendorService).setOffloadState(true);
+        verify(mVendorService, never()).addProtocolResponses(anyString(), any());
+        verify(mVendorService, never()).removeProtocolResponses(anyInt());
+        verify(mVendorService, never()).addToPassthroughList(anyString(), anyString());
+        verify(mVendorService, never()).removeFromPassthroughList(anyString(), anyString());
+        verify(mVendorService, never()).setPassthroughBehavior(anyString(), anyByte());
+    }
+
+    @Test
+    public void whenInteractiveMode_disablesOffloadAndRetrievesMetrics() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
         assertTrue(mVendorService.mOffloadState);
+        reset(mVendorService); // Forget previous calls to hit/miss counter methods.
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_ON));
+        mTestLooper.dispatchAll();
+
+        assertFalse(mVendorService.mOffloadState);
+        // Hit counters are keyed by the offload key assigned by the vendor service.
+        verify(mVendorService).getAndResetHitCounter(eq(0));
+        verify(mVendorService).getAndResetMissCounter();
+        // Offloaded records are untouched.
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+    }
+
+    @Test
+    public void whenStandbyEnds_dumpsHitRatesAndMissRatio() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+        mVendorService.mHitCounters.put(0, 6);
+        mVendorService.mMissCounter = 2;
+        mElapsedRealtimeMs += 2 * 3_600_000;
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_ON));
+        mTestLooper.dispatchAll();
+
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(null, new PrintWriter(resultWriter), null);
+        mTestLooper.dispatchAll();
+        String result = resultWriter.getBuffer().toString();
+
+        assertTrue(result.contains("""
+                OffloadMetrics:
+                standby periods=1, standby hours=2.00, hits=6, misses=2, miss ratio=0.25
+                * imaginaryif0: hits=6, hits per standby hour=3.00
+                * imaginaryif0 ATV. (mRecordKey=1): hits=6, hits per standby hour=3.00
+
+                """));
+    }
+
+    @Test
+    public void whenRecordsShareName_dumpsHitRatesOfEachRecord() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+        // Both records are named "atv.".
+        mVendorService.mHitCounters.put(0, 6);
+        mVendorService.mHitCounters.put(1, 2);
+        mElapsedRealtimeMs += 2 * 3_600_000;
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_ON));
+        mTestLooper.dispatchAll();
+
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(null, new PrintWriter(resultWriter), null);
+        mTestLooper.dispatchAll();
+        String result = resultWriter.getBuffer().toString();
+
+        assertTrue(result.contains("""
+                * imaginaryif0: hits=8, hits per standby hour=4.00
+                * imaginaryif0 ATV. (mRecordKey=1): hits=6, hits per standby hour=3.00
+                * imaginaryif0 ATV. (mRecordKey=2): hits=2, hits per standby hour=1.00
+                """));
     }
 
     @Test
-    public void whenInteractiveMode_disablesOffloadAndRetrievesMetrics() throws RemoteException {
+    public void whenMetricsExportRequested_dumpsBinaryMetrics()
+            throws IOException, RemoteException {
         setupDefaultOffloadManager();
-        int recordKey = mOffloadManagerBinder.addProtocolResponses(
-                IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+        mVendorService.mHitCounters.put(0, 4);
+        mVendorService.mMissCounter = 1;
+        mElapsedRealtimeMs += 60_000;
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_ON));
+        mTestLooper.dispatchAll();
+
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(
+                null, new PrintWriter(resultWriter), new String[]{"--metrics-export"});
+        mTestLooper.dispatchAll();
+        DataInputStream export = new DataInputStream(new ByteArrayInputStream(
+                Base64.getDecoder().decode(resultWriter.getBuffer().toString().trim())));
+
+        assertEquals(OffloadMetrics.EXPORT_VERSION, export.readByte());
+        assertEquals(1, export.readShort()); // Standby periods
+        assertEquals(60_000, export.readLong()); // Standby duration
+        assertEquals(4, export.readLong()); // Hits
+        assertEquals(1, export.readLong()); // Misses
+        assertEquals(1, export.readShort()); // Network interfaces
+        assertEquals(IFC_0, export.readUTF());
+        assertEquals(60_000, export.readLong());
+        assertEquals(4, export.readLong());
+        assertEquals(1, export.readShort()); // Records
+        assertEquals(IFC_0, export.readUTF());
+        assertEquals("ATV.", export.readUTF());
+        assertEquals(1, export.readInt()); // Record key
+        assertEquals(60_000, export.readLong());
+        assertEquals(4, export.readLong());
+    }
+
+    @Test
+    public void withSimulatedVendor_answersQueriesFromOffloadedRecordsDuringStandby()
+            throws RemoteException {
+        SimulatedMdnsOffloadService vendorService = new SimulatedMdnsOffloadService(-1, -1, false);
+        createOffloadManager();
+        bindVendorService(vendorService);
+        registerNetwork(mNetwork0, IFC_0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GOOGLECAST, mClientBinder0);
         mOffloadManagerBinder.addToPassthroughList(IFC_0, "gtv", mClientBinder0);
         mTestLooper.dispatchAll();
         mCapturedScreenBroadcastReceiver.onReceive(
                 mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
         mTestLooper.dispatchAll();
-        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
-        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
-        assertTrue(mVendorService.mOffloadState);
-        reset(mVendorService); // Forget previous calls to hit/miss counter methods.
 
+        SimulatedMdnsOffloadService.QueryResult answered = vendorService.receiveQuery(IFC_0,
+                SimulatedMdnsOffloadService.makeQuery(0x0c, "_googlecast._tcp.local"));
+        SimulatedMdnsOffloadService.QueryResult anyType = vendorService.receiveQuery(IFC_0,
+                SimulatedMdnsOffloadService.makeQuery(SimulatedMdnsOffloadService.QTYPE_ANY,
+                        "TV-ABC.local", "_googlecast._tcp.local"));
+        SimulatedMdnsOffloadService.QueryResult forwarded = vendorService.receiveQuery(IFC_0,
+                SimulatedMdnsOffloadService.makeQuery(0x01, "gtv"));
+        SimulatedMdnsOffloadService.QueryResult dropped = vendorService.receiveQuery(IFC_0,
+                SimulatedMdnsOffloadService.makeQuery(0x01, "atv"));
+
+        assertEquals(1, answered.mResponses.size());
+        assertArrayEquals(SERVICE_GOOGLECAST.rawOffloadPacket, answered.mResponses.get(0));
+        assertFalse(answered.mForwarded);
+        assertEquals(1, anyType.mResponses.size());
+        assertTrue(forwarded.mResponses.isEmpty());
+        assertTrue(forwarded.mForwarded);
+        assertTrue(dropped.mResponses.isEmpty());
+        assertFalse(dropped.mForwarded);
+
+        mElapsedRealtimeMs += 3_600_000;
         mCapturedScreenBroadcastReceiver.onReceive(
                 mock(Context.class), makeIntent(Intent.ACTION_SCREEN_ON));
         mTestLooper.dispatchAll();
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(null, new PrintWriter(resultWriter), null);
+        mTestLooper.dispatchAll();
 
-        assertFalse(mVendorService.mOffloadState);
-        verify(mVendorService).getAndResetHitCounter(eq(recordKey));
-        verify(mVendorService).getAndResetMissCounter();
-        // Offloaded records are untouched.
-        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
-        verifyPassthroughQNames(mVendorService, IFC_0, "gtv");
+        assertTrue(resultWriter.getBuffer().toString().contains(
+                "standby periods=1, standby hours=1.00, hits=2, misses=2, miss ratio=0.50"));
+        // Everything is forwarded once the device is interactive again.
+        assertTrue(vendorService.receiveQuery(IFC_0,
+                SimulatedMdnsOffloadService.makeQuery(0x01, "atv")).mForwarded);
+    }
+
+    @Test
+    public void withSimulatedVendor_offloadsWithinMemoryBudgetStartingWithPriorityList()
+            throws RemoteException {
+        // Fits SERVICE_GOOGLECAST (70 bytes) and one of SERVICE_ATV or SERVICE_AIRPLAY.
+        int budgetBytes = 110;
+        SimulatedMdnsOffloadService vendorService =
+                new SimulatedMdnsOffloadService(budgetBytes, -1, false);
+        createOffloadManager();
+        bindVendorService(vendorService);
+        registerNetwork(mNetwork0, IFC_0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_AIRPLAY, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GOOGLECAST, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+
+        List<byte[]> queries = List.of(
+                SimulatedMdnsOffloadService.makeQuery(0x0c, "_googlecast._tcp.local"),
+                SimulatedMdnsOffloadService.makeQuery(0x01, "atv"),
+                SimulatedMdnsOffloadService.makeQuery(0x01, "airplay"));
+        for (byte[] query : queries) {
+            vendorService.receiveQuery(IFC_0, query);
+        }
+
+        assertTrue(vendorService.getBytesInUse(IFC_0) <= budgetBytes);
+        assertEquals(2, vendorService.getAnsweredQuestions());
+        assertEquals(1, vendorService.getDroppedQuestions());
+        assertEquals(1, vendorService.receiveQuery(IFC_0, queries.get(0)).mResponses.size());
     }
 
     @Test
@@ -702,6 +1854,22 @@ public class MdnsOffloadManagerTest {
                 mVendorService.getOffloadData(IFC_0).passthroughBehavior);
     }
 
+    @Test
+    public void whenNetworkLost_dropsPendingRefreshes() throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadRefreshCoalescingWindowMs)))
+                .thenReturn(100);
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        unregisterNetwork(mNetwork0);
+        mTestLooper.moveTimeForward(100);
+        mTestLooper.dispatchAll();
+
+        verify(mVendorService, never()).addProtocolResponses(anyString(), any());
+        verifyOffloadedServices(mVendorService, IFC_0);
+    }
+
     @Test
     public void whenNetworkLost_maintainsOffloadDataOnOtherInterfaces() throws RemoteException {
         setupDefaultOffloadManager();
@@ -731,6 +1899,133 @@ public class MdnsOffloadManagerTest {
                 mVendorService.getOffloadData(IFC_1).passthroughBehavior);
     }
 
+    @Test
+    public void whenInterfaceLanesConfigured_updatesOnOneInterfaceDoNotWaitForAnother()
+            throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadInterfaceLanes)))
+                .thenReturn(2);
+        when(mResources.getBoolean(eq(R.bool.config_mdnsOffloadVendorServiceThreadSafe)))
+                .thenReturn(true);
+        setupDefaultOffloadManager();
+        registerNetwork(mNetwork1, IFC_1);
+        mLaneLoopers.forEach(TestLooper::dispatchAll);
+        mLaneVendorCalls.clear();
+
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_1, SERVICE_GOOGLECAST, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mLaneLoopers.get(1).dispatchAll();
+
+        // IFC_1 is updated on its lane, while the update of IFC_0 is still pending on its own.
+        verifyOffloadedServices(mVendorService, IFC_0);
+        verifyOffloadedServices(mVendorService, IFC_1, SERVICE_GOOGLECAST);
+        assertEquals(List.of(1), mLaneVendorCalls);
+
+        mLaneLoopers.get(0).dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        assertEquals(List.of(1, 0), mLaneVendorCalls);
+    }
+
+    @Test
+    public void whenInterfaceLanesConfigured_enablesOffloadOnceAllLanesFlushed()
+            throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadInterfaceLanes)))
+                .thenReturn(2);
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadRefreshCoalescingWindowMs)))
+                .thenReturn(100);
+        setupDefaultOffloadManager();
+        registerNetwork(mNetwork1, IFC_1);
+        mLaneLoopers.forEach(TestLooper::dispatchAll);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_1, SERVICE_GOOGLECAST, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mLaneLoopers.forEach(TestLooper::dispatchAll);
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+
+        assertFalse(mVendorService.mOffloadState);
+
+        mLaneLoopers.forEach(TestLooper::dispatchAll);
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyOffloadedServices(mVendorService, IFC_1, SERVICE_GOOGLECAST);
+        // Lanes share the vendor call executor of the service.
+        assertTrue(mLaneVendorCalls.isEmpty());
+        assertTrue(mVendorService.mOffloadState);
+    }
+
+    @Test
+    public void whenLanesCallVendorServiceConcurrently_enablesOffloadOnceLanesWrote()
+            throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadInterfaceLanes)))
+                .thenReturn(2);
+        when(mResources.getBoolean(eq(R.bool.config_mdnsOffloadVendorServiceThreadSafe)))
+                .thenReturn(true);
+        setupDefaultOffloadManager();
+        registerNetwork(mNetwork1, IFC_1);
+        int recordKey = mOffloadManagerBinder.addProtocolResponses(
+                IFC_1, SERVICE_GOOGLECAST, mClientBinder0);
+        mTestLooper.dispatchAll();
+        mLaneLoopers.forEach(TestLooper::dispatchAll);
+        List<Runnable> heldCalls = new ArrayList<>();
+        mVendorCallExecutor = heldCalls::add;
+        mOffloadManagerBinder.removeProtocolResponses(recordKey, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_1, SERVICE_AIRPLAY, mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        mCapturedScreenBroadcastReceiver.onReceive(
+                mock(Context.class), makeIntent(Intent.ACTION_SCREEN_OFF));
+        mTestLooper.dispatchAll();
+        // Vendor calls of all lanes complete one at a time, in the order they were made.
+        while (true) {
+            mLaneLoopers.forEach(TestLooper::dispatchAll);
+            mTestLooper.dispatchAll();
+            if (heldCalls.isEmpty()) {
+                break;
+            }
+            heldCalls.remove(0).run();
+        }
+
+        InOrder inOrder = inOrder(mVendorService);
+        inOrder.verify(mVendorService).removeProtocolResponses(anyInt());
+        inOrder.verify(mVendorService).addProtocolResponses(eq(IFC_1), any());
+        inOrder.verify(mVendorService).setOffloadState(true);
+        verifyOffloadedServices(mVendorService, IFC_1, SERVICE_AIRPLAY);
+        assertTrue(mVendorService.mOffloadState);
+    }
+
+    @Test
+    public void whenInterfaceLanesConfigured_dumpsLanesWithoutWaitingForThem()
+            throws RemoteException {
+        when(mResources.getInteger(eq(R.integer.config_mdnsOffloadInterfaceLanes)))
+                .thenReturn(2);
+        setupDefaultOffloadManager();
+        registerNetwork(mNetwork1, IFC_1);
+        mOffloadManagerBinder.addToPassthroughList(IFC_1, "atv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        mLaneLoopers.forEach(TestLooper::dispatchAll);
+
+        // The lane loopers are not dispatched while dumping.
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(null, new PrintWriter(resultWriter), null);
+        StringWriter queryWriter = new StringWriter();
+        mOffloadManagerService.dump(null, new PrintWriter(queryWriter),
+                new String[]{"--passthrough-query", IFC_1, "atv"});
+
+        assertTrue(resultWriter.getBuffer().toString().contains("""
+                InterfaceLanes:
+                lanes=2, isVendorServiceThreadSafe=false
+                lane 0: interfaces=[imaginaryif0]
+                OffloadWriter:
+                """));
+        assertEquals("Queries for {atv} on {imaginaryif1} are forwarded\n",
+                queryWriter.getBuffer().toString());
+    }
+
     @Test
     public void whenNetworkRecovers_restoresOffloadData() throws RemoteException {
         setupDefaultOffloadManager();
@@ -805,6 +2100,50 @@ public class MdnsOffloadManagerTest {
         verifyPassthroughQNames(mVendorService, IFC_0, "atv");
     }
 
+    @Test
+    public void whenStandbyPolicyChanges_resolvesEachPackageUidOnce()
+            throws RemoteException, PackageManager.NameNotFoundException {
+        setupDefaultOffloadManager();
+
+        mLowPowerStandbyPolicy = makeLowPowerStandbyPolicy(APP_PACKAGE_0, APP_PACKAGE_1);
+        mCapturedLowPowerStandbyPolicyReceiver.onReceive(
+                mock(Context.class),
+                makeIntent(PowerManager.ACTION_LOW_POWER_STANDBY_POLICY_CHANGED));
+        mLowPowerStandbyPolicy = makeLowPowerStandbyPolicy(APP_PACKAGE_0);
+        mCapturedLowPowerStandbyPolicyReceiver.onReceive(
+                mock(Context.class),
+                makeIntent(PowerManager.ACTION_LOW_POWER_STANDBY_POLICY_CHANGED));
+        mTestLooper.dispatchAll();
+
+        verify(mPackageManager).getPackageUid(eq(APP_PACKAGE_0), anyInt());
+        verify(mPackageManager).getPackageUid(eq(APP_PACKAGE_1), anyInt());
+    }
+
+    @Test
+    public void exemptPackageInstalledAfterPolicyChange_dataIsOffloaded()
+            throws RemoteException, PackageManager.NameNotFoundException {
+        when(mPackageManager.getPackageUid(eq(APP_PACKAGE_1), anyInt()))
+                .thenThrow(new PackageManager.NameNotFoundException());
+        mLowPowerStandbyPolicy = makeLowPowerStandbyPolicy(APP_PACKAGE_0, APP_PACKAGE_1);
+        setupDefaultOffloadManager();
+        mCallingUid = APP_UID_1;
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mTestLooper.dispatchAll();
+        verifyOffloadedServices(mVendorService, IFC_0);
+
+        reset(mPackageManager);
+        when(mPackageManager.getPackageUid(eq(APP_PACKAGE_1), anyInt())).thenReturn(APP_UID_1);
+        mCapturedPackageChangeReceiver.onReceive(
+                mock(Context.class),
+                makeIntent(Intent.ACTION_PACKAGE_ADDED)
+                        .setData(Uri.fromParts("package", APP_PACKAGE_1, null)));
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        // Only the added package is resolved again.
+        verify(mPackageManager, never()).getPackageUid(eq(APP_PACKAGE_0), anyInt());
+    }
+
     /**
      * Ensure package allowlist is maintained by app ID, not UID (which is assigned per app & user
      * combination).
@@ -822,6 +2161,97 @@ public class MdnsOffloadManagerTest {
         verifyPassthroughQNames(mVendorService, IFC_0, "atv");
     }
 
+    @Test
+    public void whenServiceRestarts_restoresOffloadedStateFromSnapshot() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        restartOffloadManager();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv");
+    }
+
+    @Test
+    public void whenClientRegistersAgainAfterRestart_replacesRestoredIntents()
+            throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        restartOffloadManager();
+        reset(mVendorService);
+
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder1);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder1);
+        mTestLooper.dispatchAll();
+
+        // Records held by the vendor service are kept as is.
+        verify(mVendorService, never()).removeProtocolResponses(anyInt());
+        verify(mVendorService, never()).addProtocolResponses(anyString(), any());
+        verify(mVendorService, never()).removeFromPassthroughList(anyString(), anyString());
+        verify(mVendorService, never()).addToPassthroughList(anyString(), anyString());
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_GTV);
+
+        // Restored intents that were not registered again are dropped after a grace period.
+        mTestLooper.moveTimeForward(10_000);
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv");
+    }
+
+    @Test
+    public void whenClientRegistersBeforeSnapshotIsRestored_keepsRegisteredIntents()
+            throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_GTV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mTestLooper.dispatchAll();
+        // Let the service write its snapshot before it is killed.
+        mTestLooper.moveTimeForward(1000);
+        mTestLooper.dispatchAll();
+        reset(mConnectivityManager);
+
+        createOffloadManager();
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(null, new PrintWriter(resultWriter), null);
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder1);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder1);
+        bindVendorService();
+        registerNetwork(mNetwork0, IFC_0);
+
+        // The snapshot is read on the handler thread, not while the service is created.
+        assertFalse(resultWriter.getBuffer().toString().contains("OffloadIntent{"));
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV, SERVICE_GTV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv");
+
+        // Restored intents that were not registered again are dropped after a grace period.
+        mTestLooper.moveTimeForward(10_000);
+        mTestLooper.dispatchAll();
+
+        verifyOffloadedServices(mVendorService, IFC_0, SERVICE_ATV);
+        verifyPassthroughQNames(mVendorService, IFC_0, "atv");
+    }
+
+    @Test
+    public void whenSnapshotIsCorrupted_startsWithoutRestoredState()
+            throws IOException, RemoteException {
+        try (FileOutputStream out = new FileOutputStream(
+                new File(mTemporaryFolder.getRoot(), "offload_snapshot"))) {
+            out.write(new byte[]{0x4d, 0x44, 0x4f, 0x53, 0, 1, 0x7f});
+        }
+
+        setupDefaultOffloadManager();
+
+        verifyOffloadedServices(mVendorService, IFC_0);
+        verifyPassthroughQNames(mVendorService, IFC_0);
+    }
+
     @Test
     public void serviceDump_containsDebuggingInfo() throws RemoteException {
         setupDefaultOffloadManager();
@@ -857,6 +2287,11 @@ public class MdnsOffloadManagerTest {
                 * 0
                 current passthrough qnames:
                 * atv
+                mBinderCallsIssued=4
+                mBinderCallsSaved=0
+                passthrough: suffixMatching=false, collapsed=0, dropped=0
+                refresh requests=2, refreshes=2, merge ratio=1.00
+                offload capacity: maxRecords=-1, maxBytes=-1, failures=[], dropped=0
 
                 """));
         assertTrue(result.contains("""
@@ -864,12 +2299,19 @@ public class MdnsOffloadManagerTest {
                 mIsNetworkAvailable=false
                 current offload keys:
                 current passthrough qnames:
+                mBinderCallsIssued=0
+                mBinderCallsSaved=0
+                passthrough: suffixMatching=false, collapsed=0, dropped=0
+                refresh requests=2, refreshes=2, merge ratio=1.00
+                offload capacity: maxRecords=-1, maxBytes=-1, failures=[], dropped=0
 
                 """));
         assertTrue(result.contains("""
                 OffloadWriter:
                 mOffloadState=false
                 isVendorServiceConnected=true
+                mVendorInterfaceVersion=1
+                vendor calls: pending=0, stalled=false, timeouts=0, dropped=0
 
                 """));
         assertTrue(result.contains("""
@@ -893,4 +2335,63 @@ public class MdnsOffloadManagerTest {
                 000064:  05 00 04 64 50 28 14                              |  ...dP(.
                 """));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void serviceDump_whenHandlerBusy_containsInterfaceState() throws RemoteException {
+        setupDefaultOffloadManager();
+        mOffloadManagerBinder.addProtocolResponses(IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        // The handler does not run until the looper is dispatched.
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(null, new PrintWriter(resultWriter), null);
+        String result = resultWriter.getBuffer().toString();
+
+        assertTrue(result.contains("""
+                InterfaceOffloadManager[imaginaryif0]:
+                mIsNetworkAvailable=true
+                current offload keys:
+                * 0
+                current passthrough qnames:
+                * atv
+                """));
+        assertTrue(result.contains("OffloadMetrics:"));
+        // Counters of the handler thread are published as it goes.
+        assertTrue(result.contains("""
+                OffloadWriter:
+                mOffloadState=false
+                isVendorServiceConnected=true
+                mVendorInterfaceVersion=1
+                vendor calls: pending=0, stalled=false, timeouts=0, dropped=0
+                """));
+    }
+
+    @Test
+    public void jsonDump_containsIntentsAndInterfaceState()
+            throws JSONException, RemoteException {
+        setupDefaultOffloadManager();
+        int recordKey = mOffloadManagerBinder.addProtocolResponses(
+                IFC_0, SERVICE_ATV, mClientBinder0);
+        mOffloadManagerBinder.addToPassthroughList(IFC_0, "atv", mClientBinder0);
+        mTestLooper.dispatchAll();
+
+        StringWriter resultWriter = new StringWriter();
+        mOffloadManagerService.dump(
+                null, new PrintWriter(resultWriter), new String[]{"--json"});
+        JSONObject result = new JSONObject(resultWriter.getBuffer().toString());
+
+        JSONArray interfaces = result.getJSONArray("interfaces");
+        assertEquals(1, interfaces.length());
+        JSONObject interfaceState = interfaces.getJSONObject(0);
+        assertEquals(IFC_0, interfaceState.getString("networkInterface"));
+        assertTrue(interfaceState.getBoolean("networkAvailable"));
+        assertEquals(1, interfaceState.getJSONArray("offloadKeys").length());
+        assertEquals("atv", interfaceState.getJSONArray("passthroughQNames").getString(0));
+        JSONObject offloadIntent = result.getJSONArray("offloadIntents").getJSONObject(0);
+        assertEquals(recordKey, offloadIntent.getInt("recordKey"));
+        assertEquals(IFC_0, offloadIntent.getString("networkInterface"));
+        JSONObject passthroughIntent = result.getJSONArray("passthroughIntents").getJSONObject(0);
+        assertEquals("ATV.", passthroughIntent.getString("canonicalQName"));
+    }
+}
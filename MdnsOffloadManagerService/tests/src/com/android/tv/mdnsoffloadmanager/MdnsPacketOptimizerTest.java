@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_AIRPLAY_UNCOMPRESSED;
+import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_ATV;
+import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_GOOGLECAST;
+import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_GTV;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import org.junit.Test;
+
+import com.android.tv.mdnsoffloadmanager.MdnsPacketParser.MatchCriteria;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+public class MdnsPacketOptimizerTest {
+
+    private static final byte[] AIRPLAY_OPTIMIZED = new byte[]{
+            0, 0, 0, 0,             // Id, Flags
+            0, 0, 0, 3, 0, 0, 0, 0, // Header section, 3 answers
+
+            // Data 1:
+            8, '_', 'a', 'i', 'r', 'p', 'l', 'a', 'y', // "_airplay."
+            4, '_', 't', 'c', 'p',  // "_tcp."
+            5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+            0x00, 0x0c,             // Type PTR
+            0x00, 0x01,             // Cache flush: False, class: in
+            0, 0, 0, 5,             // TTL 5sec
+            0, 9,                   // Data with size 9
+            6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+            (byte) 0b11000000, 12,  // [ptr->] "_airplay._tcp.local."
+
+            // Data 2:
+            (byte) 0b11000000, 43,  // [ptr->] "tv-abc._airplay._tcp.local."
+            0x00, 33,               // Type SRV
+            (byte) 0x80, 0x01,      // Cache flush: True, class: in
+            0, 0, 0, 5,             // TTL 5sec
+            0, 15,                  // Data with size 15
+            0, 0, 0, 0, 0x1b, 0x58, // Priority 0, weight 0, port 7000
+            6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+            (byte) 0b11000000, 26,  // [ptr->] "local."
+
+            // Data 3:
+            (byte) 0b11000000, 70,  // [ptr->] "tv-abc.local."
+            0x00, 0x01,             // Type A
+            (byte) 0x80, 0x01,      // Cache flush: True, class: in
+            0, 0, 0, 5,             // TTL 5sec
+            0, 4,                   // Data with size 4
+            100, 80, 40, 20,        // IP: 100.80.40.20
+    };
+
+    @Test
+    public void testOptimizeCompressesNamesAndDropsDuplicates() {
+        byte[] optimized = MdnsPacketOptimizer.optimize(
+                SERVICE_AIRPLAY_UNCOMPRESSED.rawOffloadPacket);
+
+        assertArrayEquals(AIRPLAY_OPTIMIZED, optimized);
+    }
+
+    @Test
+    public void testOptimizedPacketRoundTrips() {
+        byte[] packet = SERVICE_AIRPLAY_UNCOMPRESSED.rawOffloadPacket;
+        byte[] optimized = MdnsPacketOptimizer.optimize(packet);
+
+        assertTrue(optimized.length < packet.length);
+        List<String> answers = decodeAnswers(packet);
+        // The last answer is a duplicate of the previous one.
+        assertEquals(answers.subList(0, answers.size() - 1), decodeAnswers(optimized));
+    }
+
+    @Test
+    public void testOptimizedPacketMatchCriteriaPointToNames() {
+        byte[] optimized = MdnsPacketOptimizer.optimize(
+                SERVICE_AIRPLAY_UNCOMPRESSED.rawOffloadPacket);
+
+        List<MatchCriteria> criteria = MdnsPacketParser.extractMatchCriteria(optimized);
+        assertEquals(3, criteria.size());
+        assertEquals(12, criteria.get(0).nameOffset);
+        assertEquals(12, criteria.get(0).type);
+        assertEquals("_airplay._tcp.local.",
+                MdnsPacketParser.extractFullName(optimized, criteria.get(0).nameOffset));
+        assertEquals(52, criteria.get(1).nameOffset);
+        assertEquals(33, criteria.get(1).type);
+        assertEquals("tv-abc._airplay._tcp.local.",
+                MdnsPacketParser.extractFullName(optimized, criteria.get(1).nameOffset));
+        assertEquals(79, criteria.get(2).nameOffset);
+        assertEquals(1, criteria.get(2).type);
+        assertEquals("tv-abc.local.",
+                MdnsPacketParser.extractFullName(optimized, criteria.get(2).nameOffset));
+    }
+
+    @Test
+    public void testOptimizedPacketKeepsCanonicalNames() {
+        MdnsNameTable nameTable = new MdnsNameTable();
+        byte[] packet = SERVICE_AIRPLAY_UNCOMPRESSED.rawOffloadPacket;
+
+        List<String> names = MdnsPacketParser.parseResponsePacket(
+                packet, nameTable).mCanonicalNames;
+        List<String> optimizedNames = MdnsPacketParser.parseResponsePacket(
+                MdnsPacketOptimizer.optimize(packet), nameTable).mCanonicalNames;
+
+        assertEquals(names.subList(0, names.size() - 1), optimizedNames);
+        for (int i = 0; i < optimizedNames.size(); i++) {
+            assertSame(names.get(i), optimizedNames.get(i));
+        }
+    }
+
+    @Test
+    public void testOptimizeIsIdempotent() {
+        byte[] optimized = MdnsPacketOptimizer.optimize(
+                SERVICE_AIRPLAY_UNCOMPRESSED.rawOffloadPacket);
+
+        assertSame(optimized, MdnsPacketOptimizer.optimize(optimized));
+    }
+
+    @Test
+    public void testOptimizeKeepsPacketsThatCannotShrink() {
+        for (byte[] packet : List.of(SERVICE_ATV.rawOffloadPacket,
+                SERVICE_GTV.rawOffloadPacket, SERVICE_GOOGLECAST.rawOffloadPacket)) {
+            assertSame(packet, MdnsPacketOptimizer.optimize(packet));
+        }
+    }
+
+    @Test
+    public void testOptimizeKeepsCaseOfNames() {
+        byte[] packet = new byte[]{
+                0, 0, 0, 0,             // Id, Flags
+                0, 0, 0, 2, 0, 0, 0, 0, // Header section, 2 answers
+
+                // Data 1:
+                3, 'a', 't', 'v', 0x00, // "atv."
+                0x00, 0x01,             // Type A
+                (byte) 0x80, 0x01,      // Cache flush: True, class: in
+                0, 0, 0, 5,             // TTL 5sec
+                0, 4,                   // Data with size 4
+                100, 80, 40, 20,        // IP: 100.80.40.20
+
+                // Data 2:
+                3, 'A', 'T', 'V', 0x00, // "ATV."
+                0x00, 0x01,             // Type A
+                (byte) 0x80, 0x01,      // Cache flush: True, class: in
+                0, 0, 0, 5,             // TTL 5sec
+                0, 4,                   // Data with size 4
+                100, 80, 40, 20,        // IP: 100.80.40.20
+        };
+
+        assertSame(packet, MdnsPacketOptimizer.optimize(packet));
+    }
+
+    @Test
+    public void testOptimizeKeepsPacketsWithUnknownRecordTypes() {
+        byte[] packet = new byte[]{
+                0, 0, 0, 0,             // Id, Flags
+                0, 0, 0, 2, 0, 0, 0, 0, // Header section, 2 answers
+
+                // Data 1:
+                3, 'a', 't', 'v', 0x00, // "atv."
+                0x00, 0x0f,             // Type MX
+                (byte) 0x80, 0x01,      // Cache flush: True, class: in
+                0, 0, 0, 5,             // TTL 5sec
+                0, 4,                   // Data with size 4
+                0, 10,                  // Preference 10
+                (byte) 0b11000000, 12,  // [ptr->] "atv."
+
+                // Data 2, same as data 1:
+                3, 'a', 't', 'v', 0x00, // "atv."
+                0x00, 0x0f,             // Type MX
+                (byte) 0x80, 0x01,      // Cache flush: True, class: in
+                0, 0, 0, 5,             // TTL 5sec
+                0, 4,                   // Data with size 4
+                0, 10,                  // Preference 10
+                (byte) 0b11000000, 12,  // [ptr->] "atv."
+        };
+
+        assertSame(packet, MdnsPacketOptimizer.optimize(packet));
+    }
+
+    @Test
+    public void testOptimizeDoesNotCompressNsecNextDomainName() {
+        byte[] packet = new byte[]{
+                0, 0, 0, 0,             // Id, Flags
+                0, 0, 0, 2, 0, 0, 0, 0, // Header section, 2 answers
+
+                // Data 1:
+                6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+                5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+                0x00, 0x01,             // Type A
+                (byte) 0x80, 0x01,      // Cache flush: True, class: in
+                0, 0, 0, 5,             // TTL 5sec
+                0, 4,                   // Data with size 4
+                100, 80, 40, 20,        // IP: 100.80.40.20
+
+                // Data 2:
+                6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+                5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+                0x00, 47,               // Type NSEC
+                (byte) 0x80, 0x01,      // Cache flush: True, class: in
+                0, 0, 0, 5,             // TTL 5sec
+                0, 17,                  // Data with size 17
+                6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+                5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+                0, 1, 0x40,             // Bitmap: A
+        };
+
+        byte[] optimized = MdnsPacketOptimizer.optimize(packet);
+
+        assertEquals(packet.length - 12, optimized.length);
+        assertArrayEquals(
+                Arrays.copyOfRange(packet, packet.length - 17, packet.length),
+                Arrays.copyOfRange(optimized, optimized.length - 17, optimized.length));
+        assertEquals(decodeAnswers(packet), decodeAnswers(optimized));
+    }
+
+    @Test
+    public void testOptimizeFollowsForwardPointers() {
+        byte[] packet = new byte[]{
+                0, 0, 0, 0,             // Id, Flags
+                0, 0, 0, 3, 0, 0, 0, 0, // Header section, 3 answers
+
+                // Data 1:
+                (byte) 0b11000000, 28,  // [ptr->] "tv-abc.local.", in data 2
+                0x00, 0x01,             // Type A
+                (byte) 0x80, 0x01,      // Cache flush: True, class: in
+                0, 0, 0, 5,             // TTL 5sec
+                0, 4,                   // Data with size 4
+                100, 80, 40, 20,        // IP: 100.80.40.20
+
+                // Data 2:
+                6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+                5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+                0x00, 0x01,             // Type A
+                (byte) 0x80, 0x01,      // Cache flush: True, class: in
+                0, 0, 0, 5,             // TTL 5sec
+                0, 4,                   // Data with size 4
+                100, 80, 40, 21,        // IP: 100.80.40.21
+
+                // Data 3:
+                6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+                5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+                0x00, 0x01,             // Type A
+                (byte) 0x80, 0x01,      // Cache flush: True, class: in
+                0, 0, 0, 5,             // TTL 5sec
+                0, 4,                   // Data with size 4
+                100, 80, 40, 22,        // IP: 100.80.40.22
+        };
+
+        byte[] optimized = MdnsPacketOptimizer.optimize(packet);
+
+        assertEquals(packet.length - 12, optimized.length);
+        assertEquals(decodeAnswers(packet), decodeAnswers(optimized));
+    }
+
+    @Test
+    public void testOptimizeReturnsPacketWithPointerLoopUnchanged() {
+        byte[] packet = new byte[]{
+                0, 0, 0, 0,             // Id, Flags
+                0, 0, 0, 1, 0, 0, 0, 0, // Header section, 1 answer
+
+                // Data 1:
+                3, 'a', 't', 'v',       // "atv."
+                (byte) 0b11000000, 12,  // [ptr->] "atv.", loops forever
+                0x00, 0x01,             // Type A
+                (byte) 0x80, 0x01,      // Cache flush: True, class: in
+                0, 0, 0, 5,             // TTL 5sec
+                0, 4,                   // Data with size 4
+                100, 80, 40, 20,        // IP: 100.80.40.20
+        };
+
+        assertSame(packet, MdnsPacketOptimizer.optimize(packet));
+    }
+
+    @Test
+    public void testOptimizeReturnsBadlyFormedPacketsUnchanged() {
+        byte[] packet = Arrays.copyOf(
+                SERVICE_AIRPLAY_UNCOMPRESSED.rawOffloadPacket,
+                SERVICE_AIRPLAY_UNCOMPRESSED.rawOffloadPacket.length - 1);
+
+        assertSame(packet, MdnsPacketOptimizer.optimize(packet));
+    }
+
+    /**
+     * Decodes every answer of a packet to a readable form, with names decompressed.
+     */
+    private static List<String> decodeAnswers(byte[] packet) {
+        List<String> answers = new ArrayList<>();
+        for (MatchCriteria criteria : MdnsPacketParser.extractMatchCriteria(packet)) {
+            int cursor = skipName(packet, criteria.nameOffset);
+            int rdataStart = cursor + 10;
+            int rdataEnd = rdataStart + ((packet[cursor + 8] & 0xff) << 8)
+                    + (packet[cursor + 9] & 0xff);
+            String rdata = switch (criteria.type) {
+                case 12 -> MdnsPacketParser.extractFullName(packet, rdataStart);
+                case 33 -> Arrays.toString(Arrays.copyOfRange(packet, rdataStart, rdataStart + 6))
+                        + MdnsPacketParser.extractFullName(packet, rdataStart + 6);
+                case 47 -> MdnsPacketParser.extractFullName(packet, rdataStart)
+                        + Arrays.toString(Arrays.copyOfRange(
+                                packet, skipName(packet, rdataStart), rdataEnd));
+                default -> Arrays.toString(Arrays.copyOfRange(packet, rdataStart, rdataEnd));
+            };
+            // Name, type, cache flush, class and TTL, then RDATA.
+            answers.add(MdnsPacketParser.extractFullName(packet, criteria.nameOffset) + " "
+                    + Arrays.toString(Arrays.copyOfRange(packet, cursor, cursor + 8)) + " "
+                    + rdata);
+        }
+        return answers;
+    }
+
+    private static int skipName(byte[] packet, int offset) {
+        int cursor = offset;
+        while (packet[cursor] != 0) {
+            if ((packet[cursor] & 0b11000000) == 0b11000000) {
+                return cursor + 2;
+            }
+            cursor += 1 + packet[cursor];
+        }
+        return cursor + 1;
+    }
+}
@@ -17,15 +17,17 @@
 package com.android.tv.mdnsoffloadmanager;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 
 import androidx.test.filters.SmallTest;
 import org.junit.Test;
 
+import com.android.tv.mdnsoffloadmanager.MdnsPacketParser.MatchCriteria;
+
 import java.util.Arrays;
 import java.util.List;
-
-import device.google.atv.mdns_offload.IMdnsOffload.MdnsProtocolData.MatchCriteria;
+import java.util.Random;
 
 @SmallTest
 public class MdnsPacketParserTest {
@@ -280,4 +282,236 @@ public class MdnsPacketParserTest {
         );
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testParseResponsePacketDecodesCanonicalNames() {
+        byte[] array = new byte[]{
+                0, 0, 0, 0,//Id , Flags
+                0, 0, 0, 2, 0, 0, 0, 0,// Header section. 2 answers.
+                //Data 1
+                3, 'a', 't', 'v', 0x00, //atv.
+                0x00, 0x01, //type A
+                (byte) 0x80, 0x01,//cache flush: True, class: in
+                0, 0, 0, 5,// TTL 5sec
+                0, 4, // Data with size 4
+                100, 80, 40, 20, //ip: 100.80.40.20
+                //Data 2
+                3, 'g', 'T', 'v', (byte) 0b11000000, 12, //gTv.[ptr->]atv.
+                0x00, 16, //type TXT
+                (byte) 0x80, 0x01,//cache flush: True, class: in
+                0, 0, 0, 5,// TTL 5sec
+                0, 3, // Data with size 3
+                'i', 's', 'o' // "iso"
+        };
+        MdnsNameTable nameTable = new MdnsNameTable();
+
+        MdnsPacketParser.ParsedPacket parsedPacket =
+                MdnsPacketParser.parseResponsePacket(array, nameTable);
+
+        assertEquals(2, parsedPacket.mMatchCriteria.size());
+        assertEquals(12, parsedPacket.mMatchCriteria.get(0).nameOffset);
+        assertEquals(1, parsedPacket.mMatchCriteria.get(0).type);
+        assertEquals(31, parsedPacket.mMatchCriteria.get(1).nameOffset);
+        assertEquals(16, parsedPacket.mMatchCriteria.get(1).type);
+        assertEquals(List.of("ATV.", "GTV.ATV."), parsedPacket.mCanonicalNames);
+    }
+
+    @Test
+    public void testParseResponsePacketInternsNames() {
+        byte[] array = new byte[]{
+                0, 0, 0, 0,//Id , Flags
+                0, 0, 0, 1, 0, 0, 0, 0,// Header section. 1 answer.
+                //Data 1
+                3, 'a', 't', 'v', 0x00, //atv.
+                0x00, 0x01, //type A
+                (byte) 0x80, 0x01,//cache flush: True, class: in
+                0, 0, 0, 5,// TTL 5sec
+                0, 4, // Data with size 4
+                100, 80, 40, 20 //ip: 100.80.40.20
+        };
+        MdnsNameTable nameTable = new MdnsNameTable();
+        String interned = nameTable.intern("Atv");
+
+        String first = MdnsPacketParser.parseResponsePacket(array, nameTable)
+                .mCanonicalNames.get(0);
+        String second = MdnsPacketParser.parseResponsePacket(array.clone(), nameTable)
+                .mCanonicalNames.get(0);
+
+        assertSame(interned, first);
+        assertSame(interned, second);
+        assertEquals(1, nameTable.size());
+    }
+
+    @Test
+    public void testParseResponsePacketNonAsciiLabel() {
+        byte[] array = new byte[]{
+                0, 0, 0, 0,//Id , Flags
+                0, 0, 0, 1, 0, 0, 0, 0,// Header section. 1 answer.
+                //Data 1
+                3, 't', (byte) 0xc3, (byte) 0xa9, 0x00, //"t\u00e9."
+                0x00, 0x01, //type A
+                (byte) 0x80, 0x01,//cache flush: True, class: in
+                0, 0, 0, 5,// TTL 5sec
+                0, 4, // Data with size 4
+                100, 80, 40, 20 //ip: 100.80.40.20
+        };
+
+        MdnsPacketParser.ParsedPacket parsedPacket =
+                MdnsPacketParser.parseResponsePacket(array, new MdnsNameTable());
+
+        assertEquals(List.of("T\u00c9."), parsedPacket.mCanonicalNames);
+    }
+
+    @Test
+    public void testParseResponsePacketFailureTooMuchData() {
+        byte[] array = new byte[]{
+                0, 0, 0, 0,//Id , Flags
+                0, 0, 0, 1, 0, 0, 0, 0,// Header section. 1 answer.
+                //Data 1
+                3, 'a', 't', 'v', 0x00, //atv.
+                0x00, 0x01, //type A
+                (byte) 0x80, 0x01,//cache flush: True, class: in
+                0, 0, 0, 5,// TTL 5sec
+                0, 4, // Data with size 4
+                100, 80, 40, 20, //ip: 100.80.40.20
+                //extra data.
+                'e','x','t','r','a'
+        };
+
+        assertThrows(
+                "mDNS response packet is badly formed. Too much data.",
+                IllegalArgumentException.class,
+                () -> MdnsPacketParser.parseResponsePacket(array, new MdnsNameTable())
+        );
+    }
+
+    @Test
+    public void testExtractFullNamePointerCycle() {
+        // Two pointers pointing at each other.
+        byte[] array = new byte[]{3, 'a', 't', 'v', (byte) 0xC0, 6, (byte) 0xC0, 4};
+
+        assertEquals(MdnsPacketParser.Status.TOO_MANY_POINTERS,
+                MdnsPacketParser.validateName(array, 0));
+        assertThrows(
+                "mDNS response packet is badly formed. Too many pointers.",
+                IllegalArgumentException.class,
+                () -> MdnsPacketParser.extractFullName(array, 0)
+        );
+    }
+
+    @Test
+    public void testExtractMatchCriteriaFailurePointerCycle() {
+        byte[] array = new byte[]{
+                0, 0, 0, 0,//Id , Flags
+                0, 0, 0, 1, 0, 0, 0, 0,// Header section. 1 answer.
+                //Data 1
+                (byte) 0xC0, 12, //[ptr->] itself
+                0x00, 0x01, //type A
+                (byte) 0x80, 0x01,//cache flush: True, class: in
+                0, 0, 0, 5,// TTL 5sec
+                0, 4, // Data with size 4
+                100, 80, 40, 20, //ip: 100.80.40.20
+        };
+
+        assertEquals(MdnsPacketParser.Status.TOO_MANY_POINTERS,
+                MdnsPacketParser.validateResponsePacket(array));
+        assertThrows(
+                "mDNS response packet is badly formed. Too many pointers.",
+                IllegalArgumentException.class,
+                () -> MdnsPacketParser.parseResponsePacket(array, new MdnsNameTable())
+        );
+    }
+
+    @Test
+    public void testValidateResponsePacket() {
+        byte[] array = new byte[]{
+                0, 0, 0, 0,//Id , Flags
+                0, 0, 0, 1, 0, 0, 0, 0,// Header section. 1 answer.
+                //Data 1
+                3, 'a', 't', 'v', 0x00, //atv.
+                0x00, 0x01, //type A
+                (byte) 0x80, 0x01,//cache flush: True, class: in
+                0, 0, 0, 5,// TTL 5sec
+                0, 4, // Data with size 4
+                100, 80, 40, 20, //ip: 100.80.40.20
+        };
+        assertEquals(MdnsPacketParser.Status.OK, MdnsPacketParser.validateResponsePacket(array));
+
+        byte[] truncatedRdata = Arrays.copyOf(array, array.length - 1);
+        assertEquals(MdnsPacketParser.Status.TRUNCATED,
+                MdnsPacketParser.validateResponsePacket(truncatedRdata));
+
+        byte[] trailingData = Arrays.copyOf(array, array.length + 1);
+        assertEquals(MdnsPacketParser.Status.TRAILING_DATA,
+                MdnsPacketParser.validateResponsePacket(trailingData));
+
+        byte[] withQuery = array.clone();
+        withQuery[5] = 1;
+        assertEquals(MdnsPacketParser.Status.NOT_ONLY_ANSWERS,
+                MdnsPacketParser.validateResponsePacket(withQuery));
+
+        byte[] reservedLabelType = array.clone();
+        reservedLabelType[12] = (byte) 0x43;
+        assertEquals(MdnsPacketParser.Status.INVALID_LABEL_TYPE,
+                MdnsPacketParser.validateResponsePacket(reservedLabelType));
+    }
+
+    @Test
+    public void testValidateNameTooLong() {
+        // 128 labels "a." make a 256 characters name.
+        byte[] array = new byte[128 * 2 + 1];
+        for (int label = 0; label < 128; label++) {
+            array[label * 2] = 1;
+            array[label * 2 + 1] = 'a';
+        }
+
+        assertEquals(MdnsPacketParser.Status.NAME_TOO_LONG,
+                MdnsPacketParser.validateName(array, 0));
+        assertEquals(MdnsPacketParser.Status.OK, MdnsPacketParser.validateName(array, 2));
+        assertThrows(
+                "mDNS response packet is badly formed. Name too long.",
+                IllegalArgumentException.class,
+                () -> MdnsPacketParser.extractFullName(array, 0)
+        );
+    }
+
+    @Test
+    public void testMutatedPacketsAreParsedIfAndOnlyIfValid() {
+        byte[] array = new byte[]{
+                0, 0, 0, 0,//Id , Flags
+                0, 0, 0, 2, 0, 0, 0, 0,// Header section. 2 answers.
+                //Data 1
+                3, 'a', 't', 'v', 0x00, //atv.
+                0x00, 0x01, //type A
+                (byte) 0x80, 0x01,//cache flush: True, class: in
+                0, 0, 0, 5,// TTL 5sec
+                0, 4, // Data with size 4
+                100, 80, 40, 20, //ip: 100.80.40.20
+                //Data 2
+                3, 'g', 't', 'v', (byte) 0b11000000, 12, //gtv.[ptr->]atv.
+                0x00, 12, //type PTR
+                (byte) 0x80, 0x01,//cache flush: True, class: in
+                0, 0, 0, 5,// TTL 5sec
+                0, 2, // Data with size 2
+                (byte) 0b11000000, 31, //[ptr->]gtv.atv.
+        };
+        Random random = new Random(0);
+        for (int iteration = 0; iteration < 10_000; iteration++) {
+            byte[] mutated = array.clone();
+            for (int mutation = random.nextInt(4); mutation >= 0; mutation--) {
+                mutated[12 + random.nextInt(mutated.length - 12)] = (byte) random.nextInt(256);
+            }
+            MdnsPacketParser.Status status = MdnsPacketParser.validateResponsePacket(mutated);
+            MdnsPacketParser.Status parsed;
+            try {
+                MdnsPacketParser.parseResponsePacket(mutated, new MdnsNameTable());
+                parsed = MdnsPacketParser.Status.OK;
+            } catch (IllegalArgumentException e) {
+                parsed = Arrays.stream(MdnsPacketParser.Status.values())
+                        .filter(value -> value.mMessage.equals(e.getMessage()))
+                        .findFirst()
+                        .orElseThrow();
+            }
+            assertEquals(Arrays.toString(mutated), status, parsed);
+        }
+    }
+}
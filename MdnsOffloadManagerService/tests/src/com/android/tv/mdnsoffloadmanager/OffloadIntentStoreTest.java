@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_AIRPLAY;
+import static com.android.tv.mdnsoffloadmanager.TestHelpers.SERVICE_ATV;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.res.Resources;
+import android.os.Binder;
+import android.os.IBinder;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+@SmallTest
+public class OffloadIntentStoreTest {
+
+    private static final int APP_UID_1 = 10001;
+    private static final int APP_UID_2 = 10002;
+
+    private final IBinder mClientToken1 = new Binder();
+    private final IBinder mClientToken2 = new Binder();
+    private OffloadIntentStore mStore;
+
+    @Before
+    public void setup() {
+        Resources resources = mock(Resources.class);
+        when(resources.getStringArray(PriorityListManager.PRIORITIZED_QNAMES_ID))
+                .thenReturn(new String[0]);
+        mStore = new OffloadIntentStore(new PriorityListManager(resources), false);
+        mStore.setAppIdAllowlist(Set.of(APP_UID_1, APP_UID_2));
+    }
+
+    @Test
+    public void testAllowlistChangeReturnsInterfacesOfChangedApps() {
+        mStore.registerOffloadIntent("eth0", SERVICE_ATV, mClientToken1, APP_UID_1);
+        mStore.registerPassthroughIntent("wlan0", "atv", mClientToken1, APP_UID_1);
+        mStore.registerOffloadIntent("wlan0", SERVICE_AIRPLAY, mClientToken2, APP_UID_2);
+        mStore.registerPassthroughIntent("eth1", "airplay", mClientToken2, APP_UID_2);
+
+        OffloadIntentStore.AllowlistChange change = mStore.setAppIdAllowlist(Set.of(APP_UID_2));
+
+        assertEquals(Set.of("eth0"), change.mOffloadInterfaces);
+        assertEquals(Set.of("wlan0"), change.mPassthroughInterfaces);
+        assertTrue(mStore.getOffloadIntentsForInterface("eth0").isEmpty());
+        assertTrue(mStore.getPassthroughIntentsForInterface("wlan0").isEmpty());
+
+        change = mStore.setAppIdAllowlist(Set.of(APP_UID_1, APP_UID_2));
+
+        assertEquals(Set.of("eth0"), change.mOffloadInterfaces);
+        assertEquals(Set.of("wlan0"), change.mPassthroughInterfaces);
+        assertEquals(1, mStore.getOffloadIntentsForInterface("eth0").size());
+        assertEquals(1, mStore.getPassthroughIntentsForInterface("wlan0").size());
+    }
+
+    @Test
+    public void testAllowlistChangeWithoutChangedAppsIsEmpty() {
+        mStore.registerOffloadIntent("eth0", SERVICE_ATV, mClientToken1, APP_UID_1);
+        mStore.registerPassthroughIntent("eth0", "atv", mClientToken1, APP_UID_1);
+
+        OffloadIntentStore.AllowlistChange change =
+                mStore.setAppIdAllowlist(Set.of(APP_UID_1, APP_UID_2));
+
+        assertTrue(change.mOffloadInterfaces.isEmpty());
+        assertTrue(change.mPassthroughInterfaces.isEmpty());
+    }
+
+    @Test
+    public void testRemoveOffloadIntentCleansUpIndexes() {
+        OffloadIntentStore.OffloadIntent intent =
+                mStore.registerOffloadIntent("eth0", SERVICE_ATV, mClientToken1, APP_UID_1);
+
+        assertNull(mStore.getAndRemoveOffloadIntent(intent.mRecordKey, mClientToken2));
+        assertNotNull(mStore.getAndRemoveOffloadIntent(intent.mRecordKey, mClientToken1));
+
+        assertTrue(mStore.getOffloadIntentsForInterface("eth0").isEmpty());
+        assertFalse(mStore.hasIntentsOfClient(mClientToken1));
+        assertTrue(mStore.setAppIdAllowlist(Set.of()).mOffloadInterfaces.isEmpty());
+        assertNull(mStore.getAndRemoveOffloadIntent(intent.mRecordKey, mClientToken1));
+        assertTrue(mStore.takeSnapshot().mOffloadEntries.isEmpty());
+    }
+
+    @Test
+    public void testRemovePassthroughIntentCleansUpIndexes() {
+        mStore.registerPassthroughIntent("eth0", "ATV", mClientToken1, APP_UID_1);
+        mStore.registerPassthroughIntent("eth0", "atv", mClientToken2, APP_UID_2);
+
+        assertTrue(mStore.removePassthroughIntent("atv", mClientToken1));
+
+        List<OffloadIntentStore.PassthroughIntent> remaining =
+                mStore.getPassthroughIntentsForInterface("eth0");
+        assertEquals(1, remaining.size());
+        assertEquals(mClientToken2, remaining.get(0).mClientToken);
+        assertFalse(mStore.hasIntentsOfClient(mClientToken1));
+        assertFalse(mStore.removePassthroughIntent("atv", mClientToken1));
+        assertEquals(Set.of("eth0"), mStore.setAppIdAllowlist(Set.of()).mPassthroughInterfaces);
+
+        assertTrue(mStore.removePassthroughIntent("Atv", mClientToken2));
+
+        assertTrue(mStore.setAppIdAllowlist(Set.of(APP_UID_1, APP_UID_2))
+                .mPassthroughInterfaces.isEmpty());
+        assertTrue(mStore.getPassthroughIntentsForInterface("eth0").isEmpty());
+        assertTrue(mStore.takeSnapshot().mPassthroughEntries.isEmpty());
+    }
+
+    @Test
+    public void testRemoveIntentsOfClientRemovesBothKinds() {
+        mStore.registerOffloadIntent("eth0", SERVICE_ATV, mClientToken1, APP_UID_1);
+        mStore.registerPassthroughIntent("wlan0", "atv", mClientToken1, APP_UID_1);
+        mStore.registerOffloadIntent("eth0", SERVICE_AIRPLAY, mClientToken2, APP_UID_2);
+        mStore.registerPassthroughIntent("wlan0", "airplay", mClientToken2, APP_UID_2);
+
+        assertEquals(Set.of("eth0", "wlan0"), mStore.removeIntentsOfClient(mClientToken1));
+
+        assertFalse(mStore.hasIntentsOfClient(mClientToken1));
+        assertTrue(mStore.hasIntentsOfClient(mClientToken2));
+        assertEquals(1, mStore.getOffloadIntentsForInterface("eth0").size());
+        assertEquals(1, mStore.getPassthroughIntentsForInterface("wlan0").size());
+        assertFalse(mStore.removePassthroughIntent("atv", mClientToken1));
+        assertTrue(mStore.removeIntentsOfClient(mClientToken1).isEmpty());
+
+        OffloadIntentStore.AllowlistChange change = mStore.setAppIdAllowlist(Set.of(APP_UID_2));
+
+        assertTrue(change.mOffloadInterfaces.isEmpty());
+        assertTrue(change.mPassthroughInterfaces.isEmpty());
+    }
+
+    @Test
+    public void testRestoreSnapshotSkipsIntentsRegisteredBeforeIt() {
+        mStore.registerOffloadIntent("eth0", SERVICE_ATV, mClientToken1, APP_UID_1);
+        mStore.registerOffloadIntent("eth0", SERVICE_AIRPLAY, mClientToken1, APP_UID_1);
+        mStore.registerPassthroughIntent("eth0", "atv", mClientToken1, APP_UID_1);
+        OffloadSnapshot snapshot = mStore.takeSnapshot();
+        setup();
+
+        mStore.registerOffloadIntent("eth0", SERVICE_ATV, mClientToken2, APP_UID_1);
+        mStore.registerPassthroughIntent("eth0", "ATV", mClientToken2, APP_UID_1);
+        mStore.restoreSnapshot(snapshot);
+
+        assertEquals(2, mStore.getOffloadIntentsForInterface("eth0").size());
+        assertEquals(1, mStore.getPassthroughIntentsForInterface("eth0").size());
+        assertTrue(mStore.hasRestoredIntents(APP_UID_1));
+
+        assertEquals(Set.of("eth0"), mStore.removeRestoredIntents(APP_UID_1));
+
+        Collection<OffloadIntentStore.OffloadIntent> remaining =
+                mStore.getOffloadIntentsForInterface("eth0");
+        assertEquals(1, remaining.size());
+        assertEquals(mClientToken2, remaining.iterator().next().mClientToken);
+        assertEquals(1, mStore.getPassthroughIntentsForInterface("eth0").size());
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.mdnsoffloadmanager;
+
+import android.os.IInterface;
+import android.os.RemoteException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import device.google.atv.mdns_offload.IMdnsOffload;
+
+/**
+ * Functional stand-in for the vendor service, answering synthetic mDNS queries from the offloaded
+ * responses the way the offload hardware would. Refer to {@link IMdnsOffload} for the API
+ * specification.
+ * <p>
+ * Unlike {@link FakeMdnsOffloadService}, which only records calls, this implementation matches
+ * the questions of a query against the {@link MdnsProtocolData.MatchCriteria} of the offloaded
+ * responses, applies the passthrough behavior to the questions it cannot answer, keeps real hit
+ * and miss counters, and holds responses within a memory budget. Feeding it queries with
+ * {@link #receiveQuery} measures the coverage of the offloaded state, e.g. per kilobyte of
+ * offload memory.
+ */
+public class SimulatedMdnsOffloadService extends IMdnsOffload.Stub {
+
+    static final int QTYPE_ANY = 255;
+    private static final int OFFSET_QUERIES_COUNT = 4;
+    private static final int OFFSET_DATA_SECTION_START = 12;
+    private static final int QUESTION_FOOTER_SIZE = 4;
+    private static final int MAX_QNAME_LENGTH = 255;
+
+    /**
+     * Outcome of a query received on a network interface.
+     */
+    static final class QueryResult {
+        /** Offloaded responses sent for the query, each at most once. */
+        final List<byte[]> mResponses;
+        /** Whether the query was forwarded to the system, waking it up. */
+        final boolean mForwarded;
+
+        QueryResult(List<byte[]> responses, boolean forwarded) {
+            mResponses = responses;
+            mForwarded = forwarded;
+        }
+    }
+
+    private static final class OffloadedResponse {
+        final int mRecordKey;
+        final MdnsProtocolData mProtocolData;
+        // Canonical RRNAME and RRTYPE of each match criteria.
+        final List<String> mNames = new ArrayList<>();
+        final List<Integer> mTypes = new ArrayList<>();
+        int mHits = 0;
+
+        OffloadedResponse(int recordKey, MdnsProtocolData protocolData) {
+            mRecordKey = recordKey;
+            mProtocolData = protocolData;
+            for (MdnsProtocolData.MatchCriteria criteria : protocolData.matchCriteriaList) {
+                mNames.add(canonicalName(MdnsPacketParser.extractFullName(
+                        protocolData.rawOffloadPacket, criteria.nameOffset)));
+                mTypes.add(criteria.type);
+            }
+        }
+
+        boolean matches(String qname, int qtype) {
+            for (int index = 0; index < mNames.size(); index++) {
+                if (mNames.get(index).equals(qname)
+                        && (qtype == QTYPE_ANY || mTypes.get(index) == qtype)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class InterfaceState {
+        byte mPassthroughBehavior = PassthroughBehavior.DROP_ALL;
+        final Map<Integer, OffloadedResponse> mResponses = new LinkedHashMap<>();
+        final List<String> mPassthroughQNames = new ArrayList<>();
+        int mBytesInUse = 0;
+    }
+
+    private final int mMaxProtocolResponsesBytes;
+    private final int mMaxPassthroughQNames;
+    private final boolean mPassthroughSuffixMatching;
+    private final Map<String, InterfaceState> mInterfaceStates = new HashMap<>();
+    private final Map<Integer, String> mInterfaceByRecordKey = new HashMap<>();
+    private boolean mOffloadState = false;
+    private int mNextRecordKey = 0;
+    private int mMissCounter = 0;
+    private int mAnsweredQuestions = 0;
+    private int mForwardedQuestions = 0;
+    private int mDroppedQuestions = 0;
+
+    /**
+     * @param maxProtocolResponsesBytes memory budget for the offloaded packets of each network
+     *                                  interface, -1 for no limit.
+     * @param maxPassthroughQNames      size of the passthrough list of each network interface,
+     *                                  -1 for no limit.
+     * @param passthroughSuffixMatching whether passthrough QNAMEs also match the names under them.
+     */
+    SimulatedMdnsOffloadService(
+            int maxProtocolResponsesBytes,
+            int maxPassthroughQNames,
+            boolean passthroughSuffixMatching) {
+        mMaxProtocolResponsesBytes = maxProtocolResponsesBytes;
+        mMaxPassthroughQNames = maxPassthroughQNames;
+        mPassthroughSuffixMatching = passthroughSuffixMatching;
+    }
+
+    private InterfaceState getInterfaceState(String iface) {
+        return mInterfaceStates.computeIfAbsent(iface, ifc -> new InterfaceState());
+    }
+
+    /**
+     * Handle a query packet received on the given network interface.
+     *
+     * Questions matching an offloaded response are answered with it, and count as a hit of the
+     * response. The other questions count as misses, and the query is forwarded to the system if
+     * the passthrough behavior lets any of them through.
+     */
+    @NonNull
+    QueryResult receiveQuery(@NonNull String iface, @NonNull byte[] queryPacket) {
+        if (!mOffloadState) {
+            return new QueryResult(List.of(), true);
+        }
+        InterfaceState state = getInterfaceState(iface);
+        Set<OffloadedResponse> responses = new LinkedHashSet<>();
+        boolean forwarded = false;
+        int questionCount = readUint16(queryPacket, OFFSET_QUERIES_COUNT);
+        int cursor = OFFSET_DATA_SECTION_START;
+        for (int question = 0; question < questionCount; question++) {
+            String qname = canonicalName(MdnsPacketParser.extractFullName(queryPacket, cursor));
+            cursor = skipName(queryPacket, cursor);
+            int qtype = readUint16(queryPacket, cursor);
+            cursor += QUESTION_FOOTER_SIZE;
+
+            boolean answered = false;
+            for (OffloadedResponse response : state.mResponses.values()) {
+                if (response.matches(qname, qtype)) {
+                    responses.add(response);
+                    answered = true;
+                }
+            }
+            if (answered) {
+                mAnsweredQuestions++;
+                continue;
+            }
+            mMissCounter++;
+            if (isForwarded(state, qname)) {
+                forwarded = true;
+                mForwardedQuestions++;
+            } else {
+                mDroppedQuestions++;
+            }
+        }
+        List<byte[]> sent = new ArrayList<>(responses.size());
+        for (OffloadedResponse response : responses) {
+            response.mHits++;
+            sent.add(response.mProtocolData.rawOffloadPacket);
+        }
+        return new QueryResult(sent, forwarded);
+    }
+
+    private boolean isForwarded(InterfaceState state, String qname) {
+        switch (state.mPassthroughBehavior) {
+            case PassthroughBehavior.FORWARD_ALL:
+                return true;
+            case PassthroughBehavior.PASSTHROUGH_LIST:
+                for (String passthroughQName : state.mPassthroughQNames) {
+                    String entry = canonicalName(passthroughQName);
+                    if (entry.equals(qname)
+                            || (mPassthroughSuffixMatching && qname.endsWith("." + entry))) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Questions answered with an offloaded response, since the last reset.
+     */
+    int getAnsweredQuestions() {
+        return mAnsweredQuestions;
+    }
+
+    /**
+     * Questions that were not answered and were forwarded to the system, since the last reset.
+     */
+    int getForwardedQuestions() {
+        return mForwardedQuestions;
+    }
+
+    /**
+     * Questions that were neither answered nor forwarded, since the last reset.
+     */
+    int getDroppedQuestions() {
+        return mDroppedQuestions;
+    }
+
+    /**
+     * Size of the packets offloaded on the given network interface.
+     */
+    int getBytesInUse(String iface) {
+        return getInterfaceState(iface).mBytesInUse;
+    }
+
+    /**
+     * Build a query packet with one question per QNAME, without name compression.
+     */
+    static byte[] makeQuery(int qtype, String... qnames) {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        writeUint16(packet, 0);              // Id
+        writeUint16(packet, 0);              // Flags
+        writeUint16(packet, qnames.length);  // Questions
+        writeUint16(packet, 0);              // Answers
+        writeUint16(packet, 0);              // Authority
+        writeUint16(packet, 0);              // Additional
+        for (String qname : qnames) {
+            for (String label : qname.split("\\.")) {
+                byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+                packet.write(bytes.length);
+                packet.write(bytes, 0, bytes.length);
+            }
+            packet.write(0);
+            writeUint16(packet, qtype);
+            writeUint16(packet, 1);          // Class IN, unicast response not requested
+        }
+        return packet.toByteArray();
+    }
+
+    @Override
+    public boolean setOffloadState(boolean enabled) throws RemoteException {
+        mOffloadState = enabled;
+        return mOffloadState;
+    }
+
+    @Override
+    public void resetAll() throws RemoteException {
+        mInterfaceStates.clear();
+        mInterfaceByRecordKey.clear();
+        mNextRecordKey = 0;
+        mMissCounter = 0;
+        mAnsweredQuestions = 0;
+        mForwardedQuestions = 0;
+        mDroppedQuestions = 0;
+    }
+
+    @Override
+    public int addProtocolResponses(String iface, MdnsProtocolData protocolData)
+            throws RemoteException {
+        InterfaceState state = getInterfaceState(iface);
+        int packetBytes = protocolData.rawOffloadPacket.length;
+        if (mMaxProtocolResponsesBytes >= 0
+                && state.mBytesInUse + packetBytes > mMaxProtocolResponsesBytes) {
+            return -1;
+        }
+        int recordKey = mNextRecordKey++;
+        state.mResponses.put(recordKey, new OffloadedResponse(recordKey, protocolData));
+        state.mBytesInUse += packetBytes;
+        mInterfaceByRecordKey.put(recordKey, iface);
+        return recordKey;
+    }
+
+    @Override
+    public void removeProtocolResponses(int recordKey) throws RemoteException {
+        String iface = mInterfaceByRecordKey.remove(recordKey);
+        if (iface == null) {
+            return;
+        }
+        InterfaceState state = getInterfaceState(iface);
+        OffloadedResponse removed = state.mResponses.remove(recordKey);
+        state.mBytesInUse -= removed.mProtocolData.rawOffloadPacket.length;
+    }
+
+    @Override
+    public int getAndResetHitCounter(int recordKey) throws RemoteException {
+        String iface = mInterfaceByRecordKey.get(recordKey);
+        if (iface == null) {
+            return 0;
+        }
+        OffloadedResponse response = getInterfaceState(iface).mResponses.get(recordKey);
+        int hits = response.mHits;
+        response.mHits = 0;
+        return hits;
+    }
+
+    @Override
+    public int getAndResetMissCounter() throws RemoteException {
+        int misses = mMissCounter;
+        mMissCounter = 0;
+        return misses;
+    }
+
+    @Override
+    public boolean addToPassthroughList(String iface, String qname) throws RemoteException {
+        InterfaceState state = getInterfaceState(iface);
+        if (qname.length() > MAX_QNAME_LENGTH
+                || (mMaxPassthroughQNames >= 0
+                        && state.mPassthroughQNames.size() >= mMaxPassthroughQNames)) {
+            return false;
+        }
+        state.mPassthroughQNames.add(qname);
+        return true;
+    }
+
+    @Override
+    public void removeFromPassthroughList(String iface, String qname) throws RemoteException {
+        getInterfaceState(iface).mPassthroughQNames.remove(qname);
+    }
+
+    @Override
+    public void setPassthroughBehavior(String iface, byte behavior) throws RemoteException {
+        getInterfaceState(iface).mPassthroughBehavior = behavior;
+    }
+
+    @Override
+    public int[] addProtocolResponsesBatch(String iface, MdnsProtocolData[] protocolData)
+            throws RemoteException {
+        int[] recordKeys = new int[protocolData.length];
+        for (int i = 0; i < protocolData.length; i++) {
+            recordKeys[i] = addProtocolResponses(iface, protocolData[i]);
+        }
+        return recordKeys;
+    }
+
+    @Override
+    public void removeProtocolResponsesBatch(int[] recordKeys) throws RemoteException {
+        for (int recordKey : recordKeys) {
+            removeProtocolResponses(recordKey);
+        }
+    }
+
+    @Override
+    public boolean[] addToPassthroughListBatch(String iface, String[] qnames)
+            throws RemoteException {
+        boolean[] added = new boolean[qnames.length];
+        for (int i = 0; i < qnames.length; i++) {
+            added[i] = addToPassthroughList(iface, qnames[i]);
+        }
+        return added;
+    }
+
+    @Override
+    public void removeFromPassthroughListBatch(String iface, String[] qnames)
+            throws RemoteException {
+        for (String qname : qnames) {
+            removeFromPassthroughList(iface, qname);
+        }
+    }
+
+    @Override
+    public OffloadCapacity getOffloadCapacity(String iface) throws RemoteException {
+        OffloadCapacity capacity = new OffloadCapacity();
+        capacity.maxProtocolResponsesBytes = mMaxProtocolResponsesBytes;
+        capacity.maxPassthroughQNames = mMaxPassthroughQNames;
+        capacity.passthroughSuffixMatching = mPassthroughSuffixMatching;
+        return capacity;
+    }
+
+    @Override
+    public InterfaceOffloadState[] getOffloadState() throws RemoteException {
+        List<InterfaceOffloadState> states = new ArrayList<>();
+        mInterfaceStates.forEach((iface, state) -> {
+            InterfaceOffloadState offloadState = new InterfaceOffloadState();
+            offloadState.networkInterface = iface;
+            offloadState.protocolResponses = state.mResponses.values()
+                    .stream()
+                    .map(response -> {
+                        OffloadedProtocolResponse offloaded = new OffloadedProtocolResponse();
+                        offloaded.recordKey = response.mRecordKey;
+                        offloaded.contentDigest = PacketStore.contentHash(
+                                response.mProtocolData.rawOffloadPacket);
+                        return offloaded;
+                    })
+                    .toArray(OffloadedProtocolResponse[]::new);
+            offloadState.passthroughList = state.mPassthroughQNames.toArray(new String[0]);
+            offloadState.passthroughBehavior = state.mPassthroughBehavior;
+            states.add(offloadState);
+        });
+        return states.toArray(new InterfaceOffloadState[0]);
+    }
+
+    @Override
+    public int[] getAndResetHitCounterBatch(int[] recordKeys) throws RemoteException {
+        int[] hitCounters = new int[recordKeys.length];
+        for (int i = 0; i < recordKeys.length; i++) {
+            hitCounters[i] = getAndResetHitCounter(recordKeys[i]);
+        }
+        return hitCounters;
+    }
+
+    @Override
+    public int getInterfaceVersion() throws RemoteException {
+        return 2;
+    }
+
+    @Override
+    public String getInterfaceHash() throws RemoteException {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public IInterface queryLocalInterface(@NonNull String descriptor) {
+        return this;
+    }
+
+    private static String canonicalName(String name) {
+        String upperCase = name.toUpperCase(Locale.ROOT);
+        return upperCase.endsWith(".") ? upperCase : upperCase + ".";
+    }
+
+    private static int skipName(byte[] packet, int cursor) {
+        while (true) {
+            int length = packet[cursor] & 0xff;
+            if (length == 0) {
+                return cursor + 1;
+            }
+            if ((length & 0xc0) == 0xc0) {
+                return cursor + 2;
+            }
+            cursor += 1 + length;
+        }
+    }
+
+    private static int readUint16(byte[] packet, int offset) {
+        return ((packet[offset] & 0xff) << 8) | (packet[offset + 1] & 0xff);
+    }
+
+    private static void writeUint16(ByteArrayOutputStream packet, int value) {
+        packet.write((value >> 8) & 0xff);
+        packet.write(value & 0xff);
+    }
+}
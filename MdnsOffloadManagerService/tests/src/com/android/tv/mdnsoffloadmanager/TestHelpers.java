@@ -65,6 +65,20 @@ public class TestHelpers {
             'i', 's', 'o'           // "iso"
         });
 
+    static final OffloadServiceInfo SERVICE_TV
+        = makeOffloadServiceInfo("", "tv", "somedevice", new byte[]{
+            0, 0, 0, 0,             // Id, Flags
+            0, 0, 0, 1, 0, 0, 0, 0, // Header section, 1 answer
+
+            // Data 1:
+            2, 't', 'v', 0x00,      // "tv."
+            0x00, 0x01,             // Type A
+            (byte) 0x80, 0x01,      // Cache flush: True, class: in
+            0, 0, 0, 5,             // TTL 5sec
+            0, 4,                   // Data with size 4
+            100, 80, 40, 20         // IP: 100.80.40.20
+        });
+
     static final OffloadServiceInfo SERVICE_GOOGLECAST
         = makeOffloadServiceInfo("_googlecast", "_tcp", "tv-abc", new byte[]{
             0, 0, 0, 0,             // Id, Flags
@@ -90,6 +104,56 @@ public class TestHelpers {
             100, 80, 40, 20,        // IP: 100.80.40.20
         });
 
+    static final OffloadServiceInfo SERVICE_AIRPLAY_UNCOMPRESSED
+        = makeOffloadServiceInfo("_airplay", "_tcp", "tv-abc", new byte[]{
+            0, 0, 0, 0,             // Id, Flags
+            0, 0, 0, 4, 0, 0, 0, 0, // Header section, 4 answers
+
+            // Data 1:
+            8, '_', 'a', 'i', 'r', 'p', 'l', 'a', 'y', // "_airplay."
+            4, '_', 't', 'c', 'p',  // "_tcp."
+            5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+            0x00, 0x0c,             // Type PTR
+            0x00, 0x01,             // Cache flush: False, class: in
+            0, 0, 0, 5,             // TTL 5sec
+            0, 28,                  // Data with size 28
+            6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+            8, '_', 'a', 'i', 'r', 'p', 'l', 'a', 'y', // "_airplay."
+            4, '_', 't', 'c', 'p',  // "_tcp."
+            5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+
+            // Data 2:
+            6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+            8, '_', 'a', 'i', 'r', 'p', 'l', 'a', 'y', // "_airplay."
+            4, '_', 't', 'c', 'p',  // "_tcp."
+            5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+            0x00, 33,               // Type SRV
+            (byte) 0x80, 0x01,      // Cache flush: True, class: in
+            0, 0, 0, 5,             // TTL 5sec
+            0, 20,                  // Data with size 20
+            0, 0, 0, 0, 0x1b, 0x58, // Priority 0, weight 0, port 7000
+            6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+            5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+
+            // Data 3:
+            6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+            5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+            0x00, 0x01,             // Type A
+            (byte) 0x80, 0x01,      // Cache flush: True, class: in
+            0, 0, 0, 5,             // TTL 5sec
+            0, 4,                   // Data with size 4
+            100, 80, 40, 20,        // IP: 100.80.40.20
+
+            // Data 4, same as data 3:
+            6, 't', 'v', '-', 'a', 'b', 'c', // "tv-abc."
+            5, 'l', 'o', 'c', 'a', 'l', 0x00,  // "local."
+            0x00, 0x01,             // Type A
+            (byte) 0x80, 0x01,      // Cache flush: True, class: in
+            0, 0, 0, 5,             // TTL 5sec
+            0, 4,                   // Data with size 4
+            100, 80, 40, 20,        // IP: 100.80.40.20
+        });
+
     static OffloadServiceInfo makeOffloadServiceInfo(String serviceName, String serviceType,
         String deviceHostName, byte[] rawOffloadPacket) {
         OffloadServiceInfo serviceInfo = new OffloadServiceInfo();
@@ -123,14 +187,15 @@ public class TestHelpers {
             FakeMdnsOffloadService offloadService,
             String networkInterface,
             OffloadServiceInfo... expectedServices) {
-        List<byte[]> expectedPackets = Arrays.stream(expectedServices)
-                .map(service -> service.rawOffloadPacket)
+        // Packets are compared by content, they may be copies, e.g. when restored from disk.
+        List<String> expectedPackets = Arrays.stream(expectedServices)
+                .map(service -> Arrays.toString(service.rawOffloadPacket))
                 .collect(Collectors.toList());
-        List<byte[]> offloadedPackets = offloadService
+        List<String> offloadedPackets = offloadService
                 .getOffloadData(networkInterface)
                 .offloadedRecords
                 .stream()
-                .map(protocolData -> protocolData.rawOffloadPacket)
+                .map(protocolData -> Arrays.toString(protocolData.rawOffloadPacket))
                 .collect(Collectors.toList());
         assertEquals(expectedPackets, offloadedPackets);
     }